@@ -245,6 +245,14 @@ public class ConfigureTranche extends ConfigurationUtil {
      * <p>The maximum number of milliseconds before a request that is being kept alive is timed out.</p>
      */
     public static final String PROP_SERVER_KEEP_ALIVE_TIMEOUT = "server.keepalive.timeout";
+    /**
+     * <p>Whether a server that doesn't use SSL should handle all of its clients with a selector rather than with threads for each client.</p>
+     */
+    public static final String PROP_SERVER_NIO = "server.nio";
+    /**
+     * <p>The number of threads that execute requests for all clients when a server handles its clients with a selector.</p>
+     */
+    public static final String PROP_SERVER_NIO_HANDLER_THREADS = "server.nio.handler.threads";
     /**
      * <p>The number of milliseconds between sending offline server notification emails.</p>
      */
@@ -253,6 +261,22 @@ public class ConfigureTranche extends ConfigurationUtil {
      * <p>The starting port number for a server.</p>
      */
     public static final String PROP_SERVER_PORT = "server.port";
+    /**
+     * <p>The number of threads a server uses to propagate requests to other servers.</p>
+     */
+    public static final String PROP_SERVER_PROPAGATION_THREADS = "server.propagation.threads";
+    /**
+     * <p>The maximum number of propagated requests a server queues before turning more away.</p>
+     */
+    public static final String PROP_SERVER_PROPAGATION_QUEUE_SIZE = "server.propagation.queue.size";
+    /**
+     * <p>The number of propagated requests a server can have executing simultaneously on any one other server.</p>
+     */
+    public static final String PROP_SERVER_PROPAGATION_HOST_SIMULTANEOUS_REQUESTS = "server.propagation.host.simultaneous.requests";
+    /**
+     * <p>The maximum number of milliseconds a server waits for the servers it propagated a request to. Servers further down the propagation tree wait less.</p>
+     */
+    public static final String PROP_SERVER_PROPAGATION_TIMEOUT = "server.propagation.timeout";
     /**
      * <p>The maximum number of requests a client can have outstanding on a server.</p>
      */
@@ -119,6 +119,110 @@ public class ConfigKeys {
      * <p>Whether or not should record data chunk deletions by default.</p>
      */
     public static final boolean DEFAULT_LOG_DATA_CHUNK_DELETIONS = true;
+    /**
+     * <p>Whether or not data chunks are read through memory-mapped DataBlock files by default.</p>
+     */
+    public static final boolean DEFAULT_USE_MEMORY_MAPPED_READS = false;
+    /**
+     * <p>The default number of DataBlock files to keep memory-mapped at once.</p>
+     */
+    public static final int DEFAULT_MAPPED_FILE_POOL_SIZE = 32;
+    /**
+     * <p>The default number of chunk locations to cache for data or meta data chunks.</p>
+     */
+    public static final int DEFAULT_DATA_BLOCK_CACHE_CAPACITY = 250;
+    /**
+     * <p>Whether or not the bytes of popular chunks are cached in memory by default.</p>
+     */
+    public static final boolean DEFAULT_USE_CHUNK_CACHE = false;
+    /**
+     * <p>The default maximum number of bytes of data chunks to cache in memory.</p>
+     */
+    public static final long DEFAULT_CHUNK_CACHE_DATA_BYTES = 64 * 1024 * 1024;
+    /**
+     * <p>The default maximum number of bytes of meta data chunks to cache in memory.</p>
+     */
+    public static final long DEFAULT_CHUNK_CACHE_META_DATA_BYTES = 16 * 1024 * 1024;
+    /**
+     * <p>Whether or not space wasted by deleted chunks is reclaimed by a background thread by default.</p>
+     */
+    public static final boolean DEFAULT_USE_BACKGROUND_COMPACTION = false;
+    /**
+     * <p>The default maximum number of bytes per second copied when compacting DataBlocks in the background.</p>
+     */
+    public static final long DEFAULT_COMPACTION_BYTES_PER_SECOND = 4 * 1024 * 1024;
+    /**
+     * <p>The default fraction of a DataBlock's chunk bytes that must be deleted before it is compacted in the background.</p>
+     */
+    public static final double DEFAULT_COMPACTION_MIN_WASTED_RATIO = 0.25;
+    /**
+     * <p>Whether or not chunks go through the write-ahead log by default.</p>
+     */
+    public static final boolean DEFAULT_USE_WRITE_AHEAD_LOG = false;
+    /**
+     * <p>The default most milliseconds a chunk written to the write-ahead log waits for the log to be synced.</p>
+     */
+    public static final long DEFAULT_WRITE_AHEAD_LOG_SYNC_INTERVAL = 50;
+    /**
+     * <p>The default number of bytes written to the write-ahead log at which it is synced without waiting for the interval.</p>
+     */
+    public static final long DEFAULT_WRITE_AHEAD_LOG_SYNC_BYTES = 1024 * 1024;
+    /**
+     * <p>The default most bytes of chunks in the write-ahead log waiting to be placed in DataBlocks.</p>
+     */
+    public static final long DEFAULT_WRITE_AHEAD_LOG_MAX_PENDING_BYTES = 64 * 1024 * 1024;
+    /**
+     * <p>The default most chunk operations that run at once against each data directory.</p>
+     */
+    public static final int DEFAULT_DATA_DIRECTORY_MAX_CONCURRENT_IO = 8;
+    /**
+     * <p>The default most chunk operations that wait for a turn on each data directory.</p>
+     */
+    public static final int DEFAULT_DATA_DIRECTORY_MAX_QUEUE_DEPTH = 64;
+    /**
+     * <p>The default average milliseconds per chunk operation at which a data directory is marked read-only.</p>
+     */
+    public static final long DEFAULT_DATA_DIRECTORY_DEGRADED_LATENCY = 5000;
+    /**
+     * <p>The default most bytes per second copied when moving a DataBlock to another data directory while balancing.</p>
+     */
+    public static final long DEFAULT_BALANCE_BYTES_PER_SECOND = 8 * 1024 * 1024;
+    /**
+     * <p>The default weight of a data directory's recent write rate when choosing where a new DataBlock goes.</p>
+     */
+    public static final double DEFAULT_PLACEMENT_WRITE_RATE_WEIGHT = 0.25;
+    /**
+     * <p>The default weight of a data directory's average latency when choosing where a new DataBlock goes.</p>
+     */
+    public static final double DEFAULT_PLACEMENT_LATENCY_WEIGHT = 0.25;
+    /**
+     * <p>Whether or not new DataBlocks keep a checksum for each chunk by default.</p>
+     */
+    public static final boolean DEFAULT_USE_CHECKSUMS = true;
+    /**
+     * <p>Whether or not chunks are verified against their checksums by a background thread by default.</p>
+     */
+    public static final boolean DEFAULT_USE_SCRUBBING = true;
+    /**
+     * <p>The default most bytes per second read when verifying chunks against their checksums.</p>
+     */
+    public static final long DEFAULT_SCRUB_BYTES_PER_SECOND = 1024 * 1024;
+    /**
+     * <p>Whether or not checks for chunks go through a Bloom filter before the disk by default.</p>
+     */
+    public static final boolean DEFAULT_USE_CHUNK_FILTER = true;
+    /**
+     * <p>Whether or not chunk hashes are loaded from a snapshot at start up by default.</p>
+     */
+    public static final boolean DEFAULT_USE_INDEX_SNAPSHOT = true;
+    /**
+     * <p>The default number of milliseconds between snapshots of the chunk hashes.</p>
+     */
+    public static final long DEFAULT_INDEX_SNAPSHOT_INTERVAL = 6 * 60 * 60 * 1000;
+    /**
+     * <p>The default number of threads reading DataBlocks at start up. Zero means one per data directory.</p>
+     */
+    public static final int DEFAULT_PROJECT_FINDING_THREAD_SCAN_THREADS = 0;
     /**
      * 
      */
@@ -411,6 +515,214 @@ public class ConfigKeys {
      * <p>Whether or not should record meta data chunk deletions.</p>
      */
     public static final String DATABLOCK_LOG_META_DATA_CHUNK_DELETIONS = "dataBlockUtil: logMetaDataChunkDeletions";
+    /**
+     * <p>Whether or not data chunks should be read through memory-mapped DataBlock files.</p>
+     */
+    public static final String DATABLOCK_USE_MEMORY_MAPPED_READS = "dataBlockUtil: UseMemoryMappedReads";
+    /**
+     * <p>Maximum number of DataBlock files to keep memory-mapped at once.</p>
+     */
+    public static final String DATABLOCK_MAPPED_FILE_POOL_SIZE = "dataBlockUtil: MappedFilePoolSize";
+    /**
+     * <p>Number of DataBlock files currently memory-mapped.</p>
+     */
+    public static final String DATABLOCK_MAPPED_FILE_COUNT = "dataBlockUtil: MappedFileCount";
+    /**
+     * <p>Maximum number of chunk locations to cache for data or meta data chunks.</p>
+     */
+    public static final String DATABLOCK_CACHE_CAPACITY = "dataBlockUtil: CacheCapacity";
+    /**
+     * <p>Number of chunk locations currently cached, data and meta data combined.</p>
+     */
+    public static final String DATABLOCK_CACHE_SIZE = "dataBlockUtil: CacheSize";
+    /**
+     * <p>Number of times a chunk location was found in the cache.</p>
+     */
+    public static final String DATABLOCK_CACHE_HIT_COUNT = "dataBlockUtil: CacheHitCount";
+    /**
+     * <p>Number of times a chunk location was not found in the cache.</p>
+     */
+    public static final String DATABLOCK_CACHE_MISS_COUNT = "dataBlockUtil: CacheMissCount";
+    /**
+     * <p>Number of chunk locations evicted from the cache to make room for others.</p>
+     */
+    public static final String DATABLOCK_CACHE_EVICTION_COUNT = "dataBlockUtil: CacheEvictionCount";
+    /**
+     * <p>Whether or not the bytes of popular chunks should be cached in memory. The cache is kept outside of the heap, so it is limited by the JVM's -XX:MaxDirectMemorySize.</p>
+     */
+    public static final String DATABLOCK_USE_CHUNK_CACHE = "dataBlockUtil: UseChunkCache";
+    /**
+     * <p>Maximum number of bytes of data chunks to cache in memory.</p>
+     */
+    public static final String DATABLOCK_CHUNK_CACHE_DATA_BYTES = "dataBlockUtil: ChunkCacheDataBytes";
+    /**
+     * <p>Maximum number of bytes of meta data chunks to cache in memory.</p>
+     */
+    public static final String DATABLOCK_CHUNK_CACHE_META_DATA_BYTES = "dataBlockUtil: ChunkCacheMetaDataBytes";
+    /**
+     * <p>Number of bytes of data chunks currently cached in memory.</p>
+     */
+    public static final String DATABLOCK_CHUNK_CACHE_DATA_SIZE = "dataBlockUtil: ChunkCacheDataSizeBytes";
+    /**
+     * <p>Number of bytes of meta data chunks currently cached in memory.</p>
+     */
+    public static final String DATABLOCK_CHUNK_CACHE_META_DATA_SIZE = "dataBlockUtil: ChunkCacheMetaDataSizeBytes";
+    /**
+     * <p>Fraction of requests for data chunks answered from memory.</p>
+     */
+    public static final String DATABLOCK_CHUNK_CACHE_DATA_HIT_RATE = "dataBlockUtil: ChunkCacheDataHitRate";
+    /**
+     * <p>Fraction of requests for meta data chunks answered from memory.</p>
+     */
+    public static final String DATABLOCK_CHUNK_CACHE_META_DATA_HIT_RATE = "dataBlockUtil: ChunkCacheMetaDataHitRate";
+    /**
+     * <p>Whether or not checks for chunks should go through a Bloom filter before the disk.</p>
+     */
+    public static final String DATABLOCK_USE_CHUNK_FILTER = "dataBlockUtil: UseChunkFilter";
+    /**
+     * <p>Whether or not space wasted by deleted chunks is reclaimed by a background thread instead of by the writer that finds it.</p>
+     */
+    public static final String DATABLOCK_USE_BACKGROUND_COMPACTION = "dataBlockUtil: UseBackgroundCompaction";
+    /**
+     * <p>Maximum number of bytes per second copied when compacting DataBlocks in the background. Zero means no limit.</p>
+     */
+    public static final String DATABLOCK_COMPACTION_BYTES_PER_SECOND = "dataBlockUtil: CompactionBytesPerSecond";
+    /**
+     * <p>Fraction of a DataBlock's chunk bytes that must be deleted before it is compacted in the background.</p>
+     */
+    public static final String DATABLOCK_COMPACTION_MIN_WASTED_RATIO = "dataBlockUtil: CompactionMinimumWastedRatio";
+    /**
+     * <p>Number of DataBlocks with wasted space waiting to be compacted.</p>
+     */
+    public static final String DATABLOCK_COMPACTION_CANDIDATE_COUNT = "dataBlockUtil: CompactionCandidateCount";
+    /**
+     * <p>Number of DataBlocks compacted in the background.</p>
+     */
+    public static final String DATABLOCK_COMPACTED_COUNT = "dataBlockUtil: CompactedDataBlocks";
+    /**
+     * <p>Number of bytes reclaimed by compacting DataBlocks in the background.</p>
+     */
+    public static final String DATABLOCK_COMPACTION_BYTES_RECLAIMED = "dataBlockUtil: CompactionBytesReclaimed";
+    /**
+     * <p>Whether or not chunks are written to a write-ahead log, which is synced for a group of writers at once, and placed in DataBlocks in the background.</p>
+     */
+    public static final String DATABLOCK_USE_WRITE_AHEAD_LOG = "dataBlockUtil: UseWriteAheadLog";
+    /**
+     * <p>Most milliseconds a chunk written to the write-ahead log waits for the log to be synced.</p>
+     */
+    public static final String DATABLOCK_WRITE_AHEAD_LOG_SYNC_INTERVAL = "dataBlockUtil: WriteAheadLogSyncInterval";
+    /**
+     * <p>Number of bytes written to the write-ahead log at which it is synced without waiting for the interval.</p>
+     */
+    public static final String DATABLOCK_WRITE_AHEAD_LOG_SYNC_BYTES = "dataBlockUtil: WriteAheadLogSyncBytes";
+    /**
+     * <p>Most bytes of chunks in the write-ahead log waiting to be placed in DataBlocks. Writers wait once there are more.</p>
+     */
+    public static final String DATABLOCK_WRITE_AHEAD_LOG_MAX_PENDING_BYTES = "dataBlockUtil: WriteAheadLogMaxPendingBytes";
+    /**
+     * <p>Number of chunks in the write-ahead log waiting to be placed in DataBlocks.</p>
+     */
+    public static final String DATABLOCK_WRITE_AHEAD_LOG_PENDING_COUNT = "dataBlockUtil: WriteAheadLogPendingCount";
+    /**
+     * <p>Number of times the write-ahead log was synced.</p>
+     */
+    public static final String DATABLOCK_WRITE_AHEAD_LOG_SYNC_COUNT = "dataBlockUtil: WriteAheadLogSyncCount";
+    /**
+     * <p>Number of chunks from the write-ahead log placed in DataBlocks.</p>
+     */
+    public static final String DATABLOCK_WRITE_AHEAD_LOG_PLACED_COUNT = "dataBlockUtil: WriteAheadLogPlacedCount";
+    /**
+     * <p>Most chunk operations that run at once against each data directory. More wait for a turn.</p>
+     */
+    public static final String DATABLOCK_DATA_DIRECTORY_MAX_CONCURRENT_IO = "dataBlockUtil: DataDirectoryMaxConcurrentIO";
+    /**
+     * <p>Most chunk operations that wait for a turn on each data directory. More are turned away.</p>
+     */
+    public static final String DATABLOCK_DATA_DIRECTORY_MAX_QUEUE_DEPTH = "dataBlockUtil: DataDirectoryMaxQueueDepth";
+    /**
+     * <p>Average milliseconds per chunk operation at which a data directory is marked read-only for a while, so new chunks go to the other directories.</p>
+     */
+    public static final String DATABLOCK_DATA_DIRECTORY_DEGRADED_LATENCY = "dataBlockUtil: DataDirectoryDegradedLatency";
+    /**
+     * <p>Most bytes per second copied when moving a DataBlock to another data directory while balancing. Zero or less for no limit.</p>
+     */
+    public static final String DATABLOCK_BALANCE_BYTES_PER_SECOND = "dataBlockUtil: BalanceBytesPerSecond";
+    /**
+     * <p>How much a data directory's recent write rate counts against it, relative to its free space, when choosing where a new DataBlock goes.</p>
+     */
+    public static final String DATABLOCK_PLACEMENT_WRITE_RATE_WEIGHT = "dataBlockUtil: PlacementWriteRateWeight";
+    /**
+     * <p>How much a data directory's average latency counts against it, relative to its free space, when choosing where a new DataBlock goes.</p>
+     */
+    public static final String DATABLOCK_PLACEMENT_LATENCY_WEIGHT = "dataBlockUtil: PlacementLatencyWeight";
+    /**
+     * <p>Number of bytes of DataBlocks moved to other data directories while balancing.</p>
+     */
+    public static final String DATABLOCK_BALANCE_MOVED_BYTES = "dataBlockUtil: BalanceMovedBytes";
+    /**
+     * <p>Number of moves given up because the DataBlock changed while it was copied.</p>
+     */
+    public static final String DATABLOCK_BALANCE_ABORTED_COUNT = "dataBlockUtil: BalanceAbortedCount";
+    /**
+     * <p>The DataBlock being copied to another data directory while balancing, and how far along.</p>
+     */
+    public static final String DATABLOCK_BALANCE_PROGRESS = "dataBlockUtil: BalanceProgress";
+    /**
+     * <p>Whether or not new DataBlocks keep a checksum for each chunk, so chunks that go bad on disk are found. DataBlocks without checksums get them when compacted.</p>
+     */
+    public static final String DATABLOCK_USE_CHECKSUMS = "dataBlockUtil: UseChecksums";
+    /**
+     * <p>Whether or not chunks are verified against their checksums by a background thread. Chunks that don't match are deleted and fetched again.</p>
+     */
+    public static final String DATABLOCK_USE_SCRUBBING = "dataBlockUtil: UseScrubbing";
+    /**
+     * <p>Most bytes per second read when verifying chunks against their checksums. Zero or less for no limit.</p>
+     */
+    public static final String DATABLOCK_SCRUB_BYTES_PER_SECOND = "dataBlockUtil: ScrubBytesPerSecond";
+    /**
+     * <p>Number of chunks verified against their checksums.</p>
+     */
+    public static final String DATABLOCK_SCRUBBED_CHUNKS = "dataBlockUtil: ScrubbedChunks";
+    /**
+     * <p>Number of chunks found not to match their checksums.</p>
+     */
+    public static final String DATABLOCK_CORRUPTED_CHUNKS = "dataBlockUtil: CorruptedChunksFound";
+    /**
+     * <p>Whether the chunk filters hold every chunk on disk, so checks for chunks the server doesn't have can be answered without the disk.</p>
+     */
+    public static final String DATABLOCK_CHUNK_FILTER_READY = "dataBlockUtil: ChunkFilterReady";
+    /**
+     * <p>Of the checks for chunks the server didn't have, the fraction that went to disk anyway.</p>
+     */
+    public static final String DATABLOCK_CHUNK_FILTER_FALSE_POSITIVE_RATE = "dataBlockUtil: ChunkFilterFalsePositiveRate";
+    /**
+     * <p>The false positive rate expected from the size of the chunk filters and the number of chunks added.</p>
+     */
+    public static final String DATABLOCK_CHUNK_FILTER_EXPECTED_FALSE_POSITIVE_RATE = "dataBlockUtil: ChunkFilterExpectedFalsePositiveRate";
+    /**
+     * <p>Number of bytes of memory used by the chunk filters.</p>
+     */
+    public static final String DATABLOCK_CHUNK_FILTER_MEMORY = "dataBlockUtil: ChunkFilterMemoryBytes";
+    /**
+     * <p>Number of checks for chunks answered by the chunk filters without the disk.</p>
+     */
+    public static final String DATABLOCK_CHUNK_FILTER_NEGATIVE_COUNT = "dataBlockUtil: ChunkFilterNegativeCount";
+    /**
+     * <p>Whether or not chunk hashes should be loaded from a snapshot at start up, rather than by reading every DataBlock.</p>
+     */
+    public static final String DATABLOCK_USE_INDEX_SNAPSHOT = "dataBlockUtil: UseIndexSnapshot";
+    /**
+     * <p>Number of milliseconds between snapshots of the chunk hashes. Changes in between are kept in a journal.</p>
+     */
+    public static final String DATABLOCK_INDEX_SNAPSHOT_INTERVAL = "dataBlockUtil: IndexSnapshotInterval";
+    /**
+     * <p>Whether the chunk hashes were loaded from a snapshot at start up.</p>
+     */
+    public static final String DATABLOCK_LOADED_FROM_INDEX_SNAPSHOT = "dataBlockUtil: LoadedFromIndexSnapshot";
+    /**
+     * <p>Number of changes in the journal since the last snapshot of the chunk hashes.</p>
+     */
+    public static final String DATABLOCK_INDEX_JOURNAL_RECORD_COUNT = "dataBlockUtil: IndexJournalRecordCount";
     /**
      * <p>Number of project meta data on the server.</p>
      */
@@ -500,6 +812,7 @@ public class ConfigKeys {
     public static final String REQUESTS_COUNT_BATCH_HAS_META_DATA = "requestCount: BatchHasMetaData";
     public static final String REQUESTS_COUNT_GET_META_DATA = "requestCount: GetMetaData";
     public static final String REQUESTS_COUNT_SET_DATA = "requestCount: SetData";
+    public static final String REQUESTS_COUNT_SET_DATA_SKIPPED = "requestCount: SetDataSkipped";
     public static final String REQUESTS_COUNT_BATCH_SET_DATA = "requestCount: BatchSetData";
     public static final String REQUESTS_COUNT_BATCH_SET_META_DATA = "requestCount: BatchSetMetaData";
     public static final String REQUESTS_COUNT_BATCH_GET_DATA = "requestCount: BatchGetData";
@@ -517,6 +830,26 @@ public class ConfigKeys {
      */
     public static final String PROPAGATE_ALLOW_GET_DATA = "propagate: AllowGetData";
     public static final String PROPAGATE_ALLOW_GET_META_DATA = "propagate: AllowGetMetaData";
+    /**
+     * <p>Number of propagated requests waiting for a thread or for the server they are sent to.</p>
+     */
+    public static final String PROPAGATE_QUEUE_DEPTH = "propagate: QueueDepth";
+    /**
+     * <p>Number of propagated requests executing.</p>
+     */
+    public static final String PROPAGATE_ACTIVE_COUNT = "propagate: ActiveCount";
+    /**
+     * <p>Number of propagated requests executed since start up.</p>
+     */
+    public static final String PROPAGATE_COMPLETED_COUNT = "propagate: CompletedCount";
+    /**
+     * <p>Number of propagated requests turned away because too many were waiting.</p>
+     */
+    public static final String PROPAGATE_REJECTED_COUNT = "propagate: RejectedCount";
+    /**
+     * <p>Number of propagated requests given up on after the timeout.</p>
+     */
+    public static final String PROPAGATE_TIMED_OUT_COUNT = "propagate: TimedOutCount";
     /**
      * ServerStartupThread variables
      */
@@ -525,6 +858,18 @@ public class ConfigKeys {
      * <p>Prevent the startup thread from doing anything.</p>
      */
     public static final String SERVER_STARTUP_THREAD_ALLOW_RUN = "serverStartupThread: AllowRun";
+    /**
+     * <p>What the project finding thread is doing while loading DataBlocks at start up.</p>
+     */
+    public static final String PROJECT_FINDING_THREAD_STATUS = "projectFindingThread: status";
+    /**
+     * <p>Number of threads reading DataBlocks at start up. Zero means one per data directory, which assumes each data directory is on its own disk.</p>
+     */
+    public static final String PROJECT_FINDING_THREAD_SCAN_THREADS = "projectFindingThread: ScanThreads";
+    /**
+     * <p>Number of DataBlocks read by the project finding thread since start up.</p>
+     */
+    public static final String PROJECT_FINDING_THREAD_DATA_BLOCKS_LOADED = "projectFindingThread: DataBlocksLoaded";
     /**
      * RoutingTrancheServer variables
      */
@@ -582,6 +927,58 @@ public class ConfigKeys {
         permissions.put(DATABLOCK_LOG_DATA_CHUNK_DELETIONS, CAN_READ_EDIT);
         permissions.put(DATABLOCK_LOG_META_DATA_CHUNK_DELETIONS, CAN_READ_EDIT);
         permissions.put(DATABLOCK_STORE_DATABLOCK_REFERENCES, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_USE_MEMORY_MAPPED_READS, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_MAPPED_FILE_POOL_SIZE, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_MAPPED_FILE_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_CACHE_CAPACITY, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_CACHE_SIZE, CAN_READ);
+        permissions.put(DATABLOCK_CACHE_HIT_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_CACHE_MISS_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_CACHE_EVICTION_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_USE_CHUNK_CACHE, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_CHUNK_CACHE_DATA_BYTES, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_CHUNK_CACHE_META_DATA_BYTES, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_CHUNK_CACHE_DATA_SIZE, CAN_READ);
+        permissions.put(DATABLOCK_CHUNK_CACHE_META_DATA_SIZE, CAN_READ);
+        permissions.put(DATABLOCK_CHUNK_CACHE_DATA_HIT_RATE, CAN_READ);
+        permissions.put(DATABLOCK_CHUNK_CACHE_META_DATA_HIT_RATE, CAN_READ);
+        permissions.put(DATABLOCK_USE_BACKGROUND_COMPACTION, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_COMPACTION_BYTES_PER_SECOND, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_COMPACTION_MIN_WASTED_RATIO, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_COMPACTION_CANDIDATE_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_COMPACTED_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_COMPACTION_BYTES_RECLAIMED, CAN_READ);
+        permissions.put(DATABLOCK_USE_WRITE_AHEAD_LOG, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_WRITE_AHEAD_LOG_SYNC_INTERVAL, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_WRITE_AHEAD_LOG_SYNC_BYTES, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_WRITE_AHEAD_LOG_MAX_PENDING_BYTES, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_WRITE_AHEAD_LOG_PENDING_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_WRITE_AHEAD_LOG_SYNC_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_WRITE_AHEAD_LOG_PLACED_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_DATA_DIRECTORY_MAX_CONCURRENT_IO, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_DATA_DIRECTORY_MAX_QUEUE_DEPTH, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_DATA_DIRECTORY_DEGRADED_LATENCY, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_BALANCE_BYTES_PER_SECOND, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_PLACEMENT_WRITE_RATE_WEIGHT, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_PLACEMENT_LATENCY_WEIGHT, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_BALANCE_MOVED_BYTES, CAN_READ);
+        permissions.put(DATABLOCK_BALANCE_ABORTED_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_BALANCE_PROGRESS, CAN_READ);
+        permissions.put(DATABLOCK_USE_CHECKSUMS, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_USE_SCRUBBING, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_SCRUB_BYTES_PER_SECOND, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_SCRUBBED_CHUNKS, CAN_READ);
+        permissions.put(DATABLOCK_CORRUPTED_CHUNKS, CAN_READ);
+        permissions.put(DATABLOCK_USE_CHUNK_FILTER, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_CHUNK_FILTER_READY, CAN_READ);
+        permissions.put(DATABLOCK_CHUNK_FILTER_FALSE_POSITIVE_RATE, CAN_READ);
+        permissions.put(DATABLOCK_CHUNK_FILTER_EXPECTED_FALSE_POSITIVE_RATE, CAN_READ);
+        permissions.put(DATABLOCK_CHUNK_FILTER_MEMORY, CAN_READ);
+        permissions.put(DATABLOCK_CHUNK_FILTER_NEGATIVE_COUNT, CAN_READ);
+        permissions.put(DATABLOCK_USE_INDEX_SNAPSHOT, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_INDEX_SNAPSHOT_INTERVAL, CAN_READ_EDIT);
+        permissions.put(DATABLOCK_LOADED_FROM_INDEX_SNAPSHOT, CAN_READ);
+        permissions.put(DATABLOCK_INDEX_JOURNAL_RECORD_COUNT, CAN_READ);
 
         // >>> Corruption in data block <<<
         permissions.put(CORRUPTED_DB_ALLOWED_TO_FIX, CAN_READ_EDIT);
@@ -682,6 +1079,7 @@ public class ConfigKeys {
         permissions.put(REQUESTS_COUNT_BATCH_HAS_META_DATA, CAN_READ);
         permissions.put(REQUESTS_COUNT_GET_META_DATA, CAN_READ);
         permissions.put(REQUESTS_COUNT_SET_DATA, CAN_READ);
+        permissions.put(REQUESTS_COUNT_SET_DATA_SKIPPED, CAN_READ);
         permissions.put(REQUESTS_COUNT_BATCH_SET_DATA, CAN_READ);
         permissions.put(REQUESTS_COUNT_BATCH_SET_META_DATA, CAN_READ);
         permissions.put(REQUESTS_COUNT_BATCH_GET_DATA, CAN_READ);
@@ -699,12 +1097,24 @@ public class ConfigKeys {
          **********************************************************************/
         permissions.put(SERVER_STARTUP_THREAD_STATUS, CAN_READ);
         permissions.put(SERVER_STARTUP_THREAD_ALLOW_RUN, CAN_READ_EDIT);
+
+        /***********************************************************************
+         *              <!--- ProjectFindingThread variables -->
+         **********************************************************************/
+        permissions.put(PROJECT_FINDING_THREAD_STATUS, CAN_READ);
+        permissions.put(PROJECT_FINDING_THREAD_SCAN_THREADS, CAN_READ_EDIT);
+        permissions.put(PROJECT_FINDING_THREAD_DATA_BLOCKS_LOADED, CAN_READ);
         
         /***********************************************************************
          *              <!--- Propagation variables -->
          **********************************************************************/ 
         permissions.put(PROPAGATE_ALLOW_GET_DATA, CAN_READ_EDIT);
         permissions.put(PROPAGATE_ALLOW_GET_META_DATA, CAN_READ_EDIT);
+        permissions.put(PROPAGATE_QUEUE_DEPTH, CAN_READ);
+        permissions.put(PROPAGATE_ACTIVE_COUNT, CAN_READ);
+        permissions.put(PROPAGATE_COMPLETED_COUNT, CAN_READ);
+        permissions.put(PROPAGATE_REJECTED_COUNT, CAN_READ);
+        permissions.put(PROPAGATE_TIMED_OUT_COUNT, CAN_READ);
         /***********************************************************************
          *              <!--- RoutingTrancheServer variables -->
          **********************************************************************/
@@ -719,7 +1129,7 @@ public class ConfigKeys {
     public static boolean isEditable(String key) {
 
         // Don't let edit bytes used for DDC... wait, need to be able to delete these things if for old ddcs!
-        if (key.startsWith("actualBytesUsed:") || key.startsWith("actualPercentageUsed:") || key.startsWith("actualBytesUsedOverflow:")) {
+        if (key.startsWith("actualBytesUsed:") || key.startsWith("actualPercentageUsed:") || key.startsWith("actualBytesUsedOverflow:") || key.startsWith("ioLatency:") || key.startsWith("ioQueueDepth:") || key.startsWith("ioReadOnly:")) {
             return true;
         }
 
@@ -743,7 +1153,7 @@ public class ConfigKeys {
     public static boolean isDeletable(String key) {
 
         // Don't let edit bytes used for DDC... wait, need to be able to delete these things if for old ddcs!
-        if (key.startsWith("actualBytesUsed:") || key.startsWith("actualPercentageUsed:") || key.startsWith("actualBytesUsedOverflow:")) {
+        if (key.startsWith("actualBytesUsed:") || key.startsWith("actualPercentageUsed:") || key.startsWith("actualBytesUsedOverflow:") || key.startsWith("ioLatency:") || key.startsWith("ioQueueDepth:") || key.startsWith("ioReadOnly:")) {
             return true;
         }
 
@@ -767,7 +1177,7 @@ public class ConfigKeys {
     public static boolean isReadable(String key) {
 
         // Don't let edit bytes used for DDC
-        if (key.startsWith("actualBytesUsed:") || key.startsWith("actualPercentageUsed:") || key.startsWith("actualBytesUsedOverflow:")) {
+        if (key.startsWith("actualBytesUsed:") || key.startsWith("actualPercentageUsed:") || key.startsWith("actualBytesUsedOverflow:") || key.startsWith("ioLatency:") || key.startsWith("ioQueueDepth:") || key.startsWith("ioReadOnly:")) {
             return true;
         }
 
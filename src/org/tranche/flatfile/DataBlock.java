@@ -15,30 +15,42 @@
  */
 package org.tranche.flatfile;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 import org.tranche.annotations.Fix;
 import org.tranche.commons.Debuggable;
 import org.tranche.exceptions.AssertionFailedException;
 import org.tranche.exceptions.UnexpectedEndOfDataBlockException;
 import org.tranche.hash.BigHash;
+import org.tranche.hash.BigHashSet;
 import org.tranche.util.IOUtil;
 
 /**
  * <p>Represents a block of data. Might have more than one file in it.</p>
- * <p>Note that the following critical activities are synchronized on the DataBlock object:</p>
+ * <p>Note that the following critical activities are guarded by the read/write lock for the DataBlock's file, which is shared by every DataBlock instance for that file (see DataBlockUtil.getDataBlockLock):</p>
  * <ul>
- *   <li>Adding bytes to data block</li>
- *   <li>Checking whether data block has bytes</li>
- *   <li>Getting bytes from data block</li>
- *   <li>Deleting block</li>
- *   <li>Getting hashes in data block</li>
+ *   <li>Adding bytes to data block (write)</li>
+ *   <li>Deleting bytes from data block (write)</li>
+ *   <li>Cleaning up, splitting or moving data block (write)</li>
+ *   <li>Checking whether data block has bytes (read)</li>
+ *   <li>Getting bytes from data block (read)</li>
+ *   <li>Getting hashes in data block (read)</li>
  * </ul>
+ * <p>Readers run concurrently. Merging an old data block holds its read lock while copying chunks down the chain.</p>
  * @author Jayson Falkner - jfalkner@umich.edu
  * @author Bryan E. Smith - bryanesmith@gmail.com
  */
@@ -46,6 +58,10 @@ import org.tranche.util.IOUtil;
 public class DataBlock extends Debuggable implements Comparable {
 
     public static BigHash HASH_LENGTH_ZERO = new BigHash(new byte[0]);
+    /**
+     * <p>The words of HASH_LENGTH_ZERO, for comparing against header entries. See DataBlockHeader.</p>
+     */
+    private static final long[] HASH_LENGTH_ZERO_WORDS = DataBlockHeader.toWords(HASH_LENGTH_ZERO);
     /**
      * <p>The maximum DataBlock size, in bytes.</p>
      */
@@ -97,12 +113,21 @@ public class DataBlock extends Debuggable implements Comparable {
     /**
      * <p>Maximum wasted space allowed before this block resizes itself.</p>
      */
-    private final int MAX_WASTED_SPACE_ALLOWED = 1024 * 1024 * 5;
+    static final int MAX_WASTED_SPACE_ALLOWED = 1024 * 1024 * 5;
     /**
      * <p>Used to read the header of the file to see what is in it one entry at a time.</p>
      * <p>This is the size of an entry in bytes. Each header is hash + (byte) type + (byte) status + int (offset in block) + int (size)</p>
      */
     static final int bytesPerEntry = (BigHash.HASH_LENGTH + 1 + 1 + 4 + 4);
+    /**
+     * <p>Size in bytes of the checksum kept for each header entry in a checksummed DataBlock.</p>
+     * <p>A checksummed DataBlock has a CRC32 of each chunk right after the header, one int per header entry in the same order, and its chunks start after the checksums. DataBlocks from before checksums were kept have their chunks right after the header, and are told apart by where their first chunk starts.</p>
+     */
+    static final int bytesPerChecksum = 4;
+    /**
+     * <p>Size in bytes of the buffer used when reading a whole DataBlock front to back.</p>
+     */
+    private static final int BULK_READ_BUFFER_SIZE = 1024 * 1024;
     /**
      * <p>Need a reference back to DBU to repair files</p>
      */
@@ -153,6 +178,14 @@ public class DataBlock extends Debuggable implements Comparable {
         return new File(ddc.getDirectoryFile().getAbsolutePath() + filename).length();
     }
 
+    /**
+     * <p>Returns the read/write lock for this DataBlock's file.</p>
+     * @return
+     */
+    private ReentrantReadWriteLock getLock() {
+        return dbu.getDataBlockLock(ddc.getDirectoryFile().getAbsolutePath() + filename);
+    }
+
     /**
      * <p>Returns the underlying file for the DataBlock. Might be a merge file (.merge) or the normal file/directory.</p>
      * @return
@@ -174,60 +207,178 @@ public class DataBlock extends Debuggable implements Comparable {
      * @return
      * @throws java.lang.Exception
      */
-    public synchronized final List<BigHash> getHashes(boolean isMetaData) throws Exception {
-        // if is a directory and no merge file, pass down the chain
-        if (isDirectory() && !isMerging()) {
-            return new ArrayList(0);
-        }
+    public final List<BigHash> getHashes(boolean isMetaData) throws Exception {
+        final Lock lock = getLock().readLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            // if is a directory and no merge file, pass down the chain
+            if (isDirectory() && !isMerging()) {
+                return new ArrayList(0);
+            }
 
 //        // read the header of the file to see what is in it
 //        // each header is hash + (byte) type + (byte) status + int (offset in block) + int (size)
 //        int bytesPerEntry = (BigHash.HASH_LENGTH + 1 + 1 + 4 + 4);
 //        int bytesToRead = bytesPerEntry * HEADERS_PER_FILE;
-        // buffer that amount
-        byte[] buf = new byte[getBytesToRead()];
+            // buffer that amount
+            byte[] buf = new byte[getBytesToRead()];
+
+            // list of hashes
+            ArrayList<BigHash> hashesToReturn = new ArrayList();
 
-        // list of hashes
-        ArrayList<BigHash> hashesToReturn = new ArrayList();
+            File blockFile = getRegularOrMergeFile();
+            // If file not exist, return empty list of hashes
+            if (!blockFile.exists()) {
+                return hashesToReturn;        // read from the file
+            }
+            RandomAccessFile ras = new RandomAccessFile(blockFile, "r");
+            try {
+                // convert the boolean to meta-data or data bit
+                final byte isMetaDataByte = isMetaData ? META_DATA : DATA;
+
+                // get the complete header
+                fillWithBytes(buf, ras, blockFile.getAbsolutePath(), "Reading in header to get hashes for " + (isMetaData ? "meta data" : "data") + ".");
+                final DataBlockHeader header = new DataBlockHeader(buf);
+                // check for the hash
+                for (int i = 0; i < getHeadersPerFile(); i++) {
+                    // parse the entry parts: type, status, offset, size
+                    byte type = header.getType(i);
+                    byte status = header.getStatus(i);
+                    int o = header.getOffset(i);
+                    int s = header.getSize(i);
+
+                    // break out of the loop if the entry size is zero
+                    if (s == 0 && o == 0) {
+                        break;
+                        // if not the same hash, continue
+                    }
+                    if (status != STATUS_OK || type != isMetaDataByte) {
+                        continue;                // add the hash to the list
+                    }
+                    // a copy, so as to ditch the reference to the big array
+                    hashesToReturn.add(header.getHash(i));
+                }
 
-        File blockFile = getRegularOrMergeFile();
-        // If file not exist, return empty list of hashes
-        if (!blockFile.exists()) {
-            return hashesToReturn;        // read from the file
+                return hashesToReturn;
+            } finally {
+                ras.close();
+            }
+        } finally {
+            lock.unlock();
         }
-        RandomAccessFile ras = new RandomAccessFile(blockFile, "r");
+    }
+
+    /**
+     * <p>Returns the entries of the live chunks in this block, in the order the chunks are in the file.</p>
+     * @return
+     * @throws java.lang.Exception
+     */
+    public final List<DataBlockEntry> getEntries() throws Exception {
+        final Lock lock = getLock().readLock();
+        DataDirectoryIOQueue.lock(lock);
         try {
-            // convert the boolean to meta-data or data bit
-            final byte isMetaDataByte = isMetaData ? META_DATA : DATA;
+            // if is a directory and no merge file, pass down the chain
+            if (isDirectory() && !isMerging()) {
+                return new ArrayList<DataBlockEntry>(0);
+            }
+            File blockFile = getRegularOrMergeFile();
+            if (!blockFile.exists()) {
+                return new ArrayList<DataBlockEntry>(0);
+            }
+            RandomAccessFile ras = new RandomAccessFile(blockFile, "r");
+            try {
+                byte[] buf = new byte[getBytesToRead()];
+                fillWithBytes(buf, ras, blockFile.getAbsolutePath(), "Reading in header to get entries.");
+                return getEntries(buf);
+            } finally {
+                ras.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // get the complete header
-            fillWithBytes(buf, ras, blockFile.getAbsolutePath(), "Reading in header to get hashes for " + (isMetaData ? "meta data" : "data") + ".");
-            // check for the hash
-            for (int i = 0; i < getHeadersPerFile(); i++) {
-                // calc the offset
-                int offset = i * bytesPerEntry;
-                // parse the entry parts: hash, type, status, offset, size
-                BigHash h = BigHash.createFromBytes(buf, offset);
-                byte type = buf[offset + BigHash.HASH_LENGTH];
-                byte status = buf[offset + BigHash.HASH_LENGTH + 1];
-                int o = buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
-                int s = buf[BigHash.HASH_LENGTH + offset + 6] << 24 | (buf[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
+    /**
+     * <p>Parses the live entries out of a header, sorted in the order the chunks are in the file.</p>
+     * @param buf The header.
+     * @return
+     */
+    private final List<DataBlockEntry> getEntries(byte[] buf) {
+        final DataBlockHeader header = new DataBlockHeader(buf);
+        List<DataBlockEntry> entries = new ArrayList<DataBlockEntry>();
+        for (int i = 0; i < getHeadersPerFile(); i++) {
+            int o = header.getOffset(i);
+            if (o == 0) {
+                break;
+            }
+            if (header.getStatus(i) != STATUS_OK) {
+                continue;
+            }
+            entries.add(new DataBlockEntry(this, header.getHash(i), header.getType(i) == META_DATA, o, header.getSize(i)));
+        }
+        // chunks are appended, so this is usually already the case
+        Collections.sort(entries);
+        return entries;
+    }
 
-                // break out of the loop if the entry size is zero
-                if (s == 0 && o == 0) {
-                    break;
-                    // if not the same hash, continue
+    /**
+     * <p>Hand each live chunk in this block to the handler, reading the file front to back in one sequential pass instead of seeking for each chunk. Meant for reading everything, e.g., for backups.</p>
+     * <p>The block is only locked while the header is read and the file opened. Chunks are never overwritten in place, since compacting and balancing write a new file, so the chunks read are those live when the header was read, even if deleted meanwhile.</p>
+     * @param handler
+     * @return The number of chunks handed to the handler.
+     * @throws java.lang.Exception
+     */
+    public final int readChunks(DataBlockChunkHandler handler) throws Exception {
+        final byte[] buf = new byte[getBytesToRead()];
+        final File blockFile;
+        final InputStream in;
+        final Lock lock = getLock().readLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            // if is a directory and no merge file, pass down the chain
+            if (isDirectory() && !isMerging()) {
+                return 0;
+            }
+            blockFile = getRegularOrMergeFile();
+            if (!blockFile.exists()) {
+                return 0;
+            }
+            in = new BufferedInputStream(new FileInputStream(blockFile), BULK_READ_BUFFER_SIZE);
+            // the header must be read before a writer can change it. Only the chunks are read unlocked.
+            try {
+                fillWithBytes(buf, in, blockFile.getAbsolutePath(), "Reading in header to read chunks.");
+            } catch (Exception e) {
+                IOUtil.safeClose(in);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            long position = buf.length;
+            int count = 0;
+            for (DataBlockEntry entry : getEntries(buf)) {
+                if (entry.getOffset() < position) {
+                    throw new UnexpectedEndOfDataBlockException("Chunk at offset " + entry.getOffset() + " overlaps the one before it, ending at " + position + ". For data block at: " + blockFile.getAbsolutePath());
                 }
-                if (status != STATUS_OK || type != isMetaDataByte) {
-                    continue;                // add the hash to the list
-                    // be sure to ditch the reference to the big array via .toByteArray()
+                // step over deleted chunks and checksums
+                while (position < entry.getOffset()) {
+                    long skipped = in.skip(entry.getOffset() - position);
+                    if (skipped <= 0) {
+                        throw new UnexpectedEndOfDataBlockException("EOF reached and expected more bytes! For data block at: " + blockFile.getAbsolutePath() + " <Skipping to chunk to read chunks.>");
+                    }
+                    position += skipped;
                 }
-                hashesToReturn.add(BigHash.createFromBytes(h.toByteArray()));
+                byte[] bytes = new byte[entry.getSize()];
+                fillWithBytes(bytes, in, blockFile.getAbsolutePath(), "Reading in " + (entry.isMetaData() ? "meta data" : "data") + " chunk to read chunks.");
+                position += bytes.length;
+                handler.handleChunk(entry, bytes);
+                count++;
             }
-
-            return hashesToReturn;
+            return count;
         } finally {
-            ras.close();
+            IOUtil.safeClose(in);
         }
     }
 
@@ -238,32 +389,38 @@ public class DataBlock extends Debuggable implements Comparable {
      * @return Bytes for chunk
      * @throws java.lang.Exception
      */
-    public synchronized final byte[] getBytes(final int o, final int s) throws Exception {
-        // read from the file
-        File rasFile = getRegularOrMergeFile();
+    public final byte[] getBytes(final int o, final int s) throws Exception {
+        final Lock lock = getLock().readLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            // read from the file
+            File rasFile = getRegularOrMergeFile();
 
-        // if the file doesn't exist, throw a FNF exception
-        if (!rasFile.exists()) {
-            // if here, the file doesn't exist
-            throw new FileNotFoundException("Bytes don't exist on this server for data block file; could not find file from getBytes(int,int): " + rasFile.getAbsolutePath());
-        }
+            // if the file doesn't exist, throw a FNF exception
+            if (!rasFile.exists()) {
+                // if here, the file doesn't exist
+                throw new FileNotFoundException("Bytes don't exist on this server for data block file; could not find file from getBytes(int,int): " + rasFile.getAbsolutePath());
+            }
 
-        if (rasFile.isDirectory()) {
-            return null;
-        }
-        RandomAccessFile ras = new RandomAccessFile(rasFile, "r");
+            if (rasFile.isDirectory()) {
+                return null;
+            }
+            RandomAccessFile ras = new RandomAccessFile(rasFile, "r");
 
-        try {
-            byte[] content = new byte[s];
-            // seek to the right spot
-            ras.seek(o);
-            // load the buffer
-            fillWithBytes(content, ras, rasFile.getAbsolutePath(), "Reading in chunk based on cached offset and size to return.");
-
-            // return the data
-            return content;
+            try {
+                byte[] content = new byte[s];
+                // seek to the right spot
+                ras.seek(o);
+                // load the buffer
+                fillWithBytes(content, ras, rasFile.getAbsolutePath(), "Reading in chunk based on cached offset and size to return.");
+
+                // return the data
+                return content;
+            } finally {
+                ras.close();
+            }
         } finally {
-            ras.close();
+            lock.unlock();
         }
     }
 
@@ -274,78 +431,134 @@ public class DataBlock extends Debuggable implements Comparable {
      * @return
      * @throws java.lang.Exception
      */
-    public synchronized final byte[] getBytes(BigHash hash, boolean isMetaData) throws Exception {
-        // if is a directory and no merge file, pass down the chain
-        if (isDirectory() && !isMerging()) {
-            return ddc.dbu.getDataBlockToAddChunk(hash).getBytes(hash, isMetaData);
-        }
+    public final byte[] getBytes(BigHash hash, boolean isMetaData) throws Exception {
+        final Lock lock = getLock().readLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            // if is a directory and no merge file, pass down the chain
+            if (isDirectory() && !isMerging()) {
+                return ddc.dbu.getDataBlockToAddChunk(hash).getBytes(hash, isMetaData);
+            }
 
-//        // read the header of the file to see what is in it
-//        // each header is hash + (byte) type + (byte) status + int (offset in block) + int (size)
-//        int bytesPerEntry = (BigHash.HASH_LENGTH + 1 + 1 + 4 + 4);
-//        int bytesToRead = bytesPerEntry * HEADERS_PER_FILE;
-        // buffer that amount
-        byte[] buf = new byte[getBytesToRead()];
+            // convert the boolean to meta-data or data bit
+            final byte isMetaDataByte = isMetaData ? META_DATA : DATA;
 
-        // convert the boolean to meta-data or data bit
-        final byte isMetaDataByte = isMetaData ? META_DATA : DATA;
+            // read from the file
+            File rasFile = getRegularOrMergeFile();
 
-        // read from the file
-        File rasFile = getRegularOrMergeFile();
+            // if the file doesn't exist, throw a FNF exception
+            if (!rasFile.exists()) {
+                // if here, the file doesn't exist
+                throw new FileNotFoundException("Bytes don't exist on this server for data block file; could not find file from getBytes(BigHash,boolean): " + rasFile.getAbsolutePath());
+            }
 
-        // if the file doesn't exist, throw a FNF exception
-        if (!rasFile.exists()) {
-            // if here, the file doesn't exist
-            throw new FileNotFoundException("Bytes don't exist on this server for data block file; could not find file from getBytes(BigHash,boolean): " + rasFile.getAbsolutePath());
-        }
+            RandomAccessFile ras = new RandomAccessFile(rasFile, "r");
 
-        if (rasFile.isDirectory()) {
-            int stopHere = 0;
-        }
-        RandomAccessFile ras = new RandomAccessFile(rasFile, "r");
+            try {
+                // if indexed, go straight to the chunk
+                if (dbu.isUseHeaderIndex()) {
+                    DataBlockHeaderIndex.Entry entry = getHeaderIndex(rasFile, ras, "Reading header to index before getting " + (isMetaData ? "meta data" : "data") + " chunk.").get(hash, isMetaData);
+                    if (entry == null) {
+                        throw new FileNotFoundException("Bytes don't exist on this server for data block file; not found in header index: " + rasFile.getAbsolutePath() + " [" + hash + "]");
+                    }
+                    byte[] content = new byte[entry.size];
+                    ras.seek(entry.offset);
+                    fillWithBytes(content, ras, rasFile.getAbsolutePath(), "Reading in indexed " + (isMetaData ? "meta data" : "data") + " chunk to return.");
+                    return content;
+                }
 
-        try {
-            // get the complete header
-            fillWithBytes(buf, ras, rasFile.getAbsolutePath(), "Reading header to get " + (isMetaData ? "meta data" : "data") + " chunk.");
-            // check for the hash
-            int entryNumber = 0;
-            for (int i = 0; i < getHeadersPerFile(); i++) {
-                // Update so know how many read
-                entryNumber = i;
-                // calc the offset
-                int offset = i * bytesPerEntry;
-                // parse the entry parts: hash, type, status, offset, size
-                BigHash entryHash = BigHash.createFromBytes(buf, offset);
-                byte type = buf[offset + BigHash.HASH_LENGTH];
-                byte status = buf[offset + BigHash.HASH_LENGTH + 1];
-                int entryOffset = buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
-                int chunkSize = buf[BigHash.HASH_LENGTH + offset + 6] << 24 | (buf[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
+//            // read the header of the file to see what is in it
+//            // each header is hash + (byte) type + (byte) status + int (offset in block) + int (size)
+//            int bytesPerEntry = (BigHash.HASH_LENGTH + 1 + 1 + 4 + 4);
+//            int bytesToRead = bytesPerEntry * HEADERS_PER_FILE;
+                // buffer that amount
+                byte[] buf = new byte[getBytesToRead()];
+
+                // get the complete header
+                fillWithBytes(buf, ras, rasFile.getAbsolutePath(), "Reading header to get " + (isMetaData ? "meta data" : "data") + " chunk.");
+                final DataBlockHeader header = new DataBlockHeader(buf);
+                final long[] hashWords = DataBlockHeader.toWords(hash);
+                // check for the hash
+                int entryNumber = 0;
+                for (int i = 0; i < getHeadersPerFile(); i++) {
+                    // Update so know how many read
+                    entryNumber = i;
+                    // parse the entry parts: offset, size
+                    int entryOffset = header.getOffset(i);
+                    int chunkSize = header.getSize(i);
+
+                    // break out of the loop if the entry size is zero
+                    if (chunkSize == 0 && entryOffset == 0 && !header.hashEquals(i, HASH_LENGTH_ZERO_WORDS)) {
+                        break;
+                    }
+                    // if not the same hash, continue
+                    if (header.getStatus(i) != STATUS_OK || header.getType(i) != isMetaDataByte || !header.hashEquals(i, hashWords)) {
+                        continue;
+                    }
 
-                // break out of the loop if the entry size is zero
-                if (chunkSize == 0 && entryOffset == 0 && !entryHash.equals(HASH_LENGTH_ZERO)) {
-                    break;
-                }
-                // if not the same hash, continue
-                if (status != STATUS_OK || !entryHash.equals(hash) || type != isMetaDataByte) {
-                    continue;
+                    // if here, we have the same hash. return the bytes
+                    // buffer the bytes -- don't share since the server is multi-threaded
+                    byte[] content = new byte[chunkSize];
+                    // seek to the right spot
+                    ras.seek(entryOffset);
+                    // load the buffer
+                    fillWithBytes(content, ras, rasFile.getAbsolutePath(), "Reading in " + (isMetaData ? "meta data" : "data") + " chunk to return.");
+
+                    // return the data
+                    return content;
                 }
 
-                // if here, we have the same hash. return the bytes
-                // buffer the bytes -- don't share since the server is multi-threaded
-                byte[] content = new byte[chunkSize];
-                // seek to the right spot
-                ras.seek(entryOffset);
-                // load the buffer
-                fillWithBytes(content, ras, rasFile.getAbsolutePath(), "Reading in " + (isMetaData ? "meta data" : "data") + " chunk to return.");
+                // if here, the file doesn't exist
+                throw new FileNotFoundException("Bytes don't exist on this server for data block file; read total of " + entryNumber + " entries before giving up:" + rasFile.getAbsolutePath() + " [" + hash + "]");
+            } finally {
+                ras.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                // return the data
-                return content;
+    /**
+     * <p>Returns a read-only view of the chunk represented by the hash in the memory-mapped DataBlock file, or throws a FileNotFoundException if not found.</p>
+     * <p>The chunk is located using the header index, and is not copied on to the heap.</p>
+     * @param hash
+     * @param isMetaData
+     * @return
+     * @throws java.lang.Exception
+     */
+    public final ByteBuffer getByteBuffer(BigHash hash, boolean isMetaData) throws Exception {
+        final Lock lock = getLock().readLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            // if is a directory and no merge file, pass down the chain
+            if (isDirectory() && !isMerging()) {
+                return ddc.dbu.getDataBlockToAddChunk(hash).getByteBuffer(hash, isMetaData);
             }
 
-            // if here, the file doesn't exist
-            throw new FileNotFoundException("Bytes don't exist on this server for data block file; read total of " + entryNumber + " entries before giving up:" + rasFile.getAbsolutePath() + " [" + hash + "]");
+            // read from the file
+            File rasFile = getRegularOrMergeFile();
+
+            // if the file doesn't exist, throw a FNF exception
+            if (!rasFile.exists()) {
+                throw new FileNotFoundException("Bytes don't exist on this server for data block file; could not find file from getByteBuffer(BigHash,boolean): " + rasFile.getAbsolutePath());
+            }
+
+            DataBlockHeaderIndex index = dbu.getHeaderIndexCache().get(rasFile);
+            if (index == null) {
+                RandomAccessFile ras = new RandomAccessFile(rasFile, "r");
+                try {
+                    index = getHeaderIndex(rasFile, ras, "Reading header to index before mapping " + (isMetaData ? "meta data" : "data") + " chunk.");
+                } finally {
+                    ras.close();
+                }
+            }
+            DataBlockHeaderIndex.Entry entry = index.get(hash, isMetaData);
+            if (entry == null) {
+                throw new FileNotFoundException("Bytes don't exist on this server for data block file; not found in header index: " + rasFile.getAbsolutePath() + " [" + hash + "]");
+            }
+            return dbu.getMappedFilePool().getSlice(rasFile, entry.offset, entry.size);
         } finally {
-            ras.close();
+            lock.unlock();
         }
     }
 
@@ -356,73 +569,102 @@ public class DataBlock extends Debuggable implements Comparable {
      * @return
      * @throws java.lang.Exception
      */
-    public synchronized final boolean hasBytes(BigHash hash, boolean isMetaData) throws Exception {
-        // if is a directory and no merge file, pass down the chain
-        if (isDirectory() && !isMerging()) {
-            return ddc.dbu.getDataBlockToAddChunk(hash).hasBytes(hash, isMetaData);
-        }
-        // read from the file
-        File rasFile = getRegularOrMergeFile();
-        // if it doesn't exist, return false
-        if (!rasFile.exists()) {
-            return false;
-        }
+    public final boolean hasBytes(BigHash hash, boolean isMetaData) throws Exception {
+        final Lock lock = getLock().readLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            // if is a directory and no merge file, pass down the chain
+            if (isDirectory() && !isMerging()) {
+                return ddc.dbu.getDataBlockToAddChunk(hash).hasBytes(hash, isMetaData);
+            }
+            // read from the file
+            File rasFile = getRegularOrMergeFile();
+            // if it doesn't exist, return false
+            if (!rasFile.exists()) {
+                return false;
+            }
+
+            // if indexed, no need to read the header
+            if (dbu.isUseHeaderIndex()) {
+                DataBlockHeaderIndex index = dbu.getHeaderIndexCache().get(rasFile);
+                if (index == null) {
+                    RandomAccessFile ras = new RandomAccessFile(rasFile, "r");
+                    try {
+                        index = getHeaderIndex(rasFile, ras, "Reading in header to index while checking if has " + (isMetaData ? "meta data" : "data") + " chunk.");
+                    } finally {
+                        ras.close();
+                    }
+                }
+                DataBlockHeaderIndex.Entry entry = index.get(hash, isMetaData);
+                if (entry == null) {
+                    return false;
+                }
+                // Found bytes, create cache entry to speed up future short-term operations
+                try {
+                    if (this.dbu.isUseCache()) {
+                        DataBlockCacheEntry e = DataBlockCacheEntry.create(hash, DataBlock.this, entry.offset, entry.size);
+                        this.dbu.addToDataBlockCache(e, isMetaData);
+                    }
+                } catch (Exception e) {
+                }
+                return true;
+            }
 
 //        // read the header of the file to see what is in it
 //        // each header is hash + (byte) type + (byte) status + int (offset in block) + int (size)
 //        int bytesPerEntry = (BigHash.HASH_LENGTH + 1 + 1 + 4 + 4);
 //        int bytesToRead = bytesPerEntry * HEADERS_PER_FILE;
-        // buffer that amount
-        byte[] buf = new byte[getBytesToRead()];
-
-        // convert the boolean to meta-data or data bit
-        final byte isMetaDataByte = isMetaData ? META_DATA : DATA;
-
-        RandomAccessFile ras = new RandomAccessFile(rasFile, "r");
+            // buffer that amount
+            byte[] buf = new byte[getBytesToRead()];
 
-        try {
-            // get the complete header
-            fillWithBytes(buf, ras, rasFile.getAbsolutePath(), "Reading in header while checking if has " + (isMetaData ? "meta data" : "data") + " chunk.");
-        } finally {
-            ras.close();
-        }
+            // convert the boolean to meta-data or data bit
+            final byte isMetaDataByte = isMetaData ? META_DATA : DATA;
 
-        // check for the hash
-        for (int i = 0; i < getHeadersPerFile(); i++) {
-            // calc the offset
-            int offset = i * bytesPerEntry;
-            // parse the entry parts: hash, type, status, offset, size
-            BigHash h = BigHash.createFromBytes(buf, offset);
-            byte type = buf[offset + BigHash.HASH_LENGTH];
-            byte status = buf[offset + BigHash.HASH_LENGTH + 1];
-            int o = buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
-            int s = buf[BigHash.HASH_LENGTH + offset + 6] << 24 | (buf[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
+            RandomAccessFile ras = new RandomAccessFile(rasFile, "r");
 
-            // break out of the loop if the entry size is zero
-            if (s == 0 && o == 0) {
-                break;
-            }
-            // if not the same hash, continue
-            if (status != STATUS_OK || !h.equals(hash) || type != isMetaDataByte) {
-                continue;
+            try {
+                // get the complete header
+                fillWithBytes(buf, ras, rasFile.getAbsolutePath(), "Reading in header while checking if has " + (isMetaData ? "meta data" : "data") + " chunk.");
+            } finally {
+                ras.close();
             }
 
-            // Found bytes, create cache entry to speed up future short-term operations
-            try {
-                if (this.dbu.isUseCache()) {
-                    DataBlockCacheEntry e = DataBlockCacheEntry.create(hash, DataBlock.this, o, s);
-                    this.dbu.getDataBlockCache().add(e, isMetaData);
+            // check for the hash
+            final DataBlockHeader header = new DataBlockHeader(buf);
+            final long[] hashWords = DataBlockHeader.toWords(hash);
+            for (int i = 0; i < getHeadersPerFile(); i++) {
+                // parse the entry parts: offset, size
+                int o = header.getOffset(i);
+                int s = header.getSize(i);
+
+                // break out of the loop if the entry size is zero
+                if (s == 0 && o == 0) {
+                    break;
                 }
-            } catch (Exception e) {
+                // if not the same hash, continue
+                if (header.getStatus(i) != STATUS_OK || header.getType(i) != isMetaDataByte || !header.hashEquals(i, hashWords)) {
+                    continue;
+                }
+
+                // Found bytes, create cache entry to speed up future short-term operations
+                try {
+                    if (this.dbu.isUseCache()) {
+                        DataBlockCacheEntry e = DataBlockCacheEntry.create(hash, DataBlock.this, o, s);
+                        this.dbu.addToDataBlockCache(e, isMetaData);
+                    }
+                } catch (Exception e) {
 //                System.err.println(e.getClass().getSimpleName() + " occurred while creating cache entry: " + e.getMessage());
+                }
+
+                // return the data
+                return true;
             }
 
-            // return the data
-            return true;
+            // if here, the file doesn't exist
+            return false;
+        } finally {
+            lock.unlock();
         }
-
-        // if here, the file doesn't exist
-        return false;
     }
 
     /**
@@ -432,7 +674,7 @@ public class DataBlock extends Debuggable implements Comparable {
      * @param bytes
      * @throws java.lang.Exception
      */
-    public synchronized final void addBytes(BigHash hash, boolean isMetaData, byte[] bytes) throws Exception {
+    public final void addBytes(BigHash hash, boolean isMetaData, byte[] bytes) throws Exception {
         addBytes(hash, isMetaData, bytes, 1);
     }
 
@@ -444,178 +686,383 @@ public class DataBlock extends Debuggable implements Comparable {
      * @param recursionCount The number of times this has been recursively called while waiting for DataBlock to merge. (After a certain number of times, this will fail and throw an exception.)
      * @throws java.lang.Exception
      */
-    public synchronized final void addBytes(BigHash hash, boolean isMetaData, byte[] bytes, int recursionCount) throws Exception {
-
+    public final void addBytes(BigHash hash, boolean isMetaData, byte[] bytes, int recursionCount) throws Exception {
         // read from the file
         final String blockPath = ddc.getDirectoryFile().getAbsolutePath() + filename;
 
-        // Need a stopping point to prevent waiting far too long
+        // Need a stopping point to prevent recursing forever
         if (recursionCount >= 100 && isMerging()) {
             throw new Exception("Cannot add bytes; still merging, tried " + recursionCount + " times for " + blockPath);
         }
 
-        // if we're merging, pass to the next block -- merge started after sync wait
-        if (isMerging()) {
-            Thread.sleep(50);
+        // once split, a block is always a directory. Pass to the next block without waiting
+        // for this block's lock, which is held by any merge still copying the old file
+        if (isDirectory()) {
             ddc.dbu.getDataBlockToAddChunk(hash).addBytes(hash, isMetaData, bytes, recursionCount + 1);
             return;
         }
 
-        // buffer the entire data block header
-        byte[] buf = new byte[getBytesToRead()];
+        final Lock lock = getLock().writeLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            // might have split (or be half-way through a failed split) while waiting for the lock
+            if (isDirectory() || isMerging()) {
+                ddc.dbu.getDataBlockToAddChunk(hash).addBytes(hash, isMetaData, bytes, recursionCount + 1);
+                return;
+            }
 
-        // lazy load the file
-        lazyCreateFile(buf);
+            // buffer the entire data block header
+            byte[] buf = new byte[getBytesToRead()];
 
-        // track the bytes used and bytes wasted
-        long bytesUsed = 0;
-        long bytesWasted = 0;
+            // lazy load the file
+            lazyCreateFile(buf);
+            final File blockFile = new File(blockPath);
 
-        // convert the boolean to meta-data or data bit
-        final byte isMetaDataByte = isMetaData ? META_DATA : DATA;
+            // track the bytes used and bytes wasted
+            long bytesUsed = 0;
+            long bytesWasted = 0;
 
-        // track the last valid offset. start at the end of the header
-        int nextValidOffset = getBytesToRead();
+            // convert the boolean to meta-data or data bit
+            final byte isMetaDataByte = isMetaData ? META_DATA : DATA;
 
-        RandomAccessFile ras = new RandomAccessFile(blockPath, "rw");
-        try {
-            // get the complete header
-            fillWithBytes(buf, ras, blockPath, "Reading in header for data block to add " + (isMetaData ? "meta data" : "data") + " chunk.");
+            RandomAccessFile ras = new RandomAccessFile(blockPath, "rw");
+            try {
+                // get the complete header
+                fillWithBytes(buf, ras, blockPath, "Reading in header for data block to add " + (isMetaData ? "meta data" : "data") + " chunk.");
+                final boolean checksummed = isChecksummed(buf, ras.length());
+
+                // track the last valid offset. start at the end of the header (and checksums)
+                int nextValidOffset = getFirstChunkOffset(checksummed);
+
+                // Used for troubleshooting
+                int totalEntriesRead = 0;
+
+                // check for the hash
+                final DataBlockHeader header = new DataBlockHeader(buf);
+                final long[] hashWords = DataBlockHeader.toWords(hash);
+                for (int i = 0; i < getHeadersPerFile(); i++) {
+
+                    totalEntriesRead++;
+
+                    // calc the offset
+                    int offset = i * bytesPerEntry;
+                    // parse the entry parts: status, offset, size. Note that offset (o) and size (s) are 32-bit integers, not 64-bit longs.
+                    byte status = header.getStatus(i);
+                    int o = header.getOffset(i);
+                    int s = header.getSize(i);
+
+                    // if the same hash, handle specially
+                    if (header.getType(i) == isMetaDataByte) {
+                        // Flag it as deleted. Splits will ignore
+                        if (header.hashEquals(i, hashWords)) {
+                            // seek to the flag's position
+                            ras.seek(i * bytesPerEntry + BigHash.HASH_LENGTH + 1);
+                            // write the new byte
+                            ras.write(STATUS_DELETED);
+
+                            // flag as wasted space
+                            status = STATUS_DELETED;
+                        }
+                    }
 
-            // Used for troubleshooting
-            int totalEntriesRead = 0;
+                    // increment the used space if the status is OK
+                    if (status == STATUS_OK) {
+                        bytesUsed += s;
+                    } // if the status isn't OK, flag as wasted space'
+                    else {
+                        bytesWasted += s;
+                    }
 
-            // check for the hash
-            for (int i = 0; i < getHeadersPerFile(); i++) {
+                    // keep going until a free node is found
+                    if (o != 0) {
+                        // update the offset for writing
+                        nextValidOffset = o + s;
+                        continue;
+                    }
 
-                totalEntriesRead++;
+                    // if here, the entry is ready for being used
+                    // seek to the right spot to write the bytes
+                    ras.seek(nextValidOffset);
+                    // write the data
+                    ras.write(bytes);
 
-                // calc the offset
-                int offset = i * bytesPerEntry;
-                // parse the entry parts: hash, type, status, offset, size
-                BigHash h = BigHash.createFromBytes(buf, offset);
-                byte type = buf[offset + BigHash.HASH_LENGTH];
-                byte status = buf[offset + BigHash.HASH_LENGTH + 1];
-
-                /**
-                 * - Note that offset (o) and size (s) are 32-bit integers, not 64-bit longs.
-                 * - Note also that the last three bytes are ANDed with 0xff so that they are not signed (otherwise, potentially negative). See: http://www.velocityreviews.com/forums/t137952-bitmask-amp-graphics-question.html
-                 */
-                int o = buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
-                int s = buf[BigHash.HASH_LENGTH + offset + 6] << 24 | (buf[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
-
-                // if the same hash, handle specially
-                if (h.equals(hash)) {
-                    // Flag it as deleted. Splits will ignore
-                    if (type == isMetaDataByte) {
-                        // seek to the flag's position
-                        ras.seek(i * bytesPerEntry + BigHash.HASH_LENGTH + 1);
-                        // write the new byte
-                        ras.write(STATUS_DELETED);
+                    // write the checksum before the header info, so an entry never goes without one
+                    if (checksummed) {
+                        ras.seek(getBytesToRead() + i * bytesPerChecksum);
+                        ras.writeInt(checksum(bytes));
+                    }
 
-                        // flag as wasted space
-                        status = STATUS_DELETED;
+                    // write the header info last in case the operation is interrupted
+                    // buffer everything so that there is only one write operation
+                    byte[] headerBuf = new byte[bytesPerEntry];
+                    // copy over the big hash
+                    System.arraycopy(hash.toByteArray(), 0, headerBuf, 0, BigHash.HASH_LENGTH);
+                    // copy over the type
+                    headerBuf[BigHash.HASH_LENGTH] = isMetaDataByte;
+                    // copy over the status
+                    headerBuf[BigHash.HASH_LENGTH + 1] = STATUS_OK;
+                    // copy over the offset
+                    headerBuf[BigHash.HASH_LENGTH + 2] = (byte) (nextValidOffset >> 24);
+                    headerBuf[BigHash.HASH_LENGTH + 2 + 1] = (byte) (nextValidOffset >> 16);
+                    headerBuf[BigHash.HASH_LENGTH + 2 + 2] = (byte) (nextValidOffset >> 8);
+                    headerBuf[BigHash.HASH_LENGTH + 2 + 3] = (byte) (nextValidOffset);
+                    // copy over the size
+                    headerBuf[BigHash.HASH_LENGTH + 6] = (byte) (bytes.length >> 24);
+                    headerBuf[BigHash.HASH_LENGTH + 6 + 1] = (byte) (bytes.length >> 16);
+                    headerBuf[BigHash.HASH_LENGTH + 6 + 2] = (byte) (bytes.length >> 8);
+                    headerBuf[BigHash.HASH_LENGTH + 6 + 3] = (byte) (bytes.length);
+                    // do the final write of the header information for this entry
+                    ras.seek(offset);
+                    ras.write(headerBuf);
+
+                    // keep the header index in step with the file
+                    DataBlockHeaderIndex index = dbu.getHeaderIndexCache().get(blockFile);
+                    if (index != null) {
+                        index.put(hash, isMetaData, i, nextValidOffset, bytes.length);
+                        index.setExpectedLength(ras.length());
                     }
-                }
 
-                // increment the used space if the status is OK
-                if (status == STATUS_OK) {
-                    bytesUsed += s;
-                } // if the status isn't OK, flag as wasted space'
-                else {
-                    bytesWasted += s;
-                }
+                    // adjust used disk space
+                    ddc.adjustUsedSpace(bytes.length);
 
-                // keep going until a free node is found
-                if (o != 0) {
-                    // update the offset for writing
-                    nextValidOffset = o + s;
-                    continue;
-                }
+                    // adjust bytes used for this block
+                    bytesUsed += bytes.length;
 
-                // if here, the entry is ready for being used
-                // seek to the right spot to write the bytes
-                ras.seek(nextValidOffset);
-                // write the data
-                ras.write(bytes);
-
-                // write the header info last in case the operation is interrupted
-                // buffer everything so that there is only one write operation
-                byte[] headerBuf = new byte[bytesPerEntry];
-                // copy over the big hash
-                System.arraycopy(hash.toByteArray(), 0, headerBuf, 0, BigHash.HASH_LENGTH);
-                // copy over the type
-                headerBuf[BigHash.HASH_LENGTH] = isMetaDataByte;
-                // copy over the status
-                headerBuf[BigHash.HASH_LENGTH + 1] = STATUS_OK;
-                // copy over the offset
-                headerBuf[BigHash.HASH_LENGTH + 2] = (byte) (nextValidOffset >> 24);
-                headerBuf[BigHash.HASH_LENGTH + 2 + 1] = (byte) (nextValidOffset >> 16);
-                headerBuf[BigHash.HASH_LENGTH + 2 + 2] = (byte) (nextValidOffset >> 8);
-                headerBuf[BigHash.HASH_LENGTH + 2 + 3] = (byte) (nextValidOffset);
-                // copy over the size
-                headerBuf[BigHash.HASH_LENGTH + 6] = (byte) (bytes.length >> 24);
-                headerBuf[BigHash.HASH_LENGTH + 6 + 1] = (byte) (bytes.length >> 16);
-                headerBuf[BigHash.HASH_LENGTH + 6 + 2] = (byte) (bytes.length >> 8);
-                headerBuf[BigHash.HASH_LENGTH + 6 + 3] = (byte) (bytes.length);
-                // do the final write of the header information for this entry
-                ras.seek(offset);
-                ras.write(headerBuf);
-
-                // adjust used disk space
-                ddc.adjustUsedSpace(bytes.length);
-
-                // adjust bytes used for this block
-                bytesUsed += bytes.length;
-
-                // if the data block still below the size limit and the number of files limit, return
-                // also force a resize if too much data is wasted
-                boolean tooManyBytes = ras.length() > DataBlock.getMaxBlockSize();
-                boolean tooManyHeaders = i >= DataBlock.getHeadersPerFile() - 1;
-                boolean tooMuchWastedSpace = bytesWasted > MAX_WASTED_SPACE_ALLOWED;
-                if (!tooMuchWastedSpace && !tooManyBytes && !tooManyHeaders) {
-                    return;
-                }
+                    // if the data block still below the size limit and the number of files limit, return
+                    // also force a resize if too much data is wasted
+                    boolean tooManyBytes = ras.length() > DataBlock.getMaxBlockSize();
+                    boolean tooManyHeaders = i >= DataBlock.getHeadersPerFile() - 1;
+                    boolean tooMuchWastedSpace = bytesWasted > MAX_WASTED_SPACE_ALLOWED;
+                    if (!tooMuchWastedSpace && !tooManyBytes && !tooManyHeaders) {
+                        return;
+                    }
 
 //                System.out.println("DEBUG> "+tooManyBytes+ " " + tooManyHeaders+ " " + tooMuchWastedSpace+" "+this.getAbsolutePath());
 
-                // If not count wasted space, still too many bytes?
-                boolean tooManyBytesAdjusted = (ras.length() - bytesWasted) > DataBlock.getMaxBlockSize();
+                    // If not count wasted space, still too many bytes?
+                    boolean tooManyBytesAdjusted = (ras.length() - bytesWasted) > DataBlock.getMaxBlockSize();
 
-                // flag for if the block should create sub-blocks are be cleaned up and kept as a single block
-                boolean dontSplitBlock = tooMuchWastedSpace && !tooManyHeaders && !tooManyBytesAdjusted;
+                    // flag for if the block should create sub-blocks are be cleaned up and kept as a single block
+                    boolean dontSplitBlock = tooMuchWastedSpace && !tooManyHeaders && !tooManyBytesAdjusted;
 
-                // helper method to clean up the data block
-                cleanUpDataBlock(dontSplitBlock);
+                    // wasted space is reclaimed in the background if possible, so writers don't wait on it
+                    if (dontSplitBlock && dbu.isUseBackgroundCompaction() && dbu.getCompactionThread().offer(this, bytesWasted, ras.length() - getBytesToRead())) {
+                        return;
+                    }
 
-                // break out
-                return;
-            } // For every header in DataBlock
+                    // helper method to clean up the data block
+                    cleanUpDataBlock(dontSplitBlock);
 
-            // If here, the file doesn't exist. Try to split the block. If already doing, will
-            // safely return.
-            //
-            // Shouldn't get here, since should be cleaned up, but has!
-            try {
-                cleanUpDataBlock(false);
-            } catch (Exception ex) {
-                System.err.println(ex.getClass().getSimpleName() + " while cleaning up data block (recursionCount=" + recursionCount + "): " + ex.getMessage());
-                ex.printStackTrace(System.err);
-            }
+                    // break out
+                    return;
+                } // For every header in DataBlock
 
-            // Try up to three times, then move on: too long, don't want hold up client connection
-            if (recursionCount <= 3) {
-                ddc.dbu.getDataBlockToAddChunk(hash).addBytes(hash, isMetaData, bytes, recursionCount + 1);
-            } else {
-                throw new Exception("Can't write bytes to this block. Block is full! and recursionCount is " + recursionCount + ": " + blockPath + " <total entries read: " + totalEntriesRead + ", size of file: " + ras.length() + ">");
+                // If here, the file doesn't exist. Try to split the block. If already doing, will
+                // safely return.
+                //
+                // Shouldn't get here, since should be cleaned up, but has!
+                try {
+                    cleanUpDataBlock(false);
+                } catch (Exception ex) {
+                    System.err.println(ex.getClass().getSimpleName() + " while cleaning up data block (recursionCount=" + recursionCount + "): " + ex.getMessage());
+                    ex.printStackTrace(System.err);
+                }
+
+                // Try up to three times, then move on: too long, don't want hold up client connection
+                if (recursionCount <= 3) {
+                    ddc.dbu.getDataBlockToAddChunk(hash).addBytes(hash, isMetaData, bytes, recursionCount + 1);
+                } else {
+                    throw new Exception("Can't write bytes to this block. Block is full! and recursionCount is " + recursionCount + ": " + blockPath + " <total entries read: " + totalEntriesRead + ", size of file: " + ras.length() + ">");
+                }
+            } finally {
+                ras.close();
             }
         } finally {
-            ras.close();
+            lock.unlock();
         }
     }
 
     /**
-     * <p>Lazily create the underlying file with enough space for the header.</p>
+     * <p>Add several chunks to this DataBlock, reading and writing the header once rather than once per chunk. Used when merging an old DataBlock.</p>
+     * <p>The chunks are appended one after the other, and their headers are written together after them. Any chunk that doesn't fit (or every chunk, if this DataBlock has split) is added on its own, which splits or cleans up the DataBlock as usual.</p>
+     * @param hashes
+     * @param isMetaData
+     * @param bytes
+     * @throws java.lang.Exception
+     */
+    final void addBytes(List<BigHash> hashes, List<Boolean> isMetaData, List<byte[]> bytes) throws Exception {
+        int addedCount = 0;
+
+        // once split, a block is always a directory
+        if (!isDirectory()) {
+            final Lock lock = getLock().writeLock();
+            DataDirectoryIOQueue.lock(lock);
+            try {
+                if (!isDirectory() && !isMerging()) {
+                    addedCount = addBytesToFile(hashes, isMetaData, bytes);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // add the rest one at a time
+        for (int i = addedCount; i < hashes.size(); i++) {
+            ddc.dbu.getDataBlockToAddChunk(hashes.get(i)).addBytes(hashes.get(i), isMetaData.get(i), bytes.get(i));
+        }
+    }
+
+    /**
+     * <p>Append as many of the chunks as fit without filling up the header or going over the maximum block size. Must hold the write lock.</p>
+     * @return The number of chunks added, from the start of the list.
+     */
+    private int addBytesToFile(List<BigHash> hashes, List<Boolean> isMetaData, List<byte[]> bytes) throws Exception {
+        final String blockPath = ddc.getDirectoryFile().getAbsolutePath() + filename;
+
+        // buffer the entire data block header
+        byte[] buf = new byte[getBytesToRead()];
+
+        // lazy load the file
+        lazyCreateFile(buf);
+        final File blockFile = new File(blockPath);
+
+        // chunks already in the block are replaced, as when adding one at a time
+        BigHashSet dataToAdd = new BigHashSet(hashes.size()), metaDataToAdd = new BigHashSet(hashes.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            (isMetaData.get(i) ? metaDataToAdd : dataToAdd).add(hashes.get(i));
+        }
+
+        RandomAccessFile ras = new RandomAccessFile(blockPath, "rw");
+        try {
+            // get the complete header
+            fillWithBytes(buf, ras, blockPath, "Reading in header for data block to add " + hashes.size() + " chunks.");
+            final boolean checksummed = isChecksummed(buf, ras.length());
+
+            // find the first free entry, flagging replaced chunks as deleted along the way
+            int firstFreeEntry = -1;
+            int nextValidOffset = getFirstChunkOffset(checksummed);
+            final DataBlockHeader header = new DataBlockHeader(buf);
+            for (int i = 0; i < getHeadersPerFile(); i++) {
+                int o = header.getOffset(i);
+                int s = header.getSize(i);
+
+                // looked up in place in the header
+                if (o != 0 && header.getStatus(i) == STATUS_OK && (header.getType(i) == META_DATA ? metaDataToAdd : dataToAdd).contains(buf, i * bytesPerEntry)) {
+                    ras.seek(i * bytesPerEntry + BigHash.HASH_LENGTH + 1);
+                    ras.write(STATUS_DELETED);
+                    header.setStatus(i, STATUS_DELETED);
+                }
+
+                // keep going until a free node is found
+                if (o != 0) {
+                    nextValidOffset = o + s;
+                    continue;
+                }
+                firstFreeEntry = i;
+                break;
+            }
+            if (firstFreeEntry == -1) {
+                return 0;
+            }
+
+            // write the chunks one after the other. The last header and going over the block size are left to adding one at a time, which splits the block.
+            ras.seek(nextValidOffset);
+            int addedCount = 0;
+            long addedBytes = 0;
+            final byte[] checksums = new byte[hashes.size() * bytesPerChecksum];
+            for (; addedCount < hashes.size(); addedCount++) {
+                final int entry = firstFreeEntry + addedCount;
+                final byte[] chunk = bytes.get(addedCount);
+                if (entry >= getHeadersPerFile() - 1 || (long) nextValidOffset + chunk.length > getMaxBlockSize()) {
+                    break;
+                }
+                ras.write(chunk);
+
+                int offset = entry * bytesPerEntry;
+                System.arraycopy(hashes.get(addedCount).toByteArray(), 0, buf, offset, BigHash.HASH_LENGTH);
+                buf[offset + BigHash.HASH_LENGTH] = isMetaData.get(addedCount) ? META_DATA : DATA;
+                buf[offset + BigHash.HASH_LENGTH + 1] = STATUS_OK;
+                buf[BigHash.HASH_LENGTH + offset + 2] = (byte) (nextValidOffset >> 24);
+                buf[BigHash.HASH_LENGTH + offset + 2 + 1] = (byte) (nextValidOffset >> 16);
+                buf[BigHash.HASH_LENGTH + offset + 2 + 2] = (byte) (nextValidOffset >> 8);
+                buf[BigHash.HASH_LENGTH + offset + 2 + 3] = (byte) (nextValidOffset);
+                buf[BigHash.HASH_LENGTH + offset + 6] = (byte) (chunk.length >> 24);
+                buf[BigHash.HASH_LENGTH + offset + 6 + 1] = (byte) (chunk.length >> 16);
+                buf[BigHash.HASH_LENGTH + offset + 6 + 2] = (byte) (chunk.length >> 8);
+                buf[BigHash.HASH_LENGTH + offset + 6 + 3] = (byte) (chunk.length);
+                if (checksummed) {
+                    putInt(checksums, addedCount * bytesPerChecksum, checksum(chunk));
+                }
+
+                nextValidOffset += chunk.length;
+                addedBytes += chunk.length;
+            }
+            if (addedCount == 0) {
+                return 0;
+            }
+
+            // then their checksums, and the header entries last in case the operation is interrupted
+            if (checksummed) {
+                ras.seek(getBytesToRead() + firstFreeEntry * bytesPerChecksum);
+                ras.write(checksums, 0, addedCount * bytesPerChecksum);
+            }
+            ras.seek(firstFreeEntry * bytesPerEntry);
+            ras.write(buf, firstFreeEntry * bytesPerEntry, addedCount * bytesPerEntry);
+
+            // keep the header index in step with the file
+            DataBlockHeaderIndex index = dbu.getHeaderIndexCache().get(blockFile);
+            if (index != null) {
+                for (int i = 0; i < addedCount; i++) {
+                    int offset = (firstFreeEntry + i) * bytesPerEntry;
+                    int o = buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
+                    index.put(hashes.get(i), isMetaData.get(i), firstFreeEntry + i, o, bytes.get(i).length);
+                }
+                index.setExpectedLength(ras.length());
+            }
+
+            // adjust used disk space
+            ddc.adjustUsedSpace(addedBytes);
+
+            return addedCount;
+        } finally {
+            ras.close();
+        }
+    }
+
+    /**
+     * <p>Force everything written to this DataBlock's file, and to the old file if half-way through a merge, on to the disk.</p>
+     * @throws java.lang.Exception
+     */
+    final void sync() throws Exception {
+        final Lock lock = getLock().readLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            syncFile(new File(getAbsolutePath()));
+            syncFile(new File(getAbsolutePath() + ".merge"));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Force a file on to the disk, if it exists and isn't a directory.</p>
+     * @param file
+     * @throws java.io.IOException
+     */
+    private static void syncFile(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        RandomAccessFile ras = new RandomAccessFile(file, "rw");
+        try {
+            ras.getFD().sync();
+        } finally {
+            ras.close();
+        }
+    }
+
+    /**
+     * <p>Lazily create the underlying file with enough space for the header, and for the checksums if they are kept.</p>
      * @param buf
      * @throws java.lang.Exception
      * @throws java.io.FileNotFoundException
@@ -634,15 +1081,19 @@ public class DataBlock extends Debuggable implements Comparable {
                 }
             }
             // make the file
+            final boolean checksummed = dbu.isUseChecksums();
             FileOutputStream fos = new FileOutputStream(file);
             try {
                 fos.write(buf);
+                if (checksummed) {
+                    fos.write(new byte[getChecksumBytesToRead()]);
+                }
             } finally {
                 IOUtil.safeClose(fos);
             }
 
             // increment the ddc size
-            ddc.adjustUsedSpace(buf.length);
+            ddc.adjustUsedSpace(getFirstChunkOffset(checksummed));
         }
     }
 
@@ -651,76 +1102,85 @@ public class DataBlock extends Debuggable implements Comparable {
      * @param dontSplitBlock
      * @throws java.lang.Exception
      */
-    final synchronized void cleanUpDataBlock(boolean dontSplitBlock) throws Exception {
-        // get a reference to the file that should be renamed
-        File normalFile = new File(ddc.getDirectoryFile().getAbsolutePath() + filename);
-        // if the file doesn't exist anymore, skip
-        if (!normalFile.exists()) {
-            return;
-        }
+    final void cleanUpDataBlock(boolean dontSplitBlock) throws Exception {
+        final Lock lock = getLock().writeLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            // get a reference to the file that should be renamed
+            File normalFile = new File(ddc.getDirectoryFile().getAbsolutePath() + filename);
+            // if the file doesn't exist anymore, skip
+            if (!normalFile.exists()) {
+                return;
+            }
 
-        // buffer the entire data block header
-        byte[] buf = new byte[getBytesToRead()];
+            // buffer the entire data block header
+            byte[] buf = new byte[getBytesToRead()];
 
-        // lazy load the file in case it doesn't exist.
-        lazyCreateFile(buf);
+            // lazy load the file in case it doesn't exist.
+            lazyCreateFile(buf);
 
-        // conditionally make a directory based on if the bytes to keep is more than the block size after accounting for wasted space
-        if (!dontSplitBlock) {
-            // rename the file
-            File backupFile = new File(ddc.getDirectoryFile().getAbsolutePath() + filename + ".merge");
-            // try to rename the file
-            boolean renamedFile = normalFile.renameTo(backupFile);
-            // if we can't rename, fall back on the old file
-            if (!renamedFile) {
-                throw new Exception("Can't expand data block! Reverting to old block. Existing files " + renamedFile + " exists: " + backupFile.exists() + "; " + normalFile + " exists: " + normalFile.exists());
-            }
-            // if in test case, purposely fail at this point
-            if (ddc.dbu.purposelyFailCleanUp) {
-                throw new Exception("Purposely failed for testing post .backup file creation.");
-            }
-            // make the dir
-            boolean madeDirectory = normalFile.mkdir();
-            if (!madeDirectory) {
-                try {
-                    IOUtil.renameFallbackCopy(backupFile, normalFile);
-                } finally {
-                    throw new Exception("Can't expand data block! Reverting to old block.");
+            // file is about to be renamed, so its header index and mapping are no longer any good
+            dbu.invalidateBlockFile(normalFile);
+
+            // conditionally make a directory based on if the bytes to keep is more than the block size after accounting for wasted space
+            if (!dontSplitBlock) {
+                // rename the file
+                File backupFile = new File(ddc.getDirectoryFile().getAbsolutePath() + filename + ".merge");
+                // try to rename the file
+                boolean renamedFile = normalFile.renameTo(backupFile);
+                // if we can't rename, fall back on the old file
+                if (!renamedFile) {
+                    throw new Exception("Can't expand data block! Reverting to old block. Existing files " + renamedFile + " exists: " + backupFile.exists() + "; " + normalFile + " exists: " + normalFile.exists());
+                }
+                // if in test case, purposely fail at this point
+                if (ddc.dbu.purposelyFailCleanUp) {
+                    throw new Exception("Purposely failed for testing post .backup file creation.");
+                }
+                // make the dir
+                boolean madeDirectory = normalFile.mkdir();
+                if (!madeDirectory) {
+                    try {
+                        IOUtil.renameFallbackCopy(backupFile, normalFile);
+                    } finally {
+                        throw new Exception("Can't expand data block! Reverting to old block.");
+                    }
                 }
-            }
 
-            // FOUND BUG: sometimes freezed here - the merge queue must be filling
-            // up. Instead, can we merge on this thread?
+                // FOUND BUG: sometimes freezed here - the merge queue must be filling
+                // up. Instead, can we merge on this thread?
 //            // add to the queue, don't wait for it to finish
-            DataBlockToMerge dbtm = new DataBlockToMerge(backupFile, ddc);
-            ddc.dbu.mergeQueue.put(dbtm);
+                DataBlockToMerge dbtm = new DataBlockToMerge(backupFile, ddc);
+                ddc.dbu.mergeQueue.put(dbtm);
 //            mergeDataBlockNow(dbtm);
 
-        } /**
-         * "otherwise, add to the slow queue of merge" --Jayson
-         * "This condition occurs if just cleaning up wasted space, and have not reached the maximum
-         *  number of headers yet" --Bryan
-         */
-        else {
-            // rename the file
-            File backupFile = new File(ddc.getDirectoryFile().getAbsolutePath() + filename + ".backup");
-            // try to rename the file
-            boolean renamedFile = normalFile.renameTo(backupFile);
-            // if we can't rename, fall back on the old file
-            if (!renamedFile) {
-                throw new Exception("Can't expand data block! Reverting to old block. Existing files " + renamedFile + " exists: " + backupFile.exists() + "; " + normalFile + " exists: " + normalFile.exists());
-            }
-            // if in test case, purposely fail at this point
-            if (ddc.dbu.purposelyFailCleanUp) {
-                throw new Exception("Purposely failed for testing post .backup file creation.");
-            }
+            } /**
+             * "otherwise, add to the slow queue of merge" --Jayson
+             * "This condition occurs if just cleaning up wasted space, and have not reached the maximum
+             *  number of headers yet" --Bryan
+             */
+            else {
+                // rename the file
+                File backupFile = new File(ddc.getDirectoryFile().getAbsolutePath() + filename + ".backup");
+                // try to rename the file
+                boolean renamedFile = normalFile.renameTo(backupFile);
+                // if we can't rename, fall back on the old file
+                if (!renamedFile) {
+                    throw new Exception("Can't expand data block! Reverting to old block. Existing files " + renamedFile + " exists: " + backupFile.exists() + "; " + normalFile + " exists: " + normalFile.exists());
+                }
+                // if in test case, purposely fail at this point
+                if (ddc.dbu.purposelyFailCleanUp) {
+                    throw new Exception("Purposely failed for testing post .backup file creation.");
+                }
 
-            // the size to decrement
-            long sizeToDecrement = backupFile.length();
-            // merge the data back in to the b-tree
-            ddc.dbu.mergeOldDataBlock(backupFile, buf);
-            // decrement the bytes used
-            ddc.adjustUsedSpace(-sizeToDecrement);
+                // the size to decrement
+                long sizeToDecrement = backupFile.length();
+                // merge the data back in to the b-tree
+                ddc.dbu.mergeOldDataBlock(backupFile, buf);
+                // decrement the bytes used
+                ddc.adjustUsedSpace(-sizeToDecrement);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -748,70 +1208,419 @@ public class DataBlock extends Debuggable implements Comparable {
      * @param isMetaData
      * @throws java.lang.Exception
      */
-    public synchronized final void deleteBytes(BigHash hash, boolean isMetaData) throws Exception {
-        // if is a directory and no merge file, pass down the chain
-        if (isDirectory() && !isMerging()) {
-            ddc.dbu.getDataBlockToAddChunk(hash).deleteBytes(hash, isMetaData);
-            return;
-        }
+    public final void deleteBytes(BigHash hash, boolean isMetaData) throws Exception {
+        final Lock lock = getLock().writeLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            // if is a directory and no merge file, pass down the chain
+            if (isDirectory() && !isMerging()) {
+                ddc.dbu.getDataBlockToAddChunk(hash).deleteBytes(hash, isMetaData);
+                return;
+            }
 
-        // check for the file
-        File rasFile = getRegularOrMergeFile();
-        if (!rasFile.exists()) {
-            return;
-        }
+            // if merging, the chunk might already have been copied down the chain. (Merges hold the read lock while copying, so won't copy it after this.)
+            if (isDirectory()) {
+                ddc.dbu.getDataBlockToAddChunk(hash).deleteBytes(hash, isMetaData);
+            }
+
+            // check for the file
+            File rasFile = getRegularOrMergeFile();
+            if (!rasFile.exists()) {
+                return;
+            }
 
 //        // read the header of the file to see what is in it
 //        // each header is hash + (byte) type + (byte) status + int (offset in block) + int (size)
 //        int bytesPerEntry = (BigHash.HASH_LENGTH + 1 + 1 + 4 + 4);
 //        int bytesToRead = bytesPerEntry * HEADERS_PER_FILE;
-        // buffer that amount
-        byte[] buf = new byte[getBytesToRead()];
+            // buffer that amount
+            byte[] buf = new byte[getBytesToRead()];
 
-        // make sure that the file exists
-        lazyCreateFile(buf);
+            // make sure that the file exists
+            lazyCreateFile(buf);
 
-        // convert the boolean to meta-data or data bit
-        final byte isMetaDataByte = isMetaData ? META_DATA : DATA;
+            // convert the boolean to meta-data or data bit
+            final byte isMetaDataByte = isMetaData ? META_DATA : DATA;
 
-        // track the last valid offset. start at the end of the header
-        int nextValidOffset = getBytesToRead();
-        // read from the file
-        RandomAccessFile ras = new RandomAccessFile(rasFile, "rw");
+            // track the last valid offset. start at the end of the header
+            int nextValidOffset = getBytesToRead();
+            // read from the file
+            RandomAccessFile ras = new RandomAccessFile(rasFile, "rw");
+            try {
+                // get the complete header
+                fillWithBytes(buf, ras, rasFile.getAbsolutePath(), "Reading in headers for data block to delete a " + (isMetaData ? "meta data" : "data") + " chunk.");
+                // check for the hash
+                final DataBlockHeader header = new DataBlockHeader(buf);
+                final long[] hashWords = DataBlockHeader.toWords(hash);
+                for (int i = 0; i < getHeadersPerFile(); i++) {
+                    // parse the entry parts: offset
+                    int o = header.getOffset(i);
+
+                    // if the same hash, handle specially
+                    if (header.getType(i) == isMetaDataByte && header.getStatus(i) != STATUS_DELETED && header.hashEquals(i, hashWords)) {
+                        // seek to the flag's position
+                        ras.seek(i * bytesPerEntry + BigHash.HASH_LENGTH + 1);
+                        // write the new byte
+                        ras.write(STATUS_DELETED);
+                        // keep the header index in step with the file
+                        DataBlockHeaderIndex index = dbu.getHeaderIndexCache().get(rasFile);
+                        if (index != null) {
+                            index.remove(hash, isMetaData);
+                        }
+                        // let the background compaction reclaim the space
+                        if (dbu.isUseBackgroundCompaction() && !isDirectory()) {
+                            header.setStatus(i, STATUS_DELETED);
+                            dbu.getCompactionThread().offer(this, getBytesWasted(buf), ras.length() - getBytesToRead());
+                        }
+                        // return
+                        return;
+                    }
+
+                    // keep going until a free node is found
+                    if (o == 0) {
+                        break;
+                    }
+                }
+
+                // if here, the file doesn't exist -- don't throw an exception
+            } finally {
+                ras.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Returns the number of bytes used by deleted chunks.</p>
+     * @param buf The complete header of a DataBlock.
+     * @return
+     */
+    static final long getBytesWasted(final byte[] buf) {
+        long bytesWasted = 0;
+        for (int i = 0; i < getHeadersPerFile(); i++) {
+            int offset = i * bytesPerEntry;
+            byte status = buf[offset + BigHash.HASH_LENGTH + 1];
+            int o = buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
+            int s = buf[BigHash.HASH_LENGTH + offset + 6] << 24 | (buf[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
+            if (o == 0) {
+                break;
+            }
+            if (status != STATUS_OK) {
+                bytesWasted += s;
+            }
+        }
+        return bytesWasted;
+    }
+
+    /**
+     * <p>Rewrites this DataBlock without its deleted chunks, reclaiming the wasted space.</p>
+     * <p>Chunks are copied to a side file (.compact) without holding the lock, so readers and writers carry on. Chunks are never overwritten in place (they are only appended, or flagged as deleted), so the copy stays good. The write lock is then held just long enough to check that nothing but appends and deletes happened meanwhile, to copy any chunks added since, and to rename the side file over this DataBlock's file.</p>
+     * <p>If the DataBlock was split, moved or otherwise rewritten meanwhile, the side file is thrown away and the DataBlock is left as it was.</p>
+     * <p>Checksums are carried over from a checksummed DataBlock, not worked out again, so a chunk that went bad is still found by the scrubber. A DataBlock from before checksums were kept gets them from the chunks as copied.</p>
+     * @param compactionThread Keeps the copying to the I/O budget.
+     * @return The number of bytes reclaimed, or -1 if the compaction was abandoned.
+     * @throws java.lang.Exception
+     */
+    final long compact(DataBlockCompactionThread compactionThread) throws Exception {
+        final File blockFile = new File(ddc.getDirectoryFile().getAbsolutePath() + filename);
+        final File compactFile = new File(blockFile.getAbsolutePath() + ".compact");
+        // lock for this path, even if the block moves to another data directory meanwhile
+        final ReentrantReadWriteLock blockLock = getLock();
+
+        // take a copy of the header
+        final byte[] oldHeader = new byte[getBytesToRead()];
+        final boolean wasChecksummed;
+        Lock lock = blockLock.readLock();
+        DataDirectoryIOQueue.lock(lock);
         try {
-            // get the complete header
-            fillWithBytes(buf, ras, rasFile.getAbsolutePath(), "Reading in headers for data block to delete a " + (isMetaData ? "meta data" : "data") + " chunk.");
-            // check for the hash
+            if (isDirectory() || isMerging() || !blockFile.exists()) {
+                return -1;
+            }
+            RandomAccessFile ras = new RandomAccessFile(blockFile, "r");
+            try {
+                fillWithBytes(oldHeader, ras, blockFile.getAbsolutePath(), "Reading in header to compact data block.");
+                wasChecksummed = isChecksummed(oldHeader, ras.length());
+            } finally {
+                ras.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // where each chunk was copied to in the side file, by header number. Zero if not copied.
+        final int[] newOffsets = new int[getHeadersPerFile()];
+        // checksums of the chunks as copied, by header number, if the old file has none
+        final boolean checksummed = dbu.isUseChecksums();
+        final int[] copiedChecksums = new int[getHeadersPerFile()];
+        RandomAccessFile in = null, out = null;
+        try {
+            in = new RandomAccessFile(blockFile, "r");
+            out = new RandomAccessFile(compactFile, "rw");
+            out.setLength(0);
+            out.write(new byte[getFirstChunkOffset(checksummed)]);
+
+            // copy the chunks that weren't deleted
+            int nextValidOffset = getFirstChunkOffset(checksummed);
             for (int i = 0; i < getHeadersPerFile(); i++) {
-                // calc the offset
                 int offset = i * bytesPerEntry;
-                // parse the entry parts: hash, type, status, offset, size
-                BigHash h = BigHash.createFromBytes(buf, offset);
-                byte type = buf[offset + BigHash.HASH_LENGTH];
-                byte status = buf[offset + BigHash.HASH_LENGTH + 1];
-                int o = buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
-                int s = buf[BigHash.HASH_LENGTH + offset + 6] << 24 | (buf[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
-
-                // if the same hash, handle specially
-                if (h.equals(hash) && type == isMetaDataByte && status != STATUS_DELETED) {
-                    // seek to the flag's position
-                    ras.seek(i * bytesPerEntry + BigHash.HASH_LENGTH + 1);
-                    // write the new byte
-                    ras.write(STATUS_DELETED);
-                    // return
-                    return;
-                }
-
-                // keep going until a free node is found
+                byte status = oldHeader[offset + BigHash.HASH_LENGTH + 1];
+                int o = oldHeader[BigHash.HASH_LENGTH + offset + 2] << 24 | (oldHeader[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (oldHeader[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (oldHeader[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
+                int s = oldHeader[BigHash.HASH_LENGTH + offset + 6] << 24 | (oldHeader[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (oldHeader[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (oldHeader[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
                 if (o == 0) {
                     break;
                 }
+                if (status != STATUS_OK) {
+                    continue;
+                }
+                if (compactionThread.isStop()) {
+                    return -1;
+                }
+                byte[] chunk = new byte[s];
+                in.seek(o);
+                fillWithBytes(chunk, in, blockFile.getAbsolutePath(), "Reading in chunk to compact data block.");
+                out.seek(nextValidOffset);
+                out.write(chunk);
+                if (checksummed && !wasChecksummed) {
+                    copiedChecksums[i] = checksum(chunk);
+                }
+                newOffsets[i] = nextValidOffset;
+                nextValidOffset += s;
+                compactionThread.throttle(s);
             }
 
-            // if here, the file doesn't exist -- don't throw an exception
+            lock = blockLock.writeLock();
+            DataDirectoryIOQueue.lock(lock);
+            try {
+                // might have split, been moved or been merged while copying
+                if (isDirectory() || isMerging() || !blockFile.exists() || !blockFile.equals(new File(ddc.getDirectoryFile().getAbsolutePath() + filename))) {
+                    return -1;
+                }
+
+                // the file might have been replaced, so don't trust the one opened for the copy
+                in.close();
+                in = new RandomAccessFile(blockFile, "r");
+                final byte[] header = new byte[getBytesToRead()];
+                fillWithBytes(header, in, blockFile.getAbsolutePath(), "Reading in header to finish compacting data block.");
+                final long oldLength = in.length();
+                if (isChecksummed(header, oldLength) != wasChecksummed) {
+                    return -1;
+                }
+
+                // the stored checksums, which are only ever written along with a new entry
+                byte[] oldChecksums = null;
+                if (checksummed && wasChecksummed) {
+                    oldChecksums = new byte[getChecksumBytesToRead()];
+                    in.seek(getBytesToRead());
+                    fillWithBytes(oldChecksums, in, blockFile.getAbsolutePath(), "Reading in checksums to finish compacting data block.");
+                }
+
+                final byte[] newHeader = new byte[getBytesToRead()];
+                final byte[] newChecksums = new byte[getChecksumBytesToRead()];
+                int newHeaderNumber = 0;
+                for (int i = 0; i < getHeadersPerFile(); i++) {
+                    int offset = i * bytesPerEntry;
+                    byte type = header[offset + BigHash.HASH_LENGTH];
+                    byte status = header[offset + BigHash.HASH_LENGTH + 1];
+                    int o = header[BigHash.HASH_LENGTH + offset + 2] << 24 | (header[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (header[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (header[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
+                    int s = header[BigHash.HASH_LENGTH + offset + 6] << 24 | (header[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (header[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (header[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
+
+                    // entries copied earlier must be unchanged but for their status; otherwise the file was rewritten
+                    if (newOffsets[i] != 0) {
+                        for (int j = 0; j < bytesPerEntry; j++) {
+                            if (j != BigHash.HASH_LENGTH + 1 && header[offset + j] != oldHeader[offset + j]) {
+                                return -1;
+                            }
+                        }
+                    }
+                    if (o == 0) {
+                        break;
+                    }
+                    if (status != STATUS_OK) {
+                        continue;
+                    }
+
+                    // added since the copy was taken
+                    if (newOffsets[i] == 0) {
+                        byte[] chunk = new byte[s];
+                        in.seek(o);
+                        fillWithBytes(chunk, in, blockFile.getAbsolutePath(), "Reading in chunk added while compacting data block.");
+                        out.seek(nextValidOffset);
+                        out.write(chunk);
+                        if (checksummed && !wasChecksummed) {
+                            copiedChecksums[i] = checksum(chunk);
+                        }
+                        newOffsets[i] = nextValidOffset;
+                        nextValidOffset += s;
+                    }
+
+                    // the entry keeps its hash, type and size
+                    int newOffset = newHeaderNumber * bytesPerEntry;
+                    System.arraycopy(header, offset, newHeader, newOffset, bytesPerEntry);
+                    newHeader[BigHash.HASH_LENGTH + newOffset + 2] = (byte) (newOffsets[i] >> 24);
+                    newHeader[BigHash.HASH_LENGTH + newOffset + 2 + 1] = (byte) (newOffsets[i] >> 16);
+                    newHeader[BigHash.HASH_LENGTH + newOffset + 2 + 2] = (byte) (newOffsets[i] >> 8);
+                    newHeader[BigHash.HASH_LENGTH + newOffset + 2 + 3] = (byte) (newOffsets[i]);
+                    if (oldChecksums != null) {
+                        System.arraycopy(oldChecksums, i * bytesPerChecksum, newChecksums, newHeaderNumber * bytesPerChecksum, bytesPerChecksum);
+                    } else if (checksummed) {
+                        putInt(newChecksums, newHeaderNumber * bytesPerChecksum, copiedChecksums[i]);
+                    }
+                    newHeaderNumber++;
+
+                    // cached locations of moved chunks are no longer any good
+                    if (newOffsets[i] != o && dbu.isUseCache()) {
+                        dbu.getDataBlockCache().remove(BigHash.createFromBytes(header, offset), type == META_DATA);
+                    }
+                }
+
+                // write the header last, and make sure it's all on disk before the swap
+                if (checksummed) {
+                    out.seek(getBytesToRead());
+                    out.write(newChecksums);
+                }
+                out.seek(0);
+                out.write(newHeader);
+                out.setLength(nextValidOffset);
+                out.getFD().sync();
+                out.close();
+                out = null;
+                in.close();
+                in = null;
+
+                dbu.invalidateBlockFile(blockFile);
+                if (!compactFile.renameTo(blockFile)) {
+                    return -1;
+                }
+
+                // index the new header right away
+                if (dbu.isUseHeaderIndex()) {
+                    dbu.getHeaderIndexCache().put(blockFile, DataBlockHeaderIndex.create(newHeader, nextValidOffset));
+                }
+
+                // adding checksums to a DataBlock from before they were kept can take more than is reclaimed
+                long bytesReclaimed = oldLength - nextValidOffset;
+                ddc.adjustUsedSpace(-bytesReclaimed);
+                return Math.max(0, bytesReclaimed);
+            } finally {
+                lock.unlock();
+            }
         } finally {
-            ras.close();
+            IOUtil.safeClose(in);
+            IOUtil.safeClose(out);
+            // only left if abandoned
+            if (compactFile.exists()) {
+                IOUtil.safeDelete(compactFile);
+            }
+        }
+    }
+
+    /**
+     * <p>Verifies the chunks in this DataBlock against their checksums. A chunk that doesn't match is repaired on its own: it is deleted and fetched again from another server, while the rest of the DataBlock is left alone.</p>
+     * <p>The read lock is only held to read one chunk at a time, so writers aren't held up by the scrubber keeping to its I/O budget. Stops early if the DataBlock is split, moved or compacted meanwhile; it is verified on the next pass. DataBlocks from before checksums were kept are skipped.</p>
+     * @param scrubber Keeps the reading to the I/O budget.
+     * @return The number of chunks that didn't match their checksums.
+     * @throws java.lang.Exception
+     */
+    final int scrub(DataBlockScrubber scrubber) throws Exception {
+        final File blockFile = new File(ddc.getDirectoryFile().getAbsolutePath() + filename);
+        final ReentrantReadWriteLock blockLock = getLock();
+
+        // take a copy of the header
+        final byte[] header = new byte[getBytesToRead()];
+        Lock lock = blockLock.readLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            if (isDirectory() || isMerging() || !blockFile.exists()) {
+                return 0;
+            }
+            RandomAccessFile ras = new RandomAccessFile(blockFile, "r");
+            try {
+                fillWithBytes(header, ras, blockFile.getAbsolutePath(), "Reading in header to scrub data block.");
+                if (!isChecksummed(header, ras.length())) {
+                    return 0;
+                }
+            } finally {
+                ras.close();
+            }
+        } finally {
+            lock.unlock();
         }
+
+        int corruptedCount = 0;
+        final byte[] entry = new byte[bytesPerEntry];
+        for (int i = 0; i < getHeadersPerFile() && !scrubber.isStop(); i++) {
+            int offset = i * bytesPerEntry;
+            byte type = header[offset + BigHash.HASH_LENGTH];
+            byte status = header[offset + BigHash.HASH_LENGTH + 1];
+            int o = header[BigHash.HASH_LENGTH + offset + 2] << 24 | (header[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (header[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (header[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
+            int s = header[BigHash.HASH_LENGTH + offset + 6] << 24 | (header[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (header[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (header[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
+            if (o == 0) {
+                break;
+            }
+            if (status != STATUS_OK) {
+                continue;
+            }
+
+            boolean matches = true;
+            lock = blockLock.readLock();
+            DataDirectoryIOQueue.lock(lock);
+            try {
+                // might have split, been moved or been compacted meanwhile
+                if (isDirectory() || isMerging() || !blockFile.exists()) {
+                    return corruptedCount;
+                }
+                RandomAccessFile ras = new RandomAccessFile(blockFile, "r");
+                try {
+                    // the entry must be unchanged but for its status; otherwise the file was rewritten
+                    ras.seek(offset);
+                    fillWithBytes(entry, ras, blockFile.getAbsolutePath(), "Reading in header entry to scrub data block.");
+                    for (int j = 0; j < bytesPerEntry; j++) {
+                        if (j != BigHash.HASH_LENGTH + 1 && entry[j] != header[offset + j]) {
+                            return corruptedCount;
+                        }
+                    }
+                    if (entry[BigHash.HASH_LENGTH + 1] == STATUS_OK) {
+                        byte[] chunk = new byte[s];
+                        ras.seek(o);
+                        fillWithBytes(chunk, ras, blockFile.getAbsolutePath(), "Reading in chunk to scrub data block.");
+                        ras.seek(getBytesToRead() + i * bytesPerChecksum);
+                        matches = checksum(chunk) == ras.readInt();
+                    }
+                } finally {
+                    ras.close();
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (!matches) {
+                corruptedCount++;
+                dbu.repairCorruptedChunk(BigHash.createFromBytes(header, offset), type == META_DATA, blockFile);
+            }
+            scrubber.scrubbed(s);
+        }
+        return corruptedCount;
+    }
+
+    /**
+     * <p>Returns the header index for the block file, reading and indexing the header if it is not already cached.</p>
+     * @param blockFile The regular or merge file for the DataBlock.
+     * @param ras Random access file opened on blockFile.
+     * @param description Used for error messages.
+     * @return
+     * @throws java.lang.Exception If any I/O errors occur, or if the header is incomplete (could be corrupted data block).
+     */
+    private DataBlockHeaderIndex getHeaderIndex(final File blockFile, final RandomAccessFile ras, String description) throws Exception {
+        DataBlockHeaderIndex index = dbu.getHeaderIndexCache().get(blockFile);
+        if (index == null) {
+            byte[] buf = new byte[getBytesToRead()];
+            ras.seek(0);
+            fillWithBytes(buf, ras, blockFile.getAbsolutePath(), description);
+            index = DataBlockHeaderIndex.create(buf, ras.length());
+            dbu.getHeaderIndexCache().put(blockFile, index);
+        }
+        return index;
     }
 
     /**
@@ -833,6 +1642,25 @@ public class DataBlock extends Debuggable implements Comparable {
         }
     }
 
+    /**
+     * <p>Helper method to ensure that the stream reads all of the bytes desired.</p>
+     * @param buf A byte buffer to hold the data. The stream's data will be transfered to filled this buffer.
+     * @param in Stream reading the data block.
+     * @param blockFilePath The path to the file read by the stream. Used for error messages.
+     * @throws java.lang.Exception If any I/O errors occur, or if cannot fill the entire buffer with data from the stream (could be corrupted data block).
+     */
+    static final void fillWithBytes(final byte[] buf, final InputStream in, String blockFilePath, String description) throws Exception {
+        int bytesRead = 0;
+        while (bytesRead != buf.length) {
+            int read = in.read(buf, bytesRead, buf.length - bytesRead);
+            // check for EOF
+            if (read == -1) {
+                throw new UnexpectedEndOfDataBlockException("EOF reached and expected more bytes! For data block at: " + blockFilePath + " <" + description + ">");
+            }
+            bytesRead += read;
+        }
+    }
+
     /**
      * <p>Compare underlying files for DataBlock instances.</p>
      * @param o
@@ -859,93 +1687,147 @@ public class DataBlock extends Debuggable implements Comparable {
     }
 
     /**
-     * <p>The data block moves itself. This synchronized method places the data block in a new DataDirectoryConfiguration.</p>
+     * <p>The data block moves itself. Holding the write lock, places the data block in a new DataDirectoryConfiguration.</p>
+     * <p>If the file can't simply be renamed, e.g., the directories are on different filesystems, it is copied at the capped balancing rate without holding the lock, so requests for the data block aren't held up. The move is given up if the data block changed meanwhile.</p>
      * <p>The intended use for this method is to balance a server's data across data directories.</p>
      * @param newDDC
      * @return
      * @throws java.lang.Exception
      */
-    protected final synchronized boolean moveToDataDirectoryConfiguration(DataDirectoryConfiguration newDDC) throws Exception {
-
-        // Immediately bail if same DDC already at
-        if (newDDC.equals(this.ddc)) {
-            return false;
-        }
-
-        boolean moved = false;
-
-        final File srcFile = getRegularOrMergeFile();
-        final long srcBytes = srcFile.length();
+    protected final boolean moveToDataDirectoryConfiguration(DataDirectoryConfiguration newDDC) throws Exception {
+        final Lock lock = getLock().writeLock();
+        DataDirectoryIOQueue.lock(lock);
+        try {
+            // Immediately bail if same DDC already at
+            if (newDDC.equals(this.ddc)) {
+                return false;
+            }
 
-        // Don't recursively copy. Can be expensive across filesystems.
-        if (this.isDirectory()) {
-            throw new AssertionFailedException("Trying to move data block, is a directory (not allowed): " + srcFile.getAbsolutePath());
-        }
+            boolean moved = false;
 
-        try {
+            final File srcFile = getRegularOrMergeFile();
+            final long srcBytes = srcFile.length();
 
-            if (!srcFile.exists()) {
-                throw new AssertionFailedException("Trying to move data block, doesn't exist: " + srcFile.getAbsolutePath());
+            // Don't recursively copy. Can be expensive across filesystems.
+            if (this.isDirectory()) {
+                throw new AssertionFailedException("Trying to move data block, is a directory (not allowed): " + srcFile.getAbsolutePath());
             }
 
-            // If new data directory doesn't exist, try to create. If cannot, throw exception.
-            if (!newDDC.getDirectoryFile().exists() || !newDDC.getDirectoryFile().isDirectory()) {
-                newDDC.getDirectoryFile().mkdirs();
-                if (!newDDC.getDirectoryFile().exists()) {
-                    throw new Exception("Trying to move data block from source<" + srcFile.getAbsolutePath() + "> to destination DDC, but cannot create DDC data directory: " + newDDC.getDirectoryFile().getAbsolutePath());
+            try {
+
+                if (!srcFile.exists()) {
+                    throw new AssertionFailedException("Trying to move data block, doesn't exist: " + srcFile.getAbsolutePath());
                 }
-                if (!newDDC.getDirectoryFile().isDirectory()) {
-                    throw new Exception("Trying to move data block from source<" + srcFile.getAbsolutePath() + "> to destination DDC, but cannot use DDC because it is not a directory: " + newDDC.getDirectoryFile().getAbsolutePath());
+
+                // If new data directory doesn't exist, try to create. If cannot, throw exception.
+                if (!newDDC.getDirectoryFile().exists() || !newDDC.getDirectoryFile().isDirectory()) {
+                    newDDC.getDirectoryFile().mkdirs();
+                    if (!newDDC.getDirectoryFile().exists()) {
+                        throw new Exception("Trying to move data block from source<" + srcFile.getAbsolutePath() + "> to destination DDC, but cannot create DDC data directory: " + newDDC.getDirectoryFile().getAbsolutePath());
+                    }
+                    if (!newDDC.getDirectoryFile().isDirectory()) {
+                        throw new Exception("Trying to move data block from source<" + srcFile.getAbsolutePath() + "> to destination DDC, but cannot use DDC because it is not a directory: " + newDDC.getDirectoryFile().getAbsolutePath());
+                    }
                 }
-            }
 
-            // May not move if DDC is at its limit
-            if (newDDC.getActualSize() >= newDDC.getSizeLimit()) {
-                return false;
-            }
+                // May not move if DDC is at its limit
+                if (newDDC.getActualSize() >= newDDC.getSizeLimit()) {
+                    return false;
+                }
 
-            // Create destination file. If this is a merge file, end with .merge
-            final String regularOrMergeFileName = this.filename + (srcFile.getName().endsWith(".merge") ? ".merge" : "");
-            final File destFile = new File(newDDC.getDirectory(), regularOrMergeFileName);
+                // Create destination file. If this is a merge file, end with .merge
+                final String regularOrMergeFileName = this.filename + (srcFile.getName().endsWith(".merge") ? ".merge" : "");
+                final File destFile = new File(newDDC.getDirectory(), regularOrMergeFileName);
 
-            if (destFile.exists()) {
-                throw new AssertionFailedException("Want to move data block <" + srcFile.getAbsolutePath() + "> to new destination<" + destFile.getAbsolutePath() + ">, but destination exists.");
-            }
+                if (destFile.exists()) {
+                    throw new AssertionFailedException("Want to move data block <" + srcFile.getAbsolutePath() + "> to new destination<" + destFile.getAbsolutePath() + ">, but destination exists.");
+                }
 
-            // Make sure parent file exists for data block
-            destFile.getParentFile().mkdirs();
-            moved = srcFile.renameTo(destFile);
+                // Make sure parent file exists for data block
+                destFile.getParentFile().mkdirs();
+                moved = srcFile.renameTo(destFile);
 
-            // Note that might be problematic across data directories on different
-            // filesystems, so attempt to copy if rename fails.
-            if (!moved && !destFile.exists()) {
-                IOUtil.copyFile(srcFile, destFile);
-                final long destBytes = destFile.length();
+                // Note that might be problematic across data directories on different
+                // filesystems, so attempt to copy if rename fails.
+                if (!moved && !destFile.exists()) {
+                    moved = copyWhileUnlocked(srcFile, destFile, lock);
+                }
 
-                if (destBytes == srcBytes) {
-                    IOUtil.safeDelete(srcFile);
+                return moved;
+            } finally {
+                if (moved) {
+                    dbu.invalidateBlockFile(srcFile);
+                    dbu.getDataBlockMover().moved(srcBytes);
 
-                    if (srcFile.exists()) {
-                        // Don't delete either: might be in an odd state
-                        throw new Exception("Could not delete source data block<" + srcFile.getAbsolutePath() + "> file after moving to destination<" + destFile.getAbsolutePath() + ">.");
-                    }
+                    // Move bytes count from old DDC to new DDC
+                    this.ddc.adjustUsedSpace(-srcBytes);
+                    newDDC.adjustUsedSpace(+srcBytes);
 
-                    moved = true;
-                } else {
-                    throw new Exception("After trying to move data block, size<" + srcBytes + "> or src data directory<" + srcFile.getAbsolutePath() + "> doesn't match size<" + destBytes + "> of destination directory<" + destFile.getAbsolutePath() + ">.");
+                    // Replace DDC refrenece
+                    this.ddc = newDDC;
                 }
             }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Copies the data block's file to its new location without holding the lock, then replaces the file with the copy if the file didn't change meanwhile. Chunks are only added by appending to the file, and deleted or compacted by changing the header, so the length and the header tell whether it changed.</p>
+     * <p>Must hold the write lock, which is held again on return.</p>
+     * @param srcFile
+     * @param destFile
+     * @param writeLock
+     * @return True if moved, false if the data block changed while it was copied.
+     * @throws java.lang.Exception
+     */
+    private boolean copyWhileUnlocked(File srcFile, File destFile, Lock writeLock) throws Exception {
+        final File movingFile = new File(destFile.getAbsolutePath() + DataBlockMover.MOVING_SUFFIX);
+        final long srcBytes = srcFile.length();
+        final byte[] header = readHeaderForMove(srcFile);
 
-            return moved;
+        writeLock.unlock();
+        try {
+            dbu.getDataBlockMover().copy(srcFile, movingFile, dbu.getBalanceBytesPerSecond());
+        } catch (Exception e) {
+            IOUtil.safeDelete(movingFile);
+            throw e;
         } finally {
-            if (moved) {
-                // Move bytes count from old DDC to new DDC
-                this.ddc.adjustUsedSpace(-srcBytes);
-                newDDC.adjustUsedSpace(+srcBytes);
+            DataDirectoryIOQueue.lock(writeLock);
+        }
 
-                // Replace DDC refrenece
-                this.ddc = newDDC;
-            }
+        if (!srcFile.exists() || srcFile.length() != srcBytes || !Arrays.equals(header, readHeaderForMove(srcFile))) {
+            IOUtil.safeDelete(movingFile);
+            dbu.getDataBlockMover().aborted();
+            return false;
+        }
+        if (movingFile.length() != srcBytes || !movingFile.renameTo(destFile)) {
+            IOUtil.safeDelete(movingFile);
+            throw new Exception("After trying to move data block, size<" + srcBytes + "> or src data directory<" + srcFile.getAbsolutePath() + "> doesn't match size<" + movingFile.length() + "> of destination directory<" + destFile.getAbsolutePath() + ">.");
+        }
+
+        IOUtil.safeDelete(srcFile);
+        if (srcFile.exists()) {
+            // Don't delete either: might be in an odd state
+            throw new Exception("Could not delete source data block<" + srcFile.getAbsolutePath() + "> file after moving to destination<" + destFile.getAbsolutePath() + ">.");
+        }
+        return true;
+    }
+
+    /**
+     * <p>Reads the header of a data block's file, or as much of it as the file has.</p>
+     * @param file
+     * @return
+     * @throws java.io.IOException
+     */
+    private byte[] readHeaderForMove(File file) throws IOException {
+        RandomAccessFile ras = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[(int) Math.min(getBytesToRead(), ras.length())];
+            ras.readFully(header);
+            return header;
+        } finally {
+            IOUtil.safeClose(ras);
         }
     }
 
@@ -990,4 +1872,56 @@ public class DataBlock extends Debuggable implements Comparable {
     public static int getBytesToRead() {
         return bytesPerEntry * getHeadersPerFile();
     }
+
+    /**
+     * <p>Returns the number of bytes of checksums after the header of a checksummed DataBlock.</p>
+     * @return
+     */
+    public static int getChecksumBytesToRead() {
+        return bytesPerChecksum * getHeadersPerFile();
+    }
+
+    /**
+     * <p>Returns where the first chunk starts in a DataBlock file.</p>
+     * @param checksummed True if the DataBlock keeps checksums.
+     * @return
+     */
+    static final int getFirstChunkOffset(boolean checksummed) {
+        return checksummed ? getBytesToRead() + getChecksumBytesToRead() : getBytesToRead();
+    }
+
+    /**
+     * <p>Returns true if a DataBlock keeps a checksum for each chunk. Told by where the first chunk starts or, if there are no chunks, by whether there is room for the checksums.</p>
+     * @param buf The header of the DataBlock. Only the first entry is used.
+     * @param fileLength The length of the DataBlock file.
+     * @return
+     */
+    static final boolean isChecksummed(final byte[] buf, final long fileLength) {
+        int o = buf[BigHash.HASH_LENGTH + 2] << 24 | (buf[BigHash.HASH_LENGTH + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + 2 + 3] & 0xff);
+        if (o != 0) {
+            return o == getFirstChunkOffset(true);
+        }
+        return fileLength >= getFirstChunkOffset(true);
+    }
+
+    /**
+     * <p>Returns the checksum kept for a chunk.</p>
+     * @param bytes
+     * @return
+     */
+    static final int checksum(final byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * <p>Puts an int in a buffer, most significant byte first, as RandomAccessFile.writeInt does.</p>
+     */
+    private static void putInt(final byte[] buf, final int offset, final int value) {
+        buf[offset] = (byte) (value >> 24);
+        buf[offset + 1] = (byte) (value >> 16);
+        buf[offset + 2] = (byte) (value >> 8);
+        buf[offset + 3] = (byte) (value);
+    }
 }
@@ -15,9 +15,7 @@
  */
 package org.tranche.flatfile;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import org.tranche.exceptions.AssertionFailedException;
 import org.tranche.hash.BigHash;
@@ -25,61 +23,61 @@ import org.tranche.hash.BigHash;
 /**
  * <p>Used to cache the location of a chunk.</p>
  * <p>The idea is that hasData or hasMetaData is used before get or set. If cache results, won't have to read in header from data block.</p>
+ * <p>Data and meta data entries are each split in to segments by chunk hash, and each segment has its own lock, so threads working on different chunks rarely wait on each other. Each segment evicts its least recently used entry when full.</p>
  * @author Bryan Smith - bryanesmith@gmail.com
  */
 public class DataBlockCache {
 
     /**
-     * <p>The number of entries to keep in memory for data or meta data chunks.</p>
+     * <p>The default number of entries to keep in memory for data or meta data chunks.</p>
      */
     public static final int CACHE_ENTRY_SIZE = 250;
-    private final List<DataBlockCacheEntry> dataEntriesList;
-    private final Map<BigHash, DataBlockCacheEntry> dataEntriesMap;
-    private final List<DataBlockCacheEntry> metaDataEntriesList;
-    private final Map<BigHash, DataBlockCacheEntry> metaDataEntriesMap;
-    private final Object dataCacheLock = new Object(),  metaDataCacheLock = new Object();
+    /**
+     * <p>The number of segments for data or meta data chunks.</p>
+     */
+    private static final int SEGMENT_COUNT = 16;
+    private final Segment[] dataSegments = new Segment[SEGMENT_COUNT];
+    private final Segment[] metaDataSegments = new Segment[SEGMENT_COUNT];
+    private volatile int capacity;
 
     /**
-     * 
+     *
      */
     public DataBlockCache() {
-        dataEntriesList = new LinkedList();
-        dataEntriesMap = new HashMap();
-        metaDataEntriesList = new LinkedList();
-        metaDataEntriesMap = new HashMap();
+        this(CACHE_ENTRY_SIZE);
+    }
+
+    /**
+     * @param capacity The number of entries to keep in memory for data or meta data chunks.
+     */
+    public DataBlockCache(int capacity) {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            dataSegments[i] = new Segment();
+            metaDataSegments[i] = new Segment();
+        }
+        setCapacity(capacity);
+    }
+
+    /**
+     * <p>Returns the segment for a chunk.</p>
+     * @param hash
+     * @param isMetaData
+     * @return
+     */
+    private Segment getSegment(BigHash hash, boolean isMetaData) {
+        // spread the bits, since segments are picked using the low bits
+        int h = hash.hashCode();
+        h ^= (h >>> 16);
+        return (isMetaData ? metaDataSegments : dataSegments)[(h & 0x7fffffff) % SEGMENT_COUNT];
     }
-    
+
     /**
-     * <p>Add a DataBlockCacheEntry to the cache. Removes oldest entries if maximum size is exceeded.</p>
+     * <p>Add a DataBlockCacheEntry to the cache. Removes least recently used entries if maximum size is exceeded.</p>
      * @param e
      * @param isMetaData
      */
     public void add(final DataBlockCacheEntry e, final boolean isMetaData) {
-        if (!isMetaData) {
-            synchronized (dataCacheLock) {
-                // Add to data cache
-                dataEntriesList.add(e);
-                dataEntriesMap.put(e.chunkHash, e);
-
-                // Prune cache if necessary
-                while (dataEntriesList.size() > CACHE_ENTRY_SIZE) {
-                    DataBlockCacheEntry remove = dataEntriesList.remove(0);
-                    dataEntriesMap.remove(remove);
-                }
-            }
-        } else {
-            synchronized (metaDataCacheLock) {
-                // Add to meta cache
-                metaDataEntriesList.add(e);
-                metaDataEntriesMap.put(e.chunkHash, e);
-
-                // Prune cache if necessary
-                while (metaDataEntriesList.size() > CACHE_ENTRY_SIZE) {
-                    DataBlockCacheEntry remove = metaDataEntriesList.remove(0);
-                    metaDataEntriesMap.remove(remove);
-                }
-            }
-        }
+        getSegment(e.chunkHash, isMetaData).add(e);
     }
 
     /**
@@ -91,38 +89,16 @@ public class DataBlockCache {
      * @throws java.lang.Exception
      */
     public DataBlockCacheEntry get(BigHash hash, boolean isMetaData) throws AssertionFailedException, Exception {
-        if (!isMetaData) {
-            synchronized (dataCacheLock) {
-                // Quickly assert that collections are synchronized
-                if (dataEntriesList.size() != dataEntriesMap.size()) {
-                    throw new AssertionFailedException("dataEntriesList.size()<" + dataEntriesList.size() + "> != dataEntriesSet.size()<" + dataEntriesMap.size() + "> in DataBlockCache.add");
-                }
-
-                return dataEntriesMap.get(hash);
-            }
-        } else {
-            synchronized (metaDataCacheLock) {
-                // Quickly assert that collections are synchronized
-                if (metaDataEntriesList.size() != metaDataEntriesMap.size()) {
-                    throw new AssertionFailedException("metaDataEntriesList.size()<" + metaDataEntriesList.size() + "> != metaDataEntriesSet.size()<" + metaDataEntriesMap.size() + "> in DataBlockCache.add");
-                }
-
-                return metaDataEntriesMap.get(hash);
-            }
-        }
+        return getSegment(hash, isMetaData).get(hash);
     }
 
     /**
      * <p>Clear out the cache resources.</p>
      */
     public void clear() {
-        synchronized (dataCacheLock) {
-            dataEntriesList.clear();
-            dataEntriesMap.clear();
-        }
-        synchronized (metaDataCacheLock) {
-            metaDataEntriesList.clear();
-            metaDataEntriesMap.clear();
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            dataSegments[i].clear();
+            metaDataSegments[i].clear();
         }
     }
 
@@ -132,20 +108,148 @@ public class DataBlockCache {
      * @param isMetaData
      */
     public void remove(BigHash h, boolean isMetaData) {
-        if (!isMetaData) {
-            synchronized (dataCacheLock) {
-                DataBlockCacheEntry e = dataEntriesMap.remove(h);
-                if (e != null) {
-                    dataEntriesList.remove(e);
+        getSegment(h, isMetaData).remove(h);
+    }
+
+    /**
+     * <p>Returns the number of entries to keep in memory for data or meta data chunks.</p>
+     * @return
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * <p>Set the number of entries to keep in memory for data or meta data chunks. If shrinking, entries are evicted immediately.</p>
+     * @param capacity
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        // round up, so small caches still hold an entry per segment
+        int segmentCapacity = (Math.max(0, capacity) + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            dataSegments[i].setCapacity(segmentCapacity);
+            metaDataSegments[i].setCapacity(segmentCapacity);
+        }
+    }
+
+    /**
+     * <p>Returns the number of entries in the cache, data and meta data combined.</p>
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            size += dataSegments[i].size() + metaDataSegments[i].size();
+        }
+        return size;
+    }
+
+    /**
+     * <p>Returns the number of times get found an entry, data and meta data combined.</p>
+     * @return
+     */
+    public long getHitCount() {
+        long count = 0;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            count += dataSegments[i].getHitCount() + metaDataSegments[i].getHitCount();
+        }
+        return count;
+    }
+
+    /**
+     * <p>Returns the number of times get did not find an entry, data and meta data combined.</p>
+     * @return
+     */
+    public long getMissCount() {
+        long count = 0;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            count += dataSegments[i].getMissCount() + metaDataSegments[i].getMissCount();
+        }
+        return count;
+    }
+
+    /**
+     * <p>Returns the number of entries evicted to make room for others, data and meta data combined.</p>
+     * @return
+     */
+    public long getEvictionCount() {
+        long count = 0;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            count += dataSegments[i].getEvictionCount() + metaDataSegments[i].getEvictionCount();
+        }
+        return count;
+    }
+
+    /**
+     * <p>A part of the cache with its own lock. Entries are kept in access order, so the eldest entry is the least recently used.</p>
+     */
+    private static class Segment {
+
+        private int capacity;
+        private long hitCount = 0, missCount = 0, evictionCount = 0;
+        private final LinkedHashMap<BigHash, DataBlockCacheEntry> entries;
+
+        Segment() {
+            entries = new LinkedHashMap<BigHash, DataBlockCacheEntry>(16, 0.75f, true) {
+
+                @Override()
+                protected boolean removeEldestEntry(Map.Entry<BigHash, DataBlockCacheEntry> eldest) {
+                    if (size() > capacity) {
+                        evictionCount++;
+                        return true;
+                    }
+                    return false;
                 }
+            };
+        }
+
+        synchronized void add(DataBlockCacheEntry e) {
+            entries.put(e.chunkHash, e);
+        }
+
+        synchronized DataBlockCacheEntry get(BigHash hash) {
+            DataBlockCacheEntry e = entries.get(hash);
+            if (e != null) {
+                hitCount++;
+            } else {
+                missCount++;
             }
-        } else {
-            synchronized (metaDataCacheLock) {
-                DataBlockCacheEntry e = metaDataEntriesMap.remove(h);
-                if (e != null) {
-                    metaDataEntriesList.remove(e);
-                }
+            return e;
+        }
+
+        synchronized void remove(BigHash hash) {
+            entries.remove(hash);
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized void setCapacity(int capacity) {
+            this.capacity = capacity;
+            // prune immediately if shrinking
+            while (entries.size() > capacity) {
+                BigHash eldest = entries.keySet().iterator().next();
+                entries.remove(eldest);
+                evictionCount++;
             }
         }
+
+        synchronized long getHitCount() {
+            return hitCount;
+        }
+
+        synchronized long getMissCount() {
+            return missCount;
+        }
+
+        synchronized long getEvictionCount() {
+            return evictionCount;
+        }
     }
 }
@@ -0,0 +1,285 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.tranche.hash.BigHash;
+
+/**
+ * <p>Cache of the bytes of frequently requested chunks, kept outside of the heap in direct buffers, so popular chunks aren't read from disk for every request.</p>
+ * <p>The cache is bounded by bytes. A chunk is only admitted once it has been requested a few times, and, if the cache is full, only if it has been requested more often than the least recently used chunks it would push out. Request counts are kept in a small sketch that is halved now and then, so counts from long ago fade.</p>
+ * <p>Chunks must be removed whenever they are deleted or replaced.</p>
+ */
+public class DataBlockChunkCache {
+
+    /**
+     * <p>Number of requests for a chunk before it is admitted.</p>
+     */
+    public static final int ADMISSION_THRESHOLD = 2;
+    /**
+     * <p>Number of counters in the request count sketch per row. Must be a power of two.</p>
+     */
+    private static final int SKETCH_WIDTH = 1 << 16;
+    /**
+     * <p>Number of rows in the request count sketch.</p>
+     */
+    private static final int SKETCH_DEPTH = 4;
+    /**
+     * <p>The request counts are halved after this many requests.</p>
+     */
+    private static final int SKETCH_SAMPLE_SIZE = SKETCH_WIDTH * 8;
+    private long capacityInBytes;
+    private long sizeInBytes = 0;
+    // access-ordered, so the eldest entry is the least recently used
+    private final LinkedHashMap<BigHash, ByteBuffer> entries = new LinkedHashMap<BigHash, ByteBuffer>(16, 0.75f, true);
+    private final int[][] sketch = new int[SKETCH_DEPTH][SKETCH_WIDTH];
+    private int requestsSinceReset = 0;
+    private long hitCount = 0, missCount = 0, evictionCount = 0, rejectionCount = 0;
+    private long removalCount = 0;
+
+    /**
+     * @param capacityInBytes The maximum number of bytes of chunks to keep.
+     */
+    public DataBlockChunkCache(long capacityInBytes) {
+        this.capacityInBytes = capacityInBytes;
+    }
+
+    /**
+     * <p>Returns a copy of a chunk's bytes, counting the request.</p>
+     * @param hash
+     * @return The bytes, or null if the chunk is not cached.
+     */
+    public byte[] get(BigHash hash) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            recordRequest(hash);
+            buffer = entries.get(hash);
+            if (buffer == null) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+            // the buffer is never written once cached, so copy outside of the lock
+            buffer = buffer.duplicate();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * <p>Offer a chunk read from disk after get returned null. It is only cached if it has been requested often enough.</p>
+     * @param hash
+     * @param bytes
+     * @param removalCount The value of getRemovalCount from before the chunk was read. If any chunk was removed since, the chunk is not cached, since it might have been deleted or replaced after it was read.
+     * @return True if cached.
+     */
+    public boolean offer(BigHash hash, byte[] bytes, long removalCount) {
+        synchronized (this) {
+            if (removalCount != this.removalCount || bytes.length > capacityInBytes || entries.containsKey(hash) || !isAdmitted(hash, bytes.length)) {
+                return false;
+            }
+        }
+
+        // copy off the heap outside of the lock
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+
+        synchronized (this) {
+            if (removalCount != this.removalCount || entries.containsKey(hash)) {
+                return false;
+            }
+            evict(capacityInBytes - bytes.length);
+            entries.put(hash, buffer);
+            sizeInBytes += bytes.length;
+            return true;
+        }
+    }
+
+    /**
+     * <p>Decides whether to cache a chunk: it must have been requested at least ADMISSION_THRESHOLD times, and more often than any chunk it would push out.</p>
+     */
+    private boolean isAdmitted(BigHash hash, int length) {
+        int frequency = getFrequency(hash);
+        if (frequency < ADMISSION_THRESHOLD) {
+            rejectionCount++;
+            return false;
+        }
+        long bytesNeeded = sizeInBytes + length - capacityInBytes;
+        for (Iterator<Map.Entry<BigHash, ByteBuffer>> it = entries.entrySet().iterator(); bytesNeeded > 0 && it.hasNext();) {
+            Map.Entry<BigHash, ByteBuffer> victim = it.next();
+            if (getFrequency(victim.getKey()) >= frequency) {
+                rejectionCount++;
+                return false;
+            }
+            bytesNeeded -= victim.getValue().capacity();
+        }
+        return true;
+    }
+
+    /**
+     * <p>Evict least recently used chunks until no more than the given number of bytes are used.</p>
+     */
+    private void evict(long maxSizeInBytes) {
+        Iterator<Map.Entry<BigHash, ByteBuffer>> it = entries.entrySet().iterator();
+        while (sizeInBytes > maxSizeInBytes && it.hasNext()) {
+            sizeInBytes -= it.next().getValue().capacity();
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * <p>Remove a chunk, e.g., because it was deleted or replaced.</p>
+     * @param hash
+     */
+    public synchronized void remove(BigHash hash) {
+        removalCount++;
+        ByteBuffer buffer = entries.remove(hash);
+        if (buffer != null) {
+            sizeInBytes -= buffer.capacity();
+        }
+    }
+
+    /**
+     * <p>Remove every chunk. Request counts are kept.</p>
+     */
+    public synchronized void clear() {
+        entries.clear();
+        sizeInBytes = 0;
+    }
+
+    /**
+     * <p>Add a request to the sketch, halving every count now and then.</p>
+     */
+    private void recordRequest(BigHash hash) {
+        final byte[] b = hash.toByteArray();
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            int index = getSketchIndex(b, i);
+            if (sketch[i][index] < Integer.MAX_VALUE) {
+                sketch[i][index]++;
+            }
+        }
+        if (++requestsSinceReset >= SKETCH_SAMPLE_SIZE) {
+            for (int[] row : sketch) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>>= 1;
+                }
+            }
+            requestsSinceReset = 0;
+        }
+    }
+
+    /**
+     * @return The estimated number of recent requests for a chunk. Collisions in the sketch can only make it too high.
+     */
+    private int getFrequency(BigHash hash) {
+        final byte[] b = hash.toByteArray();
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            frequency = Math.min(frequency, sketch[i][getSketchIndex(b, i)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * <p>The hash bytes are already uniformly distributed, so each row uses a different four of them.</p>
+     */
+    private static int getSketchIndex(byte[] b, int row) {
+        int offset = row * 4;
+        int value = ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+        return value & (SKETCH_WIDTH - 1);
+    }
+
+    /**
+     * @return The number of times remove has been called. See offer.
+     */
+    public synchronized long getRemovalCount() {
+        return removalCount;
+    }
+
+    /**
+     * @return The maximum number of bytes of chunks to keep.
+     */
+    public synchronized long getCapacityInBytes() {
+        return capacityInBytes;
+    }
+
+    /**
+     * <p>Set the maximum number of bytes of chunks to keep. If shrinking, chunks are evicted immediately.</p>
+     * @param capacityInBytes
+     */
+    public synchronized void setCapacityInBytes(long capacityInBytes) {
+        this.capacityInBytes = capacityInBytes;
+        evict(capacityInBytes);
+    }
+
+    /**
+     * @return The number of bytes of chunks cached.
+     */
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * @return The number of chunks cached.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of requests answered from the cache.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The number of requests for chunks that were not cached.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return The number of chunks evicted to make room for others.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return The number of chunks offered but not admitted.
+     */
+    public synchronized long getRejectionCount() {
+        return rejectionCount;
+    }
+
+    /**
+     * @return The fraction of requests answered from the cache.
+     */
+    public synchronized double getHitRate() {
+        if (hitCount + missCount == 0) {
+            return 0;
+        }
+        return (double) hitCount / (hitCount + missCount);
+    }
+}
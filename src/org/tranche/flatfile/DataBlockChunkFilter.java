@@ -0,0 +1,311 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.tranche.commons.DebugUtil;
+import org.tranche.hash.BigHash;
+import org.tranche.hash.BigHashBloomFilter;
+import org.tranche.hash.DiskBackedBigHashSet;
+import org.tranche.util.IOUtil;
+
+/**
+ * <p>Bloom filter in front of the set of data or meta data chunk hashes on the server, so that checks for chunks the server does not have don't touch the disk.</p>
+ * <p>A negative answer is only trusted once the filter is complete, i.e., after the ProjectFindingThread has added every chunk found on disk. Hashes are added before their chunks are written, so a negative answer is never wrong.</p>
+ * <p>To add a hash, call adding before writing the chunk, add the hash to the set of hashes, then call added. A rebuild includes hashes in between the two, since it might have already read past them in the set.</p>
+ * <p>Deleted chunks stay in the filter. When too many hashes have been added or deleted for the filter's size, it is rebuilt from the set of hashes in the background, at twice the size if need be.</p>
+ * <p>Only the size of the filter is saved at shut down, not its bits: the filter is filled again as the ProjectFindingThread adds the chunks on disk.</p>
+ */
+public class DataBlockChunkFilter {
+
+    /**
+     * <p>The default number of hashes to size a new filter for.</p>
+     */
+    public static final long DEFAULT_CAPACITY = 1000000;
+    /**
+     * <p>How many hashes to read at once from the set when rebuilding.</p>
+     */
+    private static final int REBUILD_BATCH_SIZE = 1000;
+    private final DiskBackedBigHashSet hashes;
+    private BigHashBloomFilter filter;
+    private BigHashBloomFilter rebuilding = null;
+    // hashes being added, with the number of adds in progress for each
+    private final Map<BigHash, Integer> inProgress = new HashMap<BigHash, Integer>();
+    private boolean complete = false;
+    private long deletesSinceBuilt = 0;
+    private long negativeCount = 0;
+    private long falsePositiveCount = 0;
+    private long rebuildCount = 0;
+
+    /**
+     * @param hashes The set of hashes the filter is in front of.
+     */
+    public DataBlockChunkFilter(DiskBackedBigHashSet hashes) {
+        this(hashes, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param hashes The set of hashes the filter is in front of.
+     * @param capacity The number of hashes to size the filter for.
+     */
+    public DataBlockChunkFilter(DiskBackedBigHashSet hashes, long capacity) {
+        this.hashes = hashes;
+        this.filter = new BigHashBloomFilter(capacity, BigHashBloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * <p>Add a hash. Call before the chunk is written, then call added once the hash is in the set of hashes (or if the chunk couldn't be written).</p>
+     * @param hash
+     */
+    public synchronized void adding(BigHash hash) {
+        Integer count = inProgress.get(hash);
+        inProgress.put(hash, count == null ? 1 : count + 1);
+        filter.add(hash);
+        if (rebuilding != null) {
+            rebuilding.add(hash);
+        } else if (filter.getInsertionCount() > filter.getCapacity()) {
+            startRebuild(filter.getCapacity() * 2);
+        }
+    }
+
+    /**
+     * <p>Note that a hash passed to adding is now in the set of hashes, or that its chunk couldn't be written.</p>
+     * @param hash
+     */
+    public synchronized void added(BigHash hash) {
+        Integer count = inProgress.get(hash);
+        if (count == null || count <= 1) {
+            inProgress.remove(hash);
+        } else {
+            inProgress.put(hash, count - 1);
+        }
+    }
+
+    /**
+     * <p>Note that a hash was deleted. Deleted hashes are only dropped from the filter when rebuilt.</p>
+     * @param hash
+     */
+    public synchronized void delete(BigHash hash) {
+        deletesSinceBuilt++;
+        if (rebuilding == null && deletesSinceBuilt > filter.getCapacity() / 2) {
+            startRebuild(filter.getCapacity());
+        }
+    }
+
+    /**
+     * @param hash
+     * @return True only if the filter is complete and the hash was never added.
+     */
+    public synchronized boolean isDefinitelyAbsent(BigHash hash) {
+        if (!complete || filter.mightContain(hash)) {
+            return false;
+        }
+        negativeCount++;
+        return true;
+    }
+
+    /**
+     * <p>Note that isDefinitelyAbsent returned false, but the chunk was not found.</p>
+     */
+    public synchronized void noteFalsePositive() {
+        if (complete) {
+            falsePositiveCount++;
+        }
+    }
+
+    /**
+     * @return True if every chunk on disk has been added, so negative answers can be trusted.
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @param complete True once every chunk on disk has been added.
+     */
+    public synchronized void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    /**
+     * <p>Of the checks for chunks the server didn't have, the fraction that the filter could not answer.</p>
+     * @return
+     */
+    public synchronized double getFalsePositiveRate() {
+        if (negativeCount + falsePositiveCount == 0) {
+            return 0;
+        }
+        return (double) falsePositiveCount / (negativeCount + falsePositiveCount);
+    }
+
+    /**
+     * @return The false positive rate expected from the filter's size and number of insertions.
+     */
+    public synchronized double getExpectedFalsePositiveRate() {
+        return filter.getExpectedFalsePositiveRate();
+    }
+
+    /**
+     * @return The number of bytes used by the filter, including any filter being rebuilt.
+     */
+    public synchronized long getSizeInBytes() {
+        return filter.getSizeInBytes() + (rebuilding != null ? rebuilding.getSizeInBytes() : 0);
+    }
+
+    /**
+     * @return The number of checks answered without touching the disk.
+     */
+    public synchronized long getNegativeCount() {
+        return negativeCount;
+    }
+
+    /**
+     * @return The number of checks the filter could not answer for chunks the server didn't have.
+     */
+    public synchronized long getFalsePositiveCount() {
+        return falsePositiveCount;
+    }
+
+    /**
+     * @return The number of times the filter has been rebuilt.
+     */
+    public synchronized long getRebuildCount() {
+        return rebuildCount;
+    }
+
+    /**
+     * @return The number of hashes the current filter is sized for.
+     */
+    public synchronized long getCapacity() {
+        return filter.getCapacity();
+    }
+
+    /**
+     * <p>Rebuild the filter from the set of hashes, blocking until done.</p>
+     * @param capacity The number of hashes to size the new filter for.
+     * @throws java.lang.Exception
+     */
+    public void rebuild(long capacity) throws Exception {
+        final BigHashBloomFilter rebuilt;
+        synchronized (this) {
+            if (rebuilding != null) {
+                return;
+            }
+            rebuilt = new BigHashBloomFilter(capacity, BigHashBloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+            // hashes added from now on go in to both filters. Those being added might not be in the set yet.
+            rebuilding = rebuilt;
+            for (BigHash hash : inProgress.keySet()) {
+                rebuilt.add(hash);
+            }
+        }
+        boolean success = false;
+        try {
+            // everything added before the rebuild started goes to disk once. Anything added since is already in the new filter.
+            hashes.flush();
+
+            // page by hash rather than offset, so concurrent deletes can't cause a hash to be skipped. Pages don't write out the buffers, so never cause a merge.
+            BigHash last = null;
+            while (true) {
+                List<BigHash> batch = hashes.getAfter(last, REBUILD_BATCH_SIZE, false);
+                for (BigHash hash : batch) {
+                    rebuilt.add(hash);
+                }
+                if (batch.size() < REBUILD_BATCH_SIZE) {
+                    break;
+                }
+                last = batch.get(batch.size() - 1);
+            }
+            success = true;
+        } finally {
+            synchronized (this) {
+                if (success) {
+                    filter = rebuilt;
+                    deletesSinceBuilt = 0;
+                    rebuildCount++;
+                }
+                rebuilding = null;
+            }
+        }
+    }
+
+    /**
+     * <p>Rebuild in the background.</p>
+     * @param capacity
+     */
+    private void startRebuild(final long capacity) {
+        Thread t = new Thread("Chunk filter rebuild thread") {
+
+            @Override()
+            public void run() {
+                try {
+                    rebuild(capacity);
+                } catch (Exception e) {
+                    DebugUtil.debugErr(DataBlockChunkFilter.class, e);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * <p>Save the size of the filter to a file, so that the filter can be made at the right size at the next start up. The hashes in it are not saved.</p>
+     * @param file
+     * @throws java.lang.Exception
+     */
+    public synchronized void save(File file) throws Exception {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeLong(filter.getCapacity());
+        } finally {
+            IOUtil.safeClose(out);
+        }
+    }
+
+    /**
+     * <p>Load the size of a filter saved using save, so the filter doesn't have to be rebuilt as the ProjectFindingThread adds chunks. The file is deleted, so it is never loaded twice.</p>
+     * <p>The filter starts empty: chunks might have been added to or removed from the data directories since, and the ProjectFindingThread adds every chunk again anyway.</p>
+     * <p>Call before any hashes are added, since they are dropped.</p>
+     * @param file
+     * @throws java.lang.Exception
+     */
+    public synchronized void load(File file) throws Exception {
+        long capacity = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            capacity = in.readLong();
+        } finally {
+            IOUtil.safeClose(in);
+            IOUtil.safeDelete(file);
+        }
+        if (capacity <= 0) {
+            throw new Exception("Invalid chunk filter size: " + capacity);
+        }
+        filter = new BigHashBloomFilter(capacity, BigHashBloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+        complete = false;
+        deletesSinceBuilt = 0;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+/**
+ * <p>Handed each chunk when reading DataBlocks in bulk. See DataBlock.readChunks and DataBlockUtil.readChunks.</p>
+ */
+public interface DataBlockChunkHandler {
+
+    /**
+     * <p>Fired for each live chunk, in the order the chunks are in the DataBlock's file. Throw to stop reading.</p>
+     * @param entry The chunk's header entry.
+     * @param bytes The chunk.
+     * @throws java.lang.Exception
+     */
+    public void handleChunk(DataBlockEntry entry, byte[] bytes) throws Exception;
+}
@@ -0,0 +1,231 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.tranche.commons.DebugUtil;
+
+/**
+ * <p>Thread rewrites DataBlock files with deleted chunks in the background, so space is reclaimed without holding up writers.</p>
+ * <p>DataBlocks with wasted space are offered when chunks are deleted or replaced. The most fragmented DataBlock is compacted first. Chunks are copied to a side file without holding the DataBlock's lock, at no more than the configured number of bytes per second; the lock is only held to copy chunks added meanwhile and to swap in the side file. See DataBlock.compact.</p>
+ */
+public class DataBlockCompactionThread extends Thread {
+
+    /**
+     * <p>Maximum number of DataBlocks waiting to be compacted. Once full, DataBlocks clean up their own wasted space.</p>
+     */
+    public static final int MAX_CANDIDATES = 10000;
+    /**
+     *
+     */
+    private final DataBlockUtil dbu;
+    /**
+     * <p>DataBlocks with wasted space, by absolute path of their file.</p>
+     */
+    private final Map<String, Candidate> candidates = new HashMap<String, Candidate>();
+    /**
+     *
+     */
+    private boolean stop = false;
+    /**
+     * <p>Used to keep to the I/O budget.</p>
+     */
+    private long throttleStartTimestamp = 0, throttleBytes = 0, bytesPerSecond = 0;
+    /**
+     * <p>Total number of DataBlocks compacted.</p>
+     */
+    long compactedCount = 0;
+    /**
+     * <p>Total number of bytes reclaimed by compacting DataBlocks.</p>
+     */
+    long bytesReclaimed = 0;
+    /**
+     * <p>Total number of compactions that failed or were abandoned, e.g., because the DataBlock split meanwhile.</p>
+     */
+    long failedCount = 0;
+
+    /**
+     * @param dbu
+     */
+    protected DataBlockCompactionThread(DataBlockUtil dbu) {
+        super("Compact DataBlocks thread");
+        this.dbu = dbu;
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    @Override()
+    public void run() {
+        while (!isStop()) {
+            try {
+                if (!dbu.isUseBackgroundCompaction() || !compactNext()) {
+                    synchronized (candidates) {
+                        candidates.wait(1000);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // nope, check whether stopped
+            } catch (Exception ex) {
+                DebugUtil.debugErr(DataBlockCompactionThread.class, ex);
+            }
+        }
+    }
+
+    /**
+     * <p>Compact the most fragmented DataBlock, if any has at least the minimum wasted ratio or more than DataBlock.MAX_WASTED_SPACE_ALLOWED wasted bytes.</p>
+     * @return True if a DataBlock was compacted, false otherwise.
+     * @throws java.lang.Exception
+     */
+    protected boolean compactNext() throws Exception {
+        Candidate candidate = null;
+        final double minWastedRatio = dbu.getCompactionMinimumWastedRatio();
+        synchronized (candidates) {
+            for (Candidate c : candidates.values()) {
+                if (c.wastedRatio < minWastedRatio && c.bytesWasted <= DataBlock.MAX_WASTED_SPACE_ALLOWED) {
+                    continue;
+                }
+                if (candidate == null || c.wastedRatio > candidate.wastedRatio) {
+                    candidate = c;
+                }
+            }
+            if (candidate == null) {
+                return false;
+            }
+            candidates.remove(candidate.path);
+        }
+
+        // the budget is picked up for each DataBlock
+        bytesPerSecond = dbu.getCompactionBytesPerSecond();
+        throttleStartTimestamp = System.currentTimeMillis();
+        throttleBytes = 0;
+
+        try {
+            long reclaimed = candidate.dataBlock.compact(this);
+            if (reclaimed < 0) {
+                failedCount++;
+                return false;
+            }
+            compactedCount++;
+            bytesReclaimed += reclaimed;
+            return true;
+        } catch (Exception e) {
+            failedCount++;
+            throw e;
+        }
+    }
+
+    /**
+     * <p>Offer a DataBlock with wasted space to be compacted. Replaces any earlier offer for the same DataBlock.</p>
+     * @param dataBlock
+     * @param bytesWasted The number of bytes used by deleted chunks.
+     * @param bytesTotal The number of bytes used by chunks, deleted or not.
+     * @return True if the DataBlock will be compacted when fragmented enough, false if too many DataBlocks are waiting.
+     */
+    public boolean offer(DataBlock dataBlock, long bytesWasted, long bytesTotal) {
+        final String path = dataBlock.getAbsolutePath();
+        synchronized (candidates) {
+            if (!candidates.containsKey(path) && candidates.size() >= MAX_CANDIDATES) {
+                return false;
+            }
+            candidates.put(path, new Candidate(path, dataBlock, bytesWasted, bytesTotal));
+            candidates.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * <p>Called as chunks are copied to the side file. Sleeps as needed to keep to the I/O budget.</p>
+     * @param bytes The number of bytes just copied.
+     * @throws java.lang.InterruptedException
+     */
+    void throttle(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        throttleBytes += bytes;
+        long millisAhead = (throttleBytes * 1000 / bytesPerSecond) - (System.currentTimeMillis() - throttleStartTimestamp);
+        if (millisAhead > 0) {
+            Thread.sleep(millisAhead);
+        }
+    }
+
+    /**
+     * @return The number of DataBlocks waiting to be compacted.
+     */
+    public int getCandidateCount() {
+        synchronized (candidates) {
+            return candidates.size();
+        }
+    }
+
+    /**
+     * @return The number of DataBlocks compacted.
+     */
+    public long getCompactedCount() {
+        return compactedCount;
+    }
+
+    /**
+     * @return The number of bytes reclaimed by compacting DataBlocks.
+     */
+    public long getBytesReclaimed() {
+        return bytesReclaimed;
+    }
+
+    /**
+     * @return The number of compactions that failed or were abandoned.
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return True if the thread was told to stop.
+     */
+    public boolean isStop() {
+        return stop;
+    }
+
+    /**
+     * <p>Tell the thread to stop. Any compaction under way is abandoned, leaving the DataBlock as it was.</p>
+     * @param stop
+     */
+    public void setStop(boolean stop) {
+        this.stop = stop;
+        synchronized (candidates) {
+            candidates.notifyAll();
+        }
+    }
+
+    /**
+     * <p>A DataBlock waiting to be compacted.</p>
+     */
+    private class Candidate {
+
+        final String path;
+        final DataBlock dataBlock;
+        final long bytesWasted;
+        final double wastedRatio;
+
+        Candidate(String path, DataBlock dataBlock, long bytesWasted, long bytesTotal) {
+            this.path = path;
+            this.dataBlock = dataBlock;
+            this.bytesWasted = bytesWasted;
+            this.wastedRatio = bytesTotal > 0 ? (double) bytesWasted / bytesTotal : 0;
+        }
+    }
+}
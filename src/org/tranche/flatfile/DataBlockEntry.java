@@ -0,0 +1,105 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import org.tranche.hash.BigHash;
+
+/**
+ * <p>A live chunk's entry in a DataBlock's header, as handed out when reading a DataBlock in bulk.</p>
+ * <p>Entries sort by offset, i.e., in the order their chunks are in the file.</p>
+ */
+public class DataBlockEntry implements Comparable<DataBlockEntry> {
+
+    /**
+     * <p>The DataBlock the chunk is in.</p>
+     */
+    private final DataBlock dataBlock;
+    /**
+     * <p>The hash of the chunk.</p>
+     */
+    private final BigHash hash;
+    /**
+     * <p>True if the chunk is meta data, false if data.</p>
+     */
+    private final boolean isMetaData;
+    /**
+     * <p>The offset, in bytes, of where the chunk starts in the DataBlock's file.</p>
+     */
+    private final int offset;
+    /**
+     * <p>The size, in bytes, of the chunk.</p>
+     */
+    private final int size;
+
+    /**
+     * @param dataBlock
+     * @param hash
+     * @param isMetaData
+     * @param offset
+     * @param size
+     */
+    DataBlockEntry(DataBlock dataBlock, BigHash hash, boolean isMetaData, int offset, int size) {
+        this.dataBlock = dataBlock;
+        this.hash = hash;
+        this.isMetaData = isMetaData;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /**
+     * @return The DataBlock the chunk is in.
+     */
+    public DataBlock getDataBlock() {
+        return dataBlock;
+    }
+
+    /**
+     * @return The hash of the chunk.
+     */
+    public BigHash getHash() {
+        return hash;
+    }
+
+    /**
+     * @return True if the chunk is meta data, false if data.
+     */
+    public boolean isMetaData() {
+        return isMetaData;
+    }
+
+    /**
+     * @return The offset, in bytes, of where the chunk starts in the DataBlock's file.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The size, in bytes, of the chunk.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * <p>Compare by offset in the DataBlock's file.</p>
+     * @param e
+     * @return
+     */
+    public int compareTo(DataBlockEntry e) {
+        return offset < e.offset ? -1 : (offset == e.offset ? 0 : 1);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.nio.ByteBuffer;
+import org.tranche.hash.BigHash;
+
+/**
+ * <p>Flyweight view over the raw bytes of a DataBlock header, for scanning the entries without parsing each one.</p>
+ * <p>Each entry is hash + (byte) type + (byte) status + int (offset in block) + int (size). Hashes are compared in place, eight bytes at a time, against the words of the hash being looked for, so a scan allocates nothing; a BigHash is only made for an entry that is wanted. Changes to the buffer show through the view.</p>
+ */
+public class DataBlockHeader {
+
+    /**
+     * <p>Number of longs a hash is compared in, the last holding the remaining four bytes.</p>
+     */
+    static final int WORDS_PER_HASH = BigHash.HASH_LENGTH / 8 + 1;
+    /**
+     * <p>Offsets within an entry of the type, status, chunk offset and chunk size.</p>
+     */
+    private static final int TYPE = BigHash.HASH_LENGTH;
+    private static final int STATUS = BigHash.HASH_LENGTH + 1;
+    private static final int OFFSET = BigHash.HASH_LENGTH + 2;
+    private static final int SIZE = BigHash.HASH_LENGTH + 6;
+    private final byte[] buf;
+    private final ByteBuffer view;
+
+    /**
+     * @param buf The header bytes, as read by DataBlock.fillWithBytes
+     */
+    public DataBlockHeader(byte[] buf) {
+        this.buf = buf;
+        this.view = ByteBuffer.wrap(buf);
+    }
+
+    /**
+     * <p>Returns the words of a hash, to look for with hashEquals.</p>
+     * @param hash
+     * @return
+     */
+    public static long[] toWords(BigHash hash) {
+        ByteBuffer bytes = ByteBuffer.wrap(hash.toByteArray());
+        long[] words = new long[WORDS_PER_HASH];
+        for (int w = 0; w < WORDS_PER_HASH - 1; w++) {
+            words[w] = bytes.getLong(w * 8);
+        }
+        words[WORDS_PER_HASH - 1] = bytes.getInt((WORDS_PER_HASH - 1) * 8);
+        return words;
+    }
+
+    /**
+     * <p>Returns true if the entry's hash is the hash with the given words.</p>
+     * @param entry The position of the entry in the header
+     * @param words See toWords
+     * @return
+     */
+    public boolean hashEquals(int entry, long[] words) {
+        final int position = entry * DataBlock.bytesPerEntry;
+        // random hashes almost always differ in the first word
+        for (int w = 0; w < WORDS_PER_HASH - 1; w++) {
+            if (view.getLong(position + w * 8) != words[w]) {
+                return false;
+            }
+        }
+        return view.getInt(position + (WORDS_PER_HASH - 1) * 8) == (int) words[WORDS_PER_HASH - 1];
+    }
+
+    /**
+     * <p>Returns a copy of the entry's hash, so it doesn't hold on to the header buffer.</p>
+     * @param entry The position of the entry in the header
+     * @return
+     */
+    public BigHash getHash(int entry) {
+        byte[] hash = new byte[BigHash.HASH_LENGTH];
+        System.arraycopy(buf, entry * DataBlock.bytesPerEntry, hash, 0, BigHash.HASH_LENGTH);
+        return BigHash.createFromBytes(hash);
+    }
+
+    /**
+     * @param entry The position of the entry in the header
+     * @return DataBlock.DATA or DataBlock.META_DATA
+     */
+    public byte getType(int entry) {
+        return buf[entry * DataBlock.bytesPerEntry + TYPE];
+    }
+
+    /**
+     * @param entry The position of the entry in the header
+     * @return DataBlock.STATUS_OK or DataBlock.STATUS_DELETED
+     */
+    public byte getStatus(int entry) {
+        return buf[entry * DataBlock.bytesPerEntry + STATUS];
+    }
+
+    /**
+     * <p>Set the entry's status in the buffer. Doesn't write to the file.</p>
+     * @param entry The position of the entry in the header
+     * @param status
+     */
+    public void setStatus(int entry, byte status) {
+        buf[entry * DataBlock.bytesPerEntry + STATUS] = status;
+    }
+
+    /**
+     * @param entry The position of the entry in the header
+     * @return The offset of the chunk in the DataBlock file, or zero if the entry is unused.
+     */
+    public int getOffset(int entry) {
+        return view.getInt(entry * DataBlock.bytesPerEntry + OFFSET);
+    }
+
+    /**
+     * @param entry The position of the entry in the header
+     * @return The size of the chunk in bytes.
+     */
+    public int getSize(int entry) {
+        return view.getInt(entry * DataBlock.bytesPerEntry + SIZE);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.tranche.hash.BigHash;
+import org.tranche.hash.BigHashIntMap;
+
+/**
+ * <p>In-memory copy of the live entries in a single DataBlock file's header.</p>
+ * <p>Built from the header bytes the first time a block is read, then kept up to date by DataBlock as chunks are added or deleted. A lookup goes straight to the chunk's offset and size instead of reading and scanning the entire header.</p>
+ * <p>Many blocks' indexes are cached at once, so hashes are mapped to their position in the header without an object per entry, and the offsets and sizes are kept in arrays by position.</p>
+ */
+public class DataBlockHeaderIndex {
+
+    /**
+     * <p>Position in the header of live data chunk entries, keyed by hash.</p>
+     */
+    private final BigHashIntMap dataEntries;
+    /**
+     * <p>Position in the header of live meta data chunk entries, keyed by hash.</p>
+     */
+    private final BigHashIntMap metaDataEntries;
+    /**
+     * <p>The offset and size of the chunk for each position in the header.</p>
+     */
+    private int[] offsets, sizes;
+    /**
+     * <p>The size of the underlying file when the index was last known to be accurate. Used to detect files that changed behind the index's back.</p>
+     */
+    private long expectedLength;
+
+    /**
+     *
+     * @param expectedLength
+     */
+    private DataBlockHeaderIndex(long expectedLength) {
+        this.dataEntries = new BigHashIntMap();
+        this.metaDataEntries = new BigHashIntMap();
+        this.offsets = new int[DataBlock.getHeadersPerFile()];
+        this.sizes = new int[DataBlock.getHeadersPerFile()];
+        this.expectedLength = expectedLength;
+    }
+
+    /**
+     * <p>Parse a complete DataBlock header into an index.</p>
+     * @param buf The header bytes, as read by DataBlock.fillWithBytes
+     * @param fileLength The length of the DataBlock file the header was read from
+     * @return
+     */
+    public static DataBlockHeaderIndex create(final byte[] buf, final long fileLength) {
+        DataBlockHeaderIndex index = new DataBlockHeaderIndex(fileLength);
+        for (int i = 0; i < DataBlock.getHeadersPerFile(); i++) {
+            // calc the offset
+            int offset = i * DataBlock.bytesPerEntry;
+            // parse the entry parts: type, status, offset, size
+            byte type = buf[offset + BigHash.HASH_LENGTH];
+            byte status = buf[offset + BigHash.HASH_LENGTH + 1];
+            int o = buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
+            int s = buf[BigHash.HASH_LENGTH + offset + 6] << 24 | (buf[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
+
+            // first unused entry marks the end of the header
+            if (o == 0) {
+                break;
+            }
+            if (status != DataBlock.STATUS_OK) {
+                continue;
+            }
+            // the map copies the hash, so the index doesn't hold on to the header buffer
+            index.put(BigHash.createFromBytes(buf, offset), type == DataBlock.META_DATA, i, o, s);
+        }
+        return index;
+    }
+
+    /**
+     * <p>Returns the entry for the chunk, or null if the block does not hold a live copy of it.</p>
+     * @param hash
+     * @param isMetaData
+     * @return
+     */
+    public synchronized Entry get(BigHash hash, boolean isMetaData) {
+        int headerNumber = getEntries(isMetaData).get(hash);
+        if (headerNumber == BigHashIntMap.NO_VALUE) {
+            return null;
+        }
+        return new Entry(headerNumber, offsets[headerNumber], sizes[headerNumber]);
+    }
+
+    /**
+     * <p>Record a live chunk in the index. Replaces any previous entry for the same chunk.</p>
+     * @param hash
+     * @param isMetaData
+     * @param headerNumber The position of the entry in the header
+     * @param offset The offset of the chunk in the DataBlock file
+     * @param size The size of the chunk in bytes
+     */
+    public synchronized void put(BigHash hash, boolean isMetaData, int headerNumber, int offset, int size) {
+        // in case the number of headers per file was raised since made
+        if (headerNumber >= offsets.length) {
+            offsets = copyOf(offsets, headerNumber + 1);
+            sizes = copyOf(sizes, headerNumber + 1);
+        }
+        getEntries(isMetaData).put(hash, headerNumber);
+        offsets[headerNumber] = offset;
+        sizes[headerNumber] = size;
+    }
+
+    /**
+     * <p>Remove a chunk from the index, if present.</p>
+     * @param hash
+     * @param isMetaData
+     */
+    public synchronized void remove(BigHash hash, boolean isMetaData) {
+        getEntries(isMetaData).remove(hash);
+    }
+
+    /**
+     * <p>Returns the hashes of all live chunks of the given type.</p>
+     * @param isMetaData
+     * @return
+     */
+    public synchronized List<BigHash> getHashes(boolean isMetaData) {
+        return new ArrayList<BigHash>(Arrays.asList(getEntries(isMetaData).toArray()));
+    }
+
+    /**
+     * <p>Returns the number of live chunks in the index.</p>
+     * @return
+     */
+    public synchronized int size() {
+        return dataEntries.size() + metaDataEntries.size();
+    }
+
+    /**
+     * <p>Returns true if the index can be trusted for the given file, i.e., the file has not changed size since the index was last updated.</p>
+     * @param blockFile
+     * @return
+     */
+    public synchronized boolean isValidFor(File blockFile) {
+        return blockFile.length() == expectedLength;
+    }
+
+    /**
+     * <p>Set the size of the underlying file after it has been modified along with the index.</p>
+     * @param expectedLength
+     */
+    public synchronized void setExpectedLength(long expectedLength) {
+        this.expectedLength = expectedLength;
+    }
+
+    /**
+     *
+     * @param isMetaData
+     * @return
+     */
+    private BigHashIntMap getEntries(boolean isMetaData) {
+        return isMetaData ? metaDataEntries : dataEntries;
+    }
+
+    /**
+     * <p>Arrays.copyOf is Java 6.</p>
+     */
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /**
+     * <p>The location of a single chunk within a DataBlock file.</p>
+     */
+    public static class Entry {
+
+        /**
+         * <p>The position of the entry in the header.</p>
+         */
+        public final int headerNumber;
+        /**
+         * <p>The offset, in bytes, of the chunk in the DataBlock file.</p>
+         */
+        public final int offset;
+        /**
+         * <p>The size, in bytes, of the chunk.</p>
+         */
+        public final int size;
+
+        /**
+         *
+         * @param headerNumber
+         * @param offset
+         * @param size
+         */
+        private Entry(int headerNumber, int offset, int size) {
+            this.headerNumber = headerNumber;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+}
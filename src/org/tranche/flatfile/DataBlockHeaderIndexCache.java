@@ -0,0 +1,116 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Bounded cache of DataBlockHeaderIndex objects, keyed by the absolute path of the DataBlock file they describe.</p>
+ * <p>DataBlock objects are not necessarily kept in memory (see DataBlockUtil.isStoreDataBlockReferences), so the indexes are kept here instead. The least recently used index is dropped when the cache is full.</p>
+ */
+public class DataBlockHeaderIndexCache {
+
+    /**
+     * <p>The default number of DataBlock headers to keep in memory. Each holds up to DataBlock.getHeadersPerFile() entries.</p>
+     */
+    public static final int DEFAULT_CAPACITY = 100;
+    private int capacity = DEFAULT_CAPACITY;
+    private final LinkedHashMap<String, DataBlockHeaderIndex> indexes;
+
+    /**
+     *
+     */
+    public DataBlockHeaderIndexCache() {
+        // access-ordered so that eldest entry is the least recently used
+        indexes = new LinkedHashMap<String, DataBlockHeaderIndex>(16, 0.75f, true) {
+
+            @Override()
+            protected boolean removeEldestEntry(Map.Entry<String, DataBlockHeaderIndex> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * <p>Returns the index for the DataBlock file, or null if not cached or if the file changed since the index was built.</p>
+     * @param blockFile
+     * @return
+     */
+    public synchronized DataBlockHeaderIndex get(File blockFile) {
+        final String path = blockFile.getAbsolutePath();
+        DataBlockHeaderIndex index = indexes.get(path);
+        if (index != null && !index.isValidFor(blockFile)) {
+            indexes.remove(path);
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * <p>Cache the index for a DataBlock file.</p>
+     * @param blockFile
+     * @param index
+     */
+    public synchronized void put(File blockFile, DataBlockHeaderIndex index) {
+        indexes.put(blockFile.getAbsolutePath(), index);
+    }
+
+    /**
+     * <p>Drop the index for a DataBlock file. Must be called whenever the file is renamed, moved, merged or rebuilt.</p>
+     * @param blockFile
+     */
+    public synchronized void remove(File blockFile) {
+        indexes.remove(blockFile.getAbsolutePath());
+    }
+
+    /**
+     * <p>Clear out the cache resources.</p>
+     */
+    public synchronized void clear() {
+        indexes.clear();
+    }
+
+    /**
+     * <p>Returns the number of DataBlock headers currently cached.</p>
+     * @return
+     */
+    public synchronized int size() {
+        return indexes.size();
+    }
+
+    /**
+     * <p>Returns the maximum number of DataBlock headers to keep in memory.</p>
+     * @return
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * <p>Set the maximum number of DataBlock headers to keep in memory.</p>
+     * @param capacity
+     */
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        // prune immediately if shrinking
+        while (indexes.size() > capacity) {
+            String eldest = indexes.keySet().iterator().next();
+            indexes.remove(eldest);
+        }
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.tranche.commons.DebugUtil;
+import org.tranche.hash.BigHash;
+import org.tranche.hash.DiskBackedBigHashSet;
+import org.tranche.time.TimeUtil;
+import org.tranche.util.IOUtil;
+
+/**
+ * <p>Snapshot of the data and meta data chunk hashes and the known projects on a server, plus a journal of the changes since, so that a restarted server doesn't have to read every DataBlock header.</p>
+ * <p>Writing a snapshot first starts a new journal, then writes the hash sets to a temporary file, which replaces the old snapshot once complete. Changes during the write go in both the snapshot and the new journal, which is fine since replaying is idempotent.</p>
+ * <p>Each journal record has its own checksum, and the snapshot has a checksum over the whole file. If anything doesn't check out, or the data directories have changed, load returns false and the ProjectFindingThread reads every DataBlock.</p>
+ * <p>If a change happens while no journal is open, the files on disk no longer match the server, so they are deleted.</p>
+ * <p>Journal records are flushed but not synced, so they survive the server process stopping but not necessarily the machine. A chunk written just as the process stopped might not be recorded; it is downloaded again if need be.</p>
+ */
+public class DataBlockIndexSnapshot {
+
+    /**
+     * <p>Journal record types.</p>
+     */
+    public static final byte JOURNAL_ADD_DATA = 1,  JOURNAL_DELETE_DATA = 2,  JOURNAL_ADD_META_DATA = 3,  JOURNAL_DELETE_META_DATA = 4,  JOURNAL_ADD_PROJECT = 5,  JOURNAL_REMOVE_PROJECT = 6;
+    private static final int SNAPSHOT_FORMAT_VERSION = 1;
+    private static final int JOURNAL_FORMAT_VERSION = 1;
+    private static final String SNAPSHOT_FILE_NAME = "chunk-index.snapshot";
+    private static final String JOURNAL_FILE_PREFIX = "chunk-index-",  JOURNAL_FILE_SUFFIX = ".journal";
+    /**
+     * <p>How many hashes to read at once from the sets when writing.</p>
+     */
+    private static final int WRITE_BATCH_SIZE = 1000;
+    private final DataBlockUtil dbu;
+    private final FlatFileTrancheServer ffts;
+    private final File directory;
+    /**
+     * <p>Only one snapshot written at a time.</p>
+     */
+    private final Object writeLock = new Object();
+    private long generation = 0;
+    private DataOutputStream journal = null;
+    private long journalRecordCount = 0;
+    private boolean loading = false;
+    // whether anything was applied to the hash sets while loading
+    private boolean isApplied = false;
+    private final List<Object[]> changesWhileLoading = new ArrayList<Object[]>();
+    private boolean isOnDiskCurrent = true;
+    private boolean loaded = false;
+    private boolean loadedFromSnapshot = false;
+    private long lastWriteTimestamp = 0;
+
+    /**
+     * @param dbu
+     * @param ffts The server, whose home directory holds the files. If null, nothing is written or read.
+     */
+    public DataBlockIndexSnapshot(DataBlockUtil dbu, FlatFileTrancheServer ffts) {
+        this.dbu = dbu;
+        this.ffts = ffts;
+        this.directory = ffts != null ? ffts.getHomeDirectory() : null;
+    }
+
+    /**
+     * <p>Record a change to the hash sets or known projects. Call after the change is made, so a snapshot being written either has the change or it is in the new journal.</p>
+     * @param type One of the JOURNAL_* record types.
+     * @param hash
+     */
+    public synchronized void log(byte type, BigHash hash) {
+        if (directory == null) {
+            return;
+        }
+        if (loading) {
+            changesWhileLoading.add(new Object[]{type, hash});
+            return;
+        }
+        if (journal != null) {
+            try {
+                writeRecord(journal, type, hash);
+                journalRecordCount++;
+                return;
+            } catch (Exception e) {
+                DebugUtil.debugErr(DataBlockIndexSnapshot.class, e);
+                closeJournal();
+            }
+        }
+        // not recorded, so the snapshot is out of date
+        if (isOnDiskCurrent) {
+            deleteFiles();
+        }
+    }
+
+    /**
+     * <p>Stop recording changes and delete the files, e.g., before reading every DataBlock.</p>
+     */
+    public synchronized void invalidate() {
+        if (directory == null) {
+            return;
+        }
+        loaded = false;
+        loadedFromSnapshot = false;
+        deleteFiles();
+    }
+
+    /**
+     * @return True once the hash sets have been loaded from a snapshot or written to one, so changes are being recorded.
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return True if the hash sets were last loaded from a snapshot rather than by reading every DataBlock.
+     */
+    public synchronized boolean isLoadedFromSnapshot() {
+        return loadedFromSnapshot;
+    }
+
+    /**
+     * @return The time the last snapshot was written or loaded.
+     */
+    public synchronized long getLastWriteTimestamp() {
+        return lastWriteTimestamp;
+    }
+
+    /**
+     * @return The number of changes recorded since the last snapshot.
+     */
+    public synchronized long getJournalRecordCount() {
+        return journalRecordCount;
+    }
+
+    /**
+     * <p>Load the hash sets and known projects from the snapshot and journal.</p>
+     * @param ddcs The data directories. Must be the same as when the snapshot was written.
+     * @return True if loaded. If false, the files were deleted, and anything loaded from them was cleared.
+     */
+    public boolean load(Set<DataDirectoryConfiguration> ddcs) {
+        synchronized (this) {
+            if (directory == null || !isOnDiskCurrent || !getSnapshotFile().exists()) {
+                return false;
+            }
+            // if loaded before, the files are up to date since every change was journaled
+            closeJournal();
+            loaded = false;
+            loading = true;
+            isApplied = false;
+        }
+
+        long loadedGeneration = -1;
+        try {
+            long snapshotGeneration = readSnapshot(ddcs);
+            loadedGeneration = replayJournals(snapshotGeneration);
+        } catch (Exception e) {
+            DebugUtil.debugErr(DataBlockIndexSnapshot.class, e);
+            DebugUtil.debugOut(DataBlockIndexSnapshot.class, "Could not load chunk index snapshot: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                loading = false;
+                if (loadedGeneration >= 0) {
+                    generation = loadedGeneration;
+                    try {
+                        // changes while loading might have been undone by older records
+                        for (Object[] change : changesWhileLoading) {
+                            apply((Byte) change[0], (BigHash) change[1]);
+                        }
+                        openJournal(getJournalFile(generation), true);
+                        for (Object[] change : changesWhileLoading) {
+                            writeRecord(journal, (Byte) change[0], (BigHash) change[1]);
+                        }
+                    } catch (Exception e) {
+                        DebugUtil.debugErr(DataBlockIndexSnapshot.class, e);
+                        closeJournal();
+                        deleteFiles();
+                    }
+                    loaded = true;
+                    loadedFromSnapshot = true;
+                    lastWriteTimestamp = TimeUtil.getTrancheTimestamp();
+                } else {
+                    // might have loaded part of it
+                    if (isApplied) {
+                        try {
+                            dbu.dataHashes.clear();
+                            dbu.metaDataHashes.clear();
+                        } catch (Exception e) {
+                            DebugUtil.debugErr(DataBlockIndexSnapshot.class, e);
+                        }
+                        ffts.clearKnownProjects();
+                    }
+                    deleteFiles();
+                }
+                changesWhileLoading.clear();
+            }
+        }
+        return loadedGeneration >= 0;
+    }
+
+    /**
+     * <p>Write a new snapshot of the hash sets and known projects. The sets must be complete, i.e., loaded from a snapshot or from every DataBlock.</p>
+     * @throws java.lang.Exception
+     */
+    public void write() throws Exception {
+        if (directory == null) {
+            return;
+        }
+        synchronized (writeLock) {
+            long snapshotGeneration;
+            synchronized (this) {
+                // changes from now on go in the new journal
+                closeJournal();
+                snapshotGeneration = ++generation;
+                openJournal(getJournalFile(snapshotGeneration), false);
+                isOnDiskCurrent = true;
+                loaded = true;
+            }
+
+            File tempFile = new File(directory, SNAPSHOT_FILE_NAME + ".temp");
+            CRC32 crc = new CRC32();
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos), crc));
+                out.writeInt(SNAPSHOT_FORMAT_VERSION);
+                out.writeLong(snapshotGeneration);
+                out.writeLong(TimeUtil.getTrancheTimestamp());
+
+                List<String> directories = getDirectories(dbu.getDataDirectoryConfigurations());
+                out.writeInt(directories.size());
+                for (String dir : directories) {
+                    out.writeUTF(dir);
+                }
+
+                writeHashes(out, dbu.dataHashes);
+                writeHashes(out, dbu.metaDataHashes);
+
+                List<BigHash> projects = ffts.getKnownProjects();
+                out.writeInt(projects.size());
+                for (BigHash project : projects) {
+                    out.write(project.toByteArray());
+                }
+
+                out.writeLong(crc.getValue());
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                IOUtil.safeClose(fos);
+            }
+
+            synchronized (this) {
+                File snapshotFile = getSnapshotFile();
+                if (!tempFile.renameTo(snapshotFile)) {
+                    IOUtil.safeDelete(snapshotFile);
+                    if (!tempFile.renameTo(snapshotFile)) {
+                        throw new IOException("Could not rename " + tempFile.getName() + " to " + snapshotFile.getName());
+                    }
+                }
+
+                // older journals are in the new snapshot
+                for (long journalGeneration : getJournalGenerations()) {
+                    if (journalGeneration < snapshotGeneration) {
+                        IOUtil.safeDelete(getJournalFile(journalGeneration));
+                    }
+                }
+
+                // a change may have deleted the files since the journal was started
+                if (!isOnDiskCurrent) {
+                    IOUtil.safeDelete(snapshotFile);
+                }
+                journalRecordCount = 0;
+                lastWriteTimestamp = TimeUtil.getTrancheTimestamp();
+            }
+        }
+    }
+
+    /**
+     * <p>Stop recording changes. The files are left as they are.</p>
+     */
+    public synchronized void close() {
+        closeJournal();
+    }
+
+    /**
+     * <p>Writes the hashes in the set in batches, each preceded by its size, ending with an empty batch.</p>
+     */
+    private static void writeHashes(DataOutputStream out, DiskBackedBigHashSet hashes) throws Exception {
+        // page by hash rather than offset, so concurrent deletes can't cause a hash to be skipped
+        BigHash last = null;
+        while (true) {
+            List<BigHash> batch = hashes.getAfter(last, WRITE_BATCH_SIZE);
+            if (batch.isEmpty()) {
+                break;
+            }
+            out.writeInt(batch.size());
+            for (BigHash hash : batch) {
+                out.write(hash.toByteArray());
+            }
+            last = batch.get(batch.size() - 1);
+        }
+        out.writeInt(0);
+    }
+
+    /**
+     * <p>Reads the snapshot in to the hash sets and known projects.</p>
+     * @return The generation of the snapshot.
+     */
+    private long readSnapshot(Set<DataDirectoryConfiguration> ddcs) throws Exception {
+        CRC32 crc = new CRC32();
+        FileInputStream fis = new FileInputStream(getSnapshotFile());
+        try {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(fis), crc));
+            int version = in.readInt();
+            if (version != SNAPSHOT_FORMAT_VERSION) {
+                throw new IOException("Unrecognized snapshot format version: " + version);
+            }
+            long snapshotGeneration = in.readLong();
+            in.readLong();
+
+            List<String> directories = new ArrayList<String>();
+            int directoryCount = in.readInt();
+            for (int i = 0; i < directoryCount; i++) {
+                directories.add(in.readUTF());
+            }
+            if (!directories.equals(getDirectories(ddcs))) {
+                throw new IOException("Data directories changed since snapshot.");
+            }
+
+            readHashes(in, JOURNAL_ADD_DATA);
+            readHashes(in, JOURNAL_ADD_META_DATA);
+
+            int projectCount = in.readInt();
+            for (int i = 0; i < projectCount; i++) {
+                apply(JOURNAL_ADD_PROJECT, readHash(in));
+            }
+
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Snapshot checksum does not match.");
+            }
+            if (in.read() != -1) {
+                throw new IOException("Unexpected bytes at end of snapshot.");
+            }
+            return snapshotGeneration;
+        } finally {
+            IOUtil.safeClose(fis);
+        }
+    }
+
+    /**
+     * <p>Reads batches of hashes written by writeHashes.</p>
+     */
+    private void readHashes(DataInputStream in, byte type) throws Exception {
+        int batchSize;
+        while ((batchSize = in.readInt()) != 0) {
+            if (batchSize < 0 || batchSize > WRITE_BATCH_SIZE) {
+                throw new IOException("Bad batch size in snapshot: " + batchSize);
+            }
+            for (int i = 0; i < batchSize; i++) {
+                apply(type, readHash(in));
+            }
+        }
+    }
+
+    /**
+     * <p>Replays every journal from the snapshot's generation on.</p>
+     * @return The generation of the last journal.
+     */
+    private long replayJournals(long snapshotGeneration) throws Exception {
+        List<Long> generations = getJournalGenerations();
+        if (!generations.contains(snapshotGeneration)) {
+            throw new IOException("Missing journal for snapshot generation " + snapshotGeneration);
+        }
+        long expectedGeneration = snapshotGeneration;
+        for (long journalGeneration : generations) {
+            if (journalGeneration < snapshotGeneration) {
+                continue;
+            }
+            if (journalGeneration != expectedGeneration) {
+                throw new IOException("Missing journal for generation " + expectedGeneration);
+            }
+            replayJournal(getJournalFile(journalGeneration), journalGeneration);
+            expectedGeneration++;
+        }
+        return expectedGeneration - 1;
+    }
+
+    /**
+     * <p>Applies every record in a journal. Fails if any record is incomplete or does not match its checksum.</p>
+     */
+    private void replayJournal(File file, long journalGeneration) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != JOURNAL_FORMAT_VERSION || in.readLong() != journalGeneration) {
+                throw new IOException("Bad journal header: " + file.getName());
+            }
+            CRC32 crc = new CRC32();
+            int type;
+            while ((type = in.read()) != -1) {
+                // not reused, since the hash keeps the array
+                byte[] hashBytes = new byte[BigHash.HASH_LENGTH];
+                try {
+                    in.readFully(hashBytes);
+                    crc.reset();
+                    crc.update(type);
+                    crc.update(hashBytes);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        throw new IOException("Journal record checksum does not match: " + file.getName());
+                    }
+                } catch (EOFException e) {
+                    throw new IOException("Incomplete journal record: " + file.getName());
+                }
+                apply((byte) type, BigHash.createFromBytes(hashBytes));
+            }
+        } finally {
+            IOUtil.safeClose(in);
+        }
+    }
+
+    /**
+     * <p>Applies a change to the hash sets or known projects.</p>
+     */
+    private void apply(byte type, BigHash hash) throws Exception {
+        isApplied = true;
+        switch (type) {
+            case JOURNAL_ADD_DATA:
+                dbu.addHashFromDisk(hash, false);
+                break;
+            case JOURNAL_DELETE_DATA:
+                dbu.dataHashes.delete(hash);
+                dbu.getDataHashFilter().delete(hash);
+                break;
+            case JOURNAL_ADD_META_DATA:
+                dbu.addHashFromDisk(hash, true);
+                break;
+            case JOURNAL_DELETE_META_DATA:
+                dbu.metaDataHashes.delete(hash);
+                dbu.getMetaDataHashFilter().delete(hash);
+                break;
+            case JOURNAL_ADD_PROJECT:
+                ffts.addKnownProject(hash);
+                break;
+            case JOURNAL_REMOVE_PROJECT:
+                ffts.removeKnownProject(hash);
+                break;
+            default:
+                throw new IOException("Unrecognized journal record type: " + type);
+        }
+    }
+
+    /**
+     *
+     */
+    private static BigHash readHash(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[BigHash.HASH_LENGTH];
+        in.readFully(bytes);
+        return BigHash.createFromBytes(bytes);
+    }
+
+    /**
+     * <p>Writes a journal record and flushes it, so it survives the server process stopping unexpectedly.</p>
+     */
+    private static void writeRecord(DataOutputStream out, byte type, BigHash hash) throws IOException {
+        byte[] hashBytes = hash.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(hashBytes);
+        out.write(type);
+        out.write(hashBytes);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+    }
+
+    /**
+     * <p>Opens a journal for writing. A new journal starts with a header.</p>
+     */
+    private void openJournal(File file, boolean append) throws IOException {
+        journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append)));
+        if (!append) {
+            journal.writeInt(JOURNAL_FORMAT_VERSION);
+            journal.writeLong(generation);
+            journal.flush();
+        }
+    }
+
+    /**
+     *
+     */
+    private void closeJournal() {
+        if (journal != null) {
+            IOUtil.safeClose(journal);
+            journal = null;
+        }
+    }
+
+    /**
+     * <p>Deletes the snapshot and journals, which no longer match the server.</p>
+     */
+    private void deleteFiles() {
+        closeJournal();
+        IOUtil.safeDelete(getSnapshotFile());
+        for (long journalGeneration : getJournalGenerations()) {
+            IOUtil.safeDelete(getJournalFile(journalGeneration));
+        }
+        isOnDiskCurrent = false;
+    }
+
+    /**
+     * @return The sorted generations of the journals on disk.
+     */
+    private List<Long> getJournalGenerations() {
+        List<Long> generations = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(JOURNAL_FILE_PREFIX) && name.endsWith(JOURNAL_FILE_SUFFIX)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(JOURNAL_FILE_PREFIX.length(), name.length() - JOURNAL_FILE_SUFFIX.length())));
+                    } catch (NumberFormatException e) { /* not a journal */ }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * @return The sorted absolute paths of the data directories.
+     */
+    private static List<String> getDirectories(Set<?> ddcs) {
+        List<String> directories = new ArrayList<String>();
+        for (Object o : ddcs) {
+            DataDirectoryConfiguration ddc = (DataDirectoryConfiguration) o;
+            directories.add(ddc.getDirectoryFile().getAbsolutePath());
+        }
+        Collections.sort(directories);
+        return directories;
+    }
+
+    /**
+     *
+     */
+    private File getSnapshotFile() {
+        return new File(directory, SNAPSHOT_FILE_NAME);
+    }
+
+    /**
+     *
+     */
+    private File getJournalFile(long journalGeneration) {
+        return new File(directory, JOURNAL_FILE_PREFIX + journalGeneration + JOURNAL_FILE_SUFFIX);
+    }
+}
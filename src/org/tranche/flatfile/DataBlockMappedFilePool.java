@@ -0,0 +1,165 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Bounded pool of read-only memory mappings of DataBlock files, keyed by the absolute path of the file.</p>
+ * <p>Chunks are returned as read-only slices of the mapping, so reading a chunk does not copy it on to the heap. The least recently used mapping is dropped when the pool is full; the operating system releases it once it is garbage collected.</p>
+ * <p>DataBlock files only grow while in place, so a mapping that is too short for a requested chunk is simply remapped. Whenever a file is renamed, merged or rebuilt, its mapping must be dropped using DataBlockUtil.invalidateBlockFile.</p>
+ */
+public class DataBlockMappedFilePool {
+
+    /**
+     * <p>The default number of DataBlock files to keep mapped. Each mapping may be up to DataBlock.getMaxBlockSize() bytes plus the header.</p>
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+    private int capacity = DEFAULT_CAPACITY;
+    private final LinkedHashMap<String, MappedByteBuffer> mappings;
+    private long mapCount = 0;
+    private long hitCount = 0;
+
+    /**
+     *
+     */
+    public DataBlockMappedFilePool() {
+        // access-ordered so that eldest entry is the least recently used
+        mappings = new LinkedHashMap<String, MappedByteBuffer>(16, 0.75f, true) {
+
+            @Override()
+            protected boolean removeEldestEntry(Map.Entry<String, MappedByteBuffer> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * <p>Returns a read-only view of a region of a DataBlock file, mapping the file if necessary.</p>
+     * @param blockFile The regular or merge file for the DataBlock.
+     * @param offset The offset of the chunk in the file.
+     * @param size The size of the chunk in bytes.
+     * @return A read-only buffer with position zero and limit equal to size.
+     * @throws java.io.IOException If the file cannot be mapped, or if it is too short to hold the requested region.
+     */
+    public ByteBuffer getSlice(File blockFile, int offset, int size) throws IOException {
+        final String path = blockFile.getAbsolutePath();
+        MappedByteBuffer mapping;
+        synchronized (this) {
+            mapping = mappings.get(path);
+            if (mapping == null || mapping.capacity() < (long) offset + size) {
+                mapping = map(blockFile);
+                mappings.put(path, mapping);
+                mapCount++;
+            } else {
+                hitCount++;
+            }
+        }
+        if (mapping.capacity() < (long) offset + size) {
+            throw new IOException("DataBlock file is too short for requested chunk<offset=" + offset + ", size=" + size + ", file size=" + mapping.capacity() + ">: " + path);
+        }
+
+        // never move the shared mapping's position; work from a duplicate
+        ByteBuffer slice = mapping.duplicate();
+        slice.position(offset);
+        slice.limit(offset + size);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * <p>Map the entire file, read-only.</p>
+     * @param blockFile
+     * @return
+     * @throws java.io.IOException
+     */
+    private static MappedByteBuffer map(File blockFile) throws IOException {
+        RandomAccessFile ras = new RandomAccessFile(blockFile, "r");
+        try {
+            FileChannel channel = ras.getChannel();
+            // mapping remains valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            ras.close();
+        }
+    }
+
+    /**
+     * <p>Drop the mapping for a DataBlock file, if any.</p>
+     * @param blockFile
+     */
+    public synchronized void remove(File blockFile) {
+        mappings.remove(blockFile.getAbsolutePath());
+    }
+
+    /**
+     * <p>Drop all of the mappings.</p>
+     */
+    public synchronized void clear() {
+        mappings.clear();
+    }
+
+    /**
+     * <p>Returns the number of DataBlock files currently mapped.</p>
+     * @return
+     */
+    public synchronized int size() {
+        return mappings.size();
+    }
+
+    /**
+     * <p>Returns the number of times a DataBlock file was mapped (or remapped).</p>
+     * @return
+     */
+    public synchronized long getMapCount() {
+        return mapCount;
+    }
+
+    /**
+     * <p>Returns the number of reads satisfied by an existing mapping.</p>
+     * @return
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * <p>Returns the maximum number of DataBlock files to keep mapped.</p>
+     * @return
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * <p>Set the maximum number of DataBlock files to keep mapped.</p>
+     * @param capacity
+     */
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        // prune immediately if shrinking
+        while (mappings.size() > capacity) {
+            String eldest = mappings.keySet().iterator().next();
+            mappings.remove(eldest);
+        }
+    }
+}
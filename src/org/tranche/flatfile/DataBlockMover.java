@@ -0,0 +1,144 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import org.tranche.time.TimeUtil;
+import org.tranche.util.IOUtil;
+
+/**
+ * <p>Streams DataBlock files from one data directory to another at a capped rate while balancing, so moving blocks doesn't starve requests for the disks involved.</p>
+ * <p>Keeps track of the block being copied and the totals moved, so an administrator can follow balancing.</p>
+ */
+public class DataBlockMover {
+
+    /**
+     * <p>Suffix of the file a DataBlock is copied to. It is only renamed to the DataBlock's name once complete.</p>
+     */
+    public static final String MOVING_SUFFIX = ".moving";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private long movedCount = 0;
+    private long movedBytes = 0;
+    private long abortedCount = 0;
+    private String currentFile = null;
+    private long currentBytesCopied = 0;
+    private long currentBytesTotal = 0;
+
+    /**
+     * <p>Copy a DataBlock file, syncing the copy to the disk.</p>
+     * @param src
+     * @param dest
+     * @param bytesPerSecond The most bytes copied per second. If zero or less, copies as fast as possible.
+     * @throws java.io.IOException
+     */
+    public void copy(File src, File dest, long bytesPerSecond) throws IOException {
+        synchronized (this) {
+            currentFile = src.getAbsolutePath();
+            currentBytesCopied = 0;
+            currentBytesTotal = src.length();
+        }
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(src);
+            out = new FileOutputStream(dest);
+            final long start = TimeUtil.getTrancheTimestamp();
+            byte[] buf = new byte[BUFFER_SIZE];
+            long copied = 0;
+            for (int read = in.read(buf); read != -1; read = in.read(buf)) {
+                out.write(buf, 0, read);
+                copied += read;
+                synchronized (this) {
+                    currentBytesCopied = copied;
+                }
+
+                // wait until the cap allows this many bytes
+                if (bytesPerSecond > 0) {
+                    long wait = copied * 1000 / bytesPerSecond - (TimeUtil.getTrancheTimestamp() - start);
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException("Interrupted while copying " + src.getAbsolutePath());
+                        }
+                    }
+                }
+            }
+            out.getFD().sync();
+        } finally {
+            IOUtil.safeClose(in);
+            IOUtil.safeClose(out);
+            synchronized (this) {
+                currentFile = null;
+            }
+        }
+    }
+
+    /**
+     * <p>Note a DataBlock was moved.</p>
+     * @param bytes
+     */
+    public synchronized void moved(long bytes) {
+        movedCount++;
+        movedBytes += bytes;
+    }
+
+    /**
+     * <p>Note a move was given up because the DataBlock changed while it was copied.</p>
+     */
+    public synchronized void aborted() {
+        abortedCount++;
+    }
+
+    /**
+     * <p>Returns the number of DataBlocks moved.</p>
+     * @return
+     */
+    public synchronized long getMovedCount() {
+        return movedCount;
+    }
+
+    /**
+     * <p>Returns the number of bytes of DataBlocks moved.</p>
+     * @return
+     */
+    public synchronized long getMovedBytes() {
+        return movedBytes;
+    }
+
+    /**
+     * <p>Returns the number of moves given up because the DataBlock changed while it was copied.</p>
+     * @return
+     */
+    public synchronized long getAbortedCount() {
+        return abortedCount;
+    }
+
+    /**
+     * <p>Returns a description of the copy in progress, or null if none.</p>
+     * @return
+     */
+    public synchronized String getProgress() {
+        if (currentFile == null) {
+            return null;
+        }
+        return currentBytesCopied + " of " + currentBytesTotal + " bytes: " + currentFile;
+    }
+}
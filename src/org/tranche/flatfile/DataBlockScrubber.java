@@ -0,0 +1,231 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import org.tranche.commons.DebugUtil;
+import org.tranche.exceptions.UnexpectedEndOfDataBlockException;
+
+/**
+ * <p>Thread verifies chunks against the checksums kept in their DataBlocks in the background, so chunks that go bad on disk are found before they are asked for.</p>
+ * <p>Walks the data directories one DataBlock at a time, reading no more than the configured number of bytes per second. A chunk that doesn't match its checksum is repaired on its own; see DataBlock.scrub. DataBlocks from before checksums were kept are skipped until compacted.</p>
+ */
+public class DataBlockScrubber extends Thread {
+
+    /**
+     * <p>Milliseconds to wait before each pass over the data directories. The first pass waits too, since every DataBlock is read when the server starts up anyway.</p>
+     */
+    public static final long PAUSE_BETWEEN_PASSES = 60 * 60 * 1000;
+    /**
+     *
+     */
+    private final DataBlockUtil dbu;
+    /**
+     *
+     */
+    private boolean stop = false;
+    /**
+     * <p>Waited on between passes, so the thread stops right away when told.</p>
+     */
+    private final Object pause = new Object();
+    /**
+     * <p>Used to keep to the I/O budget.</p>
+     */
+    private long throttleStartTimestamp = 0, throttleBytes = 0, bytesPerSecond = 0;
+    /**
+     * <p>Total number of chunks verified.</p>
+     */
+    long scrubbedCount = 0;
+    /**
+     * <p>Total number of bytes of chunks verified.</p>
+     */
+    long scrubbedBytes = 0;
+    /**
+     * <p>Total number of chunks that didn't match their checksums.</p>
+     */
+    long corruptedCount = 0;
+    /**
+     * <p>Total number of passes over the data directories completed.</p>
+     */
+    long passCount = 0;
+
+    /**
+     * @param dbu
+     */
+    protected DataBlockScrubber(DataBlockUtil dbu) {
+        super("Scrub DataBlocks thread");
+        this.dbu = dbu;
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    @Override()
+    public void run() {
+        while (!isStop()) {
+            try {
+                synchronized (pause) {
+                    pause.wait(PAUSE_BETWEEN_PASSES);
+                }
+                if (!isStop() && dbu.isUseScrubbing()) {
+                    scrubAll();
+                }
+            } catch (InterruptedException ex) {
+                // nope, check whether stopped
+            } catch (Exception ex) {
+                DebugUtil.debugErr(DataBlockScrubber.class, ex);
+            }
+        }
+    }
+
+    /**
+     * <p>Verify every DataBlock in every data directory once. Data directories marked read-only are skipped, so a degraded disk isn't given more work.</p>
+     * @return The number of chunks that didn't match their checksums.
+     * @throws java.lang.Exception
+     */
+    protected int scrubAll() throws Exception {
+        int corrupted = 0;
+        for (Object o : dbu.getDataDirectoryConfigurations()) {
+            DataDirectoryConfiguration ddc = (DataDirectoryConfiguration) o;
+            if (isStop()) {
+                break;
+            }
+            if (ddc.isReadOnly()) {
+                continue;
+            }
+            corrupted += scrub(ddc);
+        }
+        if (!isStop()) {
+            passCount++;
+        }
+        return corrupted;
+    }
+
+    /**
+     * <p>Depth-first walk of a data directory, verifying each DataBlock.</p>
+     * @param ddc
+     * @return The number of chunks that didn't match their checksums.
+     * @throws java.lang.Exception
+     */
+    private int scrub(DataDirectoryConfiguration ddc) throws Exception {
+        final String root = ddc.getDirectoryFile().getAbsolutePath();
+        int corrupted = 0;
+
+        // use a stack to handle all directories
+        List<File> files = new LinkedList<File>();
+        files.add(ddc.getDirectoryFile());
+        while (!files.isEmpty() && !isStop()) {
+            File file = files.remove(files.size() - 1);
+            if (file.isDirectory()) {
+                String[] names = file.list();
+                if (names != null) {
+                    for (String name : names) {
+                        files.add(new File(file, name));
+                    }
+                }
+                continue;
+            }
+
+            // files being merged, moved or compacted aren't DataBlocks
+            if (file.getName().contains(".")) {
+                continue;
+            }
+
+            // the budget is picked up for each DataBlock
+            bytesPerSecond = dbu.getScrubBytesPerSecond();
+            throttleStartTimestamp = System.currentTimeMillis();
+            throttleBytes = 0;
+
+            try {
+                int found = new DataBlock(file.getAbsolutePath().substring(root.length()), ddc, dbu).scrub(this);
+                corruptedCount += found;
+                corrupted += found;
+            } catch (UnexpectedEndOfDataBlockException ex) {
+                dbu.repairCorruptedDataBlock(file, "DataBlockScrubber: scrubbing data block");
+            } catch (InterruptedException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                DebugUtil.debugErr(DataBlockScrubber.class, ex);
+            }
+        }
+        return corrupted;
+    }
+
+    /**
+     * <p>Called as chunks are verified. Sleeps as needed to keep to the I/O budget.</p>
+     * @param bytes The number of bytes just read.
+     * @throws java.lang.InterruptedException
+     */
+    void scrubbed(long bytes) throws InterruptedException {
+        scrubbedCount++;
+        scrubbedBytes += bytes;
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        throttleBytes += bytes;
+        long millisAhead = (throttleBytes * 1000 / bytesPerSecond) - (System.currentTimeMillis() - throttleStartTimestamp);
+        if (millisAhead > 0) {
+            Thread.sleep(millisAhead);
+        }
+    }
+
+    /**
+     * @return The number of chunks verified against their checksums.
+     */
+    public long getScrubbedCount() {
+        return scrubbedCount;
+    }
+
+    /**
+     * @return The number of bytes of chunks verified against their checksums.
+     */
+    public long getScrubbedBytes() {
+        return scrubbedBytes;
+    }
+
+    /**
+     * @return The number of chunks that didn't match their checksums.
+     */
+    public long getCorruptedCount() {
+        return corruptedCount;
+    }
+
+    /**
+     * @return The number of passes over the data directories completed.
+     */
+    public long getPassCount() {
+        return passCount;
+    }
+
+    /**
+     * @return True if the thread was told to stop.
+     */
+    public boolean isStop() {
+        return stop;
+    }
+
+    /**
+     * <p>Tell the thread to stop. Any DataBlock being verified is left part way through.</p>
+     * @param stop
+     */
+    public void setStop(boolean stop) {
+        this.stop = stop;
+        synchronized (pause) {
+            pause.notifyAll();
+        }
+    }
+}
@@ -24,13 +24,18 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.tranche.annotations.Fix;
 import org.tranche.configuration.ConfigKeys;
 import org.tranche.commons.DebugUtil;
@@ -68,6 +73,14 @@ public class DataBlockUtil {
      * <p>If set to true, will use cache to (hopefully) speed up operations.</p>
      */
     private boolean isUseCache = DEFAULT_USE_CACHE;
+    /**
+     * <p>The default value of whether DataBlock headers should be indexed in memory.</p>
+     */
+    public static final boolean DEFAULT_USE_HEADER_INDEX = true;
+    /**
+     * <p>If set to true, DataBlock headers are indexed in memory so that chunks can be found without reading and scanning the header.</p>
+     */
+    private boolean isUseHeaderIndex = DEFAULT_USE_HEADER_INDEX;
     /**
      * <p>If set to true, turns on tracers for balancing.</p>
      */
@@ -102,8 +115,29 @@ public class DataBlockUtil {
     /**
      * <p>The disk-backed list of meta data chunk hashes. Used when client requesting meta data chunks.</p>
      */
-    public final DiskBackedBigHashSet metaDataHashes = new DiskBackedBigHashSet();    // keep a tree of data blocks
+    public final DiskBackedBigHashSet metaDataHashes = new DiskBackedBigHashSet();
+    /**
+     * <p>Bloom filter in front of dataHashes, so that checks for data chunks the server doesn't have don't touch the disk.</p>
+     */
+    private final DataBlockChunkFilter dataHashFilter;
+    /**
+     * <p>Bloom filter in front of metaDataHashes, so that checks for meta data chunks the server doesn't have don't touch the disk.</p>
+     */
+    private final DataBlockChunkFilter metaDataHashFilter;
+    /**
+     * <p>Snapshot and journal of the hash sets, so a restarted server doesn't have to read every DataBlock.</p>
+     */
+    private final DataBlockIndexSnapshot indexSnapshot;
+    // keep a tree of data blocks
     private final DataBlock[] dataBlocks = new DataBlock[256];
+    /**
+     * <p>Guards the tree of DataBlocks and the list of DataDirectoryConfiguration objects. Not the DataBlockUtil's monitor, since methods synchronized on the DataBlockUtil take DataBlock locks, and DataBlocks holding their locks load other DataBlocks.</p>
+     */
+    private final Object dataBlockTreeLock = new Object();
+    /**
+     * <p>The read/write lock for each DataBlock, keyed by the absolute path of the DataBlock's regular file. DataBlock objects are not necessarily kept in memory, so the locks are kept here instead.</p>
+     */
+    private final ConcurrentHashMap<String, ReentrantReadWriteLock> dataBlockLocks = new ConcurrentHashMap<String, ReentrantReadWriteLock>();
     /**
      * <p>Variable to simulate serveral test conditions: if true, this will cause the code to fail when it makes the .backup file.</p>
      */
@@ -112,13 +146,27 @@ public class DataBlockUtil {
      * <p>Variable to simulate serveral test conditions: the number of entries at which the merge operation should purposely fail.</p>
      */
     int purposelyFailMerge = Integer.MAX_VALUE;
+    /**
+     * <p>The most bytes of chunks read from an old data block to hold in memory before adding them to their new blocks.</p>
+     */
+    private static final long MAX_MERGE_BYTES_BUFFERED = 16 * 1024 * 1024;
     /**
      * <p>Queue for merging blocks -- the are handled by a background thread in FFTS.</p>
      */
     ArrayBlockingQueue<DataBlockToMerge> mergeQueue = new ArrayBlockingQueue(10000);
     private final ReplaceCorruptedDataBlockThread replaceCorruptedDataBlocksThread;
+    private final DataBlockCompactionThread compactionThread;
+    private final DataBlockScrubber scrubber;
+    private final DataBlockWriteAheadLog writeAheadLog;
     private final FlatFileTrancheServer ffts;
     private final DataBlockCache cache;
+    private final DataBlockHeaderIndexCache headerIndexCache;
+    private final DataBlockMappedFilePool mappedFilePool;
+    private final DataBlockChunkCache dataChunkCache, metaDataChunkCache;
+    /**
+     * <p>Copies data blocks between data directories when balancing.</p>
+     */
+    private final DataBlockMover mover = new DataBlockMover();
     /**
      * <p>Total number of data blocks moved when balancing.</p>
      */
@@ -142,11 +190,61 @@ public class DataBlockUtil {
         this.replaceCorruptedDataBlocksThread = new ReplaceCorruptedDataBlockThread(DataBlockUtil.this);
         this.replaceCorruptedDataBlocksThread.start();
 
+        // Fire off thread that reclaims space from deleted chunks
+        this.compactionThread = new DataBlockCompactionThread(DataBlockUtil.this);
+        this.compactionThread.start();
+
+        // Fire off thread that verifies chunks against their checksums
+        this.scrubber = new DataBlockScrubber(DataBlockUtil.this);
+        this.scrubber.start();
+
+        // Fire off thread that places chunks from the write-ahead log in data blocks
+        this.writeAheadLog = new DataBlockWriteAheadLog(DataBlockUtil.this, ffts != null ? ffts.getHomeDirectory() : null);
+        this.writeAheadLog.start();
+
         // Make sure can get data/meta data hashes when need them
         this.dataHashes.setAutoWriteBeforeCriticalOperation(true);
         this.metaDataHashes.setAutoWriteBeforeCriticalOperation(true);
 
         this.cache = new DataBlockCache();
+        this.headerIndexCache = new DataBlockHeaderIndexCache();
+        this.mappedFilePool = new DataBlockMappedFilePool();
+        this.dataChunkCache = new DataBlockChunkCache(ConfigKeys.DEFAULT_CHUNK_CACHE_DATA_BYTES);
+        this.metaDataChunkCache = new DataBlockChunkCache(ConfigKeys.DEFAULT_CHUNK_CACHE_META_DATA_BYTES);
+
+        // Use filters saved at last shut down for their size. Not complete until the ProjectFindingThread has added every chunk on disk.
+        this.dataHashFilter = new DataBlockChunkFilter(this.dataHashes);
+        this.metaDataHashFilter = new DataBlockChunkFilter(this.metaDataHashes);
+        if (ffts != null) {
+            loadChunkFilter(this.dataHashFilter, getChunkFilterFile(false));
+            loadChunkFilter(this.metaDataHashFilter, getChunkFilterFile(true));
+        }
+        this.indexSnapshot = new DataBlockIndexSnapshot(this, ffts);
+    }
+
+    /**
+     * <p>Returns the file a chunk filter is saved to at shut down.</p>
+     * @param isMetaData
+     * @return
+     */
+    private File getChunkFilterFile(boolean isMetaData) {
+        return new File(ffts.getHomeDirectory(), isMetaData ? "meta-data-hashes.bloom" : "data-hashes.bloom");
+    }
+
+    /**
+     * <p>Loads a chunk filter if it was saved.</p>
+     * @param filter
+     * @param file
+     */
+    private void loadChunkFilter(DataBlockChunkFilter filter, File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            filter.load(file);
+        } catch (Exception e) {
+            printNotice("Could not load chunk filter " + file.getName() + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -154,6 +252,27 @@ public class DataBlockUtil {
      */
     public void close() {
         this.replaceCorruptedDataBlocksThread.setStop(true);
+        this.compactionThread.setStop(true);
+        this.scrubber.setStop(true);
+        this.writeAheadLog.setStop(true);
+
+        // snapshot the hash sets so the next start up doesn't have to read every data block
+        if (this.indexSnapshot.isLoaded() && isUseIndexSnapshot()) {
+            try {
+                this.indexSnapshot.write();
+            } catch (Exception e) {
+                DebugUtil.debugErr(DataBlockUtil.class, e);
+            }
+        }
+        this.indexSnapshot.close();
+
+        // save chunk filters so they start at the right size next time
+        if (this.ffts != null) {
+            try {
+                this.dataHashFilter.save(getChunkFilterFile(false));
+                this.metaDataHashFilter.save(getChunkFilterFile(true));
+            } catch (Exception e) { /* nope */ }
+        }
 
         try {
             if (this.dataDeletionWriter != null) {
@@ -226,13 +345,15 @@ public class DataBlockUtil {
      */
     public final synchronized void add(DataDirectoryConfiguration ddc, String reason) {
         // add the config
-        if (!ddcs.contains(ddc)) {
-            // set the appropriate parent DataBlockUtil reference. not static so that more than one can be in the same JVM
-            ddc.dbu = this;
-            ddcs.add(ddc);
-            DebugUtil.debugOut(DataBlockUtil.class, "Add data directory configuration: " + ddc.getDirectory() + " <reason: " + reason + ">");
-        } else {
-            DebugUtil.debugOut(DataBlockUtil.class, "Ha-ha! Tried to a DDC that I already had!: " + ddc.getDirectory() + " <reason: " + reason + ">");
+        synchronized (dataBlockTreeLock) {
+            if (!ddcs.contains(ddc)) {
+                // set the appropriate parent DataBlockUtil reference. not static so that more than one can be in the same JVM
+                ddc.dbu = this;
+                ddcs.add(ddc);
+                DebugUtil.debugOut(DataBlockUtil.class, "Add data directory configuration: " + ddc.getDirectory() + " <reason: " + reason + ">");
+            } else {
+                DebugUtil.debugOut(DataBlockUtil.class, "Ha-ha! Tried to a DDC that I already had!: " + ddc.getDirectory() + " <reason: " + reason + ">");
+            }
         }
     }
 
@@ -240,9 +361,11 @@ public class DataBlockUtil {
      * <p>Returns a copy of all the DataDirectoryConfiguration objs in memory. Modifying this collection does not affect the DataBlockUtil.</p>
      * @return
      */
-    public final synchronized Set getDataDirectoryConfigurations() {
+    public final Set getDataDirectoryConfigurations() {
         Set<DataDirectoryConfiguration> dirs = new HashSet();
-        dirs.addAll(ddcs);
+        synchronized (dataBlockTreeLock) {
+            dirs.addAll(ddcs);
+        }
         return dirs;
     }
 
@@ -380,58 +503,60 @@ public class DataBlockUtil {
 
     /**
      * <p>Internally loads data blocks, and is the only synchronization point required because it modifies the tree of DataBlocks.</p>
-     * @param test
+     * <p>Internally loads data blocks, and is the only synchronization point required because it modifies the tree of DataBlocks. Synchronized on the tree lock rather than the DataBlockUtil.</p>
      * @return
      */
-    final synchronized DataBlock getDataBlock(String test) {
-        // get the block
-        DataBlock[] blocks = dataBlocks;
-        DataBlock toReturn = null;
-        // keep track of the overall name
-        StringBuffer buildName = new StringBuffer();
-        // step through
-        for (int i = 1; i < test.length(); i += 3) {
-            // Assert that array of blocks is not null. Helps check logic to 
-            // not invoke DataBlock.getSubBlocks unnecessarily
-            if (blocks == null) {
-                throw new AssertionFailedException("DataBlock[] blocks is null; i=" + i + "; test=" + test);
-            }
-
-            // get subset of string
-            StringBuffer sb = new StringBuffer();
-            sb.append(test.charAt(i));
-            sb.append(test.charAt(i + 1));
-            // append to the overall name
-            buildName.append(File.separator + sb.toString());
-            // switch to number
-            int offset = 0xff & Base16.decode(sb.toString())[0];
-            // set the reference
-            toReturn = blocks[offset];
-            // update the blocks
-            if (toReturn == null && i <= test.length() - 2) {
-                // search for existing blocks
-                DataBlock findOrCreate = searchForExistingDataBlock(buildName.toString());
-                if (isStoreDataBlockReferences()) {
-                    blocks[offset] = findOrCreate; // Only stored if variable set
+    final DataBlock getDataBlock(String test) {
+        synchronized (dataBlockTreeLock) {
+            // get the block
+            DataBlock[] blocks = dataBlocks;
+            DataBlock toReturn = null;
+            // keep track of the overall name
+            StringBuffer buildName = new StringBuffer();
+            // step through
+            for (int i = 1; i < test.length(); i += 3) {
+                // Assert that array of blocks is not null. Helps check logic to 
+                // not invoke DataBlock.getSubBlocks unnecessarily
+                if (blocks == null) {
+                    throw new AssertionFailedException("DataBlock[] blocks is null; i=" + i + "; test=" + test);
                 }
-                // set the block reference
-                toReturn = findOrCreate;
-            }
-            // DataBlock.getSubBlocks lazily creates the DataBlock array
-            // so let's not call it if we don't have to. Leads to premature
-            // creation of subblocks, which has (reliably) resulted in OutOfMemoryError
-            // in stress tests
-            if (i + 3 < test.length()) {
+
+                // get subset of string
+                StringBuffer sb = new StringBuffer();
+                sb.append(test.charAt(i));
+                sb.append(test.charAt(i + 1));
+                // append to the overall name
+                buildName.append(File.separator + sb.toString());
+                // switch to number
+                int offset = 0xff & Base16.decode(sb.toString())[0];
+                // set the reference
+                toReturn = blocks[offset];
                 // update the blocks
-                blocks = toReturn.getSubBlocks();
-            } else {
-                // This is used to assert there is no programmer error
-                blocks = null;
+                if (toReturn == null && i <= test.length() - 2) {
+                    // search for existing blocks
+                    DataBlock findOrCreate = searchForExistingDataBlock(buildName.toString());
+                    if (isStoreDataBlockReferences()) {
+                        blocks[offset] = findOrCreate; // Only stored if variable set
+                    }
+                    // set the block reference
+                    toReturn = findOrCreate;
+                }
+                // DataBlock.getSubBlocks lazily creates the DataBlock array
+                // so let's not call it if we don't have to. Leads to premature
+                // creation of subblocks, which has (reliably) resulted in OutOfMemoryError
+                // in stress tests
+                if (i + 3 < test.length()) {
+                    // update the blocks
+                    blocks = toReturn.getSubBlocks();
+                } else {
+                    // This is used to assert there is no programmer error
+                    blocks = null;
+                }
             }
-        }
 
-        // return the loaded data block
-        return toReturn;
+            // return the loaded data block
+            return toReturn;
+        }
     }
 
     /**
@@ -502,8 +627,8 @@ public class DataBlockUtil {
         // the configurations
         ArrayList<DataDirectoryConfiguration> existingFilesDDCs = new ArrayList();
         ArrayList<DataDirectoryConfiguration> existingDirectoriesDDCs = new ArrayList();
-        // the directory with the most space
-        DataDirectoryConfiguration mostSpace = this.ddcs.get(0);
+        // the directory for a new block
+        DataDirectoryConfiguration mostSpace = getDataDirectoryForNewDataBlock();
 
         int iteration = 0;
         for (DataDirectoryConfiguration ddc : ddcs) {
@@ -525,14 +650,6 @@ public class DataBlockUtil {
                     DebugUtil.debugOut(DataBlockUtil.class, "  - Found directory: " + checkFile.getAbsolutePath() + ", iteration: " + iteration);
                 }
             }
-
-            long ddcRemainingSize = ddc.getSizeLimit() - ddc.getActualSize();
-            long mostRemainingSize = mostSpace.getSizeLimit() - mostSpace.getActualSize();
-
-            // check if more space exists in this ddc
-            if (ddcRemainingSize > mostRemainingSize) {
-                mostSpace = ddc;
-            }
         }
 
         DebugUtil.debugOut(DataBlockUtil.class, "Total exiting files <" + existingFiles.size() + ">, total existing directories <" + existingDirectories.size() + ">, test <" + test + ">");
@@ -588,6 +705,7 @@ public class DataBlockUtil {
                 if (!renameSuccessful) {
                     throw new RuntimeException("Can't auto-fix file " + toMove + ". Check that appropriate permissions exist.");
                 }
+                invalidateBlockFile(toMove);
                 // add the file
                 filesToMerge.add(newName);
             }
@@ -618,19 +736,73 @@ public class DataBlockUtil {
         return block;
     }
 
+    /**
+     * <p>Choose the data directory for a new DataBlock. Weighs each directory's free space against how much is being written to it and how slow its disk is, so new blocks spread across the disks rather than all going to the emptiest one.</p>
+     * <p>Directories without room for a full DataBlock, and degraded directories, are only chosen if no other directory will do.</p>
+     * @return
+     */
+    final DataDirectoryConfiguration getDataDirectoryForNewDataBlock() {
+        final double writeRateWeight = getPlacementWriteRateWeight();
+        final double latencyWeight = getPlacementLatencyWeight();
+
+        // each factor is relative to the directory with the most of it
+        double mostFree = 1, mostWriteRate = 1, mostLatency = 1;
+        for (DataDirectoryConfiguration ddc : ddcs) {
+            mostFree = Math.max(mostFree, ddc.getSizeLimit() - ddc.getActualSize());
+            mostWriteRate = Math.max(mostWriteRate, ddc.getRecentWriteRate());
+            mostLatency = Math.max(mostLatency, ddc.getIOQueue().getAverageLatency());
+        }
+
+        DataDirectoryConfiguration best = null;
+        int bestTier = 0;
+        double bestScore = 0;
+        for (DataDirectoryConfiguration ddc : ddcs) {
+            long free = ddc.getSizeLimit() - ddc.getActualSize();
+            // 2: room for a full block, 1: some room, 0: full or degraded
+            int tier = ddc.isReadOnly() || free <= 0 ? 0 : (free >= DataBlock.getMaxBlockSize() ? 2 : 1);
+            double score = free / mostFree - writeRateWeight * ddc.getRecentWriteRate() / mostWriteRate - latencyWeight * ddc.getIOQueue().getAverageLatency() / mostLatency;
+            if (best == null || tier > bestTier || (tier == bestTier && score > bestScore)) {
+                best = ddc;
+                bestTier = tier;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
     /**
      * <p>Synchronized access to setting data chunk bytes.</p>
+     * <p>If using the write-ahead log, returns once the chunk is logged and synced. It is placed in its data block in the background.</p>
      * @param nameHashToAdd
      * @param content
      * @throws java.lang.Exception
      */
     public final void addData(BigHash nameHashToAdd, byte[] content) throws Exception {
+        if (isUseWriteAheadLog() && writeAheadLog.isAvailable()) {
+            checkSpaceForLoggedChunk(nameHashToAdd, content);
+            writeAheadLog.append(false, nameHashToAdd, content);
+            return;
+        }
+        // so an older logged chunk isn't placed over this one
+        writeAheadLog.supersede(false, nameHashToAdd);
+        addDataToDataBlock(nameHashToAdd, content);
+    }
+
+    /**
+     * <p>Add data chunk bytes to the appropriate data block.</p>
+     * @param nameHashToAdd
+     * @param content
+     * @throws java.lang.Exception
+     */
+    final void addDataToDataBlock(BigHash nameHashToAdd, byte[] content) throws Exception {
 
         // Started log for action
         if (isLogging) {
             getLogger().logSetStarted(nameHashToAdd);
         }
 
+        // in the filter before the chunk is on disk, so negative answers are never wrong
+        dataHashFilter.adding(nameHashToAdd);
         try {
             // check if the blocks match
             DataBlock block = this.getDataBlockToAddChunk(nameHashToAdd);
@@ -642,10 +814,11 @@ public class DataBlockUtil {
             }
 
             // add the bytes
-            block.addBytes(nameHashToAdd, false, content);
+            addBytesToDataBlock(block, nameHashToAdd, false, content);
 
             // add to the disk-backed list
             dataHashes.add(nameHashToAdd);
+            indexSnapshot.log(DataBlockIndexSnapshot.JOURNAL_ADD_DATA, nameHashToAdd);
 
             //
             if (isLogging) {
@@ -658,22 +831,44 @@ public class DataBlockUtil {
                 getLogger().logSetBlockFailed(nameHashToAdd);
             }
             throw ex;
+        } finally {
+            dataHashFilter.added(nameHashToAdd);
         }
     }
 
     /**
      * <p>Synchronized access to setting meta data chunk bytes.</p>
+     * <p>If using the write-ahead log, returns once the chunk is logged and synced. It is placed in its data block in the background.</p>
      * @param nameHashToAdd
      * @param content
      * @throws java.lang.Exception
      */
     public final void addMetaData(BigHash nameHashToAdd, byte[] content) throws Exception {
+        if (isUseWriteAheadLog() && writeAheadLog.isAvailable()) {
+            checkSpaceForLoggedChunk(nameHashToAdd, content);
+            writeAheadLog.append(true, nameHashToAdd, content);
+            return;
+        }
+        // so an older logged chunk isn't placed over this one
+        writeAheadLog.supersede(true, nameHashToAdd);
+        addMetaDataToDataBlock(nameHashToAdd, content);
+    }
+
+    /**
+     * <p>Add meta data chunk bytes to the appropriate data block.</p>
+     * @param nameHashToAdd
+     * @param content
+     * @throws java.lang.Exception
+     */
+    final void addMetaDataToDataBlock(BigHash nameHashToAdd, byte[] content) throws Exception {
 
         // Started log for action
         if (isLogging) {
             getLogger().logSetStarted(nameHashToAdd);
         }
 
+        // in the filter before the chunk is on disk, so negative answers are never wrong
+        metaDataHashFilter.adding(nameHashToAdd);
         try {
             // check if the blocks match
             DataBlock block = this.getDataBlockToAddChunk(nameHashToAdd);
@@ -685,10 +880,13 @@ public class DataBlockUtil {
             }
 
             // add the meta-data bytes
-            block.addBytes(nameHashToAdd, true, content);
+            addBytesToDataBlock(block, nameHashToAdd, true, content);
+            // meta data can be replaced, so don't serve the old bytes from memory
+            metaDataChunkCache.remove(nameHashToAdd);
 
             // add to the list
             metaDataHashes.add(nameHashToAdd);
+            indexSnapshot.log(DataBlockIndexSnapshot.JOURNAL_ADD_META_DATA, nameHashToAdd);
 
             //
             if (isLogging) {
@@ -700,6 +898,115 @@ public class DataBlockUtil {
                 getLogger().logSetBlockFailed(nameHashToAdd);
             }
             throw ex;
+        } finally {
+            metaDataHashFilter.added(nameHashToAdd);
+        }
+    }
+
+    /**
+     * <p>Add chunk bytes to a data block, waiting for a turn on the data block's directory. Fails if the directory is read-only.</p>
+     * @param block
+     * @param hash
+     * @param isMetaData
+     * @param content
+     * @throws java.lang.Exception
+     */
+    private void addBytesToDataBlock(DataBlock block, BigHash hash, boolean isMetaData, byte[] content) throws Exception {
+        if (block.ddc.isReadOnly()) {
+            throw new IOException("Data directory is read-only: Cannot add " + hash.toString().substring(0, 8) + "... to " + block.ddc.getDirectory());
+        }
+        DataDirectoryIOQueue ioQueue = block.ddc.getIOQueue();
+        long start = ioQueue.begin(getDataDirectoryMaxConcurrentIO(), getDataDirectoryMaxQueueDepth());
+        Exception failure = null;
+        try {
+            block.addBytes(hash, isMetaData, content);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            ioQueue.end(start, failure, getDataDirectoryDegradedLatency());
+        }
+    }
+
+    /**
+     * <p>Get chunk bytes from a data block, waiting for a turn on the data block's directory.</p>
+     * @param bh
+     * @param isMetaData
+     * @return
+     * @throws java.lang.Exception
+     */
+    private byte[] getBytesFromDataBlock(BigHash bh, boolean isMetaData) throws Exception {
+        DataBlock block = getDataBlockToGetChunk(bh, isMetaData);
+        DataDirectoryIOQueue ioQueue = block.ddc.getIOQueue();
+        long start = ioQueue.begin(getDataDirectoryMaxConcurrentIO(), getDataDirectoryMaxQueueDepth());
+        Exception failure = null;
+        try {
+            return block.getBytes(bh, isMetaData);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            ioQueue.end(start, failure, getDataDirectoryDegradedLatency());
+        }
+    }
+
+    /**
+     * <p>Check whether a data block has a chunk, waiting for a turn on the data block's directory.</p>
+     * @param bh
+     * @param isMetaData
+     * @return
+     * @throws java.lang.Exception
+     */
+    private boolean hasBytesInDataBlock(BigHash bh, boolean isMetaData) throws Exception {
+        DataBlock block = getDataBlockToGetChunk(bh, isMetaData);
+        DataDirectoryIOQueue ioQueue = block.ddc.getIOQueue();
+        long start = ioQueue.begin(getDataDirectoryMaxConcurrentIO(), getDataDirectoryMaxQueueDepth());
+        Exception failure = null;
+        try {
+            return block.hasBytes(bh, isMetaData);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            ioQueue.end(start, failure, getDataDirectoryDegradedLatency());
+        }
+    }
+
+    /**
+     * <p>Delete chunk bytes from a data block, waiting for a turn on the data block's directory.</p>
+     * @param bh
+     * @param isMetaData
+     * @throws java.lang.Exception
+     */
+    private void deleteBytesFromDataBlock(BigHash bh, boolean isMetaData) throws Exception {
+        DataBlock block = getDataBlockToGetChunk(bh, isMetaData);
+        DataDirectoryIOQueue ioQueue = block.ddc.getIOQueue();
+        long start = ioQueue.begin(getDataDirectoryMaxConcurrentIO(), getDataDirectoryMaxQueueDepth());
+        Exception failure = null;
+        try {
+            block.deleteBytes(bh, isMetaData);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            ioQueue.end(start, failure, getDataDirectoryDegradedLatency());
+        }
+    }
+
+    /**
+     * <p>Fail before logging a chunk that won't fit in its data block's directory, counting the chunks in the write-ahead log that aren't placed yet.</p>
+     * @param hash
+     * @param content
+     * @throws java.io.IOException
+     */
+    private void checkSpaceForLoggedChunk(BigHash hash, byte[] content) throws Exception {
+        DataBlock block = this.getDataBlockToAddChunk(hash);
+        if (block.ddc.isReadOnly()) {
+            throw new IOException("Data directory is read-only: Cannot add " + hash.toString().substring(0, 8) + "... to " + block.ddc.getDirectory());
+        }
+        long available = block.ddc.getSizeLimit() - block.ddc.getActualSize() - writeAheadLog.getPendingBytes();
+        if (available - content.length < 0) {
+            throw new IOException("Out of space: Cannot find a directory with available disk space for " + hash.toString().substring(0, 8) + "...");
         }
     }
 
@@ -711,6 +1018,35 @@ public class DataBlockUtil {
      */
     public final byte[] getData(BigHash bh) throws Exception {
 
+        // not placed in a data block yet
+        byte[] pending = writeAheadLog.getPending(false, bh);
+        if (pending != null) {
+            return pending;
+        }
+
+        // popular chunks are served from memory
+        if (!isUseChunkCache()) {
+            return getDataFromDataBlock(bh);
+        }
+        DataBlockChunkCache chunkCache = getChunkCacheToRead(false);
+        byte[] data = chunkCache.get(bh);
+        if (data == null) {
+            // taken before reading, so a chunk deleted meanwhile is not cached
+            long removalCount = chunkCache.getRemovalCount();
+            data = getDataFromDataBlock(bh);
+            chunkCache.offer(bh, data, removalCount);
+        }
+        return data;
+    }
+
+    /**
+     * <p>Get data chunk bytes based on hash from its DataBlock.</p>
+     * @param bh
+     * @return
+     * @throws java.lang.Exception
+     */
+    private byte[] getDataFromDataBlock(BigHash bh) throws Exception {
+
         // Check to see whether using cache
         if (isUseCache()) {
             try {
@@ -729,7 +1065,39 @@ public class DataBlockUtil {
         }
 
         // Get the bytes from the data block
-        return getDataBlockToGetChunk(bh, false).getBytes(bh, false);
+        return getBytesFromDataBlock(bh, false);
+    }
+
+    /**
+     * <p>Get data chunk based on hash as a read-only buffer.</p>
+     * <p>If memory-mapped reads are on, the buffer is a view of the mapped DataBlock file and the chunk is never copied on to the heap. Otherwise, wraps the bytes from getData.</p>
+     * @param bh
+     * @return
+     * @throws java.lang.Exception
+     */
+    public final ByteBuffer getDataByteBuffer(BigHash bh) throws Exception {
+        if (!isUseMemoryMappedReads() || writeAheadLog.getPending(false, bh) != null) {
+            return ByteBuffer.wrap(getData(bh)).asReadOnlyBuffer();
+        }
+
+        // pick up changes to the pool size
+        int poolSize = getMappedFilePoolSize();
+        if (mappedFilePool.getCapacity() != poolSize) {
+            mappedFilePool.setCapacity(poolSize);
+        }
+
+        DataBlock block = getDataBlockToGetChunk(bh, false);
+        DataDirectoryIOQueue ioQueue = block.ddc.getIOQueue();
+        long start = ioQueue.begin(getDataDirectoryMaxConcurrentIO(), getDataDirectoryMaxQueueDepth());
+        Exception failure = null;
+        try {
+            return block.getByteBuffer(bh, false);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            ioQueue.end(start, failure, getDataDirectoryDegradedLatency());
+        }
     }
 
     /**
@@ -740,6 +1108,17 @@ public class DataBlockUtil {
      */
     public final boolean hasData(BigHash bh) throws Exception {
 
+        // not placed in a data block yet
+        if (writeAheadLog.getPending(false, bh) != null) {
+            return true;
+        }
+
+        // Never added, so doesn't have it
+        boolean useChunkFilter = isUseChunkFilter();
+        if (useChunkFilter && dataHashFilter.isDefinitelyAbsent(bh)) {
+            return false;
+        }
+
         // Check to see whether using cache
         if (isUseCache()) {
             try {
@@ -755,7 +1134,11 @@ public class DataBlockUtil {
         }
 
         // check if the block has the data
-        return getDataBlockToGetChunk(bh, false).hasBytes(bh, false);
+        boolean hasBytes = hasBytesInDataBlock(bh, false);
+        if (useChunkFilter && !hasBytes) {
+            dataHashFilter.noteFalsePositive();
+        }
+        return hasBytes;
     }
 
     /**
@@ -766,6 +1149,17 @@ public class DataBlockUtil {
      */
     public final boolean hasMetaData(BigHash bh) throws Exception {
 
+        // not placed in a data block yet
+        if (writeAheadLog.getPending(true, bh) != null) {
+            return true;
+        }
+
+        // Never added, so doesn't have it
+        boolean useChunkFilter = isUseChunkFilter();
+        if (useChunkFilter && metaDataHashFilter.isDefinitelyAbsent(bh)) {
+            return false;
+        }
+
         // Check to see whether using cache
         if (isUseCache()) {
             try {
@@ -781,7 +1175,11 @@ public class DataBlockUtil {
         }
 
         // check if the block has the data
-        return getDataBlockToGetChunk(bh, true).hasBytes(bh, true);
+        boolean hasBytes = hasBytesInDataBlock(bh, true);
+        if (useChunkFilter && !hasBytes) {
+            metaDataHashFilter.noteFalsePositive();
+        }
+        return hasBytes;
     }
 
     /**
@@ -792,6 +1190,35 @@ public class DataBlockUtil {
      */
     public final byte[] getMetaData(BigHash bh) throws Exception {
 
+        // not placed in a data block yet
+        byte[] pending = writeAheadLog.getPending(true, bh);
+        if (pending != null) {
+            return pending;
+        }
+
+        // popular chunks are served from memory
+        if (!isUseChunkCache()) {
+            return getMetaDataFromDataBlock(bh);
+        }
+        DataBlockChunkCache chunkCache = getChunkCacheToRead(true);
+        byte[] bytes = chunkCache.get(bh);
+        if (bytes == null) {
+            // taken before reading, so a chunk deleted or replaced meanwhile is not cached
+            long removalCount = chunkCache.getRemovalCount();
+            bytes = getMetaDataFromDataBlock(bh);
+            chunkCache.offer(bh, bytes, removalCount);
+        }
+        return bytes;
+    }
+
+    /**
+     * <p>Get meta data chunk bytes based on hash from its DataBlock.</p>
+     * @param bh
+     * @return
+     * @throws java.lang.Exception
+     */
+    private byte[] getMetaDataFromDataBlock(BigHash bh) throws Exception {
+
         // Check to see whether using cache
         if (isUseCache()) {
             try {
@@ -818,7 +1245,7 @@ public class DataBlockUtil {
         }
 
         // check if the block has the data
-        return getDataBlockToGetChunk(bh, true).getBytes(bh, true);
+        return getBytesFromDataBlock(bh, true);
     }
 
     /**
@@ -829,16 +1256,31 @@ public class DataBlockUtil {
      */
     public final void deleteData(BigHash bh, String desc) throws Exception {
 
-        getDataBlockToGetChunk(bh, false).deleteBytes(bh, false);
+        // not placed if still in the write-ahead log, nor when the log is replayed
+        writeAheadLog.supersede(false, bh);
+        deleteDataFromDataBlock(bh);
+
+        logDeletion(bh, desc, false);
+    }
+
+    /**
+     * <p>Delete a data chunk from its data block.</p>
+     * @param bh
+     * @throws java.lang.Exception
+     */
+    final void deleteDataFromDataBlock(BigHash bh) throws Exception {
+
+        deleteBytesFromDataBlock(bh, false);
 
         // delete from disk-backed list of hashes
         dataHashes.delete(bh);
+        dataHashFilter.delete(bh);
+        indexSnapshot.log(DataBlockIndexSnapshot.JOURNAL_DELETE_DATA, bh);
         // Clear cache. Might contain deleted entry.
         if (isUseCache()) {
             getDataBlockCache().remove(bh, false);
         }
-
-        logDeletion(bh, desc, false);
+        dataChunkCache.remove(bh);
     }
 
     /**
@@ -847,18 +1289,33 @@ public class DataBlockUtil {
      * @param desc A brief and arbitrary description of why deleting. This is logged. If not sure, just explain who the calling method is.
      * @throws java.lang.Exception
      */
-    public final synchronized void deleteMetaData(BigHash bh, String desc) throws Exception {
+    public final void deleteMetaData(BigHash bh, String desc) throws Exception {
+
+        // not placed if still in the write-ahead log, nor when the log is replayed
+        writeAheadLog.supersede(true, bh);
+        deleteMetaDataFromDataBlock(bh);
+
+        logDeletion(bh, desc, true);
+    }
+
+    /**
+     * <p>Delete a meta data chunk from its data block.</p>
+     * @param bh
+     * @throws java.lang.Exception
+     */
+    final void deleteMetaDataFromDataBlock(BigHash bh) throws Exception {
 
-        getDataBlockToGetChunk(bh, true).deleteBytes(bh, true);
+        deleteBytesFromDataBlock(bh, true);
 
         // delete from disk-backed list of hashes
         metaDataHashes.delete(bh);
+        metaDataHashFilter.delete(bh);
+        indexSnapshot.log(DataBlockIndexSnapshot.JOURNAL_DELETE_META_DATA, bh);
         // Clear cache. Might contain deleted entry.
         if (isUseCache()) {
             getDataBlockCache().remove(bh, true);
         }
-
-        logDeletion(bh, desc, true);
+        metaDataChunkCache.remove(bh);
     }
     private BufferedWriter dataDeletionWriter = null, metaDataDeletionWriter = null, corruptedDataBlockWriter = null;
 
@@ -1059,7 +1516,7 @@ public class DataBlockUtil {
      * @return
      * @throws java.lang.Exception
      */
-    public final synchronized BigHash[] getDataHashes(long offset, long length) throws Exception {
+    public final BigHash[] getDataHashes(long offset, long length) throws Exception {
         // use the disk-backed list
         List<BigHash> hashes = dataHashes.get(offset, (int) length);
         return hashes.toArray(new BigHash[0]);
@@ -1072,12 +1529,53 @@ public class DataBlockUtil {
      * @return
      * @throws java.lang.Exception
      */
-    public final synchronized BigHash[] getMetaDataHashes(long offset, long length) throws Exception {
+    public final BigHash[] getMetaDataHashes(long offset, long length) throws Exception {
         // use the disk-backed list
         List<BigHash> hashes = metaDataHashes.get(offset, (int) length);
         return hashes.toArray(new BigHash[0]);
     }
 
+    /**
+     * <p>Hand every chunk in every data directory to the handler, reading each DataBlock front to back in one sequential pass. Meant for tools that read every chunk on a server, e.g., offline injection or backups, which would otherwise seek for each chunk.</p>
+     * <p>DataBlocks half-way through a merge are read from their merge files, so a chunk might be handed over twice if its DataBlock is split meanwhile. See DataBlock.readChunks.</p>
+     * @param handler
+     * @return The number of chunks handed to the handler.
+     * @throws java.lang.Exception
+     */
+    public final long readChunks(DataBlockChunkHandler handler) throws Exception {
+        long count = 0;
+        for (Object o : getDataDirectoryConfigurations()) {
+            DataDirectoryConfiguration ddc = (DataDirectoryConfiguration) o;
+            final String root = ddc.getDirectoryFile().getAbsolutePath();
+
+            // use a stack to handle all directories
+            List<File> files = new LinkedList<File>();
+            files.add(ddc.getDirectoryFile());
+            while (!files.isEmpty()) {
+                File file = files.remove(files.size() - 1);
+                if (file.isDirectory()) {
+                    String[] names = file.list();
+                    if (names != null) {
+                        for (String name : names) {
+                            files.add(new File(file, name));
+                        }
+                    }
+                    continue;
+                }
+
+                // read merge files through the DataBlock being merged; other files being moved or compacted aren't DataBlocks
+                String path = file.getAbsolutePath().substring(root.length());
+                if (path.endsWith(".merge")) {
+                    path = path.substring(0, path.length() - ".merge".length());
+                } else if (file.getName().contains(".")) {
+                    continue;
+                }
+                count += new DataBlock(path, ddc, this).readChunks(handler);
+            }
+        }
+        return count;
+    }
+
     /**
      * <p>Merge the data block, including splitting the data block.</p>
      * @param fileToMerge
@@ -1099,29 +1597,55 @@ public class DataBlockUtil {
      */
     public final void mergeOldDataBlock(final File fileToMerge, final byte[] buf) throws FileNotFoundException, IOException, Exception {
 
+        // a compaction side file is only swapped in once complete, so the block itself is intact
+        if (fileToMerge.getName().endsWith(".compact")) {
+            IOUtil.safeDelete(fileToMerge);
+            return;
+        }
+
+        // likewise a copy left by balancing, as the block is only deleted from its old directory once the copy is complete
+        if (fileToMerge.getName().endsWith(DataBlockMover.MOVING_SUFFIX)) {
+            IOUtil.safeDelete(fileToMerge);
+            return;
+        }
+
         // Log merges
         if (isLogging) {
             getLogger().logMergeStart(fileToMerge);
         }
 
+        // if the block was split, readers may continue while copying, but deletes must wait until the chunks have been copied.
+        // if the block was not split (e.g., restoring a failed split), chunks are re-added to the block itself, so can't hold its lock.
+        String blockPath = fileToMerge.getAbsolutePath();
+        if (blockPath.endsWith(".merge")) {
+            blockPath = blockPath.substring(0, blockPath.length() - ".merge".length());
+        } else if (blockPath.endsWith(".backup")) {
+            blockPath = blockPath.substring(0, blockPath.length() - ".backup".length());
+        }
+        final ReentrantReadWriteLock blockLock = getDataBlockLock(blockPath);
+        final boolean lockWhileCopying = new File(blockPath).isDirectory();
+
         // try to copy the data in to the new chunk(s)
         boolean successfullySplit = false;
         try {
             // split the block in to two by re-adding all of the hashes
             RandomAccessFile ras = new RandomAccessFile(fileToMerge, "r");
+            if (lockWhileCopying) {
+                blockLock.readLock().lock();
+            }
             try {
                 // get the complete header
                 DataBlock.fillWithBytes(buf, ras, fileToMerge.getAbsolutePath(), "Reading in headers to merge old data block.");
-                // check for the hash
+                final DataBlockHeader header = new DataBlockHeader(buf);
+                // read the chunks in one pass, in the order they are in the file, and add them to each block in batches rather than one at a time
+                Map<String, ChunksToMerge> chunksByBlock = new HashMap<String, ChunksToMerge>();
+                long bytesBuffered = 0;
                 for (int j = 0; j < DataBlock.getHeadersPerFile(); j++) {
-                    // calc the offset
-                    int offset = j * DataBlock.bytesPerEntry;
-                    // parse the entry parts: hash, type, status, offset, size
-                    BigHash h = BigHash.createFromBytes(buf, offset);
-                    byte type = buf[offset + BigHash.HASH_LENGTH];
-                    byte status = buf[offset + BigHash.HASH_LENGTH + 1];
-                    int o = buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
-                    int s = buf[BigHash.HASH_LENGTH + offset + 6] << 24 | (buf[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff);
+                    // parse the entry parts: type, status, offset, size
+                    byte type = header.getType(j);
+                    byte status = header.getStatus(j);
+                    int o = header.getOffset(j);
+                    int s = header.getSize(j);
 
                     // a purposeful failure check for the test case
                     if (purposelyFailMerge <= j) {
@@ -1135,16 +1659,35 @@ public class DataBlockUtil {
                     if (o == 0) {
                         break;                    // read the bytes
                     }
+                    BigHash h = header.getHash(j);
                     byte[] splitBuf = new byte[s];
                     ras.seek(o);
                     DataBlock.fillWithBytes(splitBuf, ras, fileToMerge.getAbsolutePath(), "Reading in " + (type == DataBlock.META_DATA ? "meta data" : "data") + " chunk to merge.");
 
-                    // get the appropriate data block
-                    DataBlock splitBlock = getDataBlockToAddChunk(h);
-                    // add the data
-                    splitBlock.addBytes(h, type == DataBlock.META_DATA, splitBuf);
+                    // queue for the appropriate data block, by name: a block without a file yet picks its directory when written to
+                    String splitBlockName = getDataBlockToAddChunk(h).filename;
+                    ChunksToMerge chunks = chunksByBlock.get(splitBlockName);
+                    if (chunks == null) {
+                        chunks = new ChunksToMerge();
+                        chunksByBlock.put(splitBlockName, chunks);
+                    }
+                    chunks.hashes.add(h);
+                    chunks.isMetaData.add(type == DataBlock.META_DATA);
+                    chunks.bytes.add(splitBuf);
+                    bytesBuffered += s;
+
+                    // keep memory in check
+                    if (bytesBuffered >= MAX_MERGE_BYTES_BUFFERED) {
+                        addChunksToMerge(chunksByBlock);
+                        chunksByBlock.clear();
+                        bytesBuffered = 0;
+                    }
                 }
+                addChunksToMerge(chunksByBlock);
             } finally {
+                if (lockWhileCopying) {
+                    blockLock.readLock().unlock();
+                }
                 IOUtil.safeClose(ras);
 
                 if (isLogging) {
@@ -1159,9 +1702,16 @@ public class DataBlockUtil {
             // only delete the backup file if the split was a success
             if (successfullySplit) {
 
-                boolean deletedMerge = fileToMerge.delete();
-                if (!deletedMerge) {
-                    throw new Exception("Can't remove merged file " + fileToMerge + ". Check file for delete permissions.");
+                final Lock writeLock = blockLock.writeLock();
+                writeLock.lock();
+                try {
+                    invalidateBlockFile(fileToMerge);
+                    boolean deletedMerge = fileToMerge.delete();
+                    if (!deletedMerge) {
+                        throw new Exception("Can't remove merged file " + fileToMerge + ". Check file for delete permissions.");
+                    }
+                } finally {
+                    writeLock.unlock();
                 }
 
                 // check if the directory is empty
@@ -1180,19 +1730,73 @@ public class DataBlockUtil {
     }
 
     /**
-     * <p>If a data block is corrupted, will throw UnexpectedEndOfDataBlockException. This method attempts to repair the block by doing the following:</p>
-     * <ol>
-     *   <li>Backs file up to temporary file, and deletes corrupted data block. Server will be able to write data blocks again!</li>
-     *   <li>Go on a salvaging mission. See which chunks (data or meta) are okay on the disk, and write them. Keep track of all data and meta data that is not in corrupted block.</li>
-     *   <li>After done salvaging, start off thread to download chunks that are now missing.</li>
-     * </ol>
-     * @param forChunkWithHash Hash for chunk in the corrupted data block. (If catch an UnexpectedEndOfDataBlockException, the DataBlock is corrupted.)
+     * <p>Add chunks read from an old data block to the blocks they now belong in.</p>
+     * @param chunksByBlock The chunks, by name of the block they belong in.
+     * @throws java.lang.Exception
+     */
+    private void addChunksToMerge(Map<String, ChunksToMerge> chunksByBlock) throws Exception {
+        for (Map.Entry<String, ChunksToMerge> e : chunksByBlock.entrySet()) {
+            ChunksToMerge chunks = e.getValue();
+            // Might be going to a data block the ProjectFindingThread already loaded, so add to the filter.
+            for (int i = 0; i < chunks.hashes.size(); i++) {
+                (chunks.isMetaData.get(i) ? metaDataHashFilter : dataHashFilter).adding(chunks.hashes.get(i));
+            }
+            try {
+                getDataBlock(e.getKey()).addBytes(chunks.hashes, chunks.isMetaData, chunks.bytes);
+            } finally {
+                for (int i = 0; i < chunks.hashes.size(); i++) {
+                    (chunks.isMetaData.get(i) ? metaDataHashFilter : dataHashFilter).added(chunks.hashes.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Chunks from an old data block waiting to be added to a block.</p>
+     */
+    private static class ChunksToMerge {
+
+        final List<BigHash> hashes = new ArrayList<BigHash>();
+        final List<Boolean> isMetaData = new ArrayList<Boolean>();
+        final List<byte[]> bytes = new ArrayList<byte[]>();
+    }
+
+    /**
+     * <p>Repairs a chunk whose bytes don't match the checksum kept in its data block. Only the chunk is deleted and fetched again from another server; the rest of the data block is left alone.</p>
+     * @param hash
+     * @param isMetaData
+     * @param dataBlockFile The data block the chunk was found in. Used for the log.
+     * @return True if the chunk was deleted and queued to be fetched again, false if repairs are turned off.
+     * @throws java.lang.Exception
+     */
+    final boolean repairCorruptedChunk(BigHash hash, boolean isMetaData, File dataBlockFile) throws Exception {
+        if (!isAllowedToRepairCorruptedDataBlocks()) {
+            return false;
+        }
+        if (isMetaData) {
+            deleteMetaDataFromDataBlock(hash);
+        } else {
+            deleteDataFromDataBlock(hash);
+        }
+        logCorruptedDataBlock(dataBlockFile.getAbsolutePath(), "Chunk does not match its checksum, deleted and queued to be fetched again: " + (isMetaData ? "meta data " : "data ") + hash);
+        this.replaceCorruptedDataBlocksThread.addChunkToRetrieve(hash, isMetaData);
+        return true;
+    }
+
+    /**
+     * <p>If a data block is corrupted, will throw UnexpectedEndOfDataBlockException. This method attempts to repair the block by doing the following:</p>
+     * <ol>
+     *   <li>Backs file up to temporary file, and deletes corrupted data block. Server will be able to write data blocks again!</li>
+     *   <li>Go on a salvaging mission. See which chunks (data or meta) are okay on the disk, and write them. Keep track of all data and meta data that is not in corrupted block.</li>
+     *   <li>After done salvaging, start off thread to download chunks that are now missing.</li>
+     * </ol>
+     * @param forChunkWithHash Hash for chunk in the corrupted data block. (If catch an UnexpectedEndOfDataBlockException, the DataBlock is corrupted.)
      * @param maxTimeToWaitForQueueToFinish Time in milliseconds to wait for missing chunks to download. If cannot wait, specify 0, which will submit request and return. This basically a way to wait to alleviate server resources.
      * @param description
      * @throws java.lang.Exception
      * @return True if repaired, false otherwise. Won't be repaired if repairs turned off or already submitted.
      */
-    public final synchronized boolean repairCorruptedDataBlockForChunk(BigHash forChunkWithHash, int maxTimeToWaitForQueueToFinish, final String description) throws Exception {
+    public final boolean repairCorruptedDataBlockForChunk(BigHash forChunkWithHash, int maxTimeToWaitForQueueToFinish, final String description) throws Exception {
         DataBlock block = this.getDataBlockToAddChunk(forChunkWithHash);
         return repairCorruptedDataBlock(new File(block.getAbsolutePath()), maxTimeToWaitForQueueToFinish, description);
     }
@@ -1210,7 +1814,7 @@ public class DataBlockUtil {
      * @throws java.lang.Exception
      * @return True if repaired, false otherwise. Won't be repaired if repairs turned off or already submitted.
      */
-    public final synchronized boolean repairCorruptedDataBlock(final File dataBlockFile, final String description) throws Exception {
+    public final boolean repairCorruptedDataBlock(final File dataBlockFile, final String description) throws Exception {
         return repairCorruptedDataBlock(dataBlockFile, 5 * 60 * 1000, description);
     }
 
@@ -1227,7 +1831,7 @@ public class DataBlockUtil {
      * @throws java.lang.Exception
      * @return True if repaired, false otherwise. Won't be repaired if repairs turned off or already submitted.
      */
-    public final synchronized boolean repairCorruptedDataBlock(final File dataBlockFile, final int maxTimeToWaitForQueueToFinish, final String description) throws Exception {
+    public final boolean repairCorruptedDataBlock(final File dataBlockFile, final int maxTimeToWaitForQueueToFinish, final String description) throws Exception {
 
         // Check if skipped FIRST. hasBeenRepairedLately will modify the underlying
         // connections, so if out of order, won't be accurate!
@@ -1274,6 +1878,7 @@ public class DataBlockUtil {
             final String corruptedDataBlockFilePath = dataBlockFile.getAbsolutePath();
 
             // Find DataBlock so can synchronize while deleting.
+            invalidateBlockFile(dataBlockFile);
 
             // Try to move to temporary file.
             tmpFile = TempFileUtil.createTempFileWithName(dataBlockFile.getName() + ".tmp");
@@ -1320,6 +1925,7 @@ public class DataBlockUtil {
 
             boolean wasHeaderCorrupted = false;
             boolean wasBodyCorrupted = false;
+            boolean checksummed = false;
             int metaSalvaged = 0, dataSalvaged = 0;
             for (int i = 0; i < DataBlock.getHeadersPerFile(); i++) {
                 int offset = i * DataBlock.bytesPerEntry;
@@ -1348,6 +1954,9 @@ public class DataBlockUtil {
                 byte chunkStatus = nextHeader[BigHash.HASH_LENGTH + 1];
                 int chunkOffset = nextHeader[BigHash.HASH_LENGTH + 2] << 24 | (nextHeader[BigHash.HASH_LENGTH + 2 + 1] & 0xff) << 16 | (nextHeader[BigHash.HASH_LENGTH + 2 + 2] & 0xff) << 8 | (nextHeader[BigHash.HASH_LENGTH + 2 + 3] & 0xff);
                 int chunkSize = nextHeader[BigHash.HASH_LENGTH + 6] << 24 | (nextHeader[BigHash.HASH_LENGTH + 6 + 1] & 0xff) << 16 | (nextHeader[BigHash.HASH_LENGTH + 6 + 2] & 0xff) << 8 | (nextHeader[BigHash.HASH_LENGTH + 6 + 3] & 0xff);
+                if (i == 0) {
+                    checksummed = DataBlock.isChecksummed(nextHeader, ras.length());
+                }
 
                 // At end, header not corrupted. No more entries.
                 if (chunkOffset == 0) {
@@ -1368,6 +1977,16 @@ public class DataBlockUtil {
                         throw new UnexpectedEndOfDataBlockException("Failed to read chunk, must be corrupted in data portion of data block.");
                     }
 
+                    // A chunk that doesn't match its checksum is fetched again, not salvaged
+                    if (checksummed) {
+                        ras.seek(DataBlock.getBytesToRead() + i * DataBlock.bytesPerChecksum);
+                        if (DataBlock.checksum(chunk) != ras.readInt()) {
+                            wasBodyCorrupted = true;
+                            this.replaceCorruptedDataBlocksThread.addChunkToRetrieve(chunkHash, chunkType == DataBlock.META_DATA);
+                            continue;
+                        }
+                    }
+
                     // Add the chunk right through the DataBlockUtil.
                     if (chunkType == DataBlock.DATA) {
                         this.addData(chunkHash, chunk);
@@ -1411,6 +2030,10 @@ public class DataBlockUtil {
      * <p>Keep associated timestamps with repairs to prevent DataBlocks to be repaired multiple times in quick succession.</p>
      */
     private final Map<String, Long> repairedDataBlockMap = new HashMap();
+    /**
+     * <p>Guards repairedDataBlockMap and skippedDataBlocks. Not the DataBlockUtil's monitor, so a repair waiting for chunks to download doesn't hold up requests for other DataBlocks.</p>
+     */
+    private final Object repairLock = new Object();
     /**
      * <p>The time, in milliseconds, that must ellapse since a repair to any given data block before will be repaired again.</p>
      */
@@ -1422,39 +2045,40 @@ public class DataBlockUtil {
      * @param dataBlock The file that might be repaired.
      * @return True if it has been repaired lately, which means it should not be repaired. False otherwise.
      */
-    private final synchronized boolean hasDataBlockBeenRepairedLately(File dataBlock) {
+    private final boolean hasDataBlockBeenRepairedLately(File dataBlock) {
+        synchronized (repairLock) {
+            final long currentTime = TimeUtil.getTrancheTimestamp();
 
-        final long currentTime = TimeUtil.getTrancheTimestamp();
+            // Get list of entries to remove since required time has ellapsed
+            List<String> entriesToRemove = new ArrayList();
 
-        // Get list of entries to remove since required time has ellapsed
-        List<String> entriesToRemove = new ArrayList();
-
-        // Chunk for data blocks that can be removed
-        for (String dataBlockPath : repairedDataBlockMap.keySet()) {
-            long timeOfRepair = repairedDataBlockMap.get(dataBlockPath);
-            if (currentTime - timeOfRepair > REQUIRED_TIME_BETWEEN_REPAIRS_ON_SAME_DATABLOCK) {
-                entriesToRemove.add(dataBlockPath);
+            // Chunk for data blocks that can be removed
+            for (String dataBlockPath : repairedDataBlockMap.keySet()) {
+                long timeOfRepair = repairedDataBlockMap.get(dataBlockPath);
+                if (currentTime - timeOfRepair > REQUIRED_TIME_BETWEEN_REPAIRS_ON_SAME_DATABLOCK) {
+                    entriesToRemove.add(dataBlockPath);
+                }
             }
-        }
 
-        // Remove any data block repair entries that have ellapsed
-        for (String dataBlockPathToRemove : entriesToRemove) {
-            repairedDataBlockMap.remove(dataBlockPathToRemove);
-        }
+            // Remove any data block repair entries that have ellapsed
+            for (String dataBlockPathToRemove : entriesToRemove) {
+                repairedDataBlockMap.remove(dataBlockPathToRemove);
+            }
 
-        // If found, that means must wait
-        boolean wasRepairedLately = repairedDataBlockMap.containsKey(dataBlock.getAbsolutePath());
+            // If found, that means must wait
+            boolean wasRepairedLately = repairedDataBlockMap.containsKey(dataBlock.getAbsolutePath());
 
-        // If not found, going to repair. Add to map.
-        if (!wasRepairedLately) {
-            repairedDataBlockMap.put(dataBlock.getAbsolutePath(), currentTime);
-        }
+            // If not found, going to repair. Add to map.
+            if (!wasRepairedLately) {
+                repairedDataBlockMap.put(dataBlock.getAbsolutePath(), currentTime);
+            }
 
-        // If skipped contains, remove it. This allows the data block to go bad later
-        // and be recounted. 
-        skippedDataBlocks.remove(dataBlock.getAbsolutePath());
+            // If skipped contains, remove it. This allows the data block to go bad later
+            // and be recounted. 
+            skippedDataBlocks.remove(dataBlock.getAbsolutePath());
 
-        return wasRepairedLately;
+            return wasRepairedLately;
+        }
     }
     /**
      * <p>Keep track of DataBlocks already "skipped" -- meaning these have already been flagged as corrupted and ignored because not enough time ellapsed since last handled.</p>
@@ -1466,14 +2090,16 @@ public class DataBlockUtil {
      * @param dataBlock
      * @return
      */
-    private final synchronized boolean hasDataBlockBeenSkippedAlready(File dataBlock) {
-        boolean alreadySkipped = skippedDataBlocks.contains(dataBlock.getAbsolutePath());
+    private final boolean hasDataBlockBeenSkippedAlready(File dataBlock) {
+        synchronized (repairLock) {
+            boolean alreadySkipped = skippedDataBlocks.contains(dataBlock.getAbsolutePath());
 
-        if (!alreadySkipped) {
-            skippedDataBlocks.add(dataBlock.getAbsolutePath());
-        }
+            if (!alreadySkipped) {
+                skippedDataBlocks.add(dataBlock.getAbsolutePath());
+            }
 
-        return alreadySkipped;
+            return alreadySkipped;
+        }
     }
 
     /**
@@ -1679,6 +2305,11 @@ public class DataBlockUtil {
             for (DataDirectoryConfiguration ddc : this.ddcs) {
                 long available = ddc.getSizeLimit() - ddc.getActualSize();
 
+                // don't add to the load on a degraded disk
+                if (ddc.isReadOnly()) {
+                    continue;
+                }
+
                 if (available > mostAvailableSpace) {
                     mostAvailableSpace = available;
                     mostAvailableDDC = ddc;
@@ -1707,6 +2338,11 @@ public class DataBlockUtil {
             for (DataDirectoryConfiguration ddc : this.ddcs) {
                 long available = ddc.getSizeLimit() - ddc.getActualSize();
 
+                // don't add to the load on a degraded disk
+                if (ddc.isReadOnly()) {
+                    continue;
+                }
+
                 if (available < leastAvailableSpace && available > 0) {
                     leastAvailableSpace = available;
                     leastAvailableDDC = ddc;
@@ -1790,6 +2426,77 @@ public class DataBlockUtil {
         return cache;
     }
 
+    /**
+     * <p>Get the cache of in-memory DataBlock header indexes used by this utility.</p>
+     * @return
+     */
+    public DataBlockHeaderIndexCache getHeaderIndexCache() {
+        return headerIndexCache;
+    }
+
+    /**
+     * <p>Get the pool of memory-mapped DataBlock files used by this utility.</p>
+     * @return
+     */
+    public DataBlockMappedFilePool getMappedFilePool() {
+        return mappedFilePool;
+    }
+
+    /**
+     * <p>Get the cache of popular data or meta data chunks used by this utility.</p>
+     * @param isMetaData
+     * @return
+     */
+    public DataBlockChunkCache getChunkCache(boolean isMetaData) {
+        return isMetaData ? metaDataChunkCache : dataChunkCache;
+    }
+
+    /**
+     * <p>Drop any in-memory state kept for a DataBlock file (header index, memory mapping). Must be called whenever the file is renamed, moved, merged or rebuilt.</p>
+     * @param blockFile
+     */
+    void invalidateBlockFile(File blockFile) {
+        headerIndexCache.remove(blockFile);
+        mappedFilePool.remove(blockFile);
+    }
+
+    /**
+     * <p>Returns the read/write lock for a DataBlock, creating it if necessary. Every DataBlock object for the same file shares the lock.</p>
+     * <p>Locks are always taken parent before child (a DataBlock passing chunks down to its sub-blocks), never child before parent.</p>
+     * @param blockPath The absolute path of the DataBlock's regular file (not the .merge or .backup file).
+     * @return
+     */
+    ReentrantReadWriteLock getDataBlockLock(String blockPath) {
+        ReentrantReadWriteLock lock = dataBlockLocks.get(blockPath);
+        if (lock == null) {
+            ReentrantReadWriteLock newLock = new ReentrantReadWriteLock();
+            lock = dataBlockLocks.putIfAbsent(blockPath, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * <p>Returns true if DataBlock headers are indexed in memory, false otherwise.</p>
+     * @return
+     */
+    public boolean isUseHeaderIndex() {
+        return isUseHeaderIndex;
+    }
+
+    /**
+     * <p>Set whether DataBlock headers should be indexed in memory. Turning this off drops any cached indexes.</p>
+     * @param isUseHeaderIndex
+     */
+    public void setUseHeaderIndex(boolean isUseHeaderIndex) {
+        if (!isUseHeaderIndex) {
+            headerIndexCache.clear();
+        }
+        this.isUseHeaderIndex = isUseHeaderIndex;
+    }
+
     /**
      * <p>Returns true if using cache, false otherwise.</p>
      * @return
@@ -1866,6 +2573,595 @@ public class DataBlockUtil {
         return storeDataBlockReferences;
     }
 
+    private boolean lastIsUseMemoryMappedReads = ConfigKeys.DEFAULT_USE_MEMORY_MAPPED_READS;
+
+    /**
+     * <p>This only sets in memory. To set permanently, set the Configuration value ConfigKeys.DATABLOCK_USE_MEMORY_MAPPED_READS.</p>
+     * @param useMemoryMappedReads
+     */
+    public void setUseMemoryMappedReads(boolean useMemoryMappedReads) {
+        lastIsUseMemoryMappedReads = useMemoryMappedReads;
+        if (!useMemoryMappedReads) {
+            mappedFilePool.clear();
+        }
+    }
+
+    /**
+     * <p>Returns true if data chunks are read through memory-mapped DataBlock files.</p>
+     * <p>Off by default: the mappings count against the process's address space, and some platforms will not rename or delete a file while it is mapped.</p>
+     * @return
+     */
+    public boolean isUseMemoryMappedReads() {
+        boolean useMemoryMappedReads = lastIsUseMemoryMappedReads;
+
+        try {
+            String value = this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_USE_MEMORY_MAPPED_READS);
+            if (value != null) {
+                useMemoryMappedReads = Boolean.valueOf(value);
+            }
+        } catch (Exception nope) {
+        }
+
+        if (lastIsUseMemoryMappedReads != useMemoryMappedReads) {
+            printNotice("Changed \"" + ConfigKeys.DATABLOCK_USE_MEMORY_MAPPED_READS + "\" from " + lastIsUseMemoryMappedReads + " to " + useMemoryMappedReads);
+            setUseMemoryMappedReads(useMemoryMappedReads);
+        }
+
+        return useMemoryMappedReads;
+    }
+
+    private boolean lastIsUseChunkCache = ConfigKeys.DEFAULT_USE_CHUNK_CACHE;
+
+    /**
+     * <p>This only sets in memory. To set permanently, set the Configuration value ConfigKeys.DATABLOCK_USE_CHUNK_CACHE.</p>
+     * @param useChunkCache
+     */
+    public void setUseChunkCache(boolean useChunkCache) {
+        lastIsUseChunkCache = useChunkCache;
+        if (!useChunkCache) {
+            dataChunkCache.clear();
+            metaDataChunkCache.clear();
+        }
+    }
+
+    /**
+     * <p>Returns true if the bytes of popular chunks are cached in memory.</p>
+     * <p>Off by default: the cache is kept outside of the heap, so its budgets must fit within the JVM's -XX:MaxDirectMemorySize.</p>
+     * @return
+     */
+    public boolean isUseChunkCache() {
+        boolean useChunkCache = lastIsUseChunkCache;
+
+        try {
+            String value = this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_USE_CHUNK_CACHE);
+            if (value != null) {
+                useChunkCache = Boolean.valueOf(value);
+            }
+        } catch (Exception nope) {
+        }
+
+        if (lastIsUseChunkCache != useChunkCache) {
+            printNotice("Changed \"" + ConfigKeys.DATABLOCK_USE_CHUNK_CACHE + "\" from " + lastIsUseChunkCache + " to " + useChunkCache);
+            setUseChunkCache(useChunkCache);
+        }
+
+        return useChunkCache;
+    }
+
+    private boolean lastIsUseBackgroundCompaction = ConfigKeys.DEFAULT_USE_BACKGROUND_COMPACTION;
+
+    /**
+     * <p>This only sets in memory. To set permanently, set the Configuration value ConfigKeys.DATABLOCK_USE_BACKGROUND_COMPACTION.</p>
+     * @param useBackgroundCompaction
+     */
+    public void setUseBackgroundCompaction(boolean useBackgroundCompaction) {
+        lastIsUseBackgroundCompaction = useBackgroundCompaction;
+    }
+
+    /**
+     * <p>Returns true if space wasted by deleted chunks is reclaimed by a background thread. Otherwise, a DataBlock is rebuilt by the writer that finds too much wasted space.</p>
+     * @return
+     */
+    public boolean isUseBackgroundCompaction() {
+        boolean useBackgroundCompaction = lastIsUseBackgroundCompaction;
+
+        try {
+            String value = this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_USE_BACKGROUND_COMPACTION);
+            if (value != null) {
+                useBackgroundCompaction = Boolean.valueOf(value);
+            }
+        } catch (Exception nope) {
+        }
+
+        if (lastIsUseBackgroundCompaction != useBackgroundCompaction) {
+            printNotice("Changed \"" + ConfigKeys.DATABLOCK_USE_BACKGROUND_COMPACTION + "\" from " + lastIsUseBackgroundCompaction + " to " + useBackgroundCompaction);
+            lastIsUseBackgroundCompaction = useBackgroundCompaction;
+        }
+
+        return useBackgroundCompaction;
+    }
+
+    /**
+     * <p>Returns the maximum number of bytes per second the background compaction may copy. Zero or less means no limit.</p>
+     * @return
+     */
+    public long getCompactionBytesPerSecond() {
+        try {
+            return Long.parseLong(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_COMPACTION_BYTES_PER_SECOND));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_COMPACTION_BYTES_PER_SECOND;
+    }
+
+    /**
+     * <p>Returns the fraction of a DataBlock's chunk bytes that must be deleted before it is compacted in the background.</p>
+     * @return
+     */
+    public double getCompactionMinimumWastedRatio() {
+        try {
+            return Double.parseDouble(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_COMPACTION_MIN_WASTED_RATIO));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_COMPACTION_MIN_WASTED_RATIO;
+    }
+
+    /**
+     * <p>Returns the thread that compacts DataBlocks in the background.</p>
+     * @return
+     */
+    public DataBlockCompactionThread getCompactionThread() {
+        return compactionThread;
+    }
+    private boolean lastIsUseChecksums = ConfigKeys.DEFAULT_USE_CHECKSUMS;
+
+    /**
+     * <p>This only sets in memory. To set permanently, set the Configuration value ConfigKeys.DATABLOCK_USE_CHECKSUMS.</p>
+     * @param useChecksums
+     */
+    public void setUseChecksums(boolean useChecksums) {
+        lastIsUseChecksums = useChecksums;
+    }
+
+    /**
+     * <p>Returns true if new DataBlocks, and DataBlocks as they are compacted, keep a checksum for each chunk.</p>
+     * @return
+     */
+    public boolean isUseChecksums() {
+        boolean useChecksums = lastIsUseChecksums;
+
+        try {
+            String value = this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_USE_CHECKSUMS);
+            if (value != null) {
+                useChecksums = Boolean.valueOf(value);
+            }
+        } catch (Exception nope) {
+        }
+
+        if (lastIsUseChecksums != useChecksums) {
+            printNotice("Changed \"" + ConfigKeys.DATABLOCK_USE_CHECKSUMS + "\" from " + lastIsUseChecksums + " to " + useChecksums);
+            lastIsUseChecksums = useChecksums;
+        }
+
+        return useChecksums;
+    }
+    private boolean lastIsUseScrubbing = ConfigKeys.DEFAULT_USE_SCRUBBING;
+
+    /**
+     * <p>This only sets in memory. To set permanently, set the Configuration value ConfigKeys.DATABLOCK_USE_SCRUBBING.</p>
+     * @param useScrubbing
+     */
+    public void setUseScrubbing(boolean useScrubbing) {
+        lastIsUseScrubbing = useScrubbing;
+    }
+
+    /**
+     * <p>Returns true if chunks are verified against their checksums by a background thread.</p>
+     * @return
+     */
+    public boolean isUseScrubbing() {
+        boolean useScrubbing = lastIsUseScrubbing;
+
+        try {
+            String value = this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_USE_SCRUBBING);
+            if (value != null) {
+                useScrubbing = Boolean.valueOf(value);
+            }
+        } catch (Exception nope) {
+        }
+
+        if (lastIsUseScrubbing != useScrubbing) {
+            printNotice("Changed \"" + ConfigKeys.DATABLOCK_USE_SCRUBBING + "\" from " + lastIsUseScrubbing + " to " + useScrubbing);
+            lastIsUseScrubbing = useScrubbing;
+        }
+
+        return useScrubbing;
+    }
+
+    /**
+     * <p>Returns the maximum number of bytes per second read when verifying chunks against their checksums. Zero or less means no limit.</p>
+     * @return
+     */
+    public long getScrubBytesPerSecond() {
+        try {
+            return Long.parseLong(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_SCRUB_BYTES_PER_SECOND));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_SCRUB_BYTES_PER_SECOND;
+    }
+
+    /**
+     * <p>Returns the thread that verifies chunks against their checksums in the background.</p>
+     * @return
+     */
+    public DataBlockScrubber getScrubber() {
+        return scrubber;
+    }
+
+    /**
+     * <p>Returns the utility copying data blocks between data directories when balancing, which tracks its progress.</p>
+     * @return
+     */
+    public DataBlockMover getDataBlockMover() {
+        return mover;
+    }
+
+    /**
+     * <p>Returns the most bytes per second copied when moving a data block to another data directory while balancing. If zero or less, copies as fast as possible.</p>
+     * @return
+     */
+    public long getBalanceBytesPerSecond() {
+        try {
+            return Long.parseLong(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_BALANCE_BYTES_PER_SECOND));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_BALANCE_BYTES_PER_SECOND;
+    }
+
+    /**
+     * <p>Returns how much a data directory's recent write rate counts against it, relative to its free space, when choosing the data directory for a new data block.</p>
+     * @return
+     */
+    public double getPlacementWriteRateWeight() {
+        try {
+            return Double.parseDouble(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_PLACEMENT_WRITE_RATE_WEIGHT));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_PLACEMENT_WRITE_RATE_WEIGHT;
+    }
+
+    /**
+     * <p>Returns how much a data directory's average latency counts against it, relative to its free space, when choosing the data directory for a new data block.</p>
+     * @return
+     */
+    public double getPlacementLatencyWeight() {
+        try {
+            return Double.parseDouble(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_PLACEMENT_LATENCY_WEIGHT));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_PLACEMENT_LATENCY_WEIGHT;
+    }
+
+    private boolean lastIsUseWriteAheadLog = ConfigKeys.DEFAULT_USE_WRITE_AHEAD_LOG;
+
+    /**
+     * <p>This only sets in memory. To set permanently, set the Configuration value ConfigKeys.DATABLOCK_USE_WRITE_AHEAD_LOG.</p>
+     * @param useWriteAheadLog
+     */
+    public void setUseWriteAheadLog(boolean useWriteAheadLog) {
+        lastIsUseWriteAheadLog = useWriteAheadLog;
+    }
+
+    /**
+     * <p>Returns true if chunks are written to the write-ahead log and placed in data blocks in the background, rather than written to their data blocks straight away.</p>
+     * @return
+     */
+    public boolean isUseWriteAheadLog() {
+        boolean useWriteAheadLog = lastIsUseWriteAheadLog;
+
+        try {
+            String value = this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_USE_WRITE_AHEAD_LOG);
+            if (value != null) {
+                useWriteAheadLog = Boolean.valueOf(value);
+            }
+        } catch (Exception nope) {
+        }
+
+        if (lastIsUseWriteAheadLog != useWriteAheadLog) {
+            printNotice("Changed \"" + ConfigKeys.DATABLOCK_USE_WRITE_AHEAD_LOG + "\" from " + lastIsUseWriteAheadLog + " to " + useWriteAheadLog);
+            lastIsUseWriteAheadLog = useWriteAheadLog;
+        }
+
+        return useWriteAheadLog;
+    }
+
+    /**
+     * <p>Returns the most milliseconds a chunk written to the write-ahead log waits for the log to be synced.</p>
+     * @return
+     */
+    public long getWriteAheadLogSyncInterval() {
+        try {
+            return Long.parseLong(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_WRITE_AHEAD_LOG_SYNC_INTERVAL));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_WRITE_AHEAD_LOG_SYNC_INTERVAL;
+    }
+
+    /**
+     * <p>Returns the number of bytes written to the write-ahead log at which it is synced without waiting for the interval.</p>
+     * @return
+     */
+    public long getWriteAheadLogSyncBytes() {
+        try {
+            return Long.parseLong(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_WRITE_AHEAD_LOG_SYNC_BYTES));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_WRITE_AHEAD_LOG_SYNC_BYTES;
+    }
+
+    /**
+     * <p>Returns the most bytes of chunks in the write-ahead log waiting to be placed in data blocks. Writers wait once there are more.</p>
+     * @return
+     */
+    public long getWriteAheadLogMaxPendingBytes() {
+        try {
+            return Long.parseLong(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_WRITE_AHEAD_LOG_MAX_PENDING_BYTES));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_WRITE_AHEAD_LOG_MAX_PENDING_BYTES;
+    }
+
+    /**
+     * <p>Returns the write-ahead log for chunks.</p>
+     * @return
+     */
+    public DataBlockWriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * <p>Returns the most chunk operations that run at once against each data directory. More wait for a turn.</p>
+     * @return
+     */
+    public int getDataDirectoryMaxConcurrentIO() {
+        try {
+            return Integer.parseInt(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_DATA_DIRECTORY_MAX_CONCURRENT_IO));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_DATA_DIRECTORY_MAX_CONCURRENT_IO;
+    }
+
+    /**
+     * <p>Returns the most chunk operations that wait for a turn on each data directory. More are turned away.</p>
+     * @return
+     */
+    public int getDataDirectoryMaxQueueDepth() {
+        try {
+            return Integer.parseInt(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_DATA_DIRECTORY_MAX_QUEUE_DEPTH));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_DATA_DIRECTORY_MAX_QUEUE_DEPTH;
+    }
+
+    /**
+     * <p>Returns the average milliseconds per chunk operation at which a data directory is marked read-only.</p>
+     * @return
+     */
+    public long getDataDirectoryDegradedLatency() {
+        try {
+            return Long.parseLong(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_DATA_DIRECTORY_DEGRADED_LATENCY));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_DATA_DIRECTORY_DEGRADED_LATENCY;
+    }
+
+    private boolean lastIsUseChunkFilter = ConfigKeys.DEFAULT_USE_CHUNK_FILTER;
+
+    /**
+     * <p>Returns true if hasData and hasMetaData check a Bloom filter before the disk, so that checks for chunks the server doesn't have don't touch the disk.</p>
+     * @return
+     */
+    public boolean isUseChunkFilter() {
+        boolean useChunkFilter = lastIsUseChunkFilter;
+
+        try {
+            String value = this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_USE_CHUNK_FILTER);
+            if (value != null) {
+                useChunkFilter = Boolean.valueOf(value);
+            }
+        } catch (Exception nope) {
+        }
+
+        if (lastIsUseChunkFilter != useChunkFilter) {
+            printNotice("Changed \"" + ConfigKeys.DATABLOCK_USE_CHUNK_FILTER + "\" from " + lastIsUseChunkFilter + " to " + useChunkFilter);
+            lastIsUseChunkFilter = useChunkFilter;
+        }
+
+        return useChunkFilter;
+    }
+
+    /**
+     * <p>This only sets in memory. To set permanently, set the Configuration value ConfigKeys.DATABLOCK_USE_CHUNK_FILTER.</p>
+     * @param useChunkFilter
+     */
+    public void setUseChunkFilter(boolean useChunkFilter) {
+        lastIsUseChunkFilter = useChunkFilter;
+    }
+
+    /**
+     * <p>Adds the hash of a chunk found on disk to the set of hashes and its filter.</p>
+     * @param hash
+     * @param isMetaData
+     */
+    void addHashFromDisk(BigHash hash, boolean isMetaData) {
+        DataBlockChunkFilter filter = isMetaData ? metaDataHashFilter : dataHashFilter;
+        filter.adding(hash);
+        try {
+            if (isMetaData) {
+                metaDataHashes.add(hash);
+            } else {
+                dataHashes.add(hash);
+            }
+        } finally {
+            filter.added(hash);
+        }
+    }
+
+    /**
+     * <p>Adds a batch of hashes of chunks found on disk to the set of hashes and its filter.</p>
+     * @param hashes
+     * @param isMetaData
+     */
+    void addHashesFromDisk(List<BigHash> hashes, boolean isMetaData) {
+        DataBlockChunkFilter filter = isMetaData ? metaDataHashFilter : dataHashFilter;
+        for (BigHash hash : hashes) {
+            filter.adding(hash);
+        }
+        try {
+            if (isMetaData) {
+                metaDataHashes.addAll(hashes);
+            } else {
+                dataHashes.addAll(hashes);
+            }
+        } finally {
+            for (BigHash hash : hashes) {
+                filter.added(hash);
+            }
+        }
+    }
+
+    /**
+     * <p>Returns the snapshot and journal of the hash sets.</p>
+     * @return
+     */
+    public DataBlockIndexSnapshot getIndexSnapshot() {
+        return indexSnapshot;
+    }
+
+    private boolean lastIsUseIndexSnapshot = ConfigKeys.DEFAULT_USE_INDEX_SNAPSHOT;
+
+    /**
+     * <p>This only sets in memory. To set permanently, set the Configuration value ConfigKeys.DATABLOCK_USE_INDEX_SNAPSHOT.</p>
+     * @param useIndexSnapshot
+     */
+    public void setUseIndexSnapshot(boolean useIndexSnapshot) {
+        lastIsUseIndexSnapshot = useIndexSnapshot;
+    }
+
+    /**
+     * <p>Returns true if the hash sets should be loaded from a snapshot at start up, rather than by reading every DataBlock.</p>
+     * @return
+     */
+    public boolean isUseIndexSnapshot() {
+        boolean useIndexSnapshot = lastIsUseIndexSnapshot;
+
+        try {
+            String value = this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_USE_INDEX_SNAPSHOT);
+            if (value != null) {
+                useIndexSnapshot = Boolean.valueOf(value);
+            }
+        } catch (Exception nope) {
+        }
+
+        if (lastIsUseIndexSnapshot != useIndexSnapshot) {
+            printNotice("Changed \"" + ConfigKeys.DATABLOCK_USE_INDEX_SNAPSHOT + "\" from " + lastIsUseIndexSnapshot + " to " + useIndexSnapshot);
+            lastIsUseIndexSnapshot = useIndexSnapshot;
+        }
+
+        return useIndexSnapshot;
+    }
+
+    /**
+     * <p>Returns the number of milliseconds between snapshots of the hash sets.</p>
+     * @return
+     */
+    public long getIndexSnapshotInterval() {
+        try {
+            return Long.parseLong(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_INDEX_SNAPSHOT_INTERVAL));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_INDEX_SNAPSHOT_INTERVAL;
+    }
+
+    /**
+     * <p>Returns the Bloom filter in front of the data chunk hashes.</p>
+     * @return
+     */
+    public DataBlockChunkFilter getDataHashFilter() {
+        return dataHashFilter;
+    }
+
+    /**
+     * <p>Returns the Bloom filter in front of the meta data chunk hashes.</p>
+     * @return
+     */
+    public DataBlockChunkFilter getMetaDataHashFilter() {
+        return metaDataHashFilter;
+    }
+
+    /**
+     * <p>Adds the location of a chunk to the cache, first picking up any change to the cache's capacity.</p>
+     * @param e
+     * @param isMetaData
+     */
+    void addToDataBlockCache(DataBlockCacheEntry e, boolean isMetaData) {
+        int capacity = getDataBlockCacheCapacity();
+        if (cache.getCapacity() != capacity) {
+            cache.setCapacity(capacity);
+        }
+        cache.add(e, isMetaData);
+    }
+
+    /**
+     * <p>Returns the maximum number of chunk locations to cache for data or meta data chunks.</p>
+     * @return
+     */
+    private int getDataBlockCacheCapacity() {
+        try {
+            return Integer.parseInt(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_CACHE_CAPACITY));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_DATA_BLOCK_CACHE_CAPACITY;
+    }
+
+    /**
+     * <p>Returns the cache of popular data or meta data chunks, first picking up any change to its budget.</p>
+     * @param isMetaData
+     * @return
+     */
+    private DataBlockChunkCache getChunkCacheToRead(boolean isMetaData) {
+        DataBlockChunkCache chunkCache = getChunkCache(isMetaData);
+        long capacityInBytes = getChunkCacheCapacityInBytes(isMetaData);
+        if (chunkCache.getCapacityInBytes() != capacityInBytes) {
+            chunkCache.setCapacityInBytes(capacityInBytes);
+        }
+        return chunkCache;
+    }
+
+    /**
+     * <p>Returns the maximum number of bytes of data or meta data chunks to cache in memory.</p>
+     * @param isMetaData
+     * @return
+     */
+    private long getChunkCacheCapacityInBytes(boolean isMetaData) {
+        try {
+            return Long.parseLong(this.ffts.getConfiguration().getValue(isMetaData ? ConfigKeys.DATABLOCK_CHUNK_CACHE_META_DATA_BYTES : ConfigKeys.DATABLOCK_CHUNK_CACHE_DATA_BYTES));
+        } catch (Exception e) {
+        }
+        return isMetaData ? ConfigKeys.DEFAULT_CHUNK_CACHE_META_DATA_BYTES : ConfigKeys.DEFAULT_CHUNK_CACHE_DATA_BYTES;
+    }
+
+    /**
+     * <p>Returns the maximum number of DataBlock files to keep memory-mapped.</p>
+     * @return
+     */
+    private int getMappedFilePoolSize() {
+        try {
+            return Integer.parseInt(this.ffts.getConfiguration().getValue(ConfigKeys.DATABLOCK_MAPPED_FILE_POOL_SIZE));
+        } catch (Exception e) {
+        }
+        return ConfigKeys.DEFAULT_MAPPED_FILE_POOL_SIZE;
+    }
+
     /**
      * @return the ONE_MB
      */
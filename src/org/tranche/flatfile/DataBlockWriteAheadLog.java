@@ -0,0 +1,728 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import org.tranche.commons.DebugUtil;
+import org.tranche.hash.BigHash;
+import org.tranche.time.TimeUtil;
+import org.tranche.util.IOUtil;
+
+/**
+ * <p>Log that chunks are written to before they are placed in DataBlocks, so bulk uploads are written to the disk sequentially.</p>
+ * <p>Writers append their chunk to the log and wait until it is synced. Writers arriving together share a sync (group commit): a sync is done once the configured number of bytes is waiting or the configured interval has passed since the first of them, so a chunk is on the disk no later than the interval after it is written. A background thread then places the chunks in DataBlocks, in hash order so writes to the same DataBlock are together. Until then, chunks are served from memory.</p>
+ * <p>Log files are rolled at MAX_FILE_SIZE. Once every chunk in a log file is placed, the DataBlocks they went to are synced and the log file is deleted. Log files left by a server that stopped are replayed at start up by the ProjectFindingThread, or before the next chunk is logged.</p>
+ * <p>A chunk that is deleted, or written directly to a DataBlock, while earlier records for it are in a log file gets a deletion record, so replaying doesn't bring back the old bytes.</p>
+ */
+public class DataBlockWriteAheadLog extends Thread {
+
+    /**
+     * <p>Log record types.</p>
+     */
+    public static final byte RECORD_ADD_DATA = 1,  RECORD_ADD_META_DATA = 2,  RECORD_DELETE_DATA = 3,  RECORD_DELETE_META_DATA = 4;
+    /**
+     * <p>Size at which a log file is closed and a new one started.</p>
+     */
+    public static final long MAX_FILE_SIZE = 64 * 1024 * 1024;
+    private static final int FORMAT_VERSION = 1;
+    private static final String FILE_PREFIX = "chunk-ingest-",  FILE_SUFFIX = ".log";
+    /**
+     * <p>Most chunks placed at once.</p>
+     */
+    private static final int PLACEMENT_BATCH_SIZE = 1000;
+    private final DataBlockUtil dbu;
+    private final File directory;
+    private boolean stop = false;
+    private boolean recovered = false;
+    /**
+     * <p>The log file being written, if any.</p>
+     */
+    private long fileNumber = 0;
+    private FileOutputStream fos = null;
+    private DataOutputStream out = null;
+    private long fileSize = 0;
+    /**
+     * <p>Records are numbered as appended, so writers know when theirs is synced.</p>
+     */
+    private long appendedCount = 0,  syncedCount = 0;
+    private boolean syncing = false;
+    private long unsyncedBytes = 0,  unsyncedTimestamp = 0;
+    /**
+     * <p>Chunks not placed yet, in the order logged, and by hash for reads.</p>
+     */
+    private final Set<Record> unplaced = new LinkedHashSet<Record>();
+    private final Map<BigHash, Record> pendingData = new HashMap<BigHash, Record>(),  pendingMetaData = new HashMap<BigHash, Record>();
+    private long pendingBytes = 0;
+    /**
+     * <p>Log files not deleted yet, by number.</p>
+     */
+    private final Map<Long, LogFile> logFiles = new TreeMap<Long, LogFile>();
+    private final List<LogFile> toRetire = new ArrayList<LogFile>();
+    /**
+     * <p>Held while placing a chunk, so a chunk isn't placed after it is superseded.</p>
+     */
+    private final Object placementLock = new Object();
+    /**
+     * <p>Held while replaying log files left by a server that stopped.</p>
+     */
+    private final Object recoveryLock = new Object();
+    private long syncCount = 0,  placedCount = 0,  failedPlacementCount = 0;
+
+    /**
+     * @param dbu
+     * @param directory The directory holding the log files, e.g., the server's home directory. If null, nothing is logged.
+     */
+    protected DataBlockWriteAheadLog(DataBlockUtil dbu, File directory) {
+        super("Place logged chunks thread");
+        this.dbu = dbu;
+        this.directory = directory;
+        setDaemon(true);
+    }
+
+    @Override()
+    public void run() {
+        while (!isStop()) {
+            try {
+                List<Record> batch = new ArrayList<Record>();
+                synchronized (this) {
+                    if (unplaced.isEmpty()) {
+                        // so the log file can be deleted rather than replayed
+                        closeIdleFile();
+                        if (toRetire.isEmpty() && !stop) {
+                            wait(1000);
+                        }
+                    }
+                    for (Iterator<Record> it = unplaced.iterator(); it.hasNext() && batch.size() < PLACEMENT_BATCH_SIZE;) {
+                        batch.add(it.next());
+                    }
+                }
+                place(batch);
+                retireLogFiles();
+            } catch (InterruptedException ex) {
+                // nope, check whether stopped
+            } catch (Exception ex) {
+                DebugUtil.debugErr(DataBlockWriteAheadLog.class, ex);
+                // try again later, e.g., when there is more space
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException nope) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True if chunks can be logged, i.e., the server has a home directory.
+     */
+    public boolean isAvailable() {
+        return directory != null;
+    }
+
+    /**
+     * <p>Log a chunk, returning once it is synced to the disk. It is placed in a DataBlock later.</p>
+     * @param isMetaData
+     * @param hash
+     * @param bytes
+     * @throws java.lang.Exception
+     */
+    public void append(boolean isMetaData, BigHash hash, byte[] bytes) throws Exception {
+        // replay can't read a longer record, so it must not be logged
+        if (bytes.length > MAX_FILE_SIZE) {
+            throw new IOException("Chunk is too large for the write-ahead log: " + bytes.length + " bytes.");
+        }
+        recover();
+        long recordNumber;
+        synchronized (this) {
+            // keep memory in check
+            while (pendingBytes > 0 && pendingBytes + bytes.length > dbu.getWriteAheadLogMaxPendingBytes()) {
+                if (stop) {
+                    throw new IOException("Write-ahead log is closed.");
+                }
+                wait(1000);
+            }
+            if (stop) {
+                throw new IOException("Write-ahead log is closed.");
+            }
+
+            Record record = new Record(lazyOpenFile(), isMetaData, hash, bytes);
+            recordNumber = writeRecord(isMetaData ? RECORD_ADD_META_DATA : RECORD_ADD_DATA, hash, bytes);
+
+            // replaces any earlier bytes for reads, but earlier records are still placed first
+            unplaced.add(record);
+            (isMetaData ? pendingMetaData : pendingData).put(hash, record);
+            pendingBytes += bytes.length;
+            logFiles.get(record.fileNumber).add(record);
+            notifyAll();
+        }
+        waitUntilSynced(recordNumber);
+    }
+
+    /**
+     * <p>Drop any records for a chunk that is about to be deleted or written directly to a DataBlock. If any log file is left, logs a deletion so replaying it doesn't bring back the old bytes. Returns once synced.</p>
+     * @param isMetaData
+     * @param hash
+     * @throws java.lang.Exception
+     */
+    public void supersede(boolean isMetaData, BigHash hash) throws Exception {
+        if (directory == null) {
+            return;
+        }
+        recover();
+        long recordNumber;
+        // a chunk being placed is placed first, so the caller can delete it
+        synchronized (placementLock) {
+            synchronized (this) {
+                if (logFiles.isEmpty()) {
+                    return;
+                }
+                Record record = (isMetaData ? pendingMetaData : pendingData).remove(hash);
+                if (record != null) {
+                    for (Iterator<Record> it = unplaced.iterator(); it.hasNext();) {
+                        Record r = it.next();
+                        if (r.isMetaData == isMetaData && r.hash.equals(hash)) {
+                            it.remove();
+                            pendingBytes -= r.bytes.length;
+                            logFiles.get(r.fileNumber).placed();
+                        }
+                    }
+                    notifyAll();
+                }
+                LogFile logFile = logFiles.get(lazyOpenFile());
+                logFile.touch(isMetaData, hash);
+                recordNumber = writeRecord(isMetaData ? RECORD_DELETE_META_DATA : RECORD_DELETE_DATA, hash, null);
+                checkRetire();
+            }
+        }
+        waitUntilSynced(recordNumber);
+    }
+
+    /**
+     * @param isMetaData
+     * @param hash
+     * @return The bytes of a logged chunk not placed in a DataBlock yet, or null.
+     */
+    public synchronized byte[] getPending(boolean isMetaData, BigHash hash) {
+        Record record = (isMetaData ? pendingMetaData : pendingData).get(hash);
+        return record != null ? record.bytes : null;
+    }
+
+    /**
+     * <p>Replay any log files left by a server that stopped, placing their chunks in DataBlocks. Only done once; later calls return straight away, or wait until the replay is done if it is under way.</p>
+     * <p>The monitor isn't held while replaying, so reads of logged chunks and the placing thread aren't held up. Chunks aren't logged until the replay is done, since append and supersede call this first.</p>
+     */
+    public void recover() {
+        synchronized (recoveryLock) {
+            List<Long> numbers;
+            synchronized (this) {
+                if (directory == null || recovered) {
+                    return;
+                }
+                numbers = getFileNumbers();
+                // new log files are numbered after the old ones
+                for (long number : numbers) {
+                    fileNumber = Math.max(fileNumber, number);
+                }
+            }
+            for (long number : numbers) {
+                LogFile logFile = new LogFile(number);
+                try {
+                    replay(logFile);
+                    retire(logFile);
+                } catch (Exception e) {
+                    // left for the next start up
+                    DebugUtil.debugErr(DataBlockWriteAheadLog.class, e);
+                }
+            }
+            synchronized (this) {
+                recovered = true;
+            }
+        }
+    }
+
+    /**
+     * <p>Places every record in a log file left by a server that stopped. Stops at the first incomplete record or one that does not match its checksum, which was never synced. No record longer than MAX_FILE_SIZE is logged, so a longer length is also a record that was never synced.</p>
+     */
+    private void replay(LogFile logFile) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile.file)));
+        try {
+            if (in.readInt() != FORMAT_VERSION || in.readLong() != logFile.number) {
+                throw new IOException("Bad write-ahead log header: " + logFile.file.getName());
+            }
+            CRC32 crc = new CRC32();
+            int type;
+            while ((type = in.read()) != -1) {
+                byte[] hashBytes = new byte[BigHash.HASH_LENGTH];
+                byte[] bytes;
+                try {
+                    in.readFully(hashBytes);
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_FILE_SIZE) {
+                        break;
+                    }
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                    crc.reset();
+                    crc.update(type);
+                    crc.update(hashBytes);
+                    crc.update(bytes);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                BigHash hash = BigHash.createFromBytes(hashBytes);
+                switch (type) {
+                    case RECORD_ADD_DATA:
+                        dbu.addDataToDataBlock(hash, bytes);
+                        break;
+                    case RECORD_ADD_META_DATA:
+                        dbu.addMetaDataToDataBlock(hash, bytes);
+                        break;
+                    case RECORD_DELETE_DATA:
+                        dbu.deleteDataFromDataBlock(hash);
+                        break;
+                    case RECORD_DELETE_META_DATA:
+                        dbu.deleteMetaDataFromDataBlock(hash);
+                        break;
+                    default:
+                        throw new IOException("Unrecognized write-ahead log record type: " + type);
+                }
+                logFile.touch(type == RECORD_ADD_META_DATA || type == RECORD_DELETE_META_DATA, hash);
+            }
+        } finally {
+            IOUtil.safeClose(in);
+        }
+    }
+
+    /**
+     * <p>Places chunks in DataBlocks, sorted by hash so chunks for the same DataBlock are written together. Chunks for the same hash keep their order.</p>
+     * <p>A chunk that can't be placed, e.g., because its data directory is read-only, doesn't hold up the rest. It and later chunks with its hash are tried again with the next batch.</p>
+     */
+    private void place(List<Record> batch) throws Exception {
+        Collections.sort(batch, new Comparator<Record>() {
+
+            public int compare(Record a, Record b) {
+                return a.hash.compareTo(b.hash);
+            }
+        });
+        Exception failure = null;
+        Set<BigHash> failedHashes = new HashSet<BigHash>();
+        for (Record record : batch) {
+            if (failedHashes.contains(record.hash)) {
+                continue;
+            }
+            synchronized (placementLock) {
+                synchronized (this) {
+                    // superseded meanwhile
+                    if (!unplaced.contains(record)) {
+                        continue;
+                    }
+                }
+                try {
+                    if (record.isMetaData) {
+                        dbu.addMetaDataToDataBlock(record.hash, record.bytes);
+                    } else {
+                        dbu.addDataToDataBlock(record.hash, record.bytes);
+                    }
+                } catch (Exception e) {
+                    failedPlacementCount++;
+                    failedHashes.add(record.hash);
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    unplaced.remove(record);
+                    Map<BigHash, Record> pending = record.isMetaData ? pendingMetaData : pendingData;
+                    if (pending.get(record.hash) == record) {
+                        pending.remove(record.hash);
+                    }
+                    pendingBytes -= record.bytes.length;
+                    logFiles.get(record.fileNumber).placed();
+                    placedCount++;
+                    checkRetire();
+                    notifyAll();
+                }
+            }
+        }
+        if (failure != null) {
+            synchronized (this) {
+                // to the back, so the next batch starts with other chunks
+                List<Record> failed = new ArrayList<Record>();
+                for (Iterator<Record> it = unplaced.iterator(); it.hasNext();) {
+                    Record record = it.next();
+                    if (failedHashes.contains(record.hash)) {
+                        failed.add(record);
+                        it.remove();
+                    }
+                }
+                unplaced.addAll(failed);
+            }
+            throw failure;
+        }
+    }
+
+    /**
+     * <p>Closes the log file if every record in it is synced, so it is deleted once its chunks are placed. The next chunk logged opens a new one. Must hold the monitor.</p>
+     */
+    private void closeIdleFile() {
+        if (out == null || syncing || syncedCount != appendedCount) {
+            return;
+        }
+        IOUtil.safeClose(out);
+        out = null;
+        fos = null;
+        checkRetire();
+    }
+
+    /**
+     * <p>Queues log files that are closed and have every chunk placed to be deleted. Must hold the monitor.</p>
+     */
+    private void checkRetire() {
+        for (Iterator<LogFile> it = logFiles.values().iterator(); it.hasNext();) {
+            LogFile logFile = it.next();
+            if (logFile.unplacedCount == 0 && (out == null || logFile.number != fileNumber)) {
+                it.remove();
+                toRetire.add(logFile);
+            }
+        }
+    }
+
+    /**
+     * <p>Deletes the log files queued by checkRetire.</p>
+     */
+    private void retireLogFiles() throws Exception {
+        while (true) {
+            LogFile logFile;
+            synchronized (this) {
+                if (toRetire.isEmpty()) {
+                    return;
+                }
+                logFile = toRetire.remove(0);
+            }
+            retire(logFile);
+        }
+    }
+
+    /**
+     * <p>Syncs the DataBlocks the chunks in a log file went to, then deletes the log file.</p>
+     */
+    private void retire(LogFile logFile) throws Exception {
+        Set<String> synced = new HashSet<String>();
+        for (int i = 0; i < 2; i++) {
+            boolean isMetaData = i == 1;
+            for (BigHash hash : isMetaData ? logFile.metaDataHashes : logFile.dataHashes) {
+                DataBlock block = dbu.getDataBlockToGetChunk(hash, isMetaData);
+                if (synced.add(block.getAbsolutePath())) {
+                    block.sync();
+                }
+            }
+        }
+        IOUtil.safeDelete(logFile.file);
+    }
+
+    /**
+     * <p>Opens a log file if none is open, rolling over to a new one if the current one is full. Must hold the monitor.</p>
+     * @return The number of the open log file.
+     */
+    private long lazyOpenFile() throws Exception {
+        if (out != null && fileSize < MAX_FILE_SIZE) {
+            return fileNumber;
+        }
+        // a sync might be using the file
+        while (syncing) {
+            wait();
+        }
+        if (out != null) {
+            out.flush();
+            fos.getFD().sync();
+            IOUtil.safeClose(out);
+            out = null;
+            fos = null;
+            syncedCount = appendedCount;
+            unsyncedBytes = 0;
+            notifyAll();
+            checkRetire();
+        }
+
+        fileNumber++;
+        LogFile logFile = new LogFile(fileNumber);
+        fos = new FileOutputStream(logFile.file);
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(fileNumber);
+        fileSize = 12;
+        logFiles.put(fileNumber, logFile);
+        return fileNumber;
+    }
+
+    /**
+     * <p>Writes a record to the open log file. Must hold the monitor.</p>
+     * @return The record's number.
+     */
+    private long writeRecord(byte type, BigHash hash, byte[] bytes) throws IOException {
+        byte[] hashBytes = hash.toByteArray();
+        int length = bytes != null ? bytes.length : 0;
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(hashBytes);
+        if (bytes != null) {
+            crc.update(bytes);
+        }
+        out.write(type);
+        out.write(hashBytes);
+        out.writeInt(length);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+        out.writeInt((int) crc.getValue());
+
+        long recordSize = 1 + hashBytes.length + 4 + length + 4;
+        fileSize += recordSize;
+        if (unsyncedBytes == 0) {
+            unsyncedTimestamp = TimeUtil.getTrancheTimestamp();
+        }
+        unsyncedBytes += recordSize;
+        return ++appendedCount;
+    }
+
+    /**
+     * <p>Waits until a record is synced, doing the sync if it is due and no other writer is.</p>
+     */
+    private void waitUntilSynced(long recordNumber) throws Exception {
+        long syncTo;
+        FileOutputStream syncFile;
+        synchronized (this) {
+            while (true) {
+                if (syncedCount >= recordNumber) {
+                    return;
+                }
+                if (!syncing) {
+                    long millisLeft = unsyncedTimestamp + dbu.getWriteAheadLogSyncInterval() - TimeUtil.getTrancheTimestamp();
+                    if (millisLeft <= 0 || unsyncedBytes >= dbu.getWriteAheadLogSyncBytes()) {
+                        break;
+                    }
+                    wait(millisLeft);
+                } else {
+                    wait();
+                }
+            }
+            syncing = true;
+            syncTo = appendedCount;
+            unsyncedBytes = 0;
+            syncFile = fos;
+            try {
+                out.flush();
+            } catch (IOException e) {
+                syncing = false;
+                notifyAll();
+                throw e;
+            }
+        }
+
+        // other writers can append meanwhile
+        boolean synced = false;
+        try {
+            syncFile.getFD().sync();
+            synced = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (synced) {
+                    syncedCount = Math.max(syncedCount, syncTo);
+                    syncCount++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return The sorted numbers of the log files on disk.
+     */
+    private List<Long> getFileNumbers() {
+        List<Long> numbers = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length())));
+                    } catch (NumberFormatException e) { /* not a log file */ }
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * @return The number of logged chunks not placed in DataBlocks yet.
+     */
+    public synchronized int getPendingCount() {
+        return unplaced.size();
+    }
+
+    /**
+     * @return The number of bytes of logged chunks not placed in DataBlocks yet.
+     */
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return The number of times the log was synced.
+     */
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * @return The number of logged chunks placed in DataBlocks.
+     */
+    public synchronized long getPlacedCount() {
+        return placedCount;
+    }
+
+    /**
+     * @return The number of times placing a logged chunk failed. It is tried again.
+     */
+    public long getFailedPlacementCount() {
+        return failedPlacementCount;
+    }
+
+    /**
+     * @return True if the thread was told to stop.
+     */
+    public synchronized boolean isStop() {
+        return stop;
+    }
+
+    /**
+     * <p>Stop placing chunks and close the log file. Log files with every chunk placed are deleted; the rest are replayed at the next start up.</p>
+     * @param stop
+     */
+    public void setStop(boolean stop) {
+        synchronized (this) {
+            this.stop = stop;
+            notifyAll();
+            if (!stop || out == null) {
+                return;
+            }
+            while (syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            try {
+                out.flush();
+                fos.getFD().sync();
+            } catch (Exception e) {
+                DebugUtil.debugErr(DataBlockWriteAheadLog.class, e);
+            }
+            IOUtil.safeClose(out);
+            out = null;
+            fos = null;
+            syncedCount = appendedCount;
+            checkRetire();
+            notifyAll();
+        }
+        try {
+            retireLogFiles();
+        } catch (Exception e) {
+            DebugUtil.debugErr(DataBlockWriteAheadLog.class, e);
+        }
+    }
+
+    /**
+     * @return The log file with the given number.
+     */
+    private File getFile(long number) {
+        return new File(directory, FILE_PREFIX + number + FILE_SUFFIX);
+    }
+
+    /**
+     * <p>A logged chunk.</p>
+     */
+    private class Record {
+
+        final long fileNumber;
+        final boolean isMetaData;
+        final BigHash hash;
+        final byte[] bytes;
+
+        Record(long fileNumber, boolean isMetaData, BigHash hash, byte[] bytes) {
+            this.fileNumber = fileNumber;
+            this.isMetaData = isMetaData;
+            this.hash = hash;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * <p>A log file not deleted yet, with the chunks it holds so their DataBlocks can be synced.</p>
+     */
+    private class LogFile {
+
+        final long number;
+        final File file;
+        final Set<BigHash> dataHashes = new HashSet<BigHash>(),  metaDataHashes = new HashSet<BigHash>();
+        int unplacedCount = 0;
+
+        LogFile(long number) {
+            this.number = number;
+            this.file = getFile(number);
+        }
+
+        void add(Record record) {
+            touch(record.isMetaData, record.hash);
+            unplacedCount++;
+        }
+
+        void placed() {
+            unplacedCount--;
+        }
+
+        void touch(boolean isMetaData, BigHash hash) {
+            (isMetaData ? metaDataHashes : dataHashes).add(hash);
+        }
+    }
+}
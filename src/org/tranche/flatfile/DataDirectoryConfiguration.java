@@ -41,6 +41,18 @@ public class DataDirectoryConfiguration implements Comparable {
      * <p>A reference to the DataBlockUtil for getting information about data available to the server.</p>
      */
     DataBlockUtil dbu = null;
+    /**
+     * <p>Bounds the chunk operations running against the directory.</p>
+     */
+    private DataDirectoryIOQueue ioQueue;
+    /**
+     * <p>Weight of each second in the recent write rate.</p>
+     */
+    private static final double WRITE_RATE_WEIGHT = 0.1;
+    // Bytes per second recently written to the directory, and the bytes written since it was last updated
+    private double writeRate = 0;
+    private long writeRateBytes = 0;
+    private long writeRateTimestamp = TimeUtil.getTrancheTimestamp();
 
     /**
      * 
@@ -83,6 +95,7 @@ public class DataDirectoryConfiguration implements Comparable {
         if (!directory.equals(this.directory)) {
             this.directory = directory;
             this.actualSize = 0;
+            this.ioQueue = new DataDirectoryIOQueue(directory);
         }
     }
 
@@ -136,6 +149,10 @@ public class DataDirectoryConfiguration implements Comparable {
         final long prevSize = this.actualSize;
         // inc up the actually used bytes
         this.actualSize += adjustment;
+        if (adjustment > 0) {
+            writeRateBytes += adjustment;
+            updateWriteRate();
+        }
         printTracer("Adjusted space from " + prevSize + " -> " + this.actualSize + " (limit=" + this.sizeLimit + ") for " + this.directory);
 
         // Detect overflow. Requires positive number.
@@ -179,6 +196,47 @@ public class DataDirectoryConfiguration implements Comparable {
         return actualSize;
     }
 
+    /**
+     * <p>Get the bytes per second recently written to the directory, weighted toward the last few seconds.</p>
+     * @return
+     */
+    public synchronized double getRecentWriteRate() {
+        updateWriteRate();
+        return writeRate;
+    }
+
+    /**
+     * <p>Folds the bytes written since the last update in to the write rate, once a second. Must hold the monitor.</p>
+     */
+    private void updateWriteRate() {
+        final long now = TimeUtil.getTrancheTimestamp();
+        final long seconds = (now - writeRateTimestamp) / 1000;
+        if (seconds < 1) {
+            return;
+        }
+        // each second without writes counts as a second at no bytes
+        final double decay = Math.pow(1 - WRITE_RATE_WEIGHT, seconds);
+        writeRate = decay * writeRate + (1 - decay) * writeRateBytes / seconds;
+        writeRateBytes = 0;
+        writeRateTimestamp = now;
+    }
+
+    /**
+     * <p>Get the queue bounding the chunk operations running against the directory.</p>
+     * @return
+     */
+    public DataDirectoryIOQueue getIOQueue() {
+        return ioQueue;
+    }
+
+    /**
+     * <p>Returns true if the directory is degraded, so no chunks should be written to it for now.</p>
+     * @return
+     */
+    public boolean isReadOnly() {
+        return ioQueue.isReadOnly();
+    }
+
     /**
      * <p>Prints out tracers if debug is set to true.</p>
      * @param msg
@@ -194,6 +252,7 @@ public class DataDirectoryConfiguration implements Comparable {
         DataDirectoryConfiguration ddc = new DataDirectoryConfiguration(this.getDirectory(), this.getSizeLimit());
         ddc.actualSize = this.getActualSize();
         ddc.dbu = this.dbu;
+        ddc.ioQueue = this.ioQueue;
         return ddc;
     }
 
@@ -0,0 +1,193 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import org.tranche.time.TimeUtil;
+
+/**
+ * <p>Bounds the chunk operations running against one data directory, so a slow disk only holds up requests for its own chunks.</p>
+ * <p>Operations past the concurrency limit wait in the queue. Once the queue is full, further operations are turned away rather than waiting. The directory is marked read-only for a while if its operations get too slow or keep failing, so new chunks go to the other directories.</p>
+ * <p>An operation's latency doesn't count time spent waiting for DataBlock locks taken using lock, since that is contention rather than a slow disk.</p>
+ */
+public class DataDirectoryIOQueue {
+
+    /**
+     * <p>Weight of the newest operation in the average latency.</p>
+     */
+    public static final double LATENCY_WEIGHT = 0.1;
+    /**
+     * <p>Number of failed operations in a row at which the directory is marked read-only.</p>
+     */
+    public static final int MAX_CONSECUTIVE_FAILURES = 5;
+    /**
+     * <p>Milliseconds a degraded directory stays read-only before it is given another chance.</p>
+     */
+    public static final long READ_ONLY_TIME = 60 * 1000;
+    private final String directory;
+    private int running = 0;
+    private int waiting = 0;
+    private double averageLatency = 0;
+    private int consecutiveFailures = 0;
+    private long readOnlyUntil = 0;
+    private long operationCount = 0;
+    private long rejectedCount = 0;
+    private long failureCount = 0;
+    /**
+     * <p>Milliseconds each thread has spent waiting for locks taken using lock.</p>
+     */
+    private static final ThreadLocal<long[]> lockWaitTime = new ThreadLocal<long[]>() {
+
+        @Override()
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * @param directory The data directory, for messages.
+     */
+    public DataDirectoryIOQueue(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * <p>Wait for a turn to run an operation on the directory. Every call that returns must be followed by a call to end.</p>
+     * @param maxConcurrent The most operations that run at once.
+     * @param maxQueueDepth The most operations that wait for a turn.
+     * @return The time the operation started, less the time the thread has spent waiting for locks, to pass to end.
+     * @throws java.io.IOException If the queue is full.
+     * @throws java.lang.InterruptedException
+     */
+    public synchronized long begin(int maxConcurrent, int maxQueueDepth) throws IOException, InterruptedException {
+        if (running >= maxConcurrent) {
+            if (waiting >= maxQueueDepth) {
+                rejectedCount++;
+                throw new IOException("Data directory is busy, " + waiting + " operations waiting: " + directory);
+            }
+            waiting++;
+            try {
+                while (running >= maxConcurrent) {
+                    wait();
+                }
+            } finally {
+                waiting--;
+            }
+        }
+        running++;
+        return TimeUtil.getTrancheTimestamp() - lockWaitTime.get()[0];
+    }
+
+    /**
+     * <p>Note an operation started with begin has finished, marking the directory read-only if it is degraded.</p>
+     * @param start The value returned by begin.
+     * @param failure The exception thrown by the operation, or null. A missing chunk is not a failure of the disk.
+     * @param degradedLatency Average milliseconds per operation at which the directory is marked read-only.
+     */
+    public synchronized void end(long start, Exception failure, long degradedLatency) {
+        running--;
+        notify();
+
+        // not counting any wait for locks since begin
+        long latency = TimeUtil.getTrancheTimestamp() - lockWaitTime.get()[0] - start;
+        averageLatency = operationCount == 0 ? latency : (1 - LATENCY_WEIGHT) * averageLatency + LATENCY_WEIGHT * latency;
+        operationCount++;
+
+        if (failure instanceof IOException && !(failure instanceof FileNotFoundException)) {
+            failureCount++;
+            consecutiveFailures++;
+        } else {
+            consecutiveFailures = 0;
+        }
+
+        if (!isReadOnly() && (averageLatency >= degradedLatency || consecutiveFailures >= MAX_CONSECUTIVE_FAILURES)) {
+            System.err.println("Marking data directory read-only for " + READ_ONLY_TIME + " ms, average latency " + (long) averageLatency + " ms, " + consecutiveFailures + " failures in a row: " + directory);
+            readOnlyUntil = TimeUtil.getTrancheTimestamp() + READ_ONLY_TIME;
+        }
+    }
+
+    /**
+     * <p>Take a DataBlock lock, noting how long the thread waited for it so the wait isn't counted as latency of the directory.</p>
+     * @param lock
+     */
+    public static void lock(Lock lock) {
+        if (lock.tryLock()) {
+            return;
+        }
+        long start = TimeUtil.getTrancheTimestamp();
+        lock.lock();
+        lockWaitTime.get()[0] += TimeUtil.getTrancheTimestamp() - start;
+    }
+
+    /**
+     * <p>Returns true if the directory is degraded, so no chunks should be written to it. Starts over once the time is up.</p>
+     * @return
+     */
+    public synchronized boolean isReadOnly() {
+        if (readOnlyUntil == 0) {
+            return false;
+        }
+        if (TimeUtil.getTrancheTimestamp() < readOnlyUntil) {
+            return true;
+        }
+        readOnlyUntil = 0;
+        averageLatency = 0;
+        consecutiveFailures = 0;
+        operationCount = 0;
+        return false;
+    }
+
+    /**
+     * <p>Mark the directory read-only, as if it were degraded.</p>
+     */
+    public synchronized void setReadOnly() {
+        readOnlyUntil = TimeUtil.getTrancheTimestamp() + READ_ONLY_TIME;
+    }
+
+    /**
+     * <p>Returns the average milliseconds per operation, weighted toward recent operations.</p>
+     * @return
+     */
+    public synchronized long getAverageLatency() {
+        return (long) averageLatency;
+    }
+
+    /**
+     * <p>Returns the number of operations running or waiting for a turn.</p>
+     * @return
+     */
+    public synchronized int getQueueDepth() {
+        return running + waiting;
+    }
+
+    /**
+     * <p>Returns the number of operations turned away because the queue was full.</p>
+     * @return
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * <p>Returns the number of operations that failed with an IOException.</p>
+     * @return
+     */
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+}
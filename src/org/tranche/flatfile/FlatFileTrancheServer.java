@@ -23,6 +23,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.security.GeneralSecurityException;
@@ -158,6 +159,8 @@ public class FlatFileTrancheServer extends TrancheServer {
     private final Object getMetaDataCountLock = new Object();
     private long setDataCount = 0;
     private final Object setDataCountLock = new Object();
+    private long setDataSkippedCount = 0;
+    private final Object setDataSkippedCountLock = new Object();
     private long setMetaDataCount = 0;
     private final Object setMetaDataCountLock = new Object();
     private long deleteMetaDataCount = 0;
@@ -366,7 +369,7 @@ public class FlatFileTrancheServer extends TrancheServer {
                 Set<String> keys = new HashSet();
                 keys.addAll(config.getValueKeys());
                 for (String key : keys) {
-                    if (key != null && (key.startsWith("actualBytesUsed:") || key.startsWith("actualBytesUsedOverflow:") || key.startsWith("actualPercentageUsed:"))) {
+                    if (key != null && (key.startsWith("actualBytesUsed:") || key.startsWith("actualBytesUsedOverflow:") || key.startsWith("actualPercentageUsed:") || key.startsWith("ioLatency:") || key.startsWith("ioQueueDepth:") || key.startsWith("ioReadOnly:"))) {
                         keysToRemove.add(key);
                     }
                 }
@@ -390,6 +393,11 @@ public class FlatFileTrancheServer extends TrancheServer {
                     config.setValue("actualBytesUsed:" + ddc.getDirectory(), Long.toString(ddc.getActualSize()));
                     config.setValue("actualBytesUsedOverflow:" + ddc.getDirectory(), String.valueOf(ddc.isOverflowBeenDetected()));
 
+                    // Disk health
+                    config.setValue("ioLatency:" + ddc.getDirectory(), Long.toString(ddc.getIOQueue().getAverageLatency()));
+                    config.setValue("ioQueueDepth:" + ddc.getDirectory(), Integer.toString(ddc.getIOQueue().getQueueDepth()));
+                    config.setValue("ioReadOnly:" + ddc.getDirectory(), String.valueOf(ddc.isReadOnly()));
+
                     // Percentage use
                     double percentage = 100.0 * (double) ddc.getActualSize() / (double) ddc.getSizeLimit();
 
@@ -485,6 +493,61 @@ public class FlatFileTrancheServer extends TrancheServer {
                 config.setValue(ConfigKeys.DATABLOCK_SUCCESS_MERGED, Long.toString(dataBlockUtil.getSuccessMergeDataBlock()));
                 config.setValue(ConfigKeys.DATABLOCK_FAIL_MERGED, Long.toString(dataBlockUtil.getFailedMergeDataBlock()));
 
+                // chunk location cache
+                DataBlockCache cache = dataBlockUtil.getDataBlockCache();
+                config.setValue(ConfigKeys.DATABLOCK_CACHE_SIZE, Long.toString(cache.size()));
+                config.setValue(ConfigKeys.DATABLOCK_CACHE_HIT_COUNT, Long.toString(cache.getHitCount()));
+                config.setValue(ConfigKeys.DATABLOCK_CACHE_MISS_COUNT, Long.toString(cache.getMissCount()));
+                config.setValue(ConfigKeys.DATABLOCK_CACHE_EVICTION_COUNT, Long.toString(cache.getEvictionCount()));
+
+                // popular chunk cache
+                DataBlockChunkCache dataChunkCache = dataBlockUtil.getChunkCache(false), metaDataChunkCache = dataBlockUtil.getChunkCache(true);
+                config.setValue(ConfigKeys.DATABLOCK_CHUNK_CACHE_DATA_SIZE, Long.toString(dataChunkCache.getSizeInBytes()));
+                config.setValue(ConfigKeys.DATABLOCK_CHUNK_CACHE_META_DATA_SIZE, Long.toString(metaDataChunkCache.getSizeInBytes()));
+                config.setValue(ConfigKeys.DATABLOCK_CHUNK_CACHE_DATA_HIT_RATE, String.valueOf(dataChunkCache.getHitRate()));
+                config.setValue(ConfigKeys.DATABLOCK_CHUNK_CACHE_META_DATA_HIT_RATE, String.valueOf(metaDataChunkCache.getHitRate()));
+
+                // background compaction
+                DataBlockCompactionThread compactionThread = dataBlockUtil.getCompactionThread();
+                config.setValue(ConfigKeys.DATABLOCK_COMPACTION_CANDIDATE_COUNT, Integer.toString(compactionThread.getCandidateCount()));
+                config.setValue(ConfigKeys.DATABLOCK_COMPACTED_COUNT, Long.toString(compactionThread.getCompactedCount()));
+                config.setValue(ConfigKeys.DATABLOCK_COMPACTION_BYTES_RECLAIMED, Long.toString(compactionThread.getBytesReclaimed()));
+
+                // write-ahead log
+                DataBlockWriteAheadLog writeAheadLog = dataBlockUtil.getWriteAheadLog();
+                config.setValue(ConfigKeys.DATABLOCK_WRITE_AHEAD_LOG_PENDING_COUNT, Integer.toString(writeAheadLog.getPendingCount()));
+                config.setValue(ConfigKeys.DATABLOCK_WRITE_AHEAD_LOG_SYNC_COUNT, Long.toString(writeAheadLog.getSyncCount()));
+                config.setValue(ConfigKeys.DATABLOCK_WRITE_AHEAD_LOG_PLACED_COUNT, Long.toString(writeAheadLog.getPlacedCount()));
+
+                // balancing
+                DataBlockMover mover = dataBlockUtil.getDataBlockMover();
+                String balanceProgress = mover.getProgress();
+                config.setValue(ConfigKeys.DATABLOCK_BALANCE_MOVED_BYTES, Long.toString(mover.getMovedBytes()));
+                config.setValue(ConfigKeys.DATABLOCK_BALANCE_ABORTED_COUNT, Long.toString(mover.getAbortedCount()));
+                config.setValue(ConfigKeys.DATABLOCK_BALANCE_PROGRESS, balanceProgress != null ? balanceProgress : "None");
+
+                // checksum scrubbing
+                DataBlockScrubber scrubber = dataBlockUtil.getScrubber();
+                config.setValue(ConfigKeys.DATABLOCK_SCRUBBED_CHUNKS, Long.toString(scrubber.getScrubbedCount()));
+                config.setValue(ConfigKeys.DATABLOCK_CORRUPTED_CHUNKS, Long.toString(scrubber.getCorruptedCount()));
+
+                // memory-mapped reads
+                config.setValue(ConfigKeys.DATABLOCK_MAPPED_FILE_COUNT, Long.toString(dataBlockUtil.getMappedFilePool().size()));
+
+                // chunk filters, data and meta data combined
+                DataBlockChunkFilter dataFilter = dataBlockUtil.getDataHashFilter(), metaDataFilter = dataBlockUtil.getMetaDataHashFilter();
+                long negativeCount = dataFilter.getNegativeCount() + metaDataFilter.getNegativeCount();
+                long falsePositiveCount = dataFilter.getFalsePositiveCount() + metaDataFilter.getFalsePositiveCount();
+                config.setValue(ConfigKeys.DATABLOCK_CHUNK_FILTER_READY, String.valueOf(dataFilter.isComplete() && metaDataFilter.isComplete()));
+                config.setValue(ConfigKeys.DATABLOCK_CHUNK_FILTER_FALSE_POSITIVE_RATE, String.valueOf(negativeCount + falsePositiveCount == 0 ? 0 : (double) falsePositiveCount / (negativeCount + falsePositiveCount)));
+                config.setValue(ConfigKeys.DATABLOCK_CHUNK_FILTER_EXPECTED_FALSE_POSITIVE_RATE, String.valueOf(Math.max(dataFilter.getExpectedFalsePositiveRate(), metaDataFilter.getExpectedFalsePositiveRate())));
+                config.setValue(ConfigKeys.DATABLOCK_CHUNK_FILTER_MEMORY, Long.toString(dataFilter.getSizeInBytes() + metaDataFilter.getSizeInBytes()));
+                config.setValue(ConfigKeys.DATABLOCK_CHUNK_FILTER_NEGATIVE_COUNT, Long.toString(negativeCount));
+
+                // index snapshot
+                config.setValue(ConfigKeys.DATABLOCK_LOADED_FROM_INDEX_SNAPSHOT, String.valueOf(dataBlockUtil.getIndexSnapshot().isLoadedFromSnapshot()));
+                config.setValue(ConfigKeys.DATABLOCK_INDEX_JOURNAL_RECORD_COUNT, Long.toString(dataBlockUtil.getIndexSnapshot().getJournalRecordCount()));
+
                 // get build number
                 config.setValue(ConfigKeys.BUILD_NUMBER, "@buildNumber");
 
@@ -587,6 +650,7 @@ public class FlatFileTrancheServer extends TrancheServer {
                 config.setValue(ConfigKeys.REQUESTS_COUNT_HAS_META_DATA, String.valueOf(hasMetaDataCount));
                 config.setValue(ConfigKeys.REQUESTS_COUNT_SET_CONFIGURATION, String.valueOf(setConfigurationCount));
                 config.setValue(ConfigKeys.REQUESTS_COUNT_SET_DATA, String.valueOf(setDataCount));
+                config.setValue(ConfigKeys.REQUESTS_COUNT_SET_DATA_SKIPPED, String.valueOf(setDataSkippedCount));
                 config.setValue(ConfigKeys.REQUESTS_COUNT_SET_META_DATA, String.valueOf(setMetaDataCount));
             } finally {
                 lastConfigurationTimestamp = TimeUtil.getTrancheTimestamp();
@@ -1054,6 +1118,37 @@ public class FlatFileTrancheServer extends TrancheServer {
         return new PropagationReturnWrapper(exceptionSet, dataBytes);
     }
 
+    /**
+     * <p>Get a batch of data chunks as read-only buffers. Same as getData, but when memory-mapped reads are on the chunks are views of the mapped DataBlock files rather than copies on the heap.</p>
+     * @param hashes
+     * @return Wraps a ByteBuffer[] with the same ordering as the hashes; missing chunks are null.
+     * @throws java.lang.Exception
+     * @see DataBlockUtil#getDataByteBuffer(org.tranche.hash.BigHash)
+     */
+    public PropagationReturnWrapper getDataByteBuffers(BigHash[] hashes) throws Exception {
+        synchronized (getDataCountLock) {
+            getDataCount++;
+        }
+
+        ByteBuffer[] dataBuffers = new ByteBuffer[hashes.length];
+        Set<PropagationExceptionWrapper> exceptionSet = new HashSet<PropagationExceptionWrapper>();
+        try {
+            if (!canRead()) {
+                throw new ServerIsNotReadableException();
+            }
+            for (int i = 0; i < hashes.length; i++) {
+                try {
+                    dataBuffers[i] = getDataBlockUtil().getDataByteBuffer(hashes[i]);
+                } catch (Exception e) {
+                    exceptionSet.add(new PropagationExceptionWrapper(e, getHost(), hashes[i]));
+                }
+            }
+        } catch (Exception e) {
+            exceptionSet.add(new PropagationExceptionWrapper(e, getHost()));
+        }
+        return new PropagationReturnWrapper(exceptionSet, dataBuffers);
+    }
+
     /**
      * <p>Get a batch of meta data chunks.</p>
      * @param hashes
@@ -1505,7 +1600,7 @@ public class FlatFileTrancheServer extends TrancheServer {
 
             // update status table
             if (NetworkUtil.getLocalServerRow() != null) {
-                NetworkUtil.getLocalServerRow().update(config);
+                NetworkUtil.getStatus().updateRow(NetworkUtil.getLocalServerRow().getHost(), config);
             }
 
             // Tell to stop to avoid reference problems with DBU
@@ -1610,7 +1705,7 @@ public class FlatFileTrancheServer extends TrancheServer {
     private boolean isSavableAttributePair(String key, String value) {
 
         // Don't save bytes used info -- its ephemeral and generated
-        if (key.startsWith("actualBytesUsed:") || key.startsWith("acutalPercentageUsed:") || key.startsWith("actualBytesUsedOverflow:")) {
+        if (key.startsWith("actualBytesUsed:") || key.startsWith("acutalPercentageUsed:") || key.startsWith("actualBytesUsedOverflow:") || key.startsWith("ioLatency:") || key.startsWith("ioQueueDepth:") || key.startsWith("ioReadOnly:")) {
             return false;
         }
 
@@ -1921,6 +2016,16 @@ public class FlatFileTrancheServer extends TrancheServer {
         }
     }
 
+    /**
+     * <p>Returns a copy of the known projects.</p>
+     * @return
+     */
+    List<BigHash> getKnownProjects() {
+        synchronized (knownProjectsList) {
+            return new ArrayList<BigHash>(knownProjectsList);
+        }
+    }
+
     /**
      * 
      * @param hash
@@ -1976,16 +2081,18 @@ public class FlatFileTrancheServer extends TrancheServer {
                 throw new ServerIsNotWritableException();
             }
 
-            // Check for existing data.
+            // Check for existing data. Only checks the headers (usually indexed in memory), so duplicate writes don't read the chunk from disk.
             boolean exists = false;
             try {
-                if (dataBlockUtil.getData(hash) != null) {
-                    exists = true;
-                }
+                exists = dataBlockUtil.hasData(hash);
             } catch (Exception e) {
             }
 
-            if (!exists) {
+            if (exists) {
+                synchronized (setDataSkippedCountLock) {
+                    setDataSkippedCount++;
+                }
+            } else {
                 // get the certificate
                 User user = config.getRecognizedUser(sig.getCert());
                 // if certificate can't be loaded, throw an exception
@@ -2192,6 +2299,7 @@ public class FlatFileTrancheServer extends TrancheServer {
                 try {
                     if (newMetaData.isProjectFile()) {
                         addKnownProject(hash);
+                        getDataBlockUtil().getIndexSnapshot().log(DataBlockIndexSnapshot.JOURNAL_ADD_PROJECT, hash);
                         // new sticky project
                         if (isStickyMetaDataForThisServer(newMetaData)) {
                             getConfiguration().addStickyProject(hash);
@@ -2492,6 +2600,7 @@ public class FlatFileTrancheServer extends TrancheServer {
                 if (existingMetaData.isProjectFile()) {
                     // remove project from list if the hash is a project
                     removeKnownProject(hash);
+                    getDataBlockUtil().getIndexSnapshot().log(DataBlockIndexSnapshot.JOURNAL_REMOVE_PROJECT, hash);
                     // remove from sticky project list
                     if (existingMetaData.getAllStickyServers().contains(getHost())) {
                         config.removeStickyProject(hash);
@@ -923,20 +923,13 @@ public class HashSpanFixingThread extends DebuggableThread {
     public String[] getHostsToReceiveChunk(BigHash h) {
         Set<String> hostsSet = new HashSet();
 
-        ROWS:
-        for (StatusTableRow row : NetworkUtil.getStatus().getRows()) {
-
-            if (!row.isCore() || !row.isOnline() || !row.isWritable()) {
-                continue ROWS;
-            }
-
-            // If any target hash spans, use those; otherwise, use hash spans
-            for (HashSpan hs : row.getTargetHashSpans()) {
-                if (hs.contains(h)) {
-                    hostsSet.add(row.getHost());
-                    continue ROWS;
-                }
+        StatusTable table = NetworkUtil.getStatus();
+        for (String host : table.getTargetHashSpanIndex().getHosts(h)) {
+            StatusTableRow row = table.getRow(host);
+            if (row == null || !row.isCore() || !row.isOnline() || !row.isWritable()) {
+                continue;
             }
+            hostsSet.add(host);
         }
 
         return hostsSet.toArray(new String[0]);
@@ -17,14 +17,17 @@ package org.tranche.flatfile;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import org.tranche.commons.DebugUtil;
 import org.tranche.commons.DebuggableThread;
 import org.tranche.commons.TextUtil;
+import org.tranche.configuration.ConfigKeys;
 import org.tranche.exceptions.UnexpectedEndOfDataBlockException;
 import org.tranche.hash.BigHash;
 import org.tranche.hash.span.HashSpan;
@@ -47,6 +50,7 @@ public class ProjectFindingThread extends DebuggableThread {
     private int successes = 0, failures = 0;
     private long metaLoaded = 0, metaFailures = 0, dataLoaded = 0;
     private long totalDataBlockMismatch = 0;
+    private final Object countsLock = new Object();
 
     /**
      * 
@@ -98,7 +102,20 @@ public class ProjectFindingThread extends DebuggableThread {
             Set<DataDirectoryConfiguration> ddcs = new HashSet();
             ddcs.addAll(ffts.getConfiguration().getDataDirectories());
 
-            loadDataBlocks(ffts.getDataBlockUtil(), ddcs, this, ffts);
+            DataBlockUtil dbu = ffts.getDataBlockUtil();
+            if (!loadFromIndexSnapshot(dbu, ddcs, this, ffts)) {
+                boolean isEveryDataBlockLoaded = loadDataBlocks(dbu, ddcs, this, ffts);
+
+                // so the next start up doesn't have to read every data block
+                if (isEveryDataBlockLoaded && !this.isStopped() && dbu.isUseIndexSnapshot()) {
+                    dbu.getIndexSnapshot().write();
+                }
+            }
+
+            // place chunks logged but not placed before the server stopped
+            if (!this.isStopped()) {
+                dbu.getWriteAheadLog().recover();
+            }
 
         } catch (Exception e) {
             debugErr(e);
@@ -160,6 +177,16 @@ public class ProjectFindingThread extends DebuggableThread {
 
         // handle the queue of files to merge
         while (!this.ffts.isClosed() && !this.isStopped()) {
+            // snapshot the hash sets now and then, so there's less journal to replay at start up
+            try {
+                DataBlockUtil dbu = this.ffts.getDataBlockUtil();
+                if (dbu.getIndexSnapshot().isLoaded() && TimeUtil.getTrancheTimestamp() - dbu.getIndexSnapshot().getLastWriteTimestamp() > dbu.getIndexSnapshotInterval() && dbu.isUseIndexSnapshot()) {
+                    dbu.getIndexSnapshot().write();
+                }
+            } catch (Exception e) {
+                debugErr(e);
+            }
+
             // try to get a item to use
             DataBlockToMerge dbtm = null;
             try {
@@ -264,282 +291,564 @@ public class ProjectFindingThread extends DebuggableThread {
     }
 
     /**
-     * <p>Depth-first traversal of data blocks to repair, merge old data blocks and gather statistics.</p>
+     * <p>Traversal of data blocks to repair, merge old data blocks and gather statistics.</p>
+     * <p>Each data directory is split in to the files directly in it and the subtrees below it. These are read by a fixed number of threads, by default one per data directory, since each data directory is usually on its own disk.</p>
      * <p>Note that some some parameters are required while some are not.</p>
      * @param dbu Must not be null (required)
      * @param ddcs Must not be null (required)
      * @param thisThread Can be null
      * @param ffts Can be null
+     * @return True if every data block was loaded.
      */
-    private static void loadDataBlocks(DataBlockUtil dbu, Set<DataDirectoryConfiguration> ddcs, ProjectFindingThread thisThread, FlatFileTrancheServer ffts) {
-        try {
+    private static boolean loadDataBlocks(DataBlockUtil dbu, Set<DataDirectoryConfiguration> ddcs, ProjectFindingThread thisThread, FlatFileTrancheServer ffts) {
+        final long start = TimeUtil.getTrancheTimestamp();
 
-            // iterate through all of the data directory configurations
+        // changes while loading aren't journaled, so any snapshot will be out of date
+        dbu.getIndexSnapshot().invalidate();
+        try {
+            // interleave the directories' subtrees, so the threads are spread across the disks
+            List<List<DataBlockScanningTask>> tasksByDirectory = new ArrayList<List<DataBlockScanningTask>>();
+            int taskCount = 0;
             for (DataDirectoryConfiguration ddc : ddcs) {
-                final long startDDC = TimeUtil.getTrancheTimestamp();
-
                 DebugUtil.debugOut(ProjectFindingThread.class, "Searching for data in " + ddc.getDirectory());
+                List<DataBlockScanningTask> tasks = new ArrayList<DataBlockScanningTask>();
+                tasks.add(new DataBlockScanningTask(ddc, ddc.getDirectory(), false));
+                File[] files = new File(ddc.getDirectory()).listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.isDirectory()) {
+                            tasks.add(new DataBlockScanningTask(ddc, file.getAbsolutePath(), true));
+                        }
+                    }
+                }
+                tasksByDirectory.add(tasks);
+                taskCount += tasks.size();
+            }
+            ArrayBlockingQueue<DataBlockScanningTask> queue = new ArrayBlockingQueue<DataBlockScanningTask>(Math.max(1, taskCount));
+            for (int i = 0; queue.size() < taskCount; i++) {
+                for (List<DataBlockScanningTask> tasks : tasksByDirectory) {
+                    if (i < tasks.size()) {
+                        queue.add(tasks.get(i));
+                    }
+                }
+            }
+
+            int threadCount = getScanThreadCount(ffts, ddcs.size());
+            DataBlockScanningThread[] threads = new DataBlockScanningThread[Math.max(1, Math.min(threadCount, taskCount))];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new DataBlockScanningThread(i, queue, dbu, thisThread, ffts);
+                threads[i].start();
+            }
+
+            // wait for the threads, reporting progress
+            for (DataBlockScanningThread thread : threads) {
+                while (thread.isAlive()) {
+                    setStatus(ffts, "Loading data blocks using " + threads.length + " threads: " + (taskCount - queue.size()) + " of " + taskCount + " directories started, " + getDataBlocksLoaded(threads) + " data blocks loaded (Running: " + (TimeUtil.getTrancheTimestamp() - start) + ")");
+                    try {
+                        thread.join(1000);
+                    } catch (InterruptedException e) {
+                        // noop
+                    }
+                }
+            }
+
+            // if any data block could not be loaded, the chunk filters might be missing its chunks
+            boolean isMissingDataBlocks = false;
+            for (DataBlockScanningThread thread : threads) {
+                if (thread.isMissingDataBlocks) {
+                    isMissingDataBlocks = true;
+                }
+            }
+            setStatus(ffts, "Finished loading " + getDataBlocksLoaded(threads) + " data blocks using " + threads.length + " threads" + (isMissingDataBlocks ? ", some could not be loaded" : "") + " (Took: " + (TimeUtil.getTrancheTimestamp() - start) + ")");
+
+            /**
+             * Before committing any information to FFTS or DataBlockUtil,
+             * check to see whether should stop
+             */
+            if (thisThread != null && thisThread.isStopped()) {
+                DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
+                return false;
+            }
+
+            // every chunk on disk is in the filters, so their negative answers can be trusted
+            if (!isMissingDataBlocks) {
+                dbu.getDataHashFilter().setComplete(true);
+                dbu.getMetaDataHashFilter().setComplete(true);
+            }
+            return !isMissingDataBlocks;
+        } finally {
+            // flag done load data blocks
+            if (ffts != null) {
+                ffts.doneLoadingDataBlocks = true;
+            }
+        }
+    } // loadDataBlocks
+
+    /**
+     * <p>Returns the number of threads to read data blocks with.</p>
+     * @param ffts Can be null
+     * @param ddcCount The number of data directories.
+     * @return
+     */
+    private static int getScanThreadCount(FlatFileTrancheServer ffts, int ddcCount) {
+        int threadCount = ConfigKeys.DEFAULT_PROJECT_FINDING_THREAD_SCAN_THREADS;
+        if (ffts != null) {
+            try {
+                threadCount = Integer.parseInt(ffts.getConfiguration().getValue(ConfigKeys.PROJECT_FINDING_THREAD_SCAN_THREADS));
+            } catch (Exception e) {
+            }
+        }
+        if (threadCount <= 0) {
+            threadCount = ddcCount;
+        }
+        return Math.max(1, threadCount);
+    }
+
+    /**
+     * <p>Sets the status of loading the data blocks in the configuration.</p>
+     * @param ffts Can be null
+     * @param status
+     */
+    private static void setStatus(FlatFileTrancheServer ffts, String status) {
+        if (ffts != null) {
+            ffts.getConfiguration().setValue(ConfigKeys.PROJECT_FINDING_THREAD_STATUS, status);
+        }
+    }
+
+    /**
+     * @param threads
+     * @return The number of data blocks the threads have loaded.
+     */
+    private static long getDataBlocksLoaded(DataBlockScanningThread[] threads) {
+        long dataBlocksLoaded = 0;
+        for (DataBlockScanningThread thread : threads) {
+            dataBlocksLoaded += thread.dataBlocksLoaded;
+        }
+        return dataBlocksLoaded;
+    }
+
+    /**
+     * <p>Adds to the counts that are printed once finished.</p>
+     */
+    private void addCounts(int successes, int failures, long dataLoaded, long metaLoaded, long metaFailures, long totalDataBlockMismatch) {
+        synchronized (countsLock) {
+            this.successes += successes;
+            this.failures += failures;
+            this.dataLoaded += dataLoaded;
+            this.metaLoaded += metaLoaded;
+            this.metaFailures += metaFailures;
+            this.totalDataBlockMismatch += totalDataBlockMismatch;
+            ffts.getConfiguration().setValue(ConfigKeys.PROJECT_FINDING_THREAD_DATA_BLOCKS_LOADED, String.valueOf(this.successes));
+        }
+    }
+
+    /**
+     * <p>A part of a data directory to read: either the files directly in it, or a subtree below it.</p>
+     */
+    private static class DataBlockScanningTask {
+
+        final DataDirectoryConfiguration ddc;
+        final String directory;
+        final boolean isRecursive;
+
+        DataBlockScanningTask(DataDirectoryConfiguration ddc, String directory, boolean isRecursive) {
+            this.ddc = ddc;
+            this.directory = directory;
+            this.isRecursive = isRecursive;
+        }
+    }
+
+    /**
+     * <p>Reads data blocks from tasks on a queue until the queue is empty.</p>
+     * <p>Hashes are added to the hash sets in batches, and counts are added to the ProjectFindingThread after each data block.</p>
+     */
+    private static class DataBlockScanningThread extends Thread {
+
+        /**
+         * <p>Number of hashes to add to a hash set at once.</p>
+         */
+        private static final int BATCH_SIZE = 1000;
+        private final ArrayBlockingQueue<DataBlockScanningTask> queue;
+        private final DataBlockUtil dbu;
+        private final ProjectFindingThread thisThread;
+        private final FlatFileTrancheServer ffts;
+        private final List<BigHash> dataHashBatch = new ArrayList<BigHash>(), metaDataHashBatch = new ArrayList<BigHash>();
+        boolean isMissingDataBlocks = false;
+        volatile long dataBlocksLoaded = 0;
+
+        DataBlockScanningThread(int number, ArrayBlockingQueue<DataBlockScanningTask> queue, DataBlockUtil dbu, ProjectFindingThread thisThread, FlatFileTrancheServer ffts) {
+            setName("Data block scanning thread #" + number);
+            setDaemon(true);
+            this.queue = queue;
+            this.dbu = dbu;
+            this.thisThread = thisThread;
+            this.ffts = ffts;
+        }
+
+        @Override()
+        public void run() {
+            try {
+                DataBlockScanningTask task;
+                while ((task = queue.poll()) != null && !isStopped()) {
+                    final long startTask = TimeUtil.getTrancheTimestamp();
+                    scan(task);
+                    DebugUtil.debugOut(ProjectFindingThread.class, "Finished " + task.directory + " at " + TextUtil.getFormattedDate(TimeUtil.getTrancheTimestamp()) + ", took " + TextUtil.formatTimeLength(TimeUtil.getTrancheTimestamp() - startTask) + " to scan in ProjectFindingThread.");
+                }
+            } finally {
+                flush();
+            }
+        }
+
+        private boolean isStopped() {
+            if (thisThread != null && thisThread.isStopped()) {
+                DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * <p>Adds the batches of hashes to the hash sets.</p>
+         */
+        private void flush() {
+            if (!dataHashBatch.isEmpty()) {
+                dbu.addHashesFromDisk(dataHashBatch, false);
+                dataHashBatch.clear();
+            }
+            if (!metaDataHashBatch.isEmpty()) {
+                dbu.addHashesFromDisk(metaDataHashBatch, true);
+                metaDataHashBatch.clear();
+            }
+        }
+
+        /**
+         * <p>Depth-first traversal of the task's directory.</p>
+         * @param task
+         */
+        private void scan(DataBlockScanningTask task) {
+            // use a stack to handle all directories
+            List<String> filenames = new LinkedList<String>();
+            if (task.isRecursive) {
+                filenames.add(task.directory);
+            } else {
+                // only the files directly in the directory
+                String[] names = new File(task.directory).list();
+                if (names != null) {
+                    for (String name : names) {
+                        File file = new File(task.directory, name);
+                        if (!file.isDirectory()) {
+                            filenames.add(file.getAbsolutePath());
+                        }
+                    }
+                }
+            }
+
+            // loop over all entries
+            while (!filenames.isEmpty()) {
+                String filename = filenames.remove(filenames.size() - 1);
+
+                DebugUtil.debugOut(ProjectFindingThread.class, "File name: " + filename);
 
                 /**
                  * Before committing any information to FFTS or DataBlockUtil,
                  * check to see whether should stop
                  */
-                if (thisThread != null && thisThread.isStopped()) {
-                    DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
+                if (isStopped()) {
                     break;
                 }
 
+                try {
+                    File file = new File(filename);
+                    DebugUtil.debugOut(ProjectFindingThread.class, "File path: " + file.getAbsolutePath());
+                    if (file.isDirectory()) {
+                        for (String moreFileName : file.list()) {
+                            DebugUtil.debugOut(ProjectFindingThread.class, "Adding file to stack: " + moreFileName);
+                            filenames.add(file.getAbsolutePath() + File.separator + moreFileName);
+                        }
+                    } else {
+                        loadFile(task.ddc, filename, file);
+                    }
+                } // handle unexpected exceptions while loading data/meta-data caches
+                catch (Exception e) {
+                    isMissingDataBlocks = true;
+                    if (thisThread != null) {
+                        thisThread.addCounts(0, 1, 0, 0, 0, 0);
+                    }
+                    DebugUtil.debugErr(DataBlockUtil.class, e);
+                }
+            }
+        }
+
+        /**
+         * <p>Merges an old data block, or loads the hashes from a data block.</p>
+         * @param ddc
+         * @param filename
+         * @param file
+         * @throws java.lang.Exception
+         */
+        private void loadFile(DataDirectoryConfiguration ddc, String filename, File file) throws Exception {
+            // if this is a .backup or .toadd file, merge it!
+            if (file.getName().contains(".")) {
+                /**
+                 * Before committing any information to FFTS or DataBlockUtil,
+                 * check to see whether should stop
+                 */
+                if (isStopped()) {
+                    return;
+                }
+
+                try {
+                    // add the data!
+                    dbu.mergeOldDataBlock(file);
+                } catch (UnexpectedEndOfDataBlockException ex) {
+
+                    // Send in the data block for salvaging and recreation
+                    dbu.repairCorruptedDataBlock(file, "ProjectFindingThread: merging old data block (1, startup)");
+
+                    // Rethrow the exception so logs appropriately
+                    throw ex;
+                }
+                // skip loading normally
+                return;
+            }
+
+            // load the existing block normally
+            // add all meta-data hashes and check the files for project files
+            String trimmedFileName = filename.substring(ddc.getDirectory().length());
+            DebugUtil.debugOut(ProjectFindingThread.class, "Trimmed File Name: " + trimmedFileName);
+
+            if (trimmedFileName == null || trimmedFileName.trim().equals("")) {
+                DebugUtil.debugOut(ProjectFindingThread.class, "Trimmed file name is empty for " + filename + ", skipping...");
+                return;
+            }
+
+            /**
+             * Before committing any information to FFTS or DataBlockUtil,
+             * check to see whether should stop
+             */
+            if (isStopped()) {
+                return;
+            }
+
+            DataBlock dataBlock = dbu.getDataBlock(trimmedFileName);
+
+            if (dataBlock == null) {
+                System.err.println("Could not find data block for " + trimmedFileName + ", skipping...");
+                System.err.flush();
+                isMissingDataBlocks = true;
+                return;
+            }
+
+            // The found DDC should match the currently iterated DDC. If not, increment
+            // count that will be printed to standard out later.
+            int mismatches = 0;
+            if (!ddc.equals(dataBlock.ddc)) {
+                mismatches++;
+            }
+
+            /**
+             * Need to add the size back, or the DataDirectoryConfiguration size limit
+             * won't be honored.
+             */
+            dataBlock.ddc.adjustUsedSpace(file.length());
+
+            List<BigHash> metaDataHashes = null;
+
+            try {
+                metaDataHashes = dataBlock.getHashes(true);
+            } catch (UnexpectedEndOfDataBlockException ex) {
+
+                // Send in the data block for salvaging and recreation
+                dbu.repairCorruptedDataBlock(file, "ProjectFindThread: getting meta data hashes from data block");
+
+                // Rethrow the exception so logs appropriately
+                throw ex;
+            }
+            DebugUtil.debugOut(ProjectFindingThread.class, "# Meta Data Hashes: " + metaDataHashes.size());
+
+            long metaLoaded = 0, metaFailures = 0;
+            for (BigHash metaDataHash : metaDataHashes) {
+
+                DebugUtil.debugOut(ProjectFindingThread.class, "Checking meta data " + metaDataHash);
+
+                /**
+                 * Before committing any information to FFTS or DataBlockUtil,
+                 * check to see whether should stop
+                 */
+                if (isStopped()) {
+                    return;
+                }
+                // add to the meta-data list kept internally
+                metaDataHashBatch.add(metaDataHash);
+
+                byte[] metaBytes = null;
+                try {
+                    metaBytes = dbu.getMetaData(metaDataHash);
+                } catch (UnexpectedEndOfDataBlockException ex) {
+
+                    // Send in the data block for salvaging and recreation
+                    dbu.repairCorruptedDataBlock(file, "ProjectFindThread: getting meta data chunk to look for project files");
+
+                    // Rethrow the exception so logs appropriately
+                    throw ex;
+                }
+
+                if (metaBytes == null) {
+                    System.err.println("Returned null for meta bytes while loading meta data! Why!?!");
+                    System.err.flush();
+                    continue;
+                }
+
+                // read the meta-data to check for project files
+                try {
+                    MetaData md = MetaDataUtil.read(new ByteArrayInputStream(metaBytes));
+                    if (md.isProjectFile()) {
+                        DebugUtil.debugOut(ProjectFindingThread.class, "ProjectFile found: " + metaDataHash);
+                        /**
+                         * Before committing any information to FFTS or DataBlockUtil,
+                         * check to see whether should stop
+                         */
+                        if (isStopped()) {
+                            return;
+                        }
+
+                        // add the hash for the project file
+                        if (ffts != null) {
+                            ffts.addKnownProject(metaDataHash);
+                        }
+                    }
+
+                    if (ffts != null && ffts.isStickyMetaDataForThisServer(md) && md.isProjectFile()) {
+                        ffts.getConfiguration().addStickyProject(metaDataHash);
+                    }
+
+                    // Only counts as loaded if makes it here
+                    metaLoaded++;
+                } catch (Exception metaEx) {
+                    DebugUtil.debugErr(DataBlockUtil.class, metaEx);
+                    metaFailures++;
+                    if (thisThread != null) {
+                        System.err.println("Meta data exception while loading meta data in ProjectFindingThread <" + metaEx.getClass().getName() + ">: " + metaEx.getMessage());
+                    }
+                    // Don't print stack trace. Message above is brief but contains enough info.
+                    // Might be a lot of these!
+                }
+            }
+
+            /**
+             * Before committing any information to FFTS or DataBlockUtil,
+             * check to see whether should stop
+             */
+            if (isStopped()) {
+                return;
+            }
+
+            // add all data hashes
+            List<BigHash> dataHashes = dataBlock.getHashes(false);
+            dataHashBatch.addAll(dataHashes);
+            if (dataHashBatch.size() >= BATCH_SIZE || metaDataHashBatch.size() >= BATCH_SIZE) {
+                flush();
+            }
+
+            dataBlocksLoaded++;
+            if (thisThread != null) {
+                thisThread.addCounts(1, 0, dataHashes.size(), metaLoaded, metaFailures, mismatches);
+            }
+        }
+    }
+
+    /**
+     * <p>Loads the chunk hashes and known projects from the index snapshot instead of reading every data block.</p>
+     * <p>The data directories are still walked, but only to merge old data blocks and add up the space used; no data block is opened.</p>
+     * @param dbu Must not be null (required)
+     * @param ddcs Must not be null (required)
+     * @param thisThread Can be null
+     * @param ffts Must not be null (required)
+     * @return True if loaded from the snapshot. If false, nothing was loaded.
+     */
+    private static boolean loadFromIndexSnapshot(DataBlockUtil dbu, Set<DataDirectoryConfiguration> ddcs, ProjectFindingThread thisThread, FlatFileTrancheServer ffts) {
+        if (!dbu.isUseIndexSnapshot() || !dbu.getIndexSnapshot().load(ddcs)) {
+            return false;
+        }
+        try {
+            for (DataDirectoryConfiguration ddc : ddcs) {
+
                 // use a stack to handle all directories
-                List<String> filenames = new LinkedList();
+                List<String> filenames = new LinkedList<String>();
                 filenames.add(ddc.getDirectory());
 
-                // loop over all entries
                 while (!filenames.isEmpty()) {
                     String filename = filenames.remove(filenames.size() - 1);
-
-                    DebugUtil.debugOut(ProjectFindingThread.class, "File name: " + filename);
-
-                    /**
-                     * Before committing any information to FFTS or DataBlockUtil,
-                     * check to see whether should stop
-                     */
                     if (thisThread != null && thisThread.isStopped()) {
                         DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
-                        break;
+                        return true;
                     }
 
                     try {
                         File file = new File(filename);
-                        DebugUtil.debugOut(ProjectFindingThread.class, "File path: " + file.getAbsolutePath());
                         if (file.isDirectory()) {
                             for (String moreFileName : file.list()) {
-                                DebugUtil.debugOut(ProjectFindingThread.class, "Adding file to stack: " + moreFileName);
                                 filenames.add(file.getAbsolutePath() + File.separator + moreFileName);
                             }
-                        } else {
+                        } else if (file.getName().contains(".")) {
                             // if this is a .backup or .toadd file, merge it!
-                            if (file.getName().contains(".")) {
-                                // add the old data
-                                String blockName = filename.substring(ddc.getDirectory().length());
-                                blockName = blockName.split("\\.")[0];
-
-                                /**
-                                 * Before committing any information to FFTS or DataBlockUtil,
-                                 * check to see whether should stop
-                                 */
-                                if (thisThread != null && thisThread.isStopped()) {
-                                    DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
-                                    break;
-                                }
-
-                                try {
-                                    // add the data!
-                                    dbu.mergeOldDataBlock(new File(filename));
-                                } catch (UnexpectedEndOfDataBlockException ex) {
-
-                                    // Send in the data block for salvaging and recreation
-                                    dbu.repairCorruptedDataBlock(new File(filename), "ProjectFindingThread: merging old data block (1, startup)");
-
-                                    // Rethrow the exception so logs appropriately
-                                    throw ex;
-                                }
-                                // skip loading normally
-                                continue;
+                            try {
+                                dbu.mergeOldDataBlock(file);
+                            } catch (UnexpectedEndOfDataBlockException ex) {
+                                dbu.repairCorruptedDataBlock(file, "ProjectFindingThread: merging old data block (3, startup from index snapshot)");
+                                throw ex;
                             }
-
-                            // load the existing block normally
-                            // add all meta-data hashes and check the files for project files
+                        } else {
                             String trimmedFileName = filename.substring(ddc.getDirectory().length());
-                            DebugUtil.debugOut(ProjectFindingThread.class, "Trimmed File Name: " + trimmedFileName);
-
-                            if (trimmedFileName == null || trimmedFileName.trim().equals("")) {
-                                DebugUtil.debugOut(ProjectFindingThread.class, "Trimmed file name is empty for " + filename + ", skipping...");
+                            if (trimmedFileName.trim().equals("")) {
                                 continue;
                             }
-
-                            /**
-                             * Before committing any information to FFTS or DataBlockUtil,
-                             * check to see whether should stop
-                             */
-                            if (thisThread != null && thisThread.isStopped()) {
-                                DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
-                                break;
-                            }
-
                             DataBlock dataBlock = dbu.getDataBlock(trimmedFileName);
-
                             if (dataBlock == null) {
-                                System.err.println("Could not find data block for " + trimmedFileName + ", skipping...");
-                                System.err.flush();
                                 continue;
                             }
-
-                            // The found DDC should match the currently iterated DDC. If not, increment
-                            // count that will be printed to standard out later.
                             if (thisThread != null && !ddc.equals(dataBlock.ddc)) {
                                 thisThread.totalDataBlockMismatch++;
                             }
-
-                            /**
-                             * Need to add the size back, or the DataDirectoryConfiguration size limit
-                             * won't be honored.
-                             */
+                            // so the DataDirectoryConfiguration size limit is honored
                             dataBlock.ddc.adjustUsedSpace(file.length());
-
-                            List<BigHash> metaDataHashes = null;
-
-                            try {
-                                metaDataHashes = dataBlock.getHashes(true);
-                            } catch (UnexpectedEndOfDataBlockException ex) {
-
-                                // Send in the data block for salvaging and recreation
-                                dbu.repairCorruptedDataBlock(new File(filename), "ProjectFindThread: getting meta data hashes from data block");
-
-                                // Rethrow the exception so logs appropriately
-                                throw ex;
-                            }
-                            DebugUtil.debugOut(ProjectFindingThread.class, "# Meta Data Hashes: " + metaDataHashes.size());
-
-                            /**
-                             * Before committing any information to FFTS or DataBlockUtil,
-                             * check to see whether should stop
-                             */
-                            if (thisThread != null && thisThread.isStopped()) {
-                                DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
-                                break;
-                            }
-
-                            // get a reference to the DataBlockUtil
-                            for (BigHash metaDataHash : metaDataHashes) {
-
-                                DebugUtil.debugOut(ProjectFindingThread.class, "Checking meta data " + metaDataHash);
-
-                                /**
-                                 * Before committing any information to FFTS or DataBlockUtil,
-                                 * check to see whether should stop
-                                 */
-                                if (thisThread != null && thisThread.isStopped()) {
-                                    DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
-                                    break;
-                                }
-                                // add to the meta-data list kept internally
-                                dbu.metaDataHashes.add(metaDataHash);
-
-                                byte[] metaBytes = null;
-                                try {
-                                    metaBytes = dbu.getMetaData(metaDataHash);
-                                } catch (UnexpectedEndOfDataBlockException ex) {
-
-                                    // Send in the data block for salvaging and recreation
-                                    dbu.repairCorruptedDataBlock(new File(filename), "ProjectFindThread: getting meta data chunk to look for project files");
-
-                                    // Rethrow the exception so logs appropriately
-                                    throw ex;
-                                }
-
-                                if (metaBytes == null) {
-                                    System.err.println("Returned null for meta bytes while loading meta data! Why!?!");
-                                    System.err.flush();
-                                    continue;
-                                }
-
-                                // read the meta-data to check for project files
-                                try {
-                                    MetaData md = MetaDataUtil.read(new ByteArrayInputStream(metaBytes));
-                                    if (md.isProjectFile()) {
-                                        DebugUtil.debugOut(ProjectFindingThread.class, "ProjectFile found: " + metaDataHash);
-                                        /**
-                                         * Before committing any information to FFTS or DataBlockUtil,
-                                         * check to see whether should stop
-                                         */
-                                        if (thisThread != null && thisThread.isStopped()) {
-                                            DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
-                                            break;
-                                        }
-
-                                        // add the hash for the project file
-                                        if (ffts != null) {
-                                            ffts.addKnownProject(metaDataHash);
-                                        }
-                                    }
-
-                                    if (ffts != null && ffts.isStickyMetaDataForThisServer(md) && md.isProjectFile()) {
-                                        ffts.getConfiguration().addStickyProject(metaDataHash);
-                                    }
-
-                                    // Only counts as loaded if makes it here
-                                    if (thisThread != null) {
-                                        thisThread.metaLoaded++;
-                                    }
-                                } catch (Exception metaEx) {
-                                    DebugUtil.debugErr(DataBlockUtil.class, metaEx);
-                                    if (thisThread != null) {
-                                        thisThread.metaFailures++;
-                                        System.err.println("Meta data exception #" + thisThread.metaFailures + " while loading meta data in ProjectFindingThread <" + metaEx.getClass().getName() + ">: " + metaEx.getMessage());
-                                    }
-                                    // Don't print stack trace. Message above is brief but contains enough info.
-                                    // Might be a lot of these!
-                                }
-                            }
-
-                            /**
-                             * Before committing any information to FFTS or DataBlockUtil,
-                             * check to see whether should stop
-                             */
-                            if (thisThread != null && thisThread.isStopped()) {
-                                DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
-                                break;
-                            }
-
-                            // add all data hashes and check the files for project files
-                            List<BigHash> dataHashes = dbu.getDataBlock(filename.substring(ddc.getDirectory().length())).getHashes(false);
-                            for (BigHash dataHash : dataHashes) {
-
-                                /**
-                                 * Before committing any information to FFTS or DataBlockUtil,
-                                 * check to see whether should stop
-                                 */
-                                if (thisThread != null && thisThread.isStopped()) {
-                                    DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
-                                    break;
-                                }
-
-                                // add to the meta-data list kept internally
-                                dbu.dataHashes.add(dataHash);
-                                if (thisThread != null) {
-                                    thisThread.dataLoaded++;
-                                }
-                            }
                             if (thisThread != null) {
                                 thisThread.successes++;
                             }
-                        } // Found a datablock
-
-                    } // handle unexpected exceptions while loading data/meta-data caches
-                    catch (Exception e) {
+                        }
+                    } catch (Exception e) {
                         if (thisThread != null) {
                             thisThread.failures++;
                         }
-                        DebugUtil.debugErr(DataBlockUtil.class, e);
+                        DebugUtil.debugErr(ProjectFindingThread.class, e);
                     }
                 }
+            }
 
-                DebugUtil.debugOut(ProjectFindingThread.class, "Finished " + ddc.getDirectory() + " at " + TextUtil.getFormattedDate(TimeUtil.getTrancheTimestamp()) + ", DDC took " + TextUtil.formatTimeLength(TimeUtil.getTrancheTimestamp() - startDDC) + " to scan in ProjectFindingThread.");
-            } // Go through each DDC looking for data/meta data
+            // sticky projects, same as when reading every data block
+            for (BigHash projectHash : ffts.getKnownProjects()) {
+                try {
+                    MetaData md = MetaDataUtil.read(new ByteArrayInputStream(dbu.getMetaData(projectHash)));
+                    if (ffts.isStickyMetaDataForThisServer(md) && md.isProjectFile()) {
+                        ffts.getConfiguration().addStickyProject(projectHash);
+                    }
+                } catch (Exception e) {
+                    DebugUtil.debugErr(ProjectFindingThread.class, e);
+                }
+            }
 
-            /**
-             * Before committing any information to FFTS or DataBlockUtil,
-             * check to see whether should stop
-             */
-            if (thisThread != null && thisThread.isStopped()) {
-                DebugUtil.debugOut(ProjectFindingThread.class, "Stopped");
-                return;
+            if (thisThread != null) {
+                thisThread.dataLoaded = dbu.dataHashes.size();
+                thisThread.metaLoaded = dbu.metaDataHashes.size();
             }
+            setStatus(ffts, "Finished loading chunk hashes from index snapshot");
+
+            // every chunk on disk is in the filters, so their negative answers can be trusted
+            dbu.getDataHashFilter().setComplete(true);
+            dbu.getMetaDataHashFilter().setComplete(true);
+            return true;
         } finally {
-            // flag done load data blocks
-            if (ffts != null) {
-                ffts.doneLoadingDataBlocks = true;
-            }
+            ffts.doneLoadingDataBlocks = true;
         }
-    } // loadDataBlocks
+    }
 }
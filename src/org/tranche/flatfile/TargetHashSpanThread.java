@@ -35,6 +35,7 @@ import org.tranche.hash.span.HashSpanCollection;
 import org.tranche.network.ConnectionUtil;
 import org.tranche.network.MultiServerRequestStrategy;
 import org.tranche.network.NetworkUtil;
+import org.tranche.network.StatusTable;
 import org.tranche.network.StatusTableRow;
 import org.tranche.server.PropagationExceptionWrapper;
 import org.tranche.server.PropagationReturnWrapper;
@@ -381,26 +382,16 @@ public class TargetHashSpanThread extends DebuggableThread {
                 // Find all the servers that should have, checking any available
                 // hash span(s) or target hash span
                 Set<String> serversShouldHave = new HashSet();
-                for (StatusTableRow row : NetworkUtil.getStatus().getRows()) {
+                StatusTable table = NetworkUtil.getStatus();
 
-                    // Make sure server is online and is core
-                    if (row.isOnline() && row.isCore() && row.isWritable()) {
-
-                        boolean contains = false;
+                // When writing, we only care about target hash span!
+                for (String host : table.getTargetHashSpanIndex().getHosts(hash)) {
+                    StatusTableRow row = table.getRow(host);
 
-                        // When writing, we only care about target hash span!
-                        NEXT_TARGET_SERVER_HASH_SPANS:
-                        for (HashSpan hs : row.getTargetHashSpans()) {
-                            if (hs.contains(hash)) {
-                                contains = true;
-                                break NEXT_TARGET_SERVER_HASH_SPANS;
-                            }
-                        }
-
-                        if (contains) {
-                            if (!row.getHost().equals(this.ffts.getHost())) {
-                                serversShouldHave.add(row.getHost());
-                            }
+                    // Make sure server is online and is core
+                    if (row != null && row.isOnline() && row.isCore() && row.isWritable()) {
+                        if (!row.getHost().equals(this.ffts.getHost())) {
+                            serversShouldHave.add(row.getHost());
                         }
                     }
                 }
@@ -83,6 +83,20 @@ public final class BigHash implements Comparable<BigHash> {
     /**
      * The bytes for this hash
      */
+    /**
+     * <p>Size of the buffer large inputs are read in to, so each update is big enough to be worth digesting concurrently.</p>
+     */
+    private static final int PARALLEL_BUFFER_SIZE = 256 * 1024;
+    /**
+     * <p>Each thread's buffer for reading large inputs, reused from one hash to the next.</p>
+     */
+    private static final ThreadLocal<byte[]> parallelBuffer = new ThreadLocal<byte[]>() {
+
+        @Override()
+        protected byte[] initialValue() {
+            return new byte[PARALLEL_BUFFER_SIZE];
+        }
+    };
     private byte[] bytes;
     private int offset = 0;
 
@@ -94,7 +108,7 @@ public final class BigHash implements Comparable<BigHash> {
      * @param bytes
      */
     public BigHash(byte[] bytes) {
-        this(new ByteArrayInputStream(bytes), bytes.length);
+        this(bytes, bytes.length, new byte[0]);
     }
 
     /**
@@ -104,7 +118,7 @@ public final class BigHash implements Comparable<BigHash> {
      * @param length
      */
     public BigHash(byte[] bytes, int length) {
-        this(new ByteArrayInputStream(bytes, 0, length), length, new byte[0]);
+        this(bytes, length, new byte[0]);
     }
 
     /**
@@ -124,7 +138,12 @@ public final class BigHash implements Comparable<BigHash> {
      * @param padding
      */
     public BigHash(byte[] bytes, int length, byte[] padding) {
-        this(new ByteArrayInputStream(bytes, 0, length), length, padding);
+        // already in memory, so hash straight from the array
+        int toHash = Math.max(0, Math.min(length, bytes.length));
+        BigHashMaker bhm = new BigHashMaker(toHash >= BigHashMaker.MIN_PARALLEL_UPDATE);
+        bhm.update(bytes, 0, toHash);
+        bhm.update(padding, 0, padding.length);
+        this.bytes = bhm.finish();
     }
 
     /**
@@ -186,11 +205,12 @@ public final class BigHash implements Comparable<BigHash> {
      * @throws java.lang.RuntimeException
      */
     private final void init(final InputStream is, final long length, byte[] padding) throws RuntimeException {
-        // make the hash functions
-        BigHashMaker bhm = new BigHashMaker();
+        // make the hash functions. Large inputs are digested concurrently, a buffer at a time
+        final boolean isParallel = length >= BigHashMaker.MIN_PARALLEL_UPDATE;
+        BigHashMaker bhm = new BigHashMaker(isParallel);
 
         // hash
-        byte[] buf = new byte[10000];
+        byte[] buf = isParallel ? parallelBuffer.get() : new byte[10000];
         int maxToRead = buf.length;
         // bounds check the max read count
         if (maxToRead > length) {
@@ -0,0 +1,200 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>Bloom filter of BigHash objects. If mightContain returns false, the hash was never added; if true, it probably was.</p>
+ * <p>Hashes cannot be removed. Removing hashes from the underlying collection only makes false positives more likely, so rebuild the filter (at a larger capacity if need be) when getInsertionCount passes getCapacity.</p>
+ * <p>The bits are taken from the hash bytes themselves (double hashing), so no further hashing is needed.</p>
+ */
+public class BigHashBloomFilter {
+
+    /**
+     * <p>The default target false positive rate.</p>
+     */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    private static final int FORMAT_VERSION = 1;
+    private final long capacity;
+    private final long bitCount;
+    private final int hashFunctionCount;
+    private final long[] bits;
+    private long insertionCount = 0;
+
+    /**
+     * @param capacity The number of hashes the filter is sized for.
+     * @param falsePositiveRate The target false positive rate once capacity hashes have been added.
+     */
+    public BigHashBloomFilter(long capacity, double falsePositiveRate) {
+        if (capacity < 1) {
+            capacity = 1;
+        }
+        this.capacity = capacity;
+        // optimal size: m = -n ln(p) / (ln 2)^2, k = (m / n) ln 2
+        long m = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = new long[(int) Math.min(Integer.MAX_VALUE, (m + 63) / 64)];
+        this.bitCount = (long) bits.length * 64;
+        this.hashFunctionCount = Math.max(1, (int) Math.round((double) bitCount / capacity * Math.log(2)));
+    }
+
+    /**
+     * <p>For reading a filter back in.</p>
+     */
+    private BigHashBloomFilter(long capacity, int hashFunctionCount, long[] bits, long insertionCount) {
+        this.capacity = capacity;
+        this.hashFunctionCount = hashFunctionCount;
+        this.bits = bits;
+        this.bitCount = (long) bits.length * 64;
+        this.insertionCount = insertionCount;
+    }
+
+    /**
+     * <p>Add a hash to the filter.</p>
+     * @param hash
+     */
+    public synchronized void add(BigHash hash) {
+        final byte[] b = hash.toByteArray();
+        final long h1 = getHash1(b), h2 = getHash2(b);
+        for (int i = 0; i < hashFunctionCount; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << (bit & 63);
+        }
+        insertionCount++;
+    }
+
+    /**
+     * @param hash
+     * @return False if the hash was never added, true if it probably was.
+     */
+    public synchronized boolean mightContain(BigHash hash) {
+        final byte[] b = hash.toByteArray();
+        final long h1 = getHash1(b), h2 = getHash2(b);
+        for (int i = 0; i < hashFunctionCount; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p>Mixes the MD5 and SHA-256 portions of the hash, so hashes that were contrived to share a prefix still spread out.</p>
+     */
+    private static long getHash1(byte[] b) {
+        return getLong(b, 0) ^ getLong(b, 36);
+    }
+
+    /**
+     *
+     */
+    private static long getHash2(byte[] b) {
+        // odd, so never zero
+        return (getLong(b, 8) ^ getLong(b, 44)) | 1;
+    }
+
+    /**
+     *
+     */
+    private static long getLong(byte[] b, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (b[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * @return The number of hashes the filter is sized for.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of times add was called, including duplicates.
+     */
+    public synchronized long getInsertionCount() {
+        return insertionCount;
+    }
+
+    /**
+     * @return The number of bytes used by the filter's bits.
+     */
+    public long getSizeInBytes() {
+        return (long) bits.length * 8;
+    }
+
+    /**
+     * @return The number of hash functions (bits set per hash).
+     */
+    public int getHashFunctionCount() {
+        return hashFunctionCount;
+    }
+
+    /**
+     * <p>The expected false positive rate given the number of insertions so far: (1 - e^(-kn/m))^k.</p>
+     * @return
+     */
+    public synchronized double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashFunctionCount * insertionCount / bitCount), hashFunctionCount);
+    }
+
+    /**
+     * <p>Write the filter to a stream. Does not close the stream.</p>
+     * @param out
+     * @throws java.io.IOException
+     */
+    public synchronized void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(FORMAT_VERSION);
+        dos.writeLong(capacity);
+        dos.writeInt(hashFunctionCount);
+        dos.writeLong(insertionCount);
+        dos.writeInt(bits.length);
+        for (long word : bits) {
+            dos.writeLong(word);
+        }
+        dos.flush();
+    }
+
+    /**
+     * <p>Read a filter written using write. Does not close the stream.</p>
+     * @param in
+     * @return
+     * @throws java.io.IOException
+     */
+    public static BigHashBloomFilter read(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        int version = dis.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unrecognized Bloom filter format version: " + version);
+        }
+        long capacity = dis.readLong();
+        int hashFunctionCount = dis.readInt();
+        long insertionCount = dis.readLong();
+        long[] bits = new long[dis.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = dis.readLong();
+        }
+        return new BigHashBloomFilter(capacity, hashFunctionCount, bits, insertionCount);
+    }
+}
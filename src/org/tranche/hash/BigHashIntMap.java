@@ -0,0 +1,101 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash;
+
+/**
+ * <p>Map from BigHashes to ints that keeps the hashes packed in one long[] and the values in an int[], so it holds no object per entry. See BigHashTable.</p>
+ * <p>Not thread safe.</p>
+ */
+public class BigHashIntMap extends BigHashTable {
+
+    /**
+     * <p>Returned by get and remove when the hash isn't in the map.</p>
+     */
+    public static final int NO_VALUE = Integer.MIN_VALUE;
+
+    /**
+     *
+     */
+    public BigHashIntMap() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize The number of hashes to make room for.
+     */
+    public BigHashIntMap(int expectedSize) {
+        super(expectedSize, true);
+    }
+
+    /**
+     * @param hash
+     * @param value
+     * @return The previous value, or NO_VALUE if the hash wasn't in the map.
+     */
+    public int put(BigHash hash, int value) {
+        int entry = insert(hash);
+        int previous = NO_VALUE;
+        if (entry >= 0) {
+            previous = values[entry];
+        } else {
+            entry = -entry - 1;
+        }
+        values[entry] = value;
+        return previous;
+    }
+
+    /**
+     * @param hash
+     * @return The value, or NO_VALUE if the hash isn't in the map.
+     */
+    public int get(BigHash hash) {
+        int entry = indexOf(hash);
+        return entry == -1 ? NO_VALUE : values[entry];
+    }
+
+    /**
+     * <p>Returns the value for the hash with the given bytes, without making a BigHash of them.</p>
+     * @param bytes
+     * @param offset Where the hash starts in bytes.
+     * @return The value, or NO_VALUE if the hash isn't in the map.
+     */
+    public int get(byte[] bytes, int offset) {
+        int entry = indexOf(bytes, offset);
+        return entry == -1 ? NO_VALUE : values[entry];
+    }
+
+    /**
+     * @param hash
+     * @return
+     */
+    public boolean containsKey(BigHash hash) {
+        return indexOf(hash) != -1;
+    }
+
+    /**
+     * @param hash
+     * @return The value, or NO_VALUE if the hash wasn't in the map.
+     */
+    public int remove(BigHash hash) {
+        int entry = indexOf(hash);
+        if (entry == -1) {
+            return NO_VALUE;
+        }
+        int value = values[entry];
+        removeAt(entry);
+        return value;
+    }
+}
@@ -16,14 +16,30 @@
 package org.tranche.hash;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.digests.*;
 
 /**
  * Class that actually creates the BigHash used for identifying files/projects. 
+ * <p>A parallel BigHashMaker digests large updates with the three hash functions at once, MD5 and SHA-1 on shared threads while SHA-256, the slowest, runs on the calling thread. The bytes made are the same either way.</p>
  * @author Jayson Falkner - jfalkner@umich.edu
  */
 public final class BigHashMaker {
 
+    /**
+     * <p>Updates of at least this many bytes are digested concurrently by a parallel BigHashMaker. Smaller ones aren't worth handing off.</p>
+     */
+    public static final int MIN_PARALLEL_UPDATE = 64 * 1024;
+    /**
+     * <p>Threads shared by all parallel BigHashMakers. Lazily made.</p>
+     */
+    private static ExecutorService digestExecutor = null;
+    private final boolean isParallel;
     // make the hash functions
     private MD5Digest md5Digest = new MD5Digest();
     private SHA1Digest sha1Digest = new SHA1Digest();
@@ -35,6 +51,20 @@ public final class BigHashMaker {
     // that uses an int rollover.
     // int totalLengthBroken = 0;
 
+    /**
+     * Make a BigHashMaker that digests on the calling thread.
+     */
+    public BigHashMaker() {
+        this(false);
+    }
+
+    /**
+     * @param isParallel True to digest updates of at least MIN_PARALLEL_UPDATE bytes concurrently.
+     */
+    public BigHashMaker(boolean isParallel) {
+        this.isParallel = isParallel;
+    }
+
     /**
      * Update BigHash with a given array of bytes at a particular offset and 
      * length.
@@ -44,9 +74,21 @@ public final class BigHashMaker {
      */
     public final void update(byte[] bytes, int offset, int length) {
         // write out the bytes to the hash functions
-        md5Digest.update(bytes, offset, length);
-        sha1Digest.update(bytes, offset, length);
-        sha256Digest.update(bytes, offset, length);
+        if (isParallel && length >= MIN_PARALLEL_UPDATE) {
+            DigestTask md5 = new DigestTask(md5Digest, bytes, offset, length);
+            DigestTask sha1 = new DigestTask(sha1Digest, bytes, offset, length);
+            ExecutorService executor = getDigestExecutor();
+            executor.execute(md5);
+            executor.execute(sha1);
+            sha256Digest.update(bytes, offset, length);
+            // the bytes may be reused once this returns, so all must be done
+            md5.runOrWait();
+            sha1.runOrWait();
+        } else {
+            md5Digest.update(bytes, offset, length);
+            sha1Digest.update(bytes, offset, length);
+            sha256Digest.update(bytes, offset, length);
+        }
         // track the total length
         totalLength += length;
     }
@@ -71,4 +113,85 @@ public final class BigHashMaker {
         // return the big hash
         return bytes;
     }
+
+    /**
+     * @return True if updates of at least MIN_PARALLEL_UPDATE bytes are digested concurrently.
+     */
+    public final boolean isParallel() {
+        return isParallel;
+    }
+
+    /**
+     * <p>Returns the threads shared by all parallel BigHashMakers, one per processor. They are daemons, so they don't keep the JVM running.</p>
+     * @return
+     */
+    private static synchronized ExecutorService getDigestExecutor() {
+        if (digestExecutor == null) {
+            digestExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BigHashMaker digest thread");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return digestExecutor;
+    }
+
+    /**
+     * <p>Feeds bytes to one hash function. Run by whichever gets to it first: a shared thread, or the BigHashMaker's own thread once done with SHA-256. So a busy pool never leaves the caller waiting on work it could do itself.</p>
+     */
+    private static final class DigestTask implements Runnable {
+
+        private final Digest digest;
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private RuntimeException exception = null;
+
+        private DigestTask(Digest digest, byte[] bytes, int offset, int length) {
+            this.digest = digest;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                digest.update(bytes, offset, length);
+            } catch (RuntimeException e) {
+                exception = e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * <p>Run the task if not yet started, otherwise wait for it to finish.</p>
+         */
+        private void runOrWait() {
+            run();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
 }
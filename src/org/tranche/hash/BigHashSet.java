@@ -0,0 +1,76 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash;
+
+/**
+ * <p>Set of BigHashes that keeps them packed in one long[], so it holds no object per hash. Uses a fraction of the heap of a HashSet of BigHashes and gives the garbage collector nothing to trace. See BigHashTable.</p>
+ * <p>Not thread safe.</p>
+ */
+public class BigHashSet extends BigHashTable {
+
+    /**
+     *
+     */
+    public BigHashSet() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize The number of hashes to make room for.
+     */
+    public BigHashSet(int expectedSize) {
+        super(expectedSize, false);
+    }
+
+    /**
+     * @param hash
+     * @return True if the hash was not already in the set.
+     */
+    public boolean add(BigHash hash) {
+        return insert(hash) < 0;
+    }
+
+    /**
+     * @param hash
+     * @return True if the hash was in the set.
+     */
+    public boolean remove(BigHash hash) {
+        int entry = indexOf(hash);
+        if (entry == -1) {
+            return false;
+        }
+        removeAt(entry);
+        return true;
+    }
+
+    /**
+     * @param hash
+     * @return
+     */
+    public boolean contains(BigHash hash) {
+        return indexOf(hash) != -1;
+    }
+
+    /**
+     * <p>Returns true if the hash with the given bytes is in the set, without making a BigHash of them.</p>
+     * @param bytes
+     * @param offset Where the hash starts in bytes.
+     * @return
+     */
+    public boolean contains(byte[] bytes, int offset) {
+        return indexOf(bytes, offset) != -1;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash;
+
+/**
+ * <p>Hash table of BigHashes kept in one contiguous long[], rather than a BigHash object, its byte[] and an entry object per hash. Base of BigHashSet and BigHashIntMap.</p>
+ * <p>Each hash is held as WORDS longs: nine of eight bytes each, big-endian, then the last four bytes in the high half of the tenth. Hashes are packed one after the other in the order added, and found through a separate int[] of slots using linear probing, so empty slots cost four bytes rather than a whole hash. Removing a hash moves the last one in to its place, so there are no gaps.</p>
+ * <p>Not thread safe.</p>
+ */
+abstract class BigHashTable {
+
+    /**
+     * <p>The number of longs each hash is held in.</p>
+     */
+    static final int WORDS = BigHash.HASH_LENGTH / 8 + 1;
+    private static final int MIN_CAPACITY = 16;
+    /**
+     * <p>The slots are doubled once more than this fraction are used.</p>
+     */
+    private static final float MAX_LOAD = 0.75f;
+    /**
+     * <p>The words of each hash, packed in entry order.</p>
+     */
+    private long[] keys;
+    /**
+     * <p>The value for each entry, if a map. Null otherwise.</p>
+     */
+    protected int[] values;
+    /**
+     * <p>The entry in each slot plus one, or zero if the slot is free.</p>
+     */
+    private int[] slots;
+    private final boolean hasValues;
+    private int size = 0;
+    /**
+     * <p>Words of the hash being looked for, so look ups don't allocate.</p>
+     */
+    private final long[] lookup = new long[WORDS];
+
+    /**
+     * @param expectedSize The number of hashes to make room for.
+     * @param hasValues True to keep an int value for each hash.
+     */
+    BigHashTable(int expectedSize, boolean hasValues) {
+        this.hasValues = hasValues;
+        allocate(Math.max(MIN_CAPACITY, expectedSize));
+    }
+
+    /**
+     * @return The number of hashes in the table.
+     */
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * @return True if there are no hashes in the table.
+     */
+    public final boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * <p>Remove every hash. Shrinks the table back to its smallest size.</p>
+     */
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+
+    /**
+     * <p>Returns the entry holding the hash, or -1 if not in the table.</p>
+     * @param hash
+     * @return
+     */
+    protected final int indexOf(BigHash hash) {
+        return indexOf(hash.toByteArray(), 0);
+    }
+
+    /**
+     * <p>Returns the entry holding the hash with the given bytes, or -1 if not in the table. Doesn't allocate, so bytes can be looked up in place, e.g., in a DataBlock header.</p>
+     * @param bytes
+     * @param offset Where the hash starts in bytes.
+     * @return
+     */
+    protected final int indexOf(byte[] bytes, int offset) {
+        toWords(bytes, offset, lookup, 0);
+        int slot = slotOf(lookup, 0);
+        return slots[slot] - 1;
+    }
+
+    /**
+     * <p>Returns the entry holding the hash, adding it if not in the table.</p>
+     * @param hash
+     * @return The entry, or the entry plus one negated if the hash was added.
+     */
+    protected final int insert(BigHash hash) {
+        toWords(hash.toByteArray(), 0, lookup, 0);
+        int slot = slotOf(lookup, 0);
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+        // make room first, since growing the slots moves everything
+        if (size == keys.length / WORDS) {
+            growEntries();
+        }
+        if (size + 1 > slots.length * MAX_LOAD) {
+            rehash(slots.length * 2);
+            slot = slotOf(lookup, 0);
+        }
+        final int entry = size++;
+        System.arraycopy(lookup, 0, keys, entry * WORDS, WORDS);
+        slots[slot] = entry + 1;
+        return -(entry + 1);
+    }
+
+    /**
+     * <p>Remove the hash in an entry. The last entry is moved in to its place.</p>
+     * @param entry
+     */
+    protected final void removeAt(int entry) {
+        final int mask = slots.length - 1;
+        // empty the slot, then shift back any that probed past it
+        int free = slotOf(keys, entry * WORDS);
+        for (int slot = (free + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int home = spread(keys[(slots[slot] - 1) * WORDS]) & mask;
+            // can move back if its home isn't cyclically between the free slot and it
+            if (((slot - home) & mask) >= ((slot - free) & mask)) {
+                slots[free] = slots[slot];
+                free = slot;
+            }
+        }
+        slots[free] = 0;
+
+        final int last = --size;
+        if (entry != last) {
+            slots[slotOf(keys, last * WORDS)] = entry + 1;
+            System.arraycopy(keys, last * WORDS, keys, entry * WORDS, WORDS);
+            if (hasValues) {
+                values[entry] = values[last];
+            }
+        }
+    }
+
+    /**
+     * <p>Make a BigHash of the hash in an entry.</p>
+     * @param entry
+     * @return
+     */
+    protected final BigHash getHash(int entry) {
+        return toBigHash(keys, entry * WORDS);
+    }
+
+    /**
+     * <p>Returns every hash, in no particular order.</p>
+     * @return
+     */
+    public final BigHash[] toArray() {
+        BigHash[] hashes = new BigHash[size];
+        for (int i = 0; i < size; i++) {
+            hashes[i] = getHash(i);
+        }
+        return hashes;
+    }
+
+    /**
+     * <p>Copies the words of every hash, one after the other in no particular order.</p>
+     * @return
+     */
+    final long[] copyWords() {
+        long[] words = new long[size * WORDS];
+        System.arraycopy(keys, 0, words, 0, words.length);
+        return words;
+    }
+
+    /**
+     * <p>Put the words of a hash in the given array.</p>
+     * @param bytes
+     * @param offset Where the hash starts in bytes.
+     * @param words
+     * @param wordsOffset
+     */
+    static final void toWords(byte[] bytes, int offset, long[] words, int wordsOffset) {
+        for (int w = 0; w < WORDS - 1; w++) {
+            long word = 0;
+            for (int i = 0; i < 8; i++) {
+                word = (word << 8) | (bytes[offset++] & 0xff);
+            }
+            words[wordsOffset + w] = word;
+        }
+        long word = 0;
+        for (int i = 0; i < 4; i++) {
+            word = (word << 8) | (bytes[offset++] & 0xff);
+        }
+        words[wordsOffset + WORDS - 1] = word << 32;
+    }
+
+    /**
+     * <p>Make a BigHash from its words.</p>
+     * @param words
+     * @param wordsOffset
+     * @return
+     */
+    static final BigHash toBigHash(long[] words, int wordsOffset) {
+        byte[] bytes = new byte[BigHash.HASH_LENGTH];
+        for (int i = 0; i < BigHash.HASH_LENGTH; i++) {
+            bytes[i] = (byte) (words[wordsOffset + i / 8] >>> (56 - 8 * (i % 8)));
+        }
+        return BigHash.createFromBytes(bytes);
+    }
+
+    /**
+     * <p>Compares two hashes by their words, in the same order as BigHash.compareTo.</p>
+     * <p>BigHash.compareTo compares signed bytes. Flipping the sign bit of every byte but the first turns that in to comparing the words as signed longs.</p>
+     * @param a
+     * @param aOffset
+     * @param b
+     * @param bOffset
+     * @return
+     */
+    static final int compare(long[] a, int aOffset, long[] b, int bOffset) {
+        for (int w = 0; w < WORDS; w++) {
+            long x = a[aOffset + w] ^ 0x0080808080808080L;
+            long y = b[bOffset + w] ^ 0x0080808080808080L;
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * <p>Returns the slot holding the hash with the given words, or the free slot where it would go.</p>
+     */
+    private int slotOf(long[] words, int wordsOffset) {
+        final int mask = slots.length - 1;
+        for (int slot = spread(words[wordsOffset]) & mask;; slot = (slot + 1) & mask) {
+            if (slots[slot] == 0 || keyEquals(slots[slot] - 1, words, wordsOffset)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * <p>Returns true if the entry holds the hash with the given words.</p>
+     */
+    private boolean keyEquals(int entry, long[] words, int wordsOffset) {
+        final int start = entry * WORDS;
+        for (int w = 0; w < WORDS; w++) {
+            if (keys[start + w] != words[wordsOffset + w]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p>Hashes are already random, but spread the bits of the first word so that the low bits used to pick a slot depend on all of them.</p>
+     */
+    private static int spread(long word) {
+        int h = (int) (word ^ (word >>> 32));
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * <p>Make room for the given number of entries, with enough slots to hold them.</p>
+     */
+    private void allocate(int entries) {
+        keys = new long[entries * WORDS];
+        values = hasValues ? new int[entries] : null;
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < entries) {
+            capacity <<= 1;
+        }
+        slots = new int[capacity];
+    }
+
+    /**
+     * <p>Grow the entries by half, which wastes less than doubling when holding many hashes.</p>
+     */
+    private void growEntries() {
+        final int entries = size + (size >> 1);
+        long[] newKeys = new long[entries * WORDS];
+        System.arraycopy(keys, 0, newKeys, 0, size * WORDS);
+        keys = newKeys;
+        if (hasValues) {
+            int[] newValues = new int[entries];
+            System.arraycopy(values, 0, newValues, 0, size);
+            values = newValues;
+        }
+    }
+
+    /**
+     * <p>Put every entry in a new array of slots.</p>
+     */
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        final int mask = capacity - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = spread(keys[entry * WORDS]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry + 1;
+        }
+    }
+}
@@ -16,18 +16,18 @@
 package org.tranche.hash;
 
 import org.tranche.util.*;
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.RandomAccessFile;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 
 /**
  * <p>Splitting some of functionality from Jayson's SimpleDiskBackedBigHashList to a Set so that both classes behave in their expected manner.</p>
+ * <p>On disk, the set is a sorted file of hashes plus a few small sorted segments of recent adds and deletes. When the in-memory buffers fill, they are written out as a new segment rather than rewriting the sorted file. Only when there are too many segments are they merged in to the sorted file.</p>
+ * <p>The files are memory-mapped, so contains is a binary search. Paging with get and getAfter reads the sorted file in place, merging in what the segments change, so a page costs about the same whether or not there are segments.</p>
  * @author Bryan E. Smith - bryanesmith@gmail.com
  */
 public class DiskBackedBigHashSet {
@@ -37,15 +37,25 @@ public class DiskBackedBigHashSet {
     // how many to buffer in memory
     public static final int BUFFER_IN_MEMORY = 10000;
     private static final int READ_AND_WRITE_BUFFER = 1000;
-    // two buffers to recycle for fast IO
-    private byte[] readBuffer = new byte[BigHash.HASH_LENGTH * READ_AND_WRITE_BUFFER];
-    private byte[] writeBuffer = new byte[BigHash.HASH_LENGTH * READ_AND_WRITE_BUFFER];
-    // the buffer of items to add
-    Set<BigHash> toAdd = new HashSet();
+    /**
+     * <p>The number of segments to keep before merging them in to the sorted file.</p>
+     */
+    public static final int MAX_SEGMENTS = 8;
+    // each segment record is a hash followed by whether it was added or deleted
+    private static final int SEGMENT_RECORD_LENGTH = BigHash.HASH_LENGTH + 1;
+    private static final byte SEGMENT_ADD = 1;
+    private static final byte SEGMENT_DELETE = 0;
+    // the buffer of items to add. Kept without an object per hash, as it is up to BUFFER_IN_MEMORY
+    BigHashSet toAdd = new BigHashSet();
     // the buffer of items to delete
-    Set<BigHash> toDelete = new HashSet();
+    BigHashSet toDelete = new BigHashSet();
     // the file that stores the rest on disk
     File file;
+    // the mapped sorted file, and the segments that have not been merged in to it yet (oldest first)
+    private SortedBigHashFile base = null;
+    private final List<SortedBigHashFile> segments = new ArrayList<SortedBigHashFile>();
+    // what the segments change in the sorted file, or null if not worked out since the segments last changed
+    private SegmentChanges changes = null;
     private int diskCount;
     private boolean isTempFile = false;
     /**
@@ -71,7 +81,7 @@ public class DiskBackedBigHashSet {
      * <p>Primary use case is when information needs to persist across instances.</p>
      */
     public DiskBackedBigHashSet(File fileForRecords) {
-        diskCount = 0;
+        diskCount = (int) (fileForRecords.length() / BigHash.HASH_LENGTH);
         file = fileForRecords;
         isTempFile = false;
     }
@@ -80,10 +90,12 @@ public class DiskBackedBigHashSet {
      * <p>Clears out all the hashes.</p>
      * @throws java.lang.Exception Since must delete and create files.
      */
-    public void clear() throws Exception {
+    public synchronized void clear() throws Exception {
         this.toAdd.clear();
         this.toDelete.clear();
+        deleteSegments();
 
+        base = null;
         IOUtil.safeDelete(this.file);
         this.file.createNewFile();
 
@@ -110,6 +122,23 @@ public class DiskBackedBigHashSet {
         checkBuffers();
     }
 
+    /**
+     * <p>Adds a batch of hashes, only checking whether the buffers need writing once.</p>
+     * @param hashes
+     */
+    public synchronized final void addAll(Collection<BigHash> hashes) {
+        for (BigHash hash : hashes) {
+            boolean removed = toDelete.remove(hash);
+            boolean added = toAdd.add(hash);
+
+            if (added || removed) {
+                filesBuffered++;
+            }
+        }
+
+        checkBuffers();
+    }
+
     public synchronized final void delete(BigHash hash) {
 
         boolean removed = toAdd.remove(hash);
@@ -168,40 +197,8 @@ public class DiskBackedBigHashSet {
             return true;
         }
 
-        // open up the IO streams
-        FileInputStream fis = null;
-        BufferedInputStream bis = null;
-        try {
-            fis = new FileInputStream(file);
-            bis = new BufferedInputStream(fis);
-
-            // buffer the size of one hash
-            byte[] buffer = new byte[BigHash.HASH_LENGTH];
-
-            int debug = 0;
-
-            // Not found in-memory, check disk
-            for (int bytesRead = bis.read(buffer); bytesRead != -1 && bytesRead == buffer.length; bytesRead = bis.read(buffer)) {
-                BigHash test = BigHash.createFromBytes(buffer);
-                int compare = test.compareTo(hash);
-                debug++;
-                // if same, end at true
-                if (compare == 0) {
-                    return true;
-                // if greater, keep going
-                }
-                if (compare < 0) {
-                    continue;
-                } // otherwise, stop. the hash isn't in this list
-                else {
-                    return false;
-                }
-            }
-        } finally {
-            IOUtil.safeClose(bis);
-            IOUtil.safeClose(fis);
-        }
-        return false;
+        // Not found in-memory, binary search on disk
+        return isOnDisk(hash);
     }
 
     /**
@@ -211,7 +208,7 @@ public class DiskBackedBigHashSet {
      * @return
      * @throws java.lang.Exception
      */
-    public synchronized final List get(long offset, long limit) throws Exception {
+    public synchronized final List<BigHash> get(long offset, long limit) throws Exception {
 
         /**
          * Check to see whether should write out buffers first
@@ -220,78 +217,118 @@ public class DiskBackedBigHashSet {
             checkBuffers(true);
         }
 
-        // figure out the seek location
-        long seekLocation = (long) BigHash.HASH_LENGTH * offset;
-
         // buffer the entries to return
-        ArrayList<BigHash> hashes = new ArrayList();
+        ArrayList<BigHash> hashes = new ArrayList<BigHash>();
+
+        // records are fixed length, so go (nearly) straight to the offset
+        Cursor cursor = getCursorAt(offset);
+        while (hashes.size() < limit) {
+            BigHash hash = cursor.next();
+            if (hash == null) {
+                break;
+            }
+            // add if the has isn't deleted
+            if (!toDelete.contains(hash)) {
+                hashes.add(hash);
+            }
+        } // Done reading from disk
 
-        RandomAccessFile raf = null;
+        // fall back on returning the non-deleted items from memory
+        BigHash[] toAddArray = toAdd.toArray();
 
-        try {
-            //
-            raf = new RandomAccessFile(file, "rw");
-
-            // seek the raf to the right place
-            if (seekLocation < raf.length()) {
-                // seek to the right spot
-                raf.seek(seekLocation);
-
-                // loop until there are no more bytes
-                for (int bytesRead = raf.read(readBuffer); bytesRead != -1 && hashes.size() < limit; bytesRead = raf.read(readBuffer)) {
-                    // round out to a hash
-                    if (bytesRead % BigHash.HASH_LENGTH != 0) {
-                        int moreBytesRequired = BigHash.HASH_LENGTH - (bytesRead % BigHash.HASH_LENGTH);
-                        while (moreBytesRequired > 0) {
-                            int newBytesRead = raf.read(readBuffer, bytesRead, moreBytesRequired);
-                            moreBytesRequired -= newBytesRead;
-                            bytesRead += newBytesRead;
-                        }
-                    }
-                    // how many hashes to handle
-                    int hashCount = bytesRead / BigHash.HASH_LENGTH;
-                    // add all of the new hashes
-                    for (int i = 0; i < hashCount && hashes.size() < limit; i++) {
-                        // dupe the hash
-                        byte[] dupe = new byte[BigHash.HASH_LENGTH];
-                        System.arraycopy(readBuffer, i * BigHash.HASH_LENGTH, dupe, 0, BigHash.HASH_LENGTH);
-                        BigHash hash = BigHash.createFromBytes(dupe);
-                        // add if the has isn't deleted
-                        if (!toDelete.contains(hash)) {
-                            hashes.add(hash);
-                        }
-                    }
-                }
-            } // Done reading from disk
-
-            // fall back on returning the non-deleted items from memory
-            BigHash[] toAddArray = toAdd.toArray(new BigHash[0]);
-
-            /**
-             * What's the seek location? If greater than raf.length(), use that because we won't
-             * want everything in memory. Otherwise, use the length of the file!
-             */
-            int start = (int) ((seekLocation - raf.length()) / BigHash.HASH_LENGTH);
-            if (start < 0) {
-                start = 0;
+        /**
+         * What's the offset? If greater than the number of records on disk, use that because we won't
+         * want everything in memory. Otherwise, start at the beginning!
+         */
+        int start = (int) (offset - diskCount);
+        if (start < 0) {
+            start = 0;
+        }
+
+        // otherwise, try to return unsaved items
+        for (int i = start; i < toAddArray.length && hashes.size() < limit; i++) {
+            BigHash hash = toAddArray[i];
+            if (!toDelete.contains(hash)) {
+                hashes.add(hash);
             }
+        }
 
-            // otherwise, try to return unsaved items
-            for (int i = start; start >= 0 && i < toAddArray.length && hashes.size() < limit; i++) {
-                BigHash hash = toAddArray[i];
-                if (!toDelete.contains(hash)) {
-                    hashes.add(hash);
-                }
+        // return the in-memory buffer
+        return hashes;
+    }
+
+    /**
+     * <p>Returns hashes in order, starting after the given hash. Unlike paging with get, paging this way never skips a hash that is in the set throughout, even if other hashes are added or deleted in between.</p>
+     * <p>Always writes out the buffers first.</p>
+     * @param after The last hash of the previous batch, or null to start at the beginning.
+     * @param limit
+     * @return
+     * @throws java.lang.Exception
+     */
+    public synchronized final List<BigHash> getAfter(BigHash after, long limit) throws Exception {
+        return getAfter(after, limit, true);
+    }
+
+    /**
+     * <p>Returns hashes in order, starting after the given hash, as getAfter does.</p>
+     * <p>If not writing out the buffers first, only the hashes on disk are returned. This is for walking the whole set while it is being changed: call flush once, then page without writing out the buffers, so that the walk never writes a segment and so never causes a merge.</p>
+     * @param after The last hash of the previous batch, or null to start at the beginning.
+     * @param limit
+     * @param isWriteBuffersFirst True to write out the buffers first.
+     * @return
+     * @throws java.lang.Exception
+     */
+    public synchronized final List<BigHash> getAfter(BigHash after, long limit, boolean isWriteBuffersFirst) throws Exception {
+        if (isWriteBuffersFirst) {
+            checkBuffers(true);
+        }
+
+        ArrayList<BigHash> hashes = new ArrayList<BigHash>();
+        SegmentChanges changes = getChanges();
+        Cursor cursor = after == null ? new Cursor(0, 0) : new Cursor(getBase().indexAfter(after), changes.addedUpTo(after));
+        while (hashes.size() < limit) {
+            BigHash hash = cursor.next();
+            if (hash == null) {
+                break;
             }
+            hashes.add(hash);
+        }
+        return hashes;
+    }
 
-        } finally {
-            if (raf != null) {
-                raf.close();
+    /**
+     * <p>Finds where the hash at an offset in the disk-backed portion of the set is, without reading the hashes before it.</p>
+     * <p>The offset of a hash in the sorted file, counting what the segments change, only grows along the file, so binary search for the first hash in the file at or after the offset.</p>
+     * @param offset
+     * @return
+     * @throws java.lang.Exception
+     */
+    private Cursor getCursorAt(long offset) throws Exception {
+        SortedBigHashFile base = getBase();
+        SegmentChanges changes = getChanges();
+        if (changes.isEmpty()) {
+            return new Cursor(offset, 0);
+        }
+
+        // the first index in the sorted file whose hash is at or after the offset
+        long low = 0, high = base.getRecordCount();
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (changes.keptBefore(mid) + changes.addedBefore(base.getHash(mid)) >= offset) {
+                high = mid;
+            } else {
+                low = mid + 1;
             }
         }
+        long addedIndex = offset - changes.keptBefore(low);
+        return new Cursor(low, (int) Math.min(addedIndex, changes.addedCount));
+    }
 
-        // return the in-memory buffer
-        return hashes;
+    /**
+     * <p>Writes out the buffers, so that every hash in the set so far is on disk.</p>
+     */
+    public synchronized final void flush() {
+        checkBuffers(true);
     }
 
     /**
@@ -319,135 +356,21 @@ public class DiskBackedBigHashSet {
             buffer = this.testBufferSize;
         }
 
-        // if too many items are in memory, TCB
+        // if too many items are in memory, write them out as a new segment
         if (toAdd.size() + toDelete.size() >= buffer || flush) {
             // reset the count
             filesBuffered = 0;
 
-            RandomAccessFile raf = null;
-
             try {
-                // shut down the raf
-                //raf.close();
-                // rename the old file
-                File backup = TempFileUtil.createTemporaryFile("sdbbhs.backup");
-                IOUtil.renameFallbackCopy(file, backup);
-
-                // initialize the two readers
-                RandomAccessFile original = new RandomAccessFile(backup, "r");
-                try {
-                    raf = new RandomAccessFile(file, "rw");
-
-                    // get the buffers and sort them
-                    BigHash[] add = toAdd.toArray(new BigHash[0]);
-                    Arrays.sort(add);
-
-                    // Update count on disk
-                    diskCount = 0;
-
-                    // indexes for the arrays
-                    int addIndex = 0;
-
-                    // use the write buffer
-                    int writeBufferIndex = 0;
-
-                    // copy the files contents
-                    for (int bytesRead = original.read(readBuffer); bytesRead != -1; bytesRead = original.read(readBuffer)) {
-                        // round out to a hash
-                        if (bytesRead % BigHash.HASH_LENGTH != 0) {
-                            int moreBytesRequired = BigHash.HASH_LENGTH - (bytesRead % BigHash.HASH_LENGTH);
-                            while (moreBytesRequired > 0) {
-                                int newBytesRead = original.read(readBuffer, bytesRead, moreBytesRequired);
-                                moreBytesRequired -= newBytesRead;
-                                bytesRead += newBytesRead;
-                            }
-                        }
-                        // How many hashes to handle in this batch
-                        int hashCount = bytesRead / BigHash.HASH_LENGTH;
-                        // add all of the new hashes
-                        for (int i = 0; i < hashCount; i++) {
-                            // make the big hash
-                            BigHash hash = BigHash.createFromBytes(readBuffer, BigHash.HASH_LENGTH * i);
-
-                            // burn identical hash copies
-                            while (addIndex < add.length && hash.compareTo(add[addIndex]) == 0) {
-                                addIndex++;
-                            }
-
-                            // write out every hash that is before this hash
-                            while (addIndex < add.length && add[addIndex].compareTo(hash) < 0) {
-                                if (!toDelete.contains(add[addIndex])) {
-                                    // check/flush write buffer
-                                    if (writeBufferIndex >= READ_AND_WRITE_BUFFER) {
-                                        raf.write(writeBuffer);
-                                        writeBufferIndex = 0;
-                                    }
-                                    // copy to the write buffer
-                                    System.arraycopy(add[addIndex].toByteArray(), 0, writeBuffer, BigHash.HASH_LENGTH * writeBufferIndex, BigHash.HASH_LENGTH);
-                                    writeBufferIndex++;
-                                    diskCount++;
-
-                                    // inc the number of files buffered
-                                    filesBuffered++;
-                                }
-                                addIndex++;
-                            }
-
-                            // write out this hash
-                            if (!toDelete.contains(hash)) {
-                                // check/flush write buffer
-                                if (writeBufferIndex >= READ_AND_WRITE_BUFFER) {
-                                    raf.write(writeBuffer);
-                                    writeBufferIndex = 0;
-                                }
-                                // copy to the write buffer
-                                System.arraycopy(hash.toByteArray(), 0, writeBuffer, BigHash.HASH_LENGTH * writeBufferIndex, BigHash.HASH_LENGTH);
-                                writeBufferIndex++;
-                                diskCount++;
-
-                                // inc the number of files buffere
-                                filesBuffered++;
-                            }
-                        } // For each hash in current batch
-
-                    } // For all hash batches from RandomAccessFile
-
-                    // write out the rest -- can't forget about these
-                    while (addIndex < add.length) {
-                        // check/flush write buffer
-                        if (writeBufferIndex >= READ_AND_WRITE_BUFFER) {
-                            raf.write(writeBuffer);
-                            writeBufferIndex = 0;
-                        }
-                        // copy to the write buffer
-                        System.arraycopy(add[addIndex].toByteArray(), 0, writeBuffer, BigHash.HASH_LENGTH * writeBufferIndex, BigHash.HASH_LENGTH);
-                        writeBufferIndex++;
-                        diskCount++;
-
-                        // move to the next item to add
-                        addIndex++;
-                    }
+                writeSegment();
 
-                    // flush the write buffer
-                    raf.write(writeBuffer, 0, writeBufferIndex * BigHash.HASH_LENGTH);
-                } finally {
-                    IOUtil.safeClose(original);
-                    // clean up the temp file
-                    IOUtil.safeDelete(backup);
+                // too many segments to search, so merge them in to the sorted file
+                if (segments.size() > MAX_SEGMENTS) {
+                    compact();
                 }
-
             } catch (Exception e) {
                 e.printStackTrace(System.err);
                 throw new RuntimeException("Can't manage disk-backed hash list!", e);
-            } finally {
-                if (raf != null) {
-                    try {
-                        raf.close();
-                    } catch (Exception ex) {
-                        System.err.println("Can't close RAF: " + ex.getMessage());
-                        ex.printStackTrace(System.err);
-                    }
-                }
             }
 
             // purge the in-memory
@@ -456,6 +379,363 @@ public class DiskBackedBigHashSet {
         }
     }
 
+    /**
+     * <p>Write the in-memory buffers to a new segment, newer than any other segment.</p>
+     * <p>Only changes are written: adds of hashes not on disk, and deletes of hashes on disk. This keeps the count of hashes on disk exact without merging.</p>
+     * @throws java.lang.Exception
+     */
+    private void writeSegment() throws Exception {
+        // get the buffers and sort them
+        SortedBigHashArray add = new SortedBigHashArray(toAdd);
+        SortedBigHashArray delete = new SortedBigHashArray(toDelete);
+
+        File segmentFile = TempFileUtil.createTemporaryFile(".sdbbhs.segment");
+        int recordsWritten = 0;
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(segmentFile), SEGMENT_RECORD_LENGTH * READ_AND_WRITE_BUFFER);
+        try {
+            // merge the two sorted buffers. An item is never in both.
+            int addIndex = 0, deleteIndex = 0;
+            while (addIndex < add.size() || deleteIndex < delete.size()) {
+                boolean isAdd = deleteIndex >= delete.size() || (addIndex < add.size() && add.compare(addIndex, delete, deleteIndex) < 0);
+                BigHash hash = isAdd ? add.get(addIndex++) : delete.get(deleteIndex++);
+
+                // skip if wouldn't change anything
+                if (isAdd == isOnDisk(hash)) {
+                    continue;
+                }
+
+                out.write(hash.toByteArray());
+                out.write(isAdd ? SEGMENT_ADD : SEGMENT_DELETE);
+                recordsWritten++;
+                diskCount += isAdd ? 1 : -1;
+            }
+        } finally {
+            IOUtil.safeClose(out);
+        }
+
+        if (recordsWritten == 0) {
+            IOUtil.safeDelete(segmentFile);
+        } else {
+            segments.add(new SortedBigHashFile(segmentFile, SEGMENT_RECORD_LENGTH));
+            changes = null;
+        }
+    }
+
+    /**
+     * <p>Merge the segments in to the sorted file, newest segment winning.</p>
+     * @throws java.lang.Exception
+     */
+    private void compact() throws Exception {
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        // inputs, oldest first: the sorted file then the segments
+        final List<SortedBigHashFile> inputs = new ArrayList<SortedBigHashFile>();
+        inputs.add(getBase());
+        inputs.addAll(segments);
+        final long[] positions = new long[inputs.size()];
+        // the hash at each input's position, or null if the input is used up
+        final BigHash[] current = new BigHash[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            current[i] = inputs.get(i).getRecordCount() > 0 ? inputs.get(i).getHash(0) : null;
+        }
+
+        File merged = TempFileUtil.createTemporaryFile(".sdbbhs.merge");
+        int count = 0;
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(merged), BigHash.HASH_LENGTH * READ_AND_WRITE_BUFFER);
+        try {
+            while (true) {
+                // find the least hash among the inputs
+                BigHash least = null;
+                for (BigHash hash : current) {
+                    if (hash != null && (least == null || hash.compareTo(least) < 0)) {
+                        least = hash;
+                    }
+                }
+                if (least == null) {
+                    break;
+                }
+
+                // the newest input with the hash decides whether it is kept
+                boolean keep = false;
+                for (int i = 0; i < inputs.size(); i++) {
+                    if (current[i] != null && current[i].compareTo(least) == 0) {
+                        SortedBigHashFile input = inputs.get(i);
+                        keep = i == 0 || input.getByte(positions[i], BigHash.HASH_LENGTH) == SEGMENT_ADD;
+                        positions[i]++;
+                        current[i] = positions[i] < input.getRecordCount() ? input.getHash(positions[i]) : null;
+                    }
+                }
+
+                if (keep) {
+                    out.write(least.toByteArray());
+                    count++;
+                }
+            }
+        } finally {
+            IOUtil.safeClose(out);
+        }
+
+        // replace the sorted file
+        base = null;
+        IOUtil.renameFallbackCopy(merged, file);
+        diskCount = count;
+
+        deleteSegments();
+    }
+
+    /**
+     * <p>Checks the segments, newest first, then the sorted file.</p>
+     * @param hash
+     * @return True if the hash is in the disk-backed portion of the set.
+     * @throws java.lang.Exception
+     */
+    private boolean isOnDisk(BigHash hash) throws Exception {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            SortedBigHashFile segment = segments.get(i);
+            long index = segment.indexOf(hash);
+            if (index >= 0) {
+                return segment.getByte(index, BigHash.HASH_LENGTH) == SEGMENT_ADD;
+            }
+        }
+        return getBase().indexOf(hash) >= 0;
+    }
+
+    /**
+     * <p>Lazily maps the sorted file.</p>
+     * @return
+     * @throws java.lang.Exception
+     */
+    private SortedBigHashFile getBase() throws Exception {
+        if (base == null) {
+            if (!file.exists()) {
+                file.createNewFile();
+            }
+            base = new SortedBigHashFile(file, BigHash.HASH_LENGTH);
+        }
+        return base;
+    }
+
+    /**
+     * <p>Works out what the segments change in the sorted file, if not already worked out since the segments last changed.</p>
+     * <p>Reads each segment once and searches the sorted file for each hash in them, so the cost depends on the size of the segments rather than of the sorted file.</p>
+     * @return
+     * @throws java.lang.Exception
+     */
+    private SegmentChanges getChanges() throws Exception {
+        if (changes != null) {
+            return changes;
+        }
+        SortedBigHashFile base = getBase();
+        SegmentChanges newChanges = new SegmentChanges();
+        final long[] positions = new long[segments.size()];
+        // the hash at each segment's position, or null if the segment is used up
+        final BigHash[] current = new BigHash[segments.size()];
+        for (int i = 0; i < segments.size(); i++) {
+            current[i] = segments.get(i).getRecordCount() > 0 ? segments.get(i).getHash(0) : null;
+        }
+        while (true) {
+            // find the least hash among the segments
+            BigHash least = null;
+            for (BigHash hash : current) {
+                if (hash != null && (least == null || hash.compareTo(least) < 0)) {
+                    least = hash;
+                }
+            }
+            if (least == null) {
+                break;
+            }
+
+            // the newest segment with the hash decides
+            int newest = -1;
+            long newestPosition = -1;
+            for (int i = 0; i < segments.size(); i++) {
+                if (current[i] != null && current[i].compareTo(least) == 0) {
+                    newest = i;
+                    newestPosition = positions[i];
+                    positions[i]++;
+                    current[i] = positions[i] < segments.get(i).getRecordCount() ? segments.get(i).getHash(positions[i]) : null;
+                }
+            }
+            boolean isAdd = segments.get(newest).getByte(newestPosition, BigHash.HASH_LENGTH) == SEGMENT_ADD;
+            long baseIndex = base.indexOf(least);
+            if (isAdd && baseIndex < 0) {
+                newChanges.addAdded(((long) newest << 32) | newestPosition);
+            } else if (!isAdd && baseIndex >= 0) {
+                newChanges.addDeleted(baseIndex);
+            }
+        }
+        changes = newChanges;
+        return changes;
+    }
+
+    /**
+     * <p>Delete the segment files.</p>
+     */
+    private void deleteSegments() {
+        for (SortedBigHashFile segment : segments) {
+            IOUtil.safeDelete(segment.getFile());
+        }
+        segments.clear();
+        changes = null;
+    }
+
+    /**
+     * <p>What the segments change in the sorted file: the hashes added that aren't in it, and the indexes of the hashes in it that were deleted. Both are in order.</p>
+     */
+    private class SegmentChanges {
+
+        // segment index in the high 32 bits, record index in the low
+        private long[] added = new long[16];
+        private int addedCount = 0;
+        private long[] deleted = new long[16];
+        private int deletedCount = 0;
+
+        /**
+         * @param ref
+         */
+        private void addAdded(long ref) {
+            if (addedCount == added.length) {
+                long[] grown = new long[added.length * 2];
+                System.arraycopy(added, 0, grown, 0, addedCount);
+                added = grown;
+            }
+            added[addedCount++] = ref;
+        }
+
+        /**
+         * @param baseIndex
+         */
+        private void addDeleted(long baseIndex) {
+            if (deletedCount == deleted.length) {
+                long[] grown = new long[deleted.length * 2];
+                System.arraycopy(deleted, 0, grown, 0, deletedCount);
+                deleted = grown;
+            }
+            deleted[deletedCount++] = baseIndex;
+        }
+
+        /**
+         * @return True if the segments change nothing.
+         */
+        private boolean isEmpty() {
+            return addedCount == 0 && deletedCount == 0;
+        }
+
+        /**
+         * @param i
+         * @return The i-th hash added.
+         */
+        private BigHash getAdded(int i) {
+            return segments.get((int) (added[i] >>> 32)).getHash(added[i] & 0xFFFFFFFFL);
+        }
+
+        /**
+         * @param baseIndex
+         * @return True if the hash at the index in the sorted file was deleted.
+         */
+        private boolean isDeleted(long baseIndex) {
+            return Arrays.binarySearch(deleted, 0, deletedCount, baseIndex) >= 0;
+        }
+
+        /**
+         * @param baseIndex
+         * @return The number of hashes before the index in the sorted file that weren't deleted.
+         */
+        private long keptBefore(long baseIndex) {
+            int index = Arrays.binarySearch(deleted, 0, deletedCount, baseIndex);
+            return baseIndex - (index >= 0 ? index : -(index + 1));
+        }
+
+        /**
+         * @param hash
+         * @return The number of hashes added that are less than the hash.
+         */
+        private int addedBefore(BigHash hash) {
+            return search(hash, false);
+        }
+
+        /**
+         * @param hash
+         * @return The number of hashes added that are less than or equal to the hash.
+         */
+        private int addedUpTo(BigHash hash) {
+            return search(hash, true);
+        }
+
+        /**
+         * @param hash
+         * @param inclusive
+         * @return
+         */
+        private int search(BigHash hash, boolean inclusive) {
+            int low = 0, high = addedCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int compare = getAdded(mid).compareTo(hash);
+                if (compare < 0 || (inclusive && compare == 0)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * <p>Walks the disk-backed portion of the set in order: the sorted file without the deleted hashes, merged with the added hashes.</p>
+     */
+    private class Cursor {
+
+        private long baseIndex;
+        private int addedIndex;
+        private BigHash nextBase = null, nextAdded = null;
+
+        /**
+         * @param baseIndex Where to start in the sorted file.
+         * @param addedIndex Where to start in the added hashes.
+         */
+        private Cursor(long baseIndex, int addedIndex) {
+            this.baseIndex = baseIndex;
+            this.addedIndex = addedIndex;
+        }
+
+        /**
+         * @return The next hash, or null if there are no more.
+         * @throws java.lang.Exception
+         */
+        private BigHash next() throws Exception {
+            SortedBigHashFile base = getBase();
+            SegmentChanges changes = getChanges();
+            if (nextBase == null) {
+                while (baseIndex < base.getRecordCount() && changes.isDeleted(baseIndex)) {
+                    baseIndex++;
+                }
+                if (baseIndex < base.getRecordCount()) {
+                    nextBase = base.getHash(baseIndex);
+                }
+            }
+            if (nextAdded == null && addedIndex < changes.addedCount) {
+                nextAdded = changes.getAdded(addedIndex);
+            }
+
+            // an added hash is never in the sorted file
+            BigHash hash;
+            if (nextBase != null && (nextAdded == null || nextBase.compareTo(nextAdded) < 0)) {
+                hash = nextBase;
+                nextBase = null;
+                baseIndex++;
+            } else {
+                hash = nextAdded;
+                nextAdded = null;
+                addedIndex++;
+            }
+            return hash;
+        }
+    }
+
     /**
      * <p>Close off resources.</p>
      * <p>If collection uses a temporary file, delete. Else flush contents for next use.</p>
@@ -463,10 +743,18 @@ public class DiskBackedBigHashSet {
     public synchronized final void close() {
         if (isTempFile) {
             // If using temp storage, delete
+            deleteSegments();
+            base = null;
             IOUtil.safeDelete(file);
         } else {
             // If using persistent storage, flush
             checkBuffers(true);
+            try {
+                compact();
+            } catch (Exception e) {
+                e.printStackTrace(System.err);
+                throw new RuntimeException("Can't manage disk-backed hash list!", e);
+            }
         }
     }
 
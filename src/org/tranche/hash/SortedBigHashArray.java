@@ -0,0 +1,161 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash;
+
+/**
+ * <p>BigHashes sorted in the same order as BigHash.compareTo, kept in one contiguous long[]. Made from a BigHashSet, e.g., to write the hashes out in order, without an object per hash to sort.</p>
+ */
+public class SortedBigHashArray {
+
+    private static final int WORDS = BigHashTable.WORDS;
+    /**
+     * <p>Ranges this small are insertion sorted.</p>
+     */
+    private static final int INSERTION_SORT_SIZE = 8;
+    private final long[] words;
+    private final int size;
+    /**
+     * <p>Holds the pivot while sorting and the target while searching.</p>
+     */
+    private final long[] scratch = new long[WORDS];
+
+    /**
+     * @param hashes
+     */
+    public SortedBigHashArray(BigHashSet hashes) {
+        this.words = hashes.copyWords();
+        this.size = hashes.size();
+        sort(0, size - 1);
+    }
+
+    /**
+     * @return The number of hashes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i
+     * @return The i-th smallest hash.
+     */
+    public BigHash get(int i) {
+        if (i < 0 || i >= size) {
+            throw new ArrayIndexOutOfBoundsException(i);
+        }
+        return BigHashTable.toBigHash(words, i * WORDS);
+    }
+
+    /**
+     * <p>Compares a hash in this array to a hash in another, in the same order as BigHash.compareTo.</p>
+     * @param i
+     * @param other
+     * @param j
+     * @return
+     */
+    public int compare(int i, SortedBigHashArray other, int j) {
+        return BigHashTable.compare(words, i * WORDS, other.words, j * WORDS);
+    }
+
+    /**
+     * <p>Binary search for a hash.</p>
+     * @param hash
+     * @return The index of the hash, or -1 if not in the array.
+     */
+    public int indexOf(BigHash hash) {
+        BigHashTable.toWords(hash.toByteArray(), 0, scratch, 0);
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int compare = BigHashTable.compare(words, mid * WORDS, scratch, 0);
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param hash
+     * @return
+     */
+    public boolean contains(BigHash hash) {
+        return indexOf(hash) != -1;
+    }
+
+    /**
+     * <p>Quicksort the hashes from low to high, inclusive, moving the words in place.</p>
+     */
+    private void sort(int low, int high) {
+        while (high - low >= INSERTION_SORT_SIZE) {
+            // median of three as pivot
+            int mid = (low + high) >>> 1;
+            if (compare(mid, low) < 0) {
+                swap(mid, low);
+            }
+            if (compare(high, low) < 0) {
+                swap(high, low);
+            }
+            if (compare(high, mid) < 0) {
+                swap(high, mid);
+            }
+            System.arraycopy(words, mid * WORDS, scratch, 0, WORDS);
+
+            int i = low, j = high;
+            while (i <= j) {
+                while (BigHashTable.compare(words, i * WORDS, scratch, 0) < 0) {
+                    i++;
+                }
+                while (BigHashTable.compare(words, j * WORDS, scratch, 0) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+
+            // recurse on the smaller side, loop on the larger, to bound the stack
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(j, j - 1) < 0; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private int compare(int i, int j) {
+        return BigHashTable.compare(words, i * WORDS, words, j * WORDS);
+    }
+
+    private void swap(int i, int j) {
+        for (int w = 0; w < WORDS; w++) {
+            long t = words[i * WORDS + w];
+            words[i * WORDS + w] = words[j * WORDS + w];
+            words[j * WORDS + w] = t;
+        }
+    }
+}
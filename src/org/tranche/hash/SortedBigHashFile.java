@@ -0,0 +1,164 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Read-only view of a file of fixed-length records sorted by BigHash, searched in place using memory mappings.</p>
+ * <p>Each record starts with the bytes of a BigHash, and may be followed by extra bytes (e.g., a flag). Records are sorted using the same order as BigHash.compareTo.</p>
+ * <p>Files larger than a single mapping can hold are mapped in several regions, each holding a whole number of records.</p>
+ */
+class SortedBigHashFile {
+
+    private final File file;
+    private final int recordLength;
+    private final long recordCount;
+    private final int recordsPerRegion;
+    private final MappedByteBuffer[] regions;
+
+    /**
+     * @param file The file of sorted records.
+     * @param recordLength The length of each record in bytes. Must be at least BigHash.HASH_LENGTH.
+     * @throws java.io.IOException
+     */
+    SortedBigHashFile(File file, int recordLength) throws IOException {
+        this.file = file;
+        this.recordLength = recordLength;
+        this.recordsPerRegion = Integer.MAX_VALUE / recordLength;
+
+        RandomAccessFile ras = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = ras.getChannel();
+            this.recordCount = channel.size() / recordLength;
+
+            int regionCount = (int) ((recordCount + recordsPerRegion - 1) / recordsPerRegion);
+            this.regions = new MappedByteBuffer[regionCount];
+            for (int i = 0; i < regionCount; i++) {
+                long firstRecord = (long) i * recordsPerRegion;
+                long records = Math.min(recordsPerRegion, recordCount - firstRecord);
+                // mapping remains valid after the channel is closed
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, firstRecord * recordLength, records * recordLength);
+            }
+        } finally {
+            ras.close();
+        }
+    }
+
+    /**
+     * @return The file of sorted records.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of records in the file.
+     */
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * <p>Binary search for a hash.</p>
+     * @param hash
+     * @return The index of the record with the hash, or -1 if not found.
+     */
+    long indexOf(BigHash hash) {
+        long index = search(hash.toByteArray());
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * <p>Binary search for the first record with a hash greater than the given hash.</p>
+     * @param hash
+     * @return The index of the record, or getRecordCount() if there is none.
+     */
+    long indexAfter(BigHash hash) {
+        long index = search(hash.toByteArray());
+        return index >= 0 ? index + 1 : -(index + 1);
+    }
+
+    /**
+     * <p>Binary search, like Arrays.binarySearch.</p>
+     * @param target
+     * @return The index of the record with the hash if found; otherwise, (-(insertion point) - 1).
+     */
+    private long search(byte[] target) {
+        long low = 0, high = recordCount - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int compare = compare(mid, target);
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * <p>Compares the hash in a record to the given hash bytes, using the same order as BigHash.compareTo.</p>
+     * @param index
+     * @param target
+     * @return Negative if the record's hash is less, zero if equal, positive if greater.
+     */
+    int compare(long index, byte[] target) {
+        final MappedByteBuffer region = regions[(int) (index / recordsPerRegion)];
+        final int offset = (int) (index % recordsPerRegion) * recordLength;
+        for (int i = 0; i < BigHash.HASH_LENGTH; i++) {
+            byte b = region.get(offset + i);
+            if (b < target[i]) {
+                return -1;
+            }
+            if (b > target[i]) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param index
+     * @return The hash in the record.
+     */
+    BigHash getHash(long index) {
+        final MappedByteBuffer region = regions[(int) (index / recordsPerRegion)];
+        final int offset = (int) (index % recordsPerRegion) * recordLength;
+        byte[] bytes = new byte[BigHash.HASH_LENGTH];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = region.get(offset + i);
+        }
+        return BigHash.createFromBytes(bytes);
+    }
+
+    /**
+     * @param index
+     * @param position The position within the record, which must be after the hash.
+     * @return The byte in the record.
+     */
+    byte getByte(long index, int position) {
+        final MappedByteBuffer region = regions[(int) (index / recordsPerRegion)];
+        return region.get((int) (index % recordsPerRegion) * recordLength + position);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash.span;
+
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.tranche.hash.BigHash;
+
+/**
+ * <p>Determines hash spans for a list of servers by consistent hashing, so adding or removing a server moves data in proportion to its share of the space, rather than shifting the hash spans of every server as HashSpanCalculator does.</p>
+ * <p>Each server is placed on a ring of hashes at a number of virtual nodes in proportion to its weight, by default the size limit of its data directories. A virtual node is at the hash of the server's URL and the node's number, so where a server's virtual nodes are doesn't depend on the other servers. Each virtual node covers the hashes after the virtual node before it, and those hashes are also given to the servers of the following virtual nodes until as many servers as replications have them.</p>
+ * <p>Call getMovementPlan with the current hash spans to see what would be copied and deleted before applying the new hash spans.</p>
+ */
+public class ConsistentHashSpanCalculator {
+
+    /**
+     * <p>The default number of bytes of a server's weight for each of its virtual nodes, i.e., 64 virtual nodes per terabyte.</p>
+     */
+    public static final long DEFAULT_BYTES_PER_VIRTUAL_NODE = 16L * 1024 * 1024 * 1024;
+    /**
+     * <p>The most virtual nodes for a server, which keeps the number of hash spans of each server manageable.</p>
+     */
+    public static final int MAX_VIRTUAL_NODES = 4096;
+    private final X509Certificate certificate;
+    private final int replications;
+    private long bytesPerVirtualNode = DEFAULT_BYTES_PER_VIRTUAL_NODE;
+    /**
+     * <p>The weight of each server, in the order added.</p>
+     */
+    private final Map<String, Long> weights = new LinkedHashMap<String, Long>();
+    private final Map<String, Double> percentages = new HashMap<String, Double>();
+    private Map<String, Set<HashSpan>> spans = null;
+
+    /**
+     * <p>Create a calculator for servers whose weights are given when added.</p>
+     * @param replications The number of servers with hash spans covering each hash.
+     */
+    public ConsistentHashSpanCalculator(int replications) {
+        this(null, replications);
+    }
+
+    /**
+     * @param certificate The public certificate used to retrieve the size limits of the servers added without a weight.
+     * @param replications The number of servers with hash spans covering each hash.
+     */
+    public ConsistentHashSpanCalculator(X509Certificate certificate, int replications) {
+        if (replications < 1) {
+            throw new IllegalArgumentException("Must have at least one replication, but was " + replications + ".");
+        }
+        this.certificate = certificate;
+        this.replications = replications;
+    }
+
+    /**
+     * <p>Add a server, weighed by the total size limit of its data directories.</p>
+     * @param url Server url
+     * @throws java.lang.Exception
+     */
+    public void addServer(String url) throws Exception {
+        addServer(url, HashSpanCalculator.getSizeLimit(url, certificate));
+    }
+
+    /**
+     * @param url Server url
+     * @param weight The size in bytes of the server's share, relative to the others.
+     */
+    public void addServer(String url, long weight) {
+        weights.put(url, weight);
+        spans = null;
+    }
+
+    /**
+     * @return The number of servers with hash spans covering each hash.
+     */
+    public int getReplications() {
+        return replications;
+    }
+
+    /**
+     * @return The number of bytes of a server's weight for each of its virtual nodes.
+     */
+    public long getBytesPerVirtualNode() {
+        return bytesPerVirtualNode;
+    }
+
+    /**
+     * <p>Sets the number of bytes of a server's weight for each of its virtual nodes. More virtual nodes follow the weights more closely, but give each server more hash spans.</p>
+     * <p>Must be the same for every calculation whose movement is compared, or every server's virtual nodes change.</p>
+     * @param bytesPerVirtualNode
+     */
+    public void setBytesPerVirtualNode(long bytesPerVirtualNode) {
+        if (bytesPerVirtualNode <= 0) {
+            throw new IllegalArgumentException("Bytes per virtual node must be positive, but was " + bytesPerVirtualNode + ".");
+        }
+        this.bytesPerVirtualNode = bytesPerVirtualNode;
+        spans = null;
+    }
+
+    /**
+     * <p>Returns the number of virtual nodes for a server. Every server has at least one.</p>
+     * @param url Server url
+     * @return
+     */
+    public int getVirtualNodeCount(String url) {
+        long nodes = Math.round((double) weights.get(url) / bytesPerVirtualNode);
+        return (int) Math.max(1, Math.min(MAX_VIRTUAL_NODES, nodes));
+    }
+
+    /**
+     * <p>Calculate the hash spans based on the servers added.</p>
+     * @return A map of urls with the calculated spans
+     * @throws java.lang.Exception
+     */
+    public Map<String, Set<HashSpan>> calculateSpans() throws Exception {
+        if (weights.isEmpty()) {
+            throw new RuntimeException("There are no servers selected. Please add server urls before calculating the spans.");
+        }
+        spans = new HashMap<String, Set<HashSpan>>();
+        percentages.clear();
+
+        // every server gets the full hash span
+        if (replications >= weights.size()) {
+            for (String url : weights.keySet()) {
+                spans.put(url, HashSpanRanges.toHashSpans(HashSpanRanges.toRanges(HashSpan.FULL_SET)));
+                percentages.put(url, 1.0);
+            }
+            return spans;
+        }
+
+        // place the virtual nodes
+        TreeMap<BigInteger, String> ring = new TreeMap<BigInteger, String>();
+        for (String url : weights.keySet()) {
+            for (int i = 0; i < getVirtualNodeCount(url); i++) {
+                BigInteger node = HashSpanRanges.toNumber(new BigHash((url + "#" + i).getBytes("UTF-8")));
+                // in the unlikely case two land on the same hash, the first keeps it
+                if (!ring.containsKey(node)) {
+                    ring.put(node, url);
+                }
+            }
+        }
+        BigInteger[] nodes = ring.keySet().toArray(new BigInteger[0]);
+        String[] nodeURLs = ring.values().toArray(new String[0]);
+
+        // give the hashes before each virtual node to it and the following servers
+        Map<String, List<BigInteger[]>> ranges = new HashMap<String, List<BigInteger[]>>();
+        for (String url : weights.keySet()) {
+            ranges.put(url, new ArrayList<BigInteger[]>());
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            List<BigInteger[]> covered = new ArrayList<BigInteger[]>(2);
+            if (i == 0) {
+                // wraps around
+                if (nodes[nodes.length - 1].compareTo(HashSpanRanges.LAST) < 0) {
+                    covered.add(new BigInteger[]{nodes[nodes.length - 1].add(BigInteger.ONE), HashSpanRanges.LAST});
+                }
+                covered.add(new BigInteger[]{BigInteger.ZERO, nodes[0]});
+            } else {
+                covered.add(new BigInteger[]{nodes[i - 1].add(BigInteger.ONE), nodes[i]});
+            }
+
+            List<String> owners = new ArrayList<String>(replications);
+            for (int j = i; owners.size() < replications; j = (j + 1) % nodes.length) {
+                if (!owners.contains(nodeURLs[j])) {
+                    owners.add(nodeURLs[j]);
+                }
+            }
+            for (String owner : owners) {
+                ranges.get(owner).addAll(covered);
+            }
+        }
+
+        for (String url : weights.keySet()) {
+            List<BigInteger[]> merged = HashSpanRanges.merge(ranges.get(url));
+            spans.put(url, HashSpanRanges.toHashSpans(merged));
+            percentages.put(url, HashSpanRanges.fraction(merged));
+        }
+        return spans;
+    }
+
+    /**
+     * <p>After performing the calculation, returns the fraction of all hashes in a server's hash spans.</p>
+     * @param url Server url. Must have performed calculation already.
+     * @return
+     */
+    public double getServerPercentage(String url) {
+        return percentages.get(url).doubleValue();
+    }
+
+    /**
+     * <p>Returns what would be copied and deleted to go from the given hash spans to the calculated ones. Performs the calculation if not done already.</p>
+     * @param currentSpans A map of urls to their current hash spans. Servers not in the map have none.
+     * @return
+     * @throws java.lang.Exception
+     */
+    public HashSpanMovementPlan getMovementPlan(Map<String, ? extends Collection<HashSpan>> currentSpans) throws Exception {
+        if (spans == null) {
+            calculateSpans();
+        }
+        return new HashSpanMovementPlan(currentSpans, spans);
+    }
+}
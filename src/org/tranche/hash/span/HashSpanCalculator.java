@@ -26,6 +26,7 @@ import org.tranche.security.SecurityUtil;
 
 /**
  * <p>Determines hash spans for list of servers based on available space.</p>
+ * <p>Recalculates every server's hash spans from scratch, so adding a server shifts the hash spans of the others. See ConsistentHashSpanCalculator to keep the data moved in proportion to the change.</p>
  * @author Bryan Smith <bryanesmith at gmail.com>
  */
 public class HashSpanCalculator {
@@ -131,6 +132,21 @@ public class HashSpanCalculator {
      */
     private long getAvailableSpace(String url) throws Exception {
 
+        long space = getSizeLimit(url, certificate);
+
+        // Scale down spaces, since they can be pretty large. Relative anyhow.
+        space /= (1024);
+
+        return space;
+    }
+
+    /**
+     * Returns the total size limit in bytes of a server's data directories.
+     * @param url Server url
+     * @param certificate The public certificate used to retrieve the server's configuration.
+     */
+    static long getSizeLimit(String url, X509Certificate certificate) throws Exception {
+
         long space = 0;
 
         Configuration config = IOUtil.getConfiguration(ConnectionUtil.connectURL(url, false), certificate, SecurityUtil.getAnonymousKey());
@@ -141,9 +157,6 @@ public class HashSpanCalculator {
             space += next.getSizeLimit();
         }
 
-        // Scale down spaces, since they can be pretty large. Relative anyhow.
-        space /= (1024);
-
         return space;
     }
 
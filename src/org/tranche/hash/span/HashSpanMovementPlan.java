@@ -0,0 +1,153 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash.span;
+
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>What would be copied to and deleted from each server to go from one set of hash spans to another, e.g., before applying the hash spans from ConsistentHashSpanCalculator.</p>
+ * <p>Amounts are fractions of all hashes. Multiplied by the amount of data on the network per replication, they estimate the bytes moved.</p>
+ */
+public class HashSpanMovementPlan {
+
+    private final Map<String, Set<HashSpan>> toCopy = new TreeMap<String, Set<HashSpan>>();
+    private final Map<String, Set<HashSpan>> toDelete = new TreeMap<String, Set<HashSpan>>();
+    private final Map<String, Double> fractionToCopy = new TreeMap<String, Double>();
+    private final Map<String, Double> fractionToDelete = new TreeMap<String, Double>();
+    private double totalFractionToCopy = 0;
+    private double totalFractionToDelete = 0;
+
+    /**
+     * @param currentSpans A map of urls to their current hash spans. Servers not in the map have none.
+     * @param newSpans A map of urls to their new hash spans. Servers not in the map will have none.
+     */
+    public HashSpanMovementPlan(Map<String, ? extends Collection<HashSpan>> currentSpans, Map<String, ? extends Collection<HashSpan>> newSpans) {
+        Set<String> urls = new HashSet<String>(currentSpans.keySet());
+        urls.addAll(newSpans.keySet());
+        for (String url : urls) {
+            List<BigInteger[]> current = HashSpanRanges.toRanges(getSpans(currentSpans, url));
+            List<BigInteger[]> updated = HashSpanRanges.toRanges(getSpans(newSpans, url));
+
+            List<BigInteger[]> copied = HashSpanRanges.subtract(updated, current);
+            toCopy.put(url, HashSpanRanges.toHashSpans(copied));
+            fractionToCopy.put(url, HashSpanRanges.fraction(copied));
+            totalFractionToCopy += fractionToCopy.get(url);
+
+            List<BigInteger[]> deleted = HashSpanRanges.subtract(current, updated);
+            toDelete.put(url, HashSpanRanges.toHashSpans(deleted));
+            fractionToDelete.put(url, HashSpanRanges.fraction(deleted));
+            totalFractionToDelete += fractionToDelete.get(url);
+        }
+    }
+
+    /**
+     * @return The urls of the servers, sorted.
+     */
+    public Set<String> getServers() {
+        return Collections.unmodifiableSet(new TreeSet<String>(toCopy.keySet()));
+    }
+
+    /**
+     * @param url Server url
+     * @return The hash spans the server would need copies of.
+     */
+    public Set<HashSpan> getHashSpansToCopy(String url) {
+        return getSpans(toCopy, url);
+    }
+
+    /**
+     * @param url Server url
+     * @return The hash spans the server could delete.
+     */
+    public Set<HashSpan> getHashSpansToDelete(String url) {
+        return getSpans(toDelete, url);
+    }
+
+    /**
+     * @param url Server url
+     * @return The fraction of all hashes the server would need copies of.
+     */
+    public double getFractionToCopy(String url) {
+        Double fraction = fractionToCopy.get(url);
+        return fraction == null ? 0 : fraction.doubleValue();
+    }
+
+    /**
+     * @param url Server url
+     * @return The fraction of all hashes the server could delete.
+     */
+    public double getFractionToDelete(String url) {
+        Double fraction = fractionToDelete.get(url);
+        return fraction == null ? 0 : fraction.doubleValue();
+    }
+
+    /**
+     * @return The fractions of all hashes copied, summed over the servers.
+     */
+    public double getTotalFractionToCopy() {
+        return totalFractionToCopy;
+    }
+
+    /**
+     * @return The fractions of all hashes deleted, summed over the servers.
+     */
+    public double getTotalFractionToDelete() {
+        return totalFractionToDelete;
+    }
+
+    /**
+     * <p>A report of the plan, one line per server.</p>
+     * @return
+     */
+    @Override
+    public String toString() {
+        StringBuffer report = new StringBuffer();
+        report.append("Hash span movement plan for " + toCopy.size() + " server(s): copies " + toPercent(totalFractionToCopy) + " and deletes " + toPercent(totalFractionToDelete) + " of all hashes.");
+        for (String url : toCopy.keySet()) {
+            report.append("\n  " + url + ": copies " + toPercent(getFractionToCopy(url)) + " in " + toCopy.get(url).size() + " hash span(s), deletes " + toPercent(getFractionToDelete(url)) + " in " + toDelete.get(url).size() + " hash span(s)");
+        }
+        return report.toString();
+    }
+
+    /**
+     * @param fraction
+     * @return
+     */
+    private static String toPercent(double fraction) {
+        return String.format("%.2f%%", fraction * 100);
+    }
+
+    /**
+     * @param spans
+     * @param url
+     * @return
+     */
+    private static <T extends Collection<HashSpan>> Set<HashSpan> getSpans(Map<String, T> spans, String url) {
+        T found = spans.get(url);
+        if (found == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(new TreeSet<HashSpan>(found));
+    }
+}
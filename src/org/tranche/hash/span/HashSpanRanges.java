@@ -0,0 +1,178 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash.span;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.tranche.hash.BigHash;
+
+/**
+ * <p>Arithmetic on hash spans as ranges of numbers, so hash spans can be split, merged and measured exactly.</p>
+ * <p>A hash is numbered by its bytes with the sign bit of each flipped, read as an unsigned number, so the numbers are in the same order as BigHash.compareTo. HashSpan.FIRST is zero and HashSpan.LAST is one less than HASH_COUNT.</p>
+ * <p>A range is a BigInteger[] of its first and last numbers, inclusive. Lists of ranges are sorted and don't overlap or touch.</p>
+ */
+final class HashSpanRanges {
+
+    /**
+     * <p>The number of possible hashes.</p>
+     */
+    static final BigInteger HASH_COUNT = BigInteger.ONE.shiftLeft(8 * BigHash.HASH_LENGTH);
+    /**
+     * <p>The number of HashSpan.LAST.</p>
+     */
+    static final BigInteger LAST = HASH_COUNT.subtract(BigInteger.ONE);
+    private static final Comparator<BigInteger[]> BY_FIRST = new Comparator<BigInteger[]>() {
+
+        public int compare(BigInteger[] a, BigInteger[] b) {
+            return a[0].compareTo(b[0]);
+        }
+    };
+
+    private HashSpanRanges() {
+    }
+
+    /**
+     * @param hash
+     * @return The number of the hash.
+     */
+    static BigInteger toNumber(BigHash hash) {
+        byte[] bytes = hash.toByteArray();
+        byte[] flipped = new byte[BigHash.HASH_LENGTH];
+        for (int i = 0; i < flipped.length; i++) {
+            flipped[i] = (byte) (bytes[i] ^ 0x80);
+        }
+        return new BigInteger(1, flipped);
+    }
+
+    /**
+     * @param number A number from zero to LAST.
+     * @return The hash with the number.
+     */
+    static BigHash toHash(BigInteger number) {
+        byte[] magnitude = number.toByteArray();
+        byte[] bytes = new byte[BigHash.HASH_LENGTH];
+        // drop the sign byte, if any, and pad with leading zeros
+        int length = Math.min(magnitude.length, bytes.length);
+        System.arraycopy(magnitude, magnitude.length - length, bytes, bytes.length - length, length);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (bytes[i] ^ 0x80);
+        }
+        return BigHash.createFromBytes(bytes);
+    }
+
+    /**
+     * @param hashSpans
+     * @return The hashes in the hash spans as sorted ranges.
+     */
+    static List<BigInteger[]> toRanges(Collection<HashSpan> hashSpans) {
+        List<BigInteger[]> ranges = new ArrayList<BigInteger[]>();
+        for (HashSpan hs : hashSpans) {
+            ranges.add(new BigInteger[]{toNumber(hs.getFirst()), toNumber(hs.getLast())});
+        }
+        return merge(ranges);
+    }
+
+    /**
+     * @param ranges
+     * @return A hash span for each range.
+     */
+    static Set<HashSpan> toHashSpans(List<BigInteger[]> ranges) {
+        Set<HashSpan> hashSpans = new TreeSet<HashSpan>();
+        for (BigInteger[] range : ranges) {
+            hashSpans.add(new HashSpan(toHash(range[0]), toHash(range[1])));
+        }
+        return hashSpans;
+    }
+
+    /**
+     * <p>Sorts ranges in any order, joining those that overlap or touch.</p>
+     * @param ranges
+     * @return
+     */
+    static List<BigInteger[]> merge(List<BigInteger[]> ranges) {
+        List<BigInteger[]> sorted = new ArrayList<BigInteger[]>(ranges);
+        Collections.sort(sorted, BY_FIRST);
+        List<BigInteger[]> merged = new ArrayList<BigInteger[]>();
+        BigInteger[] current = null;
+        for (BigInteger[] range : sorted) {
+            if (current != null && range[0].compareTo(current[1].add(BigInteger.ONE)) <= 0) {
+                if (range[1].compareTo(current[1]) > 0) {
+                    current[1] = range[1];
+                }
+            } else {
+                current = new BigInteger[]{range[0], range[1]};
+                merged.add(current);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @param ranges
+     * @param toRemove
+     * @return The parts of the ranges not in the ranges to remove.
+     */
+    static List<BigInteger[]> subtract(List<BigInteger[]> ranges, List<BigInteger[]> toRemove) {
+        List<BigInteger[]> result = new ArrayList<BigInteger[]>();
+        int first = 0;
+        for (BigInteger[] range : ranges) {
+            // skip those entirely before this range
+            while (first < toRemove.size() && toRemove.get(first)[1].compareTo(range[0]) < 0) {
+                first++;
+            }
+            BigInteger start = range[0];
+            for (int i = first; start != null && i < toRemove.size() && toRemove.get(i)[0].compareTo(range[1]) <= 0; i++) {
+                BigInteger[] cut = toRemove.get(i);
+                if (cut[0].compareTo(start) > 0) {
+                    result.add(new BigInteger[]{start, cut[0].subtract(BigInteger.ONE)});
+                }
+                start = cut[1].compareTo(range[1]) >= 0 ? null : cut[1].add(BigInteger.ONE);
+            }
+            if (start != null) {
+                result.add(new BigInteger[]{start, range[1]});
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param ranges
+     * @return The number of hashes in the ranges.
+     */
+    static BigInteger count(List<BigInteger[]> ranges) {
+        BigInteger count = BigInteger.ZERO;
+        for (BigInteger[] range : ranges) {
+            count = count.add(range[1].subtract(range[0])).add(BigInteger.ONE);
+        }
+        return count;
+    }
+
+    /**
+     * @param ranges
+     * @return The fraction of all hashes in the ranges.
+     */
+    static double fraction(List<BigInteger[]> ranges) {
+        return new BigDecimal(count(ranges)).divide(new BigDecimal(HASH_COUNT), MathContext.DECIMAL64).doubleValue();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import org.tranche.hash.BigHash;
+import org.tranche.hash.span.HashSpan;
+
+/**
+ * <p>Immutable index of the hash spans of a set of status table rows, for finding the hosts whose hash spans contain a hash without checking every hash span of every row.</p>
+ * <p>The first and last hashes of every hash span split the hashes in to regions: before the first boundary, each boundary itself, between each pair of boundaries, and after the last. Every hash in a region is contained by the same hosts, so the hosts are worked out once per region when built, and a look up is a binary search of the boundaries.</p>
+ * <p>Built by the status table, which rebuilds it after its rows change. See StatusTable.getHashSpanIndex and StatusTable.getTargetHashSpanIndex.</p>
+ */
+public class HashSpanIndex {
+
+    /**
+     * <p>The distinct first and last hashes of every hash span, sorted.</p>
+     */
+    private final BigHash[] boundaries;
+    /**
+     * <p>The hosts containing the hashes of each region. Region 2i + 1 is the boundary i itself, region 2i is the hashes between boundaries i - 1 and i.</p>
+     */
+    private final List<List<String>> hostsByRegion;
+
+    /**
+     * @param rows The rows to index.
+     * @param isTargetHashSpans True to index the target hash spans of the rows, false for their hash spans.
+     */
+    public HashSpanIndex(Collection<StatusTableRow> rows, boolean isTargetHashSpans) {
+        // read the hash spans of each row once, since the rows may change while building
+        List<String> spanHosts = new ArrayList<String>();
+        List<HashSpan> spans = new ArrayList<HashSpan>();
+        TreeSet<BigHash> boundarySet = new TreeSet<BigHash>();
+        for (StatusTableRow row : rows) {
+            for (HashSpan hs : isTargetHashSpans ? row.getTargetHashSpans() : row.getHashSpans()) {
+                spanHosts.add(row.getHost());
+                spans.add(hs);
+                boundarySet.add(hs.getFirst());
+                boundarySet.add(hs.getLast());
+            }
+        }
+        boundaries = boundarySet.toArray(new BigHash[0]);
+
+        // hosts whose hash spans start or stop covering at each region
+        final int regionCount = 2 * boundaries.length + 1;
+        List<List<String>> starting = newRegions(regionCount);
+        List<List<String>> stopping = newRegions(regionCount);
+        for (int i = 0; i < spans.size(); i++) {
+            addToRegion(starting, getRegion(spans.get(i).getFirst()), spanHosts.get(i));
+            addToRegion(stopping, getRegion(spans.get(i).getLast()) + 1, spanHosts.get(i));
+        }
+
+        // sweep the regions, counting hash spans per host since a host's hash spans may overlap
+        hostsByRegion = new ArrayList<List<String>>(regionCount);
+        Map<String, Integer> spanCounts = new HashMap<String, Integer>();
+        List<String> hosts = Collections.emptyList();
+        for (int region = 0; region < regionCount; region++) {
+            boolean changed = false;
+            if (stopping.get(region) != null) {
+                for (String host : stopping.get(region)) {
+                    int count = spanCounts.get(host) - 1;
+                    if (count == 0) {
+                        spanCounts.remove(host);
+                    } else {
+                        spanCounts.put(host, count);
+                    }
+                }
+                changed = true;
+            }
+            if (starting.get(region) != null) {
+                for (String host : starting.get(region)) {
+                    Integer count = spanCounts.get(host);
+                    spanCounts.put(host, count == null ? 1 : count + 1);
+                }
+                changed = true;
+            }
+            if (changed) {
+                List<String> sortedHosts = new ArrayList<String>(spanCounts.keySet());
+                Collections.sort(sortedHosts);
+                hosts = Collections.unmodifiableList(sortedHosts);
+            }
+            hostsByRegion.add(hosts);
+        }
+    }
+
+    /**
+     * <p>Returns the hosts with a hash span that contains the hash, sorted by host name.</p>
+     * @param hash A hash
+     * @return An unmodifiable list of host names.
+     */
+    public List<String> getHosts(BigHash hash) {
+        return hostsByRegion.get(getRegion(hash));
+    }
+
+    /**
+     * <p>Returns whether the host has a hash span that contains the hash.</p>
+     * @param host A host name
+     * @param hash A hash
+     * @return
+     */
+    public boolean contains(String host, BigHash hash) {
+        return Collections.binarySearch(getHosts(hash), host) >= 0;
+    }
+
+    /**
+     * <p>Returns the region of the given hash.</p>
+     * @param hash
+     * @return
+     */
+    private int getRegion(BigHash hash) {
+        int i = Arrays.binarySearch(boundaries, hash);
+        return i >= 0 ? 2 * i + 1 : 2 * (-i - 1);
+    }
+
+    /**
+     * @param regionCount
+     * @return A null for each region, to be filled in by addToRegion.
+     */
+    private static List<List<String>> newRegions(int regionCount) {
+        List<List<String>> regions = new ArrayList<List<String>>(regionCount);
+        for (int i = 0; i < regionCount; i++) {
+            regions.add(null);
+        }
+        return regions;
+    }
+
+    /**
+     * @param regions
+     * @param region
+     * @param host
+     */
+    private static void addToRegion(List<List<String>> regions, int region, String host) {
+        if (region >= regions.size()) {
+            return;
+        }
+        if (regions.get(region) == null) {
+            regions.set(region, new ArrayList<String>(2));
+        }
+        regions.get(region).add(host);
+    }
+}
@@ -470,7 +470,7 @@ public class NetworkUtil {
 
     /**
      * <p>Updates the master status table with the given rows except when trying to update the local server row.</p>
-     * <p>If the local server row needs to be updated use NetworkUtil.getLocalServerRow().update(NetworkUtil.getLocalServer()) method.</p>
+     * <p>If the local server row needs to be updated use NetworkUtil.getStatus().updateRow(NetworkUtil.getLocalServer()) method.</p>
      * @param row A status row
      */
     public static void updateRow(StatusTableRow row) {
@@ -485,7 +485,7 @@ public class NetworkUtil {
 
     /**
      * <p>Updates the master status table with the given rows except when trying to update the local server row.</p>
-     * <p>If the local server row needs to be updated use NetworkUtil.getLocalServerRow().update(NetworkUtil.getLocalServer()) method.</p>
+     * <p>If the local server row needs to be updated use NetworkUtil.getStatus().updateRow(NetworkUtil.getLocalServer()) method.</p>
      * @param rows A collection of status rows
      */
     public static void updateRows(Collection<StatusTableRow> rows) {
@@ -71,7 +71,7 @@ public class ServerStatusUpdateProcess extends StatusUpdateProcess {
                 if (NetworkUtil.getLocalServer() != null && NetworkUtil.getLocalServerRow() != null) {
                     // update the local server info -- do not let a problem here stop the updates
                     try {
-                        NetworkUtil.getLocalServerRow().update(NetworkUtil.getLocalServer());
+                        NetworkUtil.getStatus().updateRow(NetworkUtil.getLocalServer());
                     } catch (Exception e) {
                         debugErr(e);
                     }
@@ -31,8 +31,11 @@ import java.util.Map;
 import java.util.Set;
 import org.tranche.ConfigureTranche;
 import org.tranche.commons.Debuggable;
+import org.tranche.configuration.Configuration;
+import org.tranche.hash.span.HashSpan;
 import org.tranche.hash.span.HashSpanCollection;
 import org.tranche.remote.RemoteUtil;
+import org.tranche.server.Server;
 import org.tranche.time.TimeUtil;
 import org.tranche.util.IOUtil;
 
@@ -61,6 +64,15 @@ public class StatusTable extends Debuggable implements Serializable {
     private final List<String> hostList = new ArrayList<String>();
     private final List<String> urlList = new ArrayList<String>();
     private final Object modLock = new Object();
+    /**
+     * <p>Indexes of the hash spans and target hash spans of the rows, built when first asked for after the rows change.</p>
+     */
+    private transient HashSpanIndex hashSpanIndex = null,  targetHashSpanIndex = null;
+    /**
+     * <p>Incremented whenever the rows change, so an index built from rows that changed while building isn't kept.</p>
+     */
+    private long indexModCount = 0;
+    private final Object indexLock = new Object();
 
     /**
      * <p>Default constructor.</p>
@@ -119,6 +131,7 @@ public class StatusTable extends Debuggable implements Serializable {
                 urlList.clear();
             }
         }
+        clearHashSpanIndexes();
     }
 
     /**
@@ -251,6 +264,40 @@ public class StatusTable extends Debuggable implements Serializable {
         }
     }
 
+    /**
+     * <p>Updates a row of the table in place based on the given configuration of its server, and tells the listeners if anything changed.</p>
+     * @param host The host name
+     * @param config A configuration
+     */
+    public void updateRow(String host, Configuration config) {
+        StatusTableRow row = getRow(host);
+        if (row == null) {
+            return;
+        }
+        boolean isOnline = row.isOnline();
+        Collection<HashSpan> hashSpans = row.getHashSpans(), targetHashSpans = row.getTargetHashSpans();
+        if (row.update(config)) {
+            fireRowUpdated(host, isOnline != row.isOnline(), !HashSpanCollection.areEqual(hashSpans, row.getHashSpans()) || !HashSpanCollection.areEqual(targetHashSpans, row.getTargetHashSpans()));
+        }
+    }
+
+    /**
+     * <p>Updates the row of the given local server in place, and tells the listeners if anything changed.</p>
+     * @param server A server
+     */
+    protected void updateRow(Server server) {
+        StatusTableRow row = getRow(server.getHostName());
+        if (row == null) {
+            return;
+        }
+        String url = row.getURL();
+        boolean isOnline = row.isOnline();
+        Collection<HashSpan> hashSpans = row.getHashSpans(), targetHashSpans = row.getTargetHashSpans();
+        if (row.update(server)) {
+            fireRowUpdated(row.getHost(), !url.equals(row.getURL()) || isOnline != row.isOnline(), !HashSpanCollection.areEqual(hashSpans, row.getHashSpans()) || !HashSpanCollection.areEqual(targetHashSpans, row.getTargetHashSpans()));
+        }
+    }
+
     /**
      * <p>Removes rows that are offline, not connected, and haven't been updated in <i>x</i> number of milliseconds.</p>
      * <p>Also removes banned servers.</p>
@@ -465,6 +512,63 @@ public class StatusTable extends Debuggable implements Serializable {
         return Collections.unmodifiableList(list);
     }
 
+    /**
+     * <p>Gets an index of the hash spans of the rows, for finding the hosts with a hash span containing a hash.</p>
+     * <p>Built when first asked for after the rows change, so is cheap to ask for.</p>
+     * @return An index of the hash spans
+     */
+    public HashSpanIndex getHashSpanIndex() {
+        return getHashSpanIndex(false);
+    }
+
+    /**
+     * <p>Gets an index of the target hash spans of the rows, for finding the hosts with a target hash span containing a hash.</p>
+     * <p>Built when first asked for after the rows change, so is cheap to ask for.</p>
+     * @return An index of the target hash spans
+     */
+    public HashSpanIndex getTargetHashSpanIndex() {
+        return getHashSpanIndex(true);
+    }
+
+    /**
+     * @param isTargetHashSpans
+     * @return
+     */
+    private HashSpanIndex getHashSpanIndex(boolean isTargetHashSpans) {
+        long modCount;
+        synchronized (indexLock) {
+            HashSpanIndex index = isTargetHashSpans ? targetHashSpanIndex : hashSpanIndex;
+            if (index != null) {
+                return index;
+            }
+            modCount = indexModCount;
+        }
+        // build outside the lock
+        HashSpanIndex index = new HashSpanIndex(getRows(), isTargetHashSpans);
+        synchronized (indexLock) {
+            // only keep if the rows didn't change while building
+            if (modCount == indexModCount) {
+                if (isTargetHashSpans) {
+                    targetHashSpanIndex = index;
+                } else {
+                    hashSpanIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * <p>Called when the rows change, so the indexes are rebuilt when next asked for.</p>
+     */
+    private void clearHashSpanIndexes() {
+        synchronized (indexLock) {
+            indexModCount++;
+            hashSpanIndex = null;
+            targetHashSpanIndex = null;
+        }
+    }
+
     /**
      * 
      * @return
@@ -627,6 +731,7 @@ public class StatusTable extends Debuggable implements Serializable {
      * @param hosts A collection of host names
      */
     private void fireRowsAdded(Collection<String> hosts) {
+        clearHashSpanIndexes();
         StatusTableEvent spe = new StatusTableEvent(hosts);
         for (StatusTableListener listener : getListeners()) {
             try {
@@ -641,6 +746,7 @@ public class StatusTable extends Debuggable implements Serializable {
      * @param host A host name
      */
     private void fireRowAdded(String host) {
+        clearHashSpanIndexes();
         StatusTableEvent spe = new StatusTableEvent(host);
         for (StatusTableListener listener : getListeners()) {
             try {
@@ -655,6 +761,7 @@ public class StatusTable extends Debuggable implements Serializable {
      * @param hosts A collection of host names
      */
     private void fireRowsRemoved(Collection<String> hosts) {
+        clearHashSpanIndexes();
         StatusTableEvent spe = new StatusTableEvent(hosts);
         for (StatusTableListener listener : getListeners()) {
             try {
@@ -669,6 +776,7 @@ public class StatusTable extends Debuggable implements Serializable {
      * @param host A host name
      */
     private void fireRowsRemoved(String host) {
+        clearHashSpanIndexes();
         StatusTableEvent spe = new StatusTableEvent(host);
         for (StatusTableListener listener : getListeners()) {
             try {
@@ -684,6 +792,7 @@ public class StatusTable extends Debuggable implements Serializable {
      * @param affectsHashSpans A map of hosts to whether hash spans were affected
      */
     public void fireRowsUpdated(Map<String, Boolean> hosts, Map<String, Boolean> affectsHashSpans) {
+        clearHashSpanIndexes();
         StatusTableEvent spe = new StatusTableEvent(hosts, affectsHashSpans);
         for (StatusTableListener l : getListeners()) {
             try {
@@ -699,6 +808,7 @@ public class StatusTable extends Debuggable implements Serializable {
      * @param affectsConnectivity Whether the update changes the connectivity
      */
     public void fireRowUpdated(String host, boolean affectsConnectivity, boolean affectsHashSpans) {
+        clearHashSpanIndexes();
         StatusTableEvent spe = new StatusTableEvent(host, affectsConnectivity, affectsHashSpans);
         for (StatusTableListener l : getListeners()) {
             try {
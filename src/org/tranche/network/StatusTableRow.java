@@ -159,42 +159,49 @@ public class StatusTableRow extends Debuggable implements Serializable {
     /**
      * <p>Updates the information in the row based on the given configuration.</p>
      * <p>This is updated by the network status table and related utilities, as well as by tests.</p>
+     * <p>If the row is in a status table, use StatusTable.updateRow(String, Configuration) instead, so listeners are told of the change.</p>
      * @param config A configuration
+     * @return Whether any information was changed.
      */
-    public void update(Configuration config) {
-        setName(config.getName());
-        setGroup(config.getGroup());
-        setIsReadable(config.canRead());
-        setIsWritable(config.canWrite());
+    public boolean update(Configuration config) {
+        boolean changed = false;
+        changed = setName(config.getName()) || changed;
+        changed = setGroup(config.getGroup()) || changed;
+        changed = setIsReadable(config.canRead()) || changed;
+        changed = setIsWritable(config.canWrite()) || changed;
         // TODO after creating a routing server, change this
-        setIsDataStore(true);
-        setHashSpans(config.getHashSpans());
-        setTargetHashSpans(config.getTargetHashSpans());
+        changed = setIsDataStore(true) || changed;
+        changed = setHashSpans(config.getHashSpans()) || changed;
+        changed = setTargetHashSpans(config.getTargetHashSpans()) || changed;
         setUpdateTimestamp(TimeUtil.getTrancheTimestamp());
+        return changed;
     }
 
     /**
      * <p>Updates the information in the row based on the given local server.</p>
      * @param server A server
+     * @return Whether any information was changed.
      */
-    protected void update(Server server) {
-        setHost(server.getHostName());
-        setPort(server.getPort());
-        setIsSSL(server.isSSL());
-        setIsOnline(server.isAlive());
+    protected boolean update(Server server) {
+        boolean changed = false;
+        changed = setHost(server.getHostName()) || changed;
+        changed = setPort(server.getPort()) || changed;
+        changed = setIsSSL(server.isSSL()) || changed;
+        changed = setIsOnline(server.isAlive()) || changed;
         // TODO after creating a routing server, change this
-        setIsDataStore(true);
+        changed = setIsDataStore(true) || changed;
         // some info from the configuration
         try {
             if (server.getTrancheServer() instanceof FlatFileTrancheServer) {
-                update(((FlatFileTrancheServer) server.getTrancheServer()).getConfiguration());
+                changed = update(((FlatFileTrancheServer) server.getTrancheServer()).getConfiguration()) || changed;
             } else {
-                update(IOUtil.getConfiguration(server.getTrancheServer(), SecurityUtil.getAnonymousCertificate(), SecurityUtil.getAnonymousKey()));
+                changed = update(IOUtil.getConfiguration(server.getTrancheServer(), SecurityUtil.getAnonymousCertificate(), SecurityUtil.getAnonymousKey())) || changed;
             }
         } catch (Exception e) {
             debugErr(e);
         }
         setUpdateTimestamp(TimeUtil.getTrancheTimestamp());
+        return changed;
     }
 
     /**
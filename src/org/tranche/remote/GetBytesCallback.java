@@ -17,6 +17,8 @@ package org.tranche.remote;
 
 import java.io.ByteArrayInputStream;
 import java.io.OutputStream;
+import org.tranche.server.PropagationReturnWrapper;
+import org.tranche.streams.BufferListOutputStream;
 import org.tranche.util.IOUtil;
 
 /**
@@ -84,4 +86,24 @@ public class GetBytesCallback extends RemoteCallback {
         RemoteUtil.writeLine(Token.OK_STRING, out);
         RemoteUtil.writeData(bytes, out);
     }
+
+    /**
+     * <p>Same as writeResponse(wrapper.toByteArray(), out), but any ByteBuffers returned by the wrapper are passed along by reference when out is a BufferListOutputStream instead of being serialized in to a byte array.</p>
+     * @param wrapper
+     * @param out
+     * @throws java.lang.Exception
+     */
+    public static void writeResponse(PropagationReturnWrapper wrapper, OutputStream out) throws Exception {
+        BufferListOutputStream body = new BufferListOutputStream();
+        wrapper.serialize(body);
+
+        RemoteUtil.writeLine(Token.OK_STRING, out);
+        // same framing as RemoteUtil.writeData
+        out.write(Token.DATA);
+        out.write(Long.toString(body.size()).getBytes());
+        out.write(Token.EOL);
+        body.writeTo(out);
+        out.write(Token.EOL);
+        out.flush();
+    }
 }
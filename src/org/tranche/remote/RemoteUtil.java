@@ -47,6 +47,7 @@ import org.tranche.hash.BigHash;
 import org.tranche.network.ConnectionUtil;
 import org.tranche.network.NetworkUtil;
 import org.tranche.network.StatusTableRow;
+import org.tranche.streams.BufferListOutputStream;
 import org.tranche.streams.DeleteFileOnExitFileInputStream;
 import org.tranche.util.IOUtil;
 import org.tranche.security.SecurityUtil;
@@ -138,6 +139,16 @@ public class RemoteUtil {
      */
     public static final void writeBigHashArray(BigHash[] hashes, OutputStream os) throws IOException {
         RemoteUtil.writeInt(hashes.length, os);
+        if (os instanceof BufferListOutputStream) {
+            // one buffer of the right size, rather than one grown as the hashes are written
+            ByteBuffer buffer = ByteBuffer.allocate(hashes.length * BigHash.HASH_LENGTH);
+            for (int i = 0; i < hashes.length; i++) {
+                buffer.put(hashes[i].toByteArray());
+            }
+            buffer.flip();
+            ((BufferListOutputStream) os).append(buffer);
+            return;
+        }
         for (int i = 0; i < hashes.length; i++) {
             RemoteUtil.writeBigHash(hashes[i], os);
         }
@@ -413,24 +424,50 @@ public class RemoteUtil {
 
     /**
      * <p>Helper method to return all bytes from an input stream.</p>
+     * <p>Reads the bytes straight in to the returned array rather than buffering them first. Arrays larger than a chunk are only grown as the bytes arrive, so a bad size can't use up the heap.</p>
      * @param   bis             the input stream
      * @return                  the data bytes
      * @throws  IOException     if an input or output exception occurs
      */
     public static final byte[] readDataBytes(InputStream bis) throws IOException {
-        // get the original name
-        InputStream is = RemoteUtil.readData(bis);
         try {
-            if (is == null) {
-                return null;
-            } else {
-                return IOUtil.getBytes(is);
+            // get the response line
+            String response = RemoteUtil.readLine(bis);
+            // handle any errors
+            RemoteUtil.handledError(response, bis);
+            // check that it is data
+            if (!response.equals(Token.DATA_STRING)) {
+                throw new UnexpectedTokenException(response, Token.DATA_STRING);
             }
-
-        } finally {
-            IOUtil.safeClose(is);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse.getMessage());
         }
 
+        // get the size
+        int size = Integer.parseInt(RemoteUtil.readLine(bis));
+        if (size == -1) {
+            return null;
+        }
+        byte[] buf = new byte[Math.min(size, DataBlockUtil.getMaxChunkSize())];
+        int index = 0;
+        while (index < size) {
+            if (index == buf.length) {
+                byte[] bigger = new byte[(int) Math.min(size, (long) buf.length * 2)];
+                System.arraycopy(buf, 0, bigger, 0, index);
+                buf = bigger;
+            }
+            int bytesRead = bis.read(buf, index, buf.length - index);
+            if (bytesRead < 0) {
+                throw new UnexpectedEndOfStreamException("bytesRead = " + bytesRead + "; index = " + index + "; size = " + size);
+            }
+            index += bytesRead;
+        }
+        // finally burn the '\n' at the end of the data
+        char endChar = (char) bis.read();
+        if (endChar != '\n') {
+            throw new UnexpectedTokenException(Character.toString(endChar), "Expected \\n. Data should have ended after " + size + " bytes!");
+        }
+        return buf;
     }
 
     /**
@@ -474,6 +511,46 @@ public class RemoteUtil {
 
     }
 
+    /**
+     * <p>Same as writeData(byte[],OutputStream), but for the remaining bytes of a buffer. The buffer is not modified.</p>
+     * @param data
+     * @param out
+     * @throws java.io.IOException
+     * @see BufferListOutputStream#writeBuffer(java.nio.ByteBuffer, java.io.OutputStream)
+     */
+    public static final void writeData(ByteBuffer data, OutputStream out) throws IOException {
+        // write out the data line
+        out.write(Token.DATA);
+        // write out the size
+        if (data == null) {
+            out.write(Long.toString(-1).getBytes());
+        } else {
+            out.write(Long.toString(data.remaining()).getBytes());
+        }
+
+        out.write(Token.EOL);
+        if (data != null) {
+            // write out the data
+            BufferListOutputStream.writeBuffer(data, out);
+            out.write(Token.EOL);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * <p>Same as write2dData(byte[][],OutputStream), but for buffers. Read using read2dData.</p>
+     * @param data
+     * @param out
+     * @throws java.io.IOException
+     */
+    public static final void write2dData(ByteBuffer[] data, OutputStream out) throws IOException {
+        out.write(data.length);
+        for (int i = 0; i < data.length; i++) {
+            writeData(data[i], out);
+        }
+    }
+
     /**
      *
      * @param in
@@ -53,7 +53,6 @@ import org.tranche.network.ConnectionUtil;
 import org.tranche.network.MultiServerRequestStrategy;
 import org.tranche.network.NetworkUtil;
 import org.tranche.network.StatusTable;
-import org.tranche.network.StatusTableRow;
 import org.tranche.remote.Token;
 import org.tranche.security.SecurityUtil;
 import org.tranche.security.Signature;
@@ -450,17 +449,13 @@ public class RoutingTrancheServer extends TrancheServer {
         // Check parameters for assumptions
         AssertionUtil.assertNoNullValues(hash);
 
-        Set<String> deepCopyOfServers = getManagedServers();
         Set<String> serversThatContain = new HashSet();
 
-        // Check all servers to see if hash span covers chunk
-        HOSTS:
-        for (String host : deepCopyOfServers) {
-            StatusTableRow row = NetworkUtil.getStatus().getRow(host);
-            for (HashSpan hs : row.getHashSpans()) {
-                if (hs.contains(hash)) {
+        // Servers whose hash spans cover chunk, from the index rather than checking every hash span
+        synchronized (this.dataServerHosts) {
+            for (String host : NetworkUtil.getStatus().getHashSpanIndex().getHosts(hash)) {
+                if (this.dataServerHosts.contains(host)) {
                     serversThatContain.add(host);
-                    continue HOSTS;
                 }
             }
         }
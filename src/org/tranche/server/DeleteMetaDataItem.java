@@ -17,12 +17,12 @@ package org.tranche.server;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import org.tranche.security.Signature;
 import org.tranche.hash.BigHash;
 import org.tranche.TrancheServer;
@@ -118,70 +118,47 @@ public class DeleteMetaDataItem extends ServerItem {
                 }
 
                 // Propagate out the requests to direct connections using strategy
-                List<Thread> threads = new LinkedList<Thread>();
+                PropagationExecutor.Batch batch = server.getPropagationExecutor().newBatch(strategy.getDepth());
                 for (final String hostToContact : strategy.getPartitionsMap().keySet()) {
-                    Thread t = new Thread(hostToContact) {
+                    batch.submit(hostToContact, strategy.getPartitionsMap().get(hostToContact), new Callable<Collection<PropagationExceptionWrapper>>() {
 
-                        @Override
-                        public void run() {
+                        public Collection<PropagationExceptionWrapper> call() throws Exception {
+                            // check for offline server
+                            StatusTableRow row = NetworkUtil.getStatus().getRow(hostToContact);
+                            if (!row.isOnline()) {
+                                throw new ServerIsOfflineException(hostToContact);
+                            }
+                            TrancheServer ts = ConnectionUtil.connectHost(hostToContact, true);
+                            if (ts == null) {
+                                throw new ServerIsOfflineException(hostToContact);
+                            }
                             try {
-                                // check for offline server
-                                StatusTableRow row = NetworkUtil.getStatus().getRow(hostToContact);
-                                if (!row.isOnline()) {
-                                    throw new ServerIsOfflineException(hostToContact);
-                                }
-                                TrancheServer ts = ConnectionUtil.connectHost(hostToContact, true);
-                                if (ts == null) {
-                                    throw new ServerIsOfflineException(hostToContact);
-                                }
-                                try {
-                                    String[] hostsSubset = strategy.getPartitionsMap().get(hostToContact).toArray(new String[0]);
-                                    byte[][] noncesSubsetArr = new byte[hostsSubset.length][];
-                                    Signature[] sigsSubsetArr = new Signature[hostsSubset.length];
-
-                                    // Build up above arrays using supplied information. Just a matter of matching
-                                    // target host names with associated nonce and signature.
-                                    for (int i = 0; i < hostsSubset.length; i++) {
-                                        HostSignatureNonceWrapper nextWrapper = hostMap.get(hostsSubset[i]);
-                                        if (nextWrapper == null) {
-                                            throw new AssertionFailedException("Could not find the HostSignatureNonceWrapper for \"" + hostsSubset[i] + "\".");
-                                        }
-
-                                        // Set the sig+host+nonce triplet
-                                        noncesSubsetArr[i] = nextWrapper.nonce;
-                                        sigsSubsetArr[i] = nextWrapper.sig;
+                                String[] hostsSubset = strategy.getPartitionsMap().get(hostToContact).toArray(new String[0]);
+                                byte[][] noncesSubsetArr = new byte[hostsSubset.length][];
+                                Signature[] sigsSubsetArr = new Signature[hostsSubset.length];
+
+                                // Build up above arrays using supplied information. Just a matter of matching
+                                // target host names with associated nonce and signature.
+                                for (int i = 0; i < hostsSubset.length; i++) {
+                                    HostSignatureNonceWrapper nextWrapper = hostMap.get(hostsSubset[i]);
+                                    if (nextWrapper == null) {
+                                        throw new AssertionFailedException("Could not find the HostSignatureNonceWrapper for \"" + hostsSubset[i] + "\".");
                                     }
 
-                                    exceptions.addAll(ts.deleteMetaData(hash, uploaderName, uploaderTimestamp, relativePathInDataSet, sigsSubsetArr, noncesSubsetArr, hostsSubset).getErrors());
-                                } finally {
-                                    ConnectionUtil.unlockConnection(hostToContact);
+                                    // Set the sig+host+nonce triplet
+                                    noncesSubsetArr[i] = nextWrapper.nonce;
+                                    sigsSubsetArr[i] = nextWrapper.sig;
                                 }
-                            } catch (Exception e) {
-                                exceptions.add(new PropagationExceptionWrapper(e, hostToContact));
 
-                                // Uh-oh. Don't know whether other servers were set or not! Throwing an exception like this
-                                // probably means I/O exception, so likely that everything was lost. Assume worst.
-                                for (String nextFailedHost : strategy.getPartitionsMap().get(hostToContact)) {
-                                    if (nextFailedHost.equals(hostToContact)) {
-                                        continue;
-                                    }
-                                    exceptions.add(new PropagationExceptionWrapper(new PropagationFailedException(), nextFailedHost));
-                                }
+                                return ts.deleteMetaData(hash, uploaderName, uploaderTimestamp, relativePathInDataSet, sigsSubsetArr, noncesSubsetArr, hostsSubset).getErrors();
+                            } finally {
+                                ConnectionUtil.unlockConnection(hostToContact);
                             }
                         }
-                    };
-                    t.setDaemon(true);
-                    t.start();
-                    threads.add(t);
-                }
-                // wait for the threads to stop
-                for (Thread t : threads) {
-                    try {
-                        t.join();
-                    } catch (Exception e) {
-                        exceptions.add(new PropagationExceptionWrapper(e, t.getName()));
-                    }
+                    });
                 }
+                // wait for the requests, but not past the timeout
+                exceptions.addAll(batch.await());
             }
         } catch (Exception e) {
             exceptions.add(new PropagationExceptionWrapper(e, server.getHostName()));
@@ -61,6 +61,8 @@ public class GetConfigurationItem extends ServerItem {
         Configuration config = server.getTrancheServer().getConfiguration(sig, nonce);
         // add the number of currently connected users
         config.setValue(ConfigKeys.CURRENTLY_CONNECTED_USERS, Integer.toString(server.getConnectedClients()));
+        // add the propagation statistics
+        server.getPropagationExecutor().setConfigurationValues(config);
         ByteArrayOutputStream baos = null;
         try {
             baos = new ByteArrayOutputStream();
@@ -50,6 +50,8 @@ public class GetConfigurationNoSigItem extends ServerItem {
         Configuration config = server.getTrancheServer().getConfiguration();
         // add the number of currently connected users
         config.setValue(ConfigKeys.CURRENTLY_CONNECTED_USERS, Integer.toString(server.getConnectedClients()));
+        // add the propagation statistics
+        server.getPropagationExecutor().setConfigurationValues(config);
         ByteArrayOutputStream baos = null;
         try {
             baos = new ByteArrayOutputStream();
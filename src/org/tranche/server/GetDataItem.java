@@ -17,6 +17,7 @@ package org.tranche.server;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
 import org.tranche.TrancheServer;
@@ -41,7 +42,7 @@ import org.tranche.util.TestUtil;
  * @author Bryan E. Smith - bryanesmith@gmail.com
  * @author James "Augie" Hill - augman85@gmail.com
  */
-public class GetDataItem extends ServerItem {
+public class GetDataItem extends StreamingServerItem<GetDataItem.Request> {
 
     /**
      * @param   server  the server received
@@ -52,19 +53,28 @@ public class GetDataItem extends ServerItem {
 
     /**
      * @param in The input stream
-     * @param out The output stream
-     * @param clientIP So the transaction can be logged with client IP address.
+     * @return
      * @throws Exception
      */
-    public final void doAction(InputStream in, OutputStream out, String clientIP) throws Exception {
-        BigHash[] hashes;
-        boolean propagateRequest;
+    public final Request readRequest(InputStream in) throws Exception {
         try {
-            hashes = RemoteUtil.readBigHashArray(in);
-            propagateRequest = RemoteUtil.readBoolean(in);
+            BigHash[] hashes = RemoteUtil.readBigHashArray(in);
+            boolean propagateRequest = RemoteUtil.readBoolean(in);
+            return new Request(hashes, propagateRequest);
         } catch (Exception e) {
             throw new TrancheProtocolException();
         }
+    }
+
+    /**
+     * @param request The request
+     * @param out The output stream
+     * @param clientIP So the transaction can be logged with client IP address.
+     * @throws Exception
+     */
+    public final void doAction(Request request, OutputStream out, String clientIP) throws Exception {
+        BigHash[] hashes = request.hashes;
+        boolean propagateRequest = request.propagateRequest;
 
         // verify the number of hashes is less than or equal to the allowed amount
         if (hashes.length > RemoteTrancheServer.BATCH_GET_LIMIT) {
@@ -74,14 +84,23 @@ public class GetDataItem extends ServerItem {
         // execute
         Set<PropagationExceptionWrapper> exceptionSet = new HashSet<PropagationExceptionWrapper>();
         byte[][] dataBytes = null;
+        // only set if reading memory-mapped chunks
+        ByteBuffer[] dataBuffers = null;
         try {
-            PropagationReturnWrapper thisServerWrapper = server.getTrancheServer().getData(hashes, propagateRequest);
-            dataBytes = (byte[][]) thisServerWrapper.getReturnValueObject();
-            exceptionSet.addAll(thisServerWrapper.getErrors());
+            if (isUseMemoryMappedReads()) {
+                PropagationReturnWrapper thisServerWrapper = ((FlatFileTrancheServer) server.getTrancheServer()).getDataByteBuffers(hashes);
+                dataBuffers = (ByteBuffer[]) thisServerWrapper.getReturnValueObject();
+                dataBytes = new byte[hashes.length][];
+                exceptionSet.addAll(thisServerWrapper.getErrors());
+            } else {
+                PropagationReturnWrapper thisServerWrapper = server.getTrancheServer().getData(hashes, propagateRequest);
+                dataBytes = (byte[][]) thisServerWrapper.getReturnValueObject();
+                exceptionSet.addAll(thisServerWrapper.getErrors());
+            }
             if (propagateRequest && isAllowToPropagate() && !(server.getTrancheServer() instanceof RoutingTrancheServer)) {
                 for (int i = 0; i < hashes.length; i++) {
                     // got the chunk locally
-                    if (dataBytes[i] != null) {
+                    if (dataBytes[i] != null || (dataBuffers != null && dataBuffers[i] != null)) {
                         continue;
                     }
                     // check the local target hash spans
@@ -161,7 +180,21 @@ public class GetDataItem extends ServerItem {
             exceptionSet.add(new PropagationExceptionWrapper(e, server.getHostName()));
         }
         // write the response
-        GetBytesCallback.writeResponse(new PropagationReturnWrapper(exceptionSet, dataBytes).toByteArray(), out);
+        if (dataBuffers == null && dataBytes != null) {
+            // pass the chunks along by reference rather than serializing them in to one array
+            dataBuffers = new ByteBuffer[dataBytes.length];
+        }
+        if (dataBuffers != null) {
+            // merge in any chunks found on other servers or read without memory-mapping
+            for (int i = 0; i < dataBuffers.length; i++) {
+                if (dataBuffers[i] == null && dataBytes[i] != null) {
+                    dataBuffers[i] = ByteBuffer.wrap(dataBytes[i]);
+                }
+            }
+            GetBytesCallback.writeResponse(new PropagationReturnWrapper(exceptionSet, dataBuffers), out);
+        } else {
+            GetBytesCallback.writeResponse(new PropagationReturnWrapper(exceptionSet, dataBytes).toByteArray(), out);
+        }
     }
 
     /**
@@ -180,6 +213,17 @@ public class GetDataItem extends ServerItem {
         RemoteUtil.writeBoolean(propagateRequest, out);
     }
     
+    /**
+     * <p>Returns true if the local server is a FlatFileTrancheServer reading chunks through memory-mapped DataBlock files.</p>
+     * @return
+     */
+    private boolean isUseMemoryMappedReads() {
+        try {
+            return server.getTrancheServer() instanceof FlatFileTrancheServer && ((FlatFileTrancheServer) server.getTrancheServer()).getDataBlockUtil().isUseMemoryMappedReads();
+        } catch (Exception e) { /* nothing */ }
+        return false;
+    }
+
     /**
      * 
      * @return 
@@ -191,4 +235,22 @@ public class GetDataItem extends ServerItem {
         } catch (Exception e) { /* nothing */ }
         return allow;
     }
+
+    /**
+     * <p>The parameters of a request to get data.</p>
+     */
+    public static class Request {
+
+        private final BigHash[] hashes;
+        private final boolean propagateRequest;
+
+        /**
+         * @param hashes
+         * @param propagateRequest
+         */
+        private Request(BigHash[] hashes, boolean propagateRequest) {
+            this.hashes = hashes;
+            this.propagateRequest = propagateRequest;
+        }
+    }
 }
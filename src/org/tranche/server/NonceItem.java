@@ -18,10 +18,12 @@ package org.tranche.server;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import org.tranche.TrancheServer;
 import org.tranche.exceptions.PropagationFailedException;
 import org.tranche.exceptions.PropagationUnfulfillableHostException;
@@ -63,7 +65,8 @@ public class NonceItem extends ServerItem {
             requestedNonces = RemoteUtil.readInt(in);
             count = RemoteUtil.readInt(in);
             hosts = new ArrayList<String>(count);
-            nonces = new ArrayList<byte[][]>(count);
+            // set from propagation threads
+            nonces = Collections.synchronizedList(new ArrayList<byte[][]>(count));
             for (int i = 0; i < count; i++) {
                 hosts.add(RemoteUtil.readLine(in));
                 nonces.add(new byte[0][0]);
@@ -106,62 +109,38 @@ public class NonceItem extends ServerItem {
                 }
 
                 // Propagate out the requests to direct connections using strategy
-                List<Thread> threads = new LinkedList<Thread>();
+                PropagationExecutor.Batch batch = server.getPropagationExecutor().newBatch(strategy.getDepth());
                 for (final String hostToContact : strategy.getPartitionsMap().keySet()) {
-                    Thread t = new Thread(hostToContact) {
+                    batch.submit(hostToContact, strategy.getPartitionsMap().get(hostToContact), new Callable<Collection<PropagationExceptionWrapper>>() {
 
-                        @Override
-                        public void run() {
+                        public Collection<PropagationExceptionWrapper> call() throws Exception {
+                            // check for offline server
+                            StatusTableRow row = NetworkUtil.getStatus().getRow(hostToContact);
+                            if (!row.isOnline()) {
+                                throw new ServerIsOfflineException(hostToContact);
+                            }
+                            TrancheServer ts = ConnectionUtil.connectHost(hostToContact, true);
+                            if (ts == null) {
+                                throw new ServerIsOfflineException(hostToContact);
+                            }
                             try {
-                                // check for offline server
-                                StatusTableRow row = NetworkUtil.getStatus().getRow(hostToContact);
-                                if (!row.isOnline()) {
-                                    throw new ServerIsOfflineException(hostToContact);
-                                }
-                                TrancheServer ts = ConnectionUtil.connectHost(hostToContact, true);
-                                if (ts == null) {
-                                    throw new ServerIsOfflineException(hostToContact);
-                                }
-                                try {
-                                    String[] hostsSubset = strategy.getPartitionsMap().get(hostToContact).toArray(new String[0]);
-                                    PropagationReturnWrapper prw = ts.getNonces(hostsSubset, requestedNonces);
-                                    exceptions.addAll(prw.getErrors());
-                                    if (!prw.isVoid()) {
-                                        byte[][][] noncesSubset = (byte[][][]) prw.getReturnValueObject();
-                                        for (int i = 0; i < hostsSubset.length; i++) {
-                                            nonces.set(hosts.indexOf(hostsSubset[i]), noncesSubset[i]);
-                                        }
+                                String[] hostsSubset = strategy.getPartitionsMap().get(hostToContact).toArray(new String[0]);
+                                PropagationReturnWrapper prw = ts.getNonces(hostsSubset, requestedNonces);
+                                if (!prw.isVoid()) {
+                                    byte[][][] noncesSubset = (byte[][][]) prw.getReturnValueObject();
+                                    for (int i = 0; i < hostsSubset.length; i++) {
+                                        nonces.set(hosts.indexOf(hostsSubset[i]), noncesSubset[i]);
                                     }
-                                } finally {
-                                    ConnectionUtil.unlockConnection(hostToContact);
-                                }
-                            } catch (Exception e) {
-                                // Add to collection of exceptions.
-                                exceptions.add(new PropagationExceptionWrapper(e, hostToContact));
-
-                                // Uh-oh. Don't know whether other servers were set or not! Throwing an exception like this
-                                // probably means I/O exception, so likely that everything was lost. Assume worst.
-                                for (String nextFailedHost : strategy.getPartitionsMap().get(hostToContact)) {
-                                    if (nextFailedHost.equals(hostToContact)) {
-                                        continue;
-                                    }
-                                    exceptions.add(new PropagationExceptionWrapper(new PropagationFailedException(), nextFailedHost));
                                 }
+                                return prw.getErrors();
+                            } finally {
+                                ConnectionUtil.unlockConnection(hostToContact);
                             }
                         }
-                    };
-                    t.setDaemon(true);
-                    t.start();
-                    threads.add(t);
-                }
-                // wait for the threads to stop
-                for (Thread t : threads) {
-                    try {
-                        t.join();
-                    } catch (Exception e) {
-                        exceptions.add(new PropagationExceptionWrapper(e, t.getName()));
-                    }
+                    });
                 }
+                // wait for the requests, but not past the timeout
+                exceptions.addAll(batch.await());
             }
             for (int i = 0; i < nonces.size(); i++) {
                 returnVal[i] = nonces.get(i);
@@ -0,0 +1,391 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.tranche.ConfigureTranche;
+import org.tranche.configuration.ConfigKeys;
+import org.tranche.configuration.Configuration;
+import org.tranche.exceptions.PropagationFailedException;
+import org.tranche.time.TimeUtil;
+
+/**
+ * <p>Propagates requests from a server to other servers on a fixed number of threads shared by all requests, rather than on new threads for each.</p>
+ * <p>Each other server has no more than a set number of propagated requests executing on it at once; the rest wait their turn. When too many are waiting, more are turned away, and a batch of propagated requests stops waiting after a timeout. Either way, the server that wasn't reached and the servers it would have propagated to are reported as failed.</p>
+ * <p>A batch deeper in the propagation tree waits less than the batch that propagated to it, so a server doesn't give up on another server just as that server hears back from the rest of its partition.</p>
+ */
+public class PropagationExecutor {
+
+    private final ThreadPoolExecutor threads;
+    private final int maxQueued, maxPerHost;
+    private final long timeout;
+    /**
+     * <p>Hosts with propagated requests executing or waiting.</p>
+     */
+    private final Map<String, Destination> destinations = new HashMap<String, Destination>();
+    private int queued = 0;
+    private boolean closed = false;
+    private long rejectedCount = 0, timedOutCount = 0, completedCount = 0;
+
+    /**
+     * <p>Uses the configured limits.</p>
+     */
+    public PropagationExecutor() {
+        this(ConfigureTranche.getInt(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_PROPAGATION_THREADS),
+                ConfigureTranche.getInt(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_PROPAGATION_QUEUE_SIZE),
+                ConfigureTranche.getInt(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_PROPAGATION_HOST_SIMULTANEOUS_REQUESTS),
+                ConfigureTranche.getLong(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_PROPAGATION_TIMEOUT));
+    }
+
+    /**
+     * @param threadCount The number of threads.
+     * @param maxQueued The most propagated requests waiting before more are turned away.
+     * @param maxPerHost The most propagated requests executing on any one host.
+     * @param timeout The most milliseconds a batch waits for its propagated requests.
+     */
+    public PropagationExecutor(int threadCount, int maxQueued, int maxPerHost, long timeout) {
+        threadCount = Math.max(1, threadCount);
+        this.maxQueued = maxQueued;
+        this.maxPerHost = Math.max(1, maxPerHost);
+        this.timeout = timeout;
+        threads = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Propagation Thread");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * <p>Starts a batch of propagated requests, e.g., one for each server a request is propagated to.</p>
+     * <p>The batch waits timeout * depth / (depth + 1) milliseconds. A server it propagates to has a shallower tree below it, so it waits less and answers before this batch gives up.</p>
+     * @param depth The depth of the propagation tree below this server. See MultiServerRequestStrategy.getDepth.
+     * @return
+     */
+    public Batch newBatch(int depth) {
+        depth = Math.max(1, depth);
+        return new Batch(timeout * depth / (depth + 1L));
+    }
+
+    /**
+     * <p>Returns the number of propagated requests waiting for a thread or for their host.</p>
+     * @return
+     */
+    public synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    /**
+     * <p>Returns the number of propagated requests executing.</p>
+     * @return
+     */
+    public int getActiveCount() {
+        return threads.getActiveCount();
+    }
+
+    /**
+     * <p>Returns the number of propagated requests turned away because too many were waiting.</p>
+     * @return
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * <p>Returns the number of propagated requests that weren't done before their batch stopped waiting.</p>
+     * @return
+     */
+    public synchronized long getTimedOutCount() {
+        return timedOutCount;
+    }
+
+    /**
+     * <p>Returns the number of propagated requests executed.</p>
+     * @return
+     */
+    public synchronized long getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * <p>Adds the statistics for propagated requests to a server's configuration.</p>
+     * @param config
+     */
+    public void setConfigurationValues(Configuration config) {
+        config.setValue(ConfigKeys.PROPAGATE_QUEUE_DEPTH, Integer.toString(getQueueDepth()));
+        config.setValue(ConfigKeys.PROPAGATE_ACTIVE_COUNT, Integer.toString(getActiveCount()));
+        config.setValue(ConfigKeys.PROPAGATE_COMPLETED_COUNT, Long.toString(getCompletedCount()));
+        config.setValue(ConfigKeys.PROPAGATE_REJECTED_COUNT, Long.toString(getRejectedCount()));
+        config.setValue(ConfigKeys.PROPAGATE_TIMED_OUT_COUNT, Long.toString(getTimedOutCount()));
+    }
+
+    /**
+     * <p>Stops the threads. Propagated requests still waiting are turned away, so their batches stop waiting for them.</p>
+     */
+    public void close() {
+        List<Task> waiting = new LinkedList<Task>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Runnable r : threads.shutdownNow()) {
+                waiting.add((Task) r);
+            }
+            for (Destination destination : destinations.values()) {
+                waiting.addAll(destination.waiting);
+            }
+            destinations.clear();
+            queued = 0;
+        }
+        // not while holding the lock: a batch calls in to this while holding its own
+        for (Task task : waiting) {
+            task.batch.done(task, null, new RejectedExecutionException("Server is shutting down."));
+        }
+    }
+
+    /**
+     * 
+     * @param task
+     * @throws java.util.concurrent.RejectedExecutionException
+     */
+    private synchronized void submit(Task task) throws RejectedExecutionException {
+        if (closed) {
+            throw new RejectedExecutionException("Server is shutting down.");
+        }
+        if (queued >= maxQueued) {
+            rejectedCount++;
+            throw new RejectedExecutionException("Too many propagated requests waiting: " + queued);
+        }
+        Destination destination = destinations.get(task.host);
+        if (destination == null) {
+            destination = new Destination();
+            destinations.put(task.host, destination);
+        }
+        if (destination.executing < maxPerHost) {
+            threads.execute(task);
+            destination.executing++;
+        } else {
+            destination.waiting.add(task);
+        }
+        queued++;
+    }
+
+    /**
+     * 
+     * @param task
+     */
+    private synchronized void started(Task task) {
+        queued--;
+    }
+
+    /**
+     * <p>Starts the host's next waiting propagated request, if any.</p>
+     * @param task
+     */
+    private synchronized void finished(Task task) {
+        completedCount++;
+        Destination destination = destinations.get(task.host);
+        if (destination == null) {
+            // closed
+            return;
+        }
+        Task next = destination.waiting.isEmpty() ? null : destination.waiting.removeFirst();
+        if (next != null) {
+            try {
+                threads.execute(next);
+                return;
+            } catch (RejectedExecutionException e) {
+                // closed
+            }
+        }
+        destination.executing--;
+        if (destination.executing == 0 && destination.waiting.isEmpty()) {
+            destinations.remove(task.host);
+        }
+    }
+
+    /**
+     * 
+     */
+    private synchronized void timedOut() {
+        timedOutCount++;
+    }
+
+    /**
+     * <p>Propagated requests for one host.</p>
+     */
+    private static class Destination {
+
+        private int executing = 0;
+        private final LinkedList<Task> waiting = new LinkedList<Task>();
+    }
+
+    /**
+     * <p>A propagated request.</p>
+     */
+    private class Task implements Runnable {
+
+        private final Batch batch;
+        private final String host;
+        private final Collection<String> partition;
+        private final Callable<? extends Collection<PropagationExceptionWrapper>> callable;
+        /**
+         * <p>Set when the batch stops waiting. Not executed if it hasn't started.</p>
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * 
+         * @param batch
+         * @param host
+         * @param partition
+         * @param callable
+         */
+        private Task(Batch batch, String host, Collection<String> partition, Callable<? extends Collection<PropagationExceptionWrapper>> callable) {
+            this.batch = batch;
+            this.host = host;
+            this.partition = partition;
+            this.callable = callable;
+        }
+
+        public void run() {
+            started(this);
+            Collection<PropagationExceptionWrapper> errors = null;
+            Exception exception = null;
+            try {
+                if (!cancelled) {
+                    errors = callable.call();
+                }
+            } catch (Exception e) {
+                exception = e;
+            } finally {
+                finished(this);
+                batch.done(this, errors, exception);
+            }
+        }
+    }
+
+    /**
+     * <p>Propagated requests whose results are collected together. Safe to use from any thread.</p>
+     */
+    public class Batch {
+
+        private final Set<PropagationExceptionWrapper> exceptions = new HashSet<PropagationExceptionWrapper>();
+        private final Set<Task> outstanding = new HashSet<Task>();
+        private final long batchTimeout;
+        private long deadline = 0;
+
+        /**
+         * @param batchTimeout
+         */
+        private Batch(long batchTimeout) {
+            this.batchTimeout = batchTimeout;
+        }
+
+        /**
+         * <p>Propagates a request to a host.</p>
+         * @param host The host to contact.
+         * @param partition The hosts the host propagates the request to. If the host isn't reached, these are reported as failed.
+         * @param callable Makes the request, returning the errors reported by the host.
+         */
+        public void submit(String host, Collection<String> partition, Callable<? extends Collection<PropagationExceptionWrapper>> callable) {
+            Task task = new Task(this, host, partition, callable);
+            synchronized (this) {
+                if (deadline == 0) {
+                    deadline = TimeUtil.getTrancheTimestamp() + batchTimeout;
+                }
+                outstanding.add(task);
+            }
+            try {
+                PropagationExecutor.this.submit(task);
+            } catch (RejectedExecutionException e) {
+                done(task, null, e);
+            }
+        }
+
+        /**
+         * 
+         * @param task
+         * @param errors
+         * @param exception
+         */
+        private synchronized void done(Task task, Collection<PropagationExceptionWrapper> errors, Exception exception) {
+            // already reported as timed out
+            if (!outstanding.remove(task)) {
+                return;
+            }
+            if (exception != null) {
+                failed(task, exception);
+            } else if (errors != null) {
+                exceptions.addAll(errors);
+            }
+            notifyAll();
+        }
+
+        /**
+         * <p>Don't know whether other servers were set or not. Assume worst.</p>
+         * @param task
+         * @param exception
+         */
+        private void failed(Task task, Exception exception) {
+            exceptions.add(new PropagationExceptionWrapper(exception, task.host));
+            for (String nextFailedHost : task.partition) {
+                if (nextFailedHost.equals(task.host)) {
+                    continue;
+                }
+                exceptions.add(new PropagationExceptionWrapper(new PropagationFailedException(), nextFailedHost));
+            }
+        }
+
+        /**
+         * <p>Waits for the propagated requests, but no longer than the batch's timeout.</p>
+         * @return The errors reported by all the hosts, including those that weren't reached.
+         * @throws java.lang.InterruptedException
+         */
+        public synchronized Set<PropagationExceptionWrapper> await() throws InterruptedException {
+            while (!outstanding.isEmpty()) {
+                long wait = deadline - TimeUtil.getTrancheTimestamp();
+                if (wait <= 0) {
+                    break;
+                }
+                wait(wait);
+            }
+            for (Task task : outstanding) {
+                task.cancelled = true;
+                timedOut();
+                failed(task, new TimeoutException("No response from " + task.host + " after " + batchTimeout + " milliseconds."));
+            }
+            outstanding.clear();
+            return new HashSet<PropagationExceptionWrapper>(exceptions);
+        }
+    }
+}
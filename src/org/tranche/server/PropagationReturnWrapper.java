@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
 import org.tranche.exceptions.AssertionFailedException;
@@ -58,7 +59,7 @@ public class PropagationReturnWrapper implements Serializable {
      * <p>Use this constructor when method returns a value. (Use other constructor if void).</p>
      * <p>Do not set a null value if there is a return type. If method returns a null value, create an empty array or throw a NullPointerException.</p>
      * @param set Set of exceptions. Is usually empty.
-     * @param returnObj If null, then treated as void; otherwise, this is the return object of type Boolean, byte[], byte[][], or byte[][][]
+     * @param returnObj If null, then treated as void; otherwise, this is the return object of type Boolean, byte[], byte[][], ByteBuffer[], or byte[][][]
      */
     public PropagationReturnWrapper(Set<PropagationExceptionWrapper> set, Object returnObj) {
         this.propagationExceptionWrapperSet = set;
@@ -154,6 +155,14 @@ public class PropagationReturnWrapper implements Serializable {
         return returnObj instanceof byte[][];
     }
 
+    /**
+     * <p>Returns true if and only if return type of ByteBuffer[]. Only used on the server side; serialized the same as byte[][], so is read back as byte[][].</p>
+     * @return
+     */
+    public boolean isByteBufferArray() {
+        return returnObj instanceof ByteBuffer[];
+    }
+
     /**
      * <p>Returns true if and only if return type of byte[][][]</p>
      * @return
@@ -181,7 +190,7 @@ public class PropagationReturnWrapper implements Serializable {
             return FLAG_BOOLEAN;
         } else if (isByteArraySingleDimension()) {
             return FLAG_BYTE_1D;
-        } else if (isByteArrayDoubleDimension()) {
+        } else if (isByteArrayDoubleDimension() || isByteBufferArray()) {
             return FLAG_BYTE_2D;
         } else if (isByteArrayTripleDimension()) {
             return FLAG_BYTE_3D;
@@ -219,7 +228,11 @@ public class PropagationReturnWrapper implements Serializable {
                 RemoteUtil.writeData((byte[]) returnObj, out);
                 break;
             case FLAG_BYTE_2D:
-                RemoteUtil.write2dData((byte[][]) returnObj, out);
+                if (isByteBufferArray()) {
+                    RemoteUtil.write2dData((ByteBuffer[]) returnObj, out);
+                } else {
+                    RemoteUtil.write2dData((byte[][]) returnObj, out);
+                }
                 break;
             case FLAG_BYTE_3D:
                 RemoteUtil.write3dData((byte[][][]) returnObj, out);
@@ -245,6 +258,9 @@ public class PropagationReturnWrapper implements Serializable {
         } else if (isByteArrayDoubleDimension()) {
             int len1 = ((byte[][]) this.returnObj).length;
             return "PropagationReturnWrapper: byte[" + len1 + "][], exceptions: " + this.propagationExceptionWrapperSet.size();
+        } else if (isByteBufferArray()) {
+            int len1 = ((ByteBuffer[]) this.returnObj).length;
+            return "PropagationReturnWrapper: ByteBuffer[" + len1 + "], exceptions: " + this.propagationExceptionWrapperSet.size();
         } else if (isByteArrayTripleDimension()) {
             int len1 = ((byte[][][]) this.returnObj).length;
             return "PropagationReturnWrapper: byte[" + len1 + "][][], exceptions: " + this.propagationExceptionWrapperSet.size();
@@ -68,6 +68,8 @@ public class Server extends DebuggableThread {
     private final Map<String, ServerItem> items = new HashMap<String, ServerItem>();
     private final Set<ServerWorkerThread> workers = new HashSet<ServerWorkerThread>();
     private ServerSocket socket;
+    private ServerSelector selector = null;
+    private final PropagationExecutor propagationExecutor = new PropagationExecutor();
     private boolean ssl, stopped = false, isShuttingDown = false;
     private long maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
     private int port, rejectedClients = 0;
@@ -141,6 +143,10 @@ public class Server extends DebuggableThread {
             serverSocket.setEnabledCipherSuites(serverSocket.getSupportedCipherSuites());
             // set the socket
             socket = serverSocket;
+        } else if (ConfigureTranche.getBoolean(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_NIO)) {
+            // handle all clients with one selector
+            selector = new ServerSelector(this);
+            socket = selector.getServerSocket();
         } else {
             // if not secure, make a plain old TCP socket
             socket = ServerSocketFactory.getDefault().createServerSocket(getPort());
@@ -235,6 +241,9 @@ public class Server extends DebuggableThread {
      * @return
      */
     public int getConnectedClients() {
+        if (selector != null) {
+            return selector.getConnectedClients();
+        }
         synchronized (workers) {
             return workers.size();
         }
@@ -260,6 +269,13 @@ public class Server extends DebuggableThread {
         return rejectedClients;
     }
 
+    /**
+     * <p>Note a client was turned away.</p>
+     */
+    void rejectedClient() {
+        rejectedClients++;
+    }
+
     /**
      *
      * @return
@@ -292,6 +308,22 @@ public class Server extends DebuggableThread {
         return ssl;
     }
 
+    /**
+     * <p>Returns the selector handling all clients, or null if each client is handled by its own ServerWorkerThread.</p>
+     * @return
+     */
+    public ServerSelector getServerSelector() {
+        return selector;
+    }
+
+    /**
+     * <p>Returns the executor that propagates requests to other servers.</p>
+     * @return
+     */
+    public PropagationExecutor getPropagationExecutor() {
+        return propagationExecutor;
+    }
+
     /**
      * <p>Returns the port that the Tranche server is bound to.</p>
      * @return The port that the Tranche server is bound to.
@@ -380,6 +412,10 @@ public class Server extends DebuggableThread {
                 }
             }
 
+            if (selector != null) {
+                selector.close();
+            }
+            propagationExecutor.close();
             IOUtil.safeClose(socket);
 
             // kill all of the working threads
@@ -414,6 +450,11 @@ public class Server extends DebuggableThread {
         try {
             // set the local server -- also starts the updating of the network status
             NetworkUtil.setLocalServer(Server.this);
+            // the selector handles all clients on this thread
+            if (selector != null) {
+                selector.run();
+                return;
+            }
             // listen for requests
             Socket clientSocket = null;
             int successiveFailureCount = 0;
@@ -485,8 +526,9 @@ public class Server extends DebuggableThread {
             }
         } catch (Exception e) {
             debugErr(e);
+        } finally {
+            debugOut("Server is exiting.");
         }
-        debugOut("Server is exiting.");
     }
 
     /**
@@ -0,0 +1,690 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.tranche.ConfigureTranche;
+import org.tranche.commons.DebugUtil;
+import org.tranche.commons.ThreadUtil;
+import org.tranche.exceptions.RejectedRequestException;
+import org.tranche.network.NetworkUtil;
+import org.tranche.remote.RemoteTrancheServer;
+import org.tranche.remote.RemoteUtil;
+import org.tranche.remote.Token;
+import org.tranche.streams.BufferListOutputStream;
+import org.tranche.time.TimeUtil;
+
+/**
+ * <p>Handles all of a server's clients with a single selector, so connected clients don't each need their own threads.</p>
+ * <p>Reads and writes the same frames as ServerWorkerThread: the OK byte, the request's ID, the number of bytes, then the bytes. Requests are executed by a fixed number of handler threads shared by all clients. Each client can have as many requests executing at once as with ServerWorkerThread, and a client with a full queue of waiting requests isn't read from until some are done.</p>
+ * <p>Runs on the Server's thread. Not used with SSL, which is still handled with threads for each client.</p>
+ */
+public class ServerSelector {
+
+    /**
+     * <p>Milliseconds between keep-alive signals for requests that haven't been answered.</p>
+     */
+    private static final long KEEP_ALIVE_THRESHOLD = RemoteTrancheServer.getResponseTimeout() / 10;
+    /**
+     * <p>Bytes before each request and response: the OK byte, the ID and the number of bytes.</p>
+     */
+    private static final int HEADER_SIZE = 1 + 8 + 4;
+    private final Server server;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ThreadPoolExecutor handlers;
+    private final Set<Connection> connections = new HashSet<Connection>();
+    /**
+     * <p>Connections whose interest in reading or writing may have changed. Handled by the selector thread.</p>
+     */
+    private final ConcurrentLinkedQueue<Connection> changed = new ConcurrentLinkedQueue<Connection>();
+    /**
+     * <p>Used to skip over requests that are too large.</p>
+     */
+    private final ByteBuffer skipBuffer = ByteBuffer.allocate(64 * 1024);
+    private long lastKeepAliveTimestamp = TimeUtil.getTrancheTimestamp();
+    private boolean closed = false;
+
+    /**
+     * <p>Binds to the server's port.</p>
+     * @param server
+     * @throws java.io.IOException
+     */
+    protected ServerSelector(Server server) throws IOException {
+        this.server = server;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(server.getPort()));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        int threads = Math.max(1, ConfigureTranche.getInt(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_NIO_HANDLER_THREADS));
+        handlers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Server Selector Handler Thread");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * <p>Returns the socket the server is bound to.</p>
+     * @return
+     */
+    public ServerSocket getServerSocket() {
+        return serverChannel.socket();
+    }
+
+    /**
+     * <p>Returns the number of connected clients.</p>
+     * @return
+     */
+    public int getConnectedClients() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    /**
+     * <p>Returns the number of requests being executed.</p>
+     * @return
+     */
+    public int getExecutingRequests() {
+        return handlers.getActiveCount();
+    }
+
+    /**
+     * <p>Returns the number of requests waiting for a handler thread. Doesn't include requests waiting because their client has as many requests executing as allowed.</p>
+     * @return
+     */
+    public int getQueuedRequests() {
+        return handlers.getQueue().size();
+    }
+
+    /**
+     * <p>Accepts clients and reads and writes until the server is stopped.</p>
+     */
+    public void run() {
+        while (!isClosed() && !server.isStopped()) {
+            try {
+                selector.select(1000);
+                for (Connection conn = changed.poll(); conn != null; conn = changed.poll()) {
+                    update(conn);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.attachment() == null) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(conn);
+                        }
+                        update(conn);
+                    } catch (CancelledKeyException e) {
+                        close(conn);
+                    } catch (Exception e) {
+                        DebugUtil.debugErr(ServerSelector.class, e);
+                        close(conn);
+                    }
+                }
+                if (TimeUtil.getTrancheTimestamp() - lastKeepAliveTimestamp >= KEEP_ALIVE_THRESHOLD) {
+                    keepAlive();
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                DebugUtil.debugErr(ServerSelector.class, e);
+            }
+        }
+        close();
+    }
+
+    /**
+     * 
+     * @throws java.lang.Exception
+     */
+    private void accept() throws Exception {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        // If already maximum number clients, close off w/ message
+        if (server.getConnectedClients() >= server.getMaxConcurrentClients()) {
+            DebugUtil.debugErr(ServerSelector.class, new Exception("Maximum number of concurrent clients reached: " + server.getMaxConcurrentClients()));
+            server.rejectedClient();
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                RemoteUtil.writeError(RejectedRequestException.MESSAGE, baos);
+                channel.write(ByteBuffer.wrap(baos.toByteArray()));
+            } catch (Exception e) {
+                DebugUtil.debugErr(ServerSelector.class, e);
+            } finally {
+                channel.close();
+            }
+            return;
+        }
+
+        DebugUtil.debugOut(ServerSelector.class, "Established connection with " + channel.socket().getInetAddress().getHostAddress() + ".");
+        channel.configureBlocking(false);
+        Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        synchronized (connections) {
+            connections.add(conn);
+        }
+    }
+
+    /**
+     * <p>Reads as much as is available, dispatching each request as it is completed.</p>
+     * @param conn
+     * @throws java.lang.Exception
+     */
+    private void read(Connection conn) throws Exception {
+        while (!conn.isPaused()) {
+            int read;
+            if (conn.skip > 0) {
+                skipBuffer.clear();
+                if (conn.skip < skipBuffer.capacity()) {
+                    skipBuffer.limit((int) conn.skip);
+                }
+                read = conn.channel.read(skipBuffer);
+                if (read > 0) {
+                    conn.skip -= read;
+                    if (conn.skip == 0) {
+                        doActionNow(conn, conn.id, Token.REJECTED_CONNECTION_STRING, new ByteArrayInputStream(new byte[0]));
+                    }
+                }
+            } else if (conn.payload == null) {
+                read = conn.channel.read(conn.header);
+                if (!conn.header.hasRemaining()) {
+                    conn.header.flip();
+                    if (conn.header.get() != RemoteTrancheServer.OK_BYTE) {
+                        throw new Exception("Incorrect OK byte. Transmission out of sequence.");
+                    }
+                    conn.id = conn.header.getLong();
+                    int bytesToRead = conn.header.getInt();
+                    conn.header.clear();
+                    if (bytesToRead < 0) {
+                        throw new Exception("Invalid request size: " + bytesToRead);
+                    }
+                    if (bytesToRead > server.getMaxRequestSize()) {
+                        DebugUtil.debugOut(ServerSelector.class, "Request size of " + bytesToRead + " greater than maximum of " + server.getMaxRequestSize() + ", rejecting.");
+                        conn.skip = bytesToRead;
+                    } else {
+                        conn.payload = ByteBuffer.allocate(bytesToRead);
+                    }
+                }
+            } else {
+                read = conn.channel.read(conn.payload);
+            }
+
+            if (conn.payload != null && !conn.payload.hasRemaining()) {
+                byte[] bytes = conn.payload.array();
+                conn.payload = null;
+                dispatch(conn, conn.id, bytes);
+            }
+
+            if (read < 0) {
+                // answer what has been asked, then close
+                synchronized (conn) {
+                    conn.inputShutdown = true;
+                }
+                return;
+            }
+            if (read == 0) {
+                return;
+            }
+            conn.lastReadTimestamp = TimeUtil.getTrancheTimestamp();
+        }
+    }
+
+    /**
+     * <p>Pings are answered right away, as ServerWorkerThread does. Everything else is executed by a handler thread.</p>
+     * @param conn
+     * @param id
+     * @param bytes
+     * @throws java.lang.Exception
+     */
+    private void dispatch(Connection conn, long id, byte[] bytes) throws Exception {
+        DebugUtil.debugOut(ServerSelector.class, "Received request (ID = " + id + ", bytes = " + bytes.length + ")");
+        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+        String itemName = null;
+        try {
+            itemName = RemoteUtil.readLine(bais);
+        } catch (Exception e) {
+            DebugUtil.debugErr(ServerSelector.class, e);
+        }
+        if (itemName != null && itemName.equals(Token.PING_STRING)) {
+            doActionNow(conn, id, itemName, bais);
+            return;
+        }
+
+        Request request = new Request(conn, id, bytes);
+        synchronized (conn) {
+            conn.pending.add(id);
+            if (conn.executing < conn.maxExecuting) {
+                conn.executing++;
+                execute(request);
+            } else {
+                conn.waiting.add(request);
+            }
+        }
+    }
+
+    /**
+     * <p>Executes a quick action on the selector thread.</p>
+     * @param conn
+     * @param id
+     * @param itemName
+     * @param in
+     */
+    private void doActionNow(Connection conn, long id, String itemName, InputStream in) throws Exception {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            server.getItem(itemName).doAction(in, baos, conn.clientIP);
+            send(conn, id, baos.toByteArray());
+        } catch (Exception e) {
+            send(conn, id, ServerWorkerThread.getErrorBytes(e));
+        }
+    }
+
+    /**
+     * <p>Call while synchronized on the request's connection.</p>
+     * @param request
+     */
+    private void execute(Request request) {
+        try {
+            handlers.execute(request);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            request.conn.executing--;
+            request.conn.pending.remove(request.id);
+        }
+    }
+
+    /**
+     * <p>Executes a request on a handler thread the same way ServerWorkerThread does.</p>
+     * @param request
+     */
+    private void handle(Request request) {
+        Connection conn = request.conn;
+        try {
+            ByteArrayInputStream bais = new ByteArrayInputStream(request.bytes);
+            String line = RemoteUtil.readLine(bais);
+            ServerItem serverItem = server.getItem(line);
+            if (serverItem == null) {
+                throw new Exception("Can't find command " + line);
+            }
+            DebugUtil.debugOut(ServerSelector.class, "Processing server item: " + serverItem.getName());
+
+            // pause here
+            if (ServerWorkerThread.isTestingKeepAlive()) {
+                ThreadUtil.sleep(1 * RemoteTrancheServer.getResponseTimeout() + 1);
+            }
+
+            // send a keep-alive signal
+            send(conn, request.id, Token.KEEP_ALIVE);
+
+            // do the action
+            BufferListOutputStream output = new BufferListOutputStream();
+            serverItem.doAction(bais, output, conn.clientIP);
+            if (output.size() > Integer.MAX_VALUE) {
+                throw new Exception("Response too large to send: " + output.size() + " bytes");
+            }
+            send(conn, request.id, output.size(), output.toByteBuffers());
+
+            // check for close -- a special case of actions
+            if (line.equals(Token.CLOSE_STRING)) {
+                synchronized (conn) {
+                    conn.closeRequested = true;
+                }
+            }
+        } catch (Exception e) {
+            try {
+                send(conn, request.id, ServerWorkerThread.getErrorBytes(e));
+            } catch (Exception ex) {
+                DebugUtil.debugErr(ServerSelector.class, ex);
+            }
+        }
+    }
+
+    /**
+     * <p>Called by the handler thread once done with a request. Starts the connection's next waiting request, if any.</p>
+     * @param request
+     */
+    private void handled(Request request) {
+        Connection conn = request.conn;
+        synchronized (conn) {
+            conn.pending.remove(request.id);
+            if (conn.waiting.isEmpty() || conn.closed) {
+                conn.executing--;
+            } else {
+                execute(conn.waiting.removeFirst());
+            }
+        }
+        // might read again, or might be done
+        changed(conn);
+    }
+
+    /**
+     * 
+     * @param conn
+     * @param id
+     * @param bytes
+     */
+    private void send(Connection conn, long id, byte[] bytes) {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(1);
+        buffers.add(ByteBuffer.wrap(bytes));
+        send(conn, id, bytes.length, buffers);
+    }
+
+    /**
+     * <p>Queues a response for the selector thread to write.</p>
+     * @param conn
+     * @param id
+     * @param size
+     * @param buffers
+     */
+    private void send(Connection conn, long id, long size, List<ByteBuffer> buffers) {
+        DebugUtil.debugOut(ServerSelector.class, "Sending output (ID = " + id + ", bytes = " + size + ")");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(RemoteTrancheServer.OK_BYTE);
+        header.putLong(id);
+        header.putInt((int) size);
+        header.flip();
+        synchronized (conn.writes) {
+            if (conn.closed) {
+                return;
+            }
+            conn.writes.add(header);
+            conn.writes.addAll(buffers);
+        }
+        changed(conn);
+    }
+
+    /**
+     * <p>Writes as much as the client will take.</p>
+     * @param conn
+     * @throws java.io.IOException
+     */
+    private void write(Connection conn) throws IOException {
+        synchronized (conn.writes) {
+            while (!conn.writes.isEmpty()) {
+                ByteBuffer buffer = conn.writes.getFirst();
+                conn.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                conn.writes.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * <p>Has the selector thread update what the connection is waiting on.</p>
+     * @param conn
+     */
+    private void changed(Connection conn) {
+        changed.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * <p>Only called by the selector thread.</p>
+     * @param conn
+     */
+    private void update(Connection conn) {
+        if (conn.closed) {
+            return;
+        }
+        boolean writing = false;
+        synchronized (conn.writes) {
+            writing = !conn.writes.isEmpty();
+        }
+        boolean done = false;
+        int ops = writing ? SelectionKey.OP_WRITE : 0;
+        synchronized (conn) {
+            if (!conn.isPaused()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            done = (conn.inputShutdown || conn.closeRequested) && conn.executing == 0;
+        }
+        if (done && !writing) {
+            close(conn);
+            return;
+        }
+        try {
+            conn.key.interestOps(ops);
+        } catch (CancelledKeyException e) {
+            close(conn);
+        }
+    }
+
+    /**
+     * <p>Sends keep-alive signals for requests that haven't been answered, and closes connections that have been idle too long.</p>
+     */
+    private void keepAlive() {
+        lastKeepAliveTimestamp = TimeUtil.getTrancheTimestamp();
+        long timeout = ConfigureTranche.getInt(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_TIMEOUT);
+        if (timeout == 0) {
+            timeout = 60000;
+        }
+        List<Connection> list = new ArrayList<Connection>();
+        synchronized (connections) {
+            list.addAll(connections);
+        }
+        for (Connection conn : list) {
+            List<Long> ids = new ArrayList<Long>();
+            synchronized (conn) {
+                ids.addAll(conn.pending);
+            }
+            if (ids.isEmpty()) {
+                if (lastKeepAliveTimestamp - conn.lastReadTimestamp > timeout) {
+                    DebugUtil.debugOut(ServerSelector.class, "Closing idle connection with " + conn.clientIP + ".");
+                    close(conn);
+                }
+                continue;
+            }
+            for (Long id : ids) {
+                send(conn, id, Token.KEEP_ALIVE);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param conn
+     */
+    private void close(Connection conn) {
+        synchronized (conn.writes) {
+            if (conn.closed) {
+                return;
+            }
+            conn.closed = true;
+            conn.writes.clear();
+        }
+        synchronized (conn) {
+            conn.waiting.clear();
+        }
+        synchronized (connections) {
+            connections.remove(conn);
+        }
+        if (conn.key != null) {
+            conn.key.cancel();
+        }
+        try {
+            conn.channel.close();
+        } catch (Exception e) {
+            DebugUtil.debugErr(ServerSelector.class, e);
+        }
+    }
+
+    /**
+     * 
+     * @return
+     */
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * <p>Closes all connections and the server socket. Requests being executed are given a second to finish.</p>
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        handlers.shutdown();
+        try {
+            if (!handlers.awaitTermination(1000, TimeUnit.MILLISECONDS)) {
+                handlers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            handlers.shutdownNow();
+        }
+        List<Connection> list = new ArrayList<Connection>();
+        synchronized (connections) {
+            list.addAll(connections);
+        }
+        for (Connection conn : list) {
+            close(conn);
+        }
+        try {
+            serverChannel.close();
+        } catch (Exception e) {
+            DebugUtil.debugErr(ServerSelector.class, e);
+        }
+        try {
+            selector.close();
+        } catch (Exception e) {
+            DebugUtil.debugErr(ServerSelector.class, e);
+        }
+    }
+
+    /**
+     * <p>A connected client. Reading state is only used by the selector thread; the rest is synchronized on the connection, or on its writes.</p>
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final String clientIP;
+        private SelectionKey key;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private ByteBuffer payload = null;
+        private long id, skip = 0, lastReadTimestamp = TimeUtil.getTrancheTimestamp();
+        private final LinkedList<ByteBuffer> writes = new LinkedList<ByteBuffer>();
+        private volatile boolean closed = false;
+        /**
+         * <p>IDs of the requests that haven't been answered.</p>
+         */
+        private final Set<Long> pending = new HashSet<Long>();
+        private final LinkedList<Request> waiting = new LinkedList<Request>();
+        private final int maxExecuting, maxWaiting;
+        private int executing = 0;
+        private boolean inputShutdown = false, closeRequested = false;
+
+        /**
+         * 
+         * @param channel
+         */
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.clientIP = channel.socket().getInetAddress().getHostAddress();
+            // the host name isn't looked up, which would hold up every other client
+            if (NetworkUtil.isStartupServer(clientIP)) {
+                maxExecuting = ConfigureTranche.getInt(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_SERVER_SIMULTANEOUS_REQUESTS);
+            } else {
+                maxExecuting = ConfigureTranche.getInt(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_USER_SIMULTANEOUS_REQUESTS);
+            }
+            maxWaiting = (ConfigureTranche.getInt(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_QUEUE_SIZE) * 4) + 1;
+        }
+
+        /**
+         * <p>Whether to stop reading from the client.</p>
+         * @return
+         */
+        private synchronized boolean isPaused() {
+            return inputShutdown || closeRequested || waiting.size() >= maxWaiting;
+        }
+    }
+
+    /**
+     * 
+     */
+    private class Request implements Runnable {
+
+        private final Connection conn;
+        private final long id;
+        private final byte[] bytes;
+
+        /**
+         * 
+         * @param conn
+         * @param id
+         * @param bytes
+         */
+        private Request(Connection conn, long id, byte[] bytes) {
+            this.conn = conn;
+            this.id = id;
+            this.bytes = bytes;
+        }
+
+        public void run() {
+            try {
+                handle(this);
+            } finally {
+                handled(this);
+            }
+        }
+    }
+}
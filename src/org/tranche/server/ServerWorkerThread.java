@@ -21,6 +21,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
@@ -40,6 +42,7 @@ import org.tranche.exceptions.ServerIsNotWritableException;
 import org.tranche.remote.RemoteTrancheServer;
 import org.tranche.remote.RemoteUtil;
 import org.tranche.remote.Token;
+import org.tranche.streams.BufferListOutputStream;
 import org.tranche.util.IOUtil;
 import org.tranche.logs.LogUnit;
 import org.tranche.logs.SimpleLog;
@@ -112,24 +115,68 @@ public class ServerWorkerThread extends DebuggableThread {
         }
     }
 
+    /**
+     * <p>Same as sendOutput(long,byte[]), but any ByteBuffers appended to the output are sent without first being copied in to a single byte array.</p>
+     * @param bufferID
+     * @param output
+     * @throws java.lang.Exception
+     */
+    private void sendOutput(long bufferID, BufferListOutputStream output) throws Exception {
+        if (dos != null) {
+            if (output.size() > Integer.MAX_VALUE) {
+                throw new Exception("Response too large to send: " + output.size() + " bytes");
+            }
+            debugOut("Server " + IOUtil.createURL(server.getHostName(), server.getPort(), server.isSSL()) + "; sending output (ID = " + bufferID + ", bytes = " + output.size() + ")");
+            synchronized (dos) {
+                dos.write(RemoteTrancheServer.OK_BYTE);
+                // send back id
+                dos.writeLong(bufferID);
+                // send back the size
+                dos.writeInt((int) output.size());
+                // send back the bytes
+                output.writeTo(dos);
+                // flush
+                dos.flush();
+                bos.flush();
+                os.flush();
+            }
+        }
+    }
+
     private void sendError(long queueItemID, Exception e) throws Exception {
         // send back the error -- don't close the communication channel. Won't disrupt other actions
+        sendOutput(queueItemID, getErrorBytes(e));
+    }
+
+    /**
+     * <p>Returns the response sent back for a request that failed.</p>
+     * @param e
+     * @return
+     * @throws java.lang.Exception
+     */
+    static byte[] getErrorBytes(Exception e) throws Exception {
         ByteArrayOutputStream baos = null;
         try {
             baos = new ByteArrayOutputStream();
-            // close the socket
             RemoteUtil.writeError(e.getMessage(), baos);
             // optionally send the local server info
             if (e instanceof ServerIsNotReadableException || e instanceof ServerIsNotWritableException || e instanceof ChunkDoesNotBelongException) {
                 NetworkUtil.getLocalServerRow().serialize(StatusTableRow.VERSION_LATEST, baos);
             }
-            // send back the data
-            sendOutput(queueItemID, baos.toByteArray());
+            return baos.toByteArray();
         } finally {
             IOUtil.safeClose(baos);
         }
     }
 
+    /**
+     * <p>Returns whether requests are paused to test keep-alive signals.</p>
+     * @return
+     */
+    static boolean isTestingKeepAlive() {
+        return isTestingKeepAlive;
+    }
+
     @Override
     public void run() {
         InputStream in = null;
@@ -203,39 +250,43 @@ public class ServerWorkerThread extends DebuggableThread {
                             sendError(id, e);
                         }
                     } else {
-                        // queueItem the bytes
-                        byte[] buffer = new byte[bytesToRead];
-                        int bytesRead = 0;
-                        while (bytesRead < bytesToRead) {
-                            bytesRead += dis.read(buffer, bytesRead, buffer.length - bytesRead);
-                        }
-                        logInput.log("Reading: Finished; ID: " + id + "; Bytes: " + buffer.length + "; Queuing: started");
-                        debugOut("Server " + IOUtil.createURL(server.getHostName(), server.getPort(), server.isSSL()) + "; Received request (ID = " + id + ", bytes = " + buffer.length + ")");
-
+                        // read the command, then the rest of the request as the command's item would have it
+                        RequestInputStream requestIn = new RequestInputStream(dis, bytesToRead);
                         String itemName = null;
-                        ByteArrayInputStream bais = null;
                         try {
-                            try {
-                                bais = new ByteArrayInputStream(buffer);
-                                itemName = RemoteUtil.readLine(bais);
-                            } finally {
-                                IOUtil.safeClose(bais);
-                            }
+                            itemName = RemoteUtil.readLine(requestIn);
                         } catch (Exception e) {
                             debugErr(e);
                         }
+                        ServerItem serverItem = itemName == null ? null : server.getItem(itemName);
+
+                        ServerWorkerThreadQueueItem queueItem = null;
+                        if (serverItem instanceof StreamingServerItem) {
+                            // read straight from the socket. Only the request's parameters are queued.
+                            try {
+                                queueItem = new ServerWorkerThreadQueueItem(id, itemName, ((StreamingServerItem<?>) serverItem).read(requestIn), null);
+                            } catch (Exception e) {
+                                queueItem = new ServerWorkerThreadQueueItem(id, itemName, null, e);
+                            }
+                            requestIn.skipRemaining();
+                        } else {
+                            byte[] buffer = requestIn.readRemaining();
+                            queueItem = new ServerWorkerThreadQueueItem(id, itemName, buffer, null);
+                        }
+                        logInput.log("Reading: Finished; ID: " + id + "; Bytes: " + bytesToRead + "; Queuing: started");
+                        debugOut("Server " + IOUtil.createURL(server.getHostName(), server.getPort(), server.isSSL()) + "; Received request (ID = " + id + ", bytes = " + bytesToRead + ")");
 
                         if (itemName != null && itemName.equals(Token.PING_STRING)) {
                             try {
                                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                                server.getItem(itemName).doAction(bais, baos, s.getInetAddress().getHostAddress());
+                                serverItem.doAction(new ByteArrayInputStream((byte[]) queueItem.request), baos, s.getInetAddress().getHostAddress());
                                 sendOutput(id, baos.toByteArray());
                             } catch (Exception e) {
                                 sendError(id, e);
                             }
                         } else {
                             // add to the queue, blocking if full
-                            queue.put(new ServerWorkerThreadQueueItem(id, buffer));
+                            queue.put(queueItem);
                         }
                         logInput.log("Queuing: Stopped");
                     }
@@ -301,22 +352,112 @@ public class ServerWorkerThread extends DebuggableThread {
     }
 
     /**
-     * <p>Helper class to associate unique identifiers with bytes.</p>
+     * <p>Helper class to associate unique identifiers with requests.</p>
      */
     private class ServerWorkerThreadQueueItem {
 
         public final long id;
-        public final byte[] bytes;
+        public final String itemName;
+        /**
+         * <p>A StreamingServerItem's PendingRequest, otherwise the bytes after the command name.</p>
+         */
+        public final Object request;
+        /**
+         * <p>Thrown while reading the request, if any.</p>
+         */
+        public final Exception exception;
 
         /**
          * 
          * @param id
-         * @param bytes
+         * @param itemName
+         * @param request
+         * @param exception
          */
-        public ServerWorkerThreadQueueItem(long id, byte[] bytes) {
-            debugOut("Created new queue item with ID " + id + " and size " + bytes.length);
+        public ServerWorkerThreadQueueItem(long id, String itemName, Object request, Exception exception) {
+            debugOut("Created new queue item with ID " + id + " for " + itemName);
             this.id = id;
-            this.bytes = bytes;
+            this.itemName = itemName;
+            this.request = request;
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * <p>Reads no further than the end of a request, so the request can be read straight from the socket.</p>
+     */
+    private static class RequestInputStream extends InputStream {
+
+        private final InputStream in;
+        private int remaining;
+
+        /**
+         * 
+         * @param in
+         * @param length
+         */
+        public RequestInputStream(InputStream in, int length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override()
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override()
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buf, off, Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException();
+            }
+            remaining -= read;
+            return read;
+        }
+
+        /**
+         * <p>Returns the rest of the request.</p>
+         * @return
+         * @throws java.io.IOException
+         */
+        public byte[] readRemaining() throws IOException {
+            byte[] buffer = new byte[remaining];
+            int bytesRead = 0;
+            while (bytesRead < buffer.length) {
+                bytesRead += read(buffer, bytesRead, buffer.length - bytesRead);
+            }
+            return buffer;
+        }
+
+        /**
+         * <p>Skips whatever of the request wasn't read.</p>
+         * @throws java.io.IOException
+         */
+        public void skipRemaining() throws IOException {
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    // skip doesn't say whether at the end of the stream
+                    read();
+                } else {
+                    remaining -= skipped;
+                }
+            }
         }
     }
 
@@ -358,24 +499,23 @@ public class ServerWorkerThread extends DebuggableThread {
                         continue;
                     }
 
-                    // otherwise process the bytes
-                    // queueItem the input and pass it to the server
-                    ByteArrayInputStream bais = new ByteArrayInputStream(queueItem.bytes);
-
-                    // read the command line
-                    String line = RemoteUtil.readLine(bais);
+                    // the command line was read with the request
+                    String line = queueItem.itemName;
 
                     // handle the remote command
                     try {
-                        ServerItem serverItem = server.getItem(line);
+                        ServerItem serverItem = line == null ? null : server.getItem(line);
                         if (serverItem == null) {
                             throw new Exception("Can't find command " + line);
                         }
+                        if (queueItem.exception != null) {
+                            throw queueItem.exception;
+                        }
 
                         debugOut("Processing server item: " + serverItem.getName());
 
                         // queueItem the output
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        BufferListOutputStream output = new BufferListOutputStream();
 
                         // add to set of currently working items
                         synchronized (currentlyWorkingItems) {
@@ -391,7 +531,11 @@ public class ServerWorkerThread extends DebuggableThread {
                         sendOutput(queueItem.id, Token.KEEP_ALIVE);
 
                         // do the action
-                        serverItem.doAction(bais, baos, s.getInetAddress().getHostAddress());
+                        if (queueItem.request instanceof StreamingServerItem.PendingRequest) {
+                            ((StreamingServerItem<?>.PendingRequest) queueItem.request).doAction(output, s.getInetAddress().getHostAddress());
+                        } else {
+                            serverItem.doAction(new ByteArrayInputStream((byte[]) queueItem.request), output, s.getInetAddress().getHostAddress());
+                        }
 
                         // remove from currently working items
                         synchronized (currentlyWorkingItems) {
@@ -399,7 +543,7 @@ public class ServerWorkerThread extends DebuggableThread {
                         }
 
                         // send back the data
-                        sendOutput(queueItem.id, baos.toByteArray());
+                        sendOutput(queueItem.id, output);
 
                         // check for close -- a special case of actions
                         if (line.equals(Token.CLOSE_STRING)) {
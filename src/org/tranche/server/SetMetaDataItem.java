@@ -17,10 +17,10 @@ package org.tranche.server;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import org.tranche.network.ConnectionUtil;
 import org.tranche.hash.BigHash;
 import org.tranche.security.Signature;
@@ -43,7 +43,7 @@ import org.tranche.util.TestUtil;
  * @author Bryan Smith - bryanesmith@gmail.com
  * @author James "Augie" Hill - augman85@gmail.com
  */
-public class SetMetaDataItem extends ServerItem {
+public class SetMetaDataItem extends StreamingServerItem<SetMetaDataItem.Request> {
 
     /**
      * @param   server  the server received
@@ -54,28 +54,38 @@ public class SetMetaDataItem extends ServerItem {
 
     /**
      * @param in The input stream
-     * @param out The output stream
-     * @param clientIP So the transaction can be logged with client IP address.
+     * @return
      * @throws Exception
      */
-    public final void doAction(InputStream in, OutputStream out, String clientIP) throws Exception {
-        final boolean merge;
-        final BigHash hash;
-        final Set<String> hostsSet = new HashSet<String>();
-        final byte[] data;
-        final Signature sig;
+    public final Request readRequest(InputStream in) throws Exception {
         try {
-            merge = RemoteUtil.readBoolean(in);
-            hash = RemoteUtil.readBigHash(in);
+            boolean merge = RemoteUtil.readBoolean(in);
+            BigHash hash = RemoteUtil.readBigHash(in);
+            Set<String> hostsSet = new HashSet<String>();
             int hostCount = RemoteUtil.readInt(in);
             for (int i = 0; i < hostCount; i++) {
                 hostsSet.add(RemoteUtil.readLine(in));
             }
-            data = RemoteUtil.readDataBytes(in);
-            sig = RemoteUtil.readSignature(in);
+            byte[] data = RemoteUtil.readDataBytes(in);
+            Signature sig = RemoteUtil.readSignature(in);
+            return new Request(merge, hash, hostsSet, data, sig);
         } catch (Exception e) {
             throw new TrancheProtocolException();
         }
+    }
+
+    /**
+     * @param request The request
+     * @param out The output stream
+     * @param clientIP So the transaction can be logged with client IP address.
+     * @throws Exception
+     */
+    public final void doAction(Request request, OutputStream out, String clientIP) throws Exception {
+        final boolean merge = request.merge;
+        final BigHash hash = request.hash;
+        final Set<String> hostsSet = request.hosts;
+        final byte[] data = request.data;
+        final Signature sig = request.sig;
 
         // Store all exceptions. They will be returned to caller. (Note that the caller
         // is often another server, which will return to caller, etc... propagation recursive.)
@@ -102,79 +112,56 @@ public class SetMetaDataItem extends ServerItem {
                 }
 
                 // Propagate out the requests to direct connections using strategy
-                List<Thread> threads = new LinkedList<Thread>();
+                PropagationExecutor.Batch batch = server.getPropagationExecutor().newBatch(strategy.getDepth());
                 for (final String hostToContact : strategy.getPartitionsMap().keySet()) {
-                    Thread t = new Thread(hostToContact) {
+                    batch.submit(hostToContact, strategy.getPartitionsMap().get(hostToContact), new Callable<Collection<PropagationExceptionWrapper>>() {
 
-                        @Override
-                        public void run() {
+                        public Collection<PropagationExceptionWrapper> call() throws Exception {
+                            // check for offline server
+                            StatusTableRow row = NetworkUtil.getStatus().getRow(hostToContact);
+                            if (!row.isOnline()) {
+                                throw new ServerIsOfflineException(hostToContact);
+                            }
+                            TrancheServer ts = ConnectionUtil.connectHost(hostToContact, true);
+                            if (ts == null) {
+                                throw new ServerIsOfflineException(hostToContact);
+                            }
                             try {
-                                // check for offline server
-                                StatusTableRow row = NetworkUtil.getStatus().getRow(hostToContact);
-                                if (!row.isOnline()) {
-                                    throw new ServerIsOfflineException(hostToContact);
-                                }
-                                TrancheServer ts = ConnectionUtil.connectHost(hostToContact, true);
-                                if (ts == null) {
-                                    throw new ServerIsOfflineException(hostToContact);
-                                }
-                                try {
-                                    PropagationReturnWrapper prw = null;
-
-                                    // Cannot propagate over sockets since RTS shared between test servers and client. A multi-threaded tool (e.g., AFT)
-                                    // will queue up requests before this request, and hence a timeout will occur.
-                                    if (TestUtil.isTestingManualNetworkStatusTable()) {
-                                        Set<String> partitionRecipients = strategy.getPartitionsMap().get(hostToContact);
-                                        Set<PropagationExceptionWrapper> exceptionWrappers = new HashSet();
-
-                                        for (String nextOstensibleHost : partitionRecipients) {
-                                            final String actualTestUrl = TestUtil.getServerTestURL(nextOstensibleHost);
-                                            FlatFileTrancheServer ffts = TestUtil.getFFTSForURL(actualTestUrl);
-
-                                            if (ffts == null) {
-                                                throw new Exception("Couldn't find (test) FFTS for: " + actualTestUrl);
-                                            }
-
-                                            String[] hostArr = {nextOstensibleHost};
-                                            PropagationReturnWrapper nextWrapper = ffts.setMetaData(merge, hash, data, sig, hostArr);
-                                            exceptionWrappers.addAll(nextWrapper.getErrors());
+                                PropagationReturnWrapper prw = null;
+
+                                // Cannot propagate over sockets since RTS shared between test servers and client. A multi-threaded tool (e.g., AFT)
+                                // will queue up requests before this request, and hence a timeout will occur.
+                                if (TestUtil.isTestingManualNetworkStatusTable()) {
+                                    Set<String> partitionRecipients = strategy.getPartitionsMap().get(hostToContact);
+                                    Set<PropagationExceptionWrapper> exceptionWrappers = new HashSet();
+
+                                    for (String nextOstensibleHost : partitionRecipients) {
+                                        final String actualTestUrl = TestUtil.getServerTestURL(nextOstensibleHost);
+                                        FlatFileTrancheServer ffts = TestUtil.getFFTSForURL(actualTestUrl);
+
+                                        if (ffts == null) {
+                                            throw new Exception("Couldn't find (test) FFTS for: " + actualTestUrl);
                                         }
 
-                                        prw = new PropagationReturnWrapper(exceptionWrappers);
-                                    } else {
-                                        prw = ts.setMetaData(merge, hash, data, sig, strategy.getPartitionsMap().get(hostToContact).toArray(new String[0]));
+                                        String[] hostArr = {nextOstensibleHost};
+                                        PropagationReturnWrapper nextWrapper = ffts.setMetaData(merge, hash, data, sig, hostArr);
+                                        exceptionWrappers.addAll(nextWrapper.getErrors());
                                     }
 
-                                    exceptions.addAll(prw.getErrors());
-                                } finally {
-                                    ConnectionUtil.unlockConnection(hostToContact);
-                                }
-                            } catch (Exception e) {
-                                exceptions.add(new PropagationExceptionWrapper(e, hostToContact));
-
-                                // Uh-oh. Don't know whether other servers were set or not! Throwing an exception like this
-                                // probably means I/O exception, so likely that everything was lost. Assume worst.
-                                for (String nextFailedHost : strategy.getPartitionsMap().get(hostToContact)) {
-                                    if (nextFailedHost.equals(hostToContact)) {
-                                        continue;
-                                    }
-                                    exceptions.add(new PropagationExceptionWrapper(new PropagationFailedException(), nextFailedHost));
+                                    prw = new PropagationReturnWrapper(exceptionWrappers);
+                                } else {
+                                    prw = ts.setMetaData(merge, hash, data, sig, strategy.getPartitionsMap().get(hostToContact).toArray(new String[0]));
                                 }
+
+                                return prw.getErrors();
+                            } finally {
+                                ConnectionUtil.unlockConnection(hostToContact);
                             }
                         }
-                    };
-                    t.setDaemon(true);
-                    t.start();
-                    threads.add(t);
-                }
-                // wait for the threads to stop
-                for (Thread t : threads) {
-                    try {
-                        t.join();
-                    } catch (Exception e) {
-                        exceptions.add(new PropagationExceptionWrapper(e, t.getName()));
-                    }
+                    });
                 }
+                // wait for the requests, but not past the timeout
+                exceptions.addAll(batch.await());
             }
         } catch (Exception e) {
             exceptions.add(new PropagationExceptionWrapper(e, server.getHostName()));
@@ -212,4 +199,31 @@ public class SetMetaDataItem extends ServerItem {
         RemoteUtil.writeData(bytes, out);
         RemoteUtil.writeSignature(signature, out);
     }
+
+    /**
+     * <p>The parameters of a request to set meta data.</p>
+     */
+    public static class Request {
+
+        private final boolean merge;
+        private final BigHash hash;
+        private final Set<String> hosts;
+        private final byte[] data;
+        private final Signature sig;
+
+        /**
+         * @param merge
+         * @param hash
+         * @param hosts
+         * @param data
+         * @param sig
+         */
+        private Request(boolean merge, BigHash hash, Set<String> hosts, byte[] data, Signature sig) {
+            this.merge = merge;
+            this.hash = hash;
+            this.hosts = hosts;
+            this.data = data;
+            this.sig = sig;
+        }
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.server;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>An action whose request is read straight from the client rather than being buffered and then read.</p>
+ * <p>ServerWorkerThread reads the request with readRequest as it arrives, then passes it to doAction once an output thread is free. Only the request's parameters are held in the meantime, e.g., a chunk's bytes are read once, in to their own array.</p>
+ * @param <T> The request's parameters.
+ */
+public abstract class StreamingServerItem<T> extends ServerItem {
+
+    /**
+     * @param   commandName     the command name received
+     * @param   server          the server received
+     */
+    public StreamingServerItem(String commandName, Server server) {
+        super(commandName, server);
+    }
+
+    /**
+     * <p>Reads the request's parameters.</p>
+     * @param in The input stream, positioned after the command name.
+     * @return
+     * @throws java.lang.Exception
+     */
+    public abstract T readRequest(InputStream in) throws Exception;
+
+    /**
+     * <p>Handle the server's action for a request read by readRequest.</p>
+     * @param request
+     * @param out The output stream
+     * @param clientIP So the transaction can be logged with client IP address.
+     * @throws java.lang.Exception
+     */
+    public abstract void doAction(T request, OutputStream out, String clientIP) throws Exception;
+
+    /**
+     * <p>Reads the request, then handles it.</p>
+     * @param in The input stream
+     * @param out The output stream
+     * @param clientIP So the transaction can be logged with client IP address.
+     * @throws java.lang.Exception
+     */
+    public final void doAction(InputStream in, OutputStream out, String clientIP) throws Exception {
+        doAction(readRequest(in), out, clientIP);
+    }
+
+    /**
+     * <p>Reads the request's parameters, keeping them with this item so the request can be handled later.</p>
+     * @param in The input stream, positioned after the command name.
+     * @return
+     * @throws java.lang.Exception
+     */
+    public final PendingRequest read(InputStream in) throws Exception {
+        return new PendingRequest(readRequest(in));
+    }
+
+    /**
+     * <p>A request read by readRequest, waiting to be handled by the item that read it.</p>
+     */
+    public class PendingRequest {
+
+        private final T request;
+
+        /**
+         * @param request
+         */
+        private PendingRequest(T request) {
+            this.request = request;
+        }
+
+        /**
+         * <p>Handle the server's action for the request.</p>
+         * @param out The output stream
+         * @param clientIP So the transaction can be logged with client IP address.
+         * @throws java.lang.Exception
+         */
+        public void doAction(OutputStream out, String clientIP) throws Exception {
+            StreamingServerItem.this.doAction(request, out, clientIP);
+        }
+    }
+}
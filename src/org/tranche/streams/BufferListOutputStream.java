@@ -0,0 +1,147 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.streams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>An in-memory output stream, like ByteArrayOutputStream, except that ByteBuffers appended to it are held by reference rather than copied.</p>
+ * <p>Lets a server response that includes large chunks (e.g., views of memory-mapped DataBlock files) be assembled and sized before it is sent, without copying the chunks on to the heap.</p>
+ */
+public class BufferListOutputStream extends OutputStream {
+
+    /**
+     * <p>Size of the buffer used when copying a ByteBuffer to a plain OutputStream.</p>
+     */
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    /**
+     * <p>In order: ByteArrayOutputStream for written bytes, ByteBuffer for appended buffers.</p>
+     */
+    private final List<Object> segments = new LinkedList<Object>();
+    private ByteArrayOutputStream current = null;
+    private long size = 0;
+
+    /**
+     * <p>Writes a single byte.</p>
+     * @param b
+     */
+    public void write(int b) {
+        getCurrent().write(b);
+        size++;
+    }
+
+    /**
+     * <p>Writes using a buffer and respecting offset and length. The bytes are copied.</p>
+     * @param buf
+     * @param off
+     * @param len
+     */
+    @Override()
+    public void write(byte[] buf, int off, int len) {
+        getCurrent().write(buf, off, len);
+        size += len;
+    }
+
+    /**
+     * <p>Appends the remaining bytes of the buffer without copying them. The buffer must not be modified until this stream has been written out.</p>
+     * @param buffer
+     */
+    public void append(ByteBuffer buffer) {
+        segments.add(buffer.duplicate());
+        current = null;
+        size += buffer.remaining();
+    }
+
+    /**
+     * <p>Returns the total number of bytes written or appended.</p>
+     * @return
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * <p>Writes everything out to another stream. If the other stream is also a BufferListOutputStream, appended buffers are passed along by reference.</p>
+     * @param out
+     * @throws java.io.IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        for (Object segment : segments) {
+            if (segment instanceof ByteArrayOutputStream) {
+                ((ByteArrayOutputStream) segment).writeTo(out);
+            } else {
+                writeBuffer((ByteBuffer) segment, out);
+            }
+        }
+    }
+
+    /**
+     * <p>Returns everything written as buffers in order, for writing to a channel. Appended buffers are passed along by reference.</p>
+     * @return
+     */
+    public List<ByteBuffer> toByteBuffers() {
+        List<ByteBuffer> buffers = new LinkedList<ByteBuffer>();
+        for (Object segment : segments) {
+            if (segment instanceof ByteArrayOutputStream) {
+                buffers.add(ByteBuffer.wrap(((ByteArrayOutputStream) segment).toByteArray()));
+            } else {
+                buffers.add(((ByteBuffer) segment).duplicate());
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * <p>Writes the remaining bytes of a buffer to a stream. Passes the buffer by reference to a BufferListOutputStream; otherwise copies it through a small buffer rather than all at once.</p>
+     * @param buffer Not modified.
+     * @param out
+     * @throws java.io.IOException
+     */
+    public static void writeBuffer(ByteBuffer buffer, OutputStream out) throws IOException {
+        if (out instanceof BufferListOutputStream) {
+            ((BufferListOutputStream) out).append(buffer);
+            return;
+        }
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        ByteBuffer src = buffer.duplicate();
+        byte[] copyBuf = new byte[Math.min(src.remaining(), COPY_BUFFER_SIZE)];
+        while (src.hasRemaining()) {
+            int len = Math.min(src.remaining(), copyBuf.length);
+            src.get(copyBuf, 0, len);
+            out.write(copyBuf, 0, len);
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    private ByteArrayOutputStream getCurrent() {
+        if (current == null) {
+            current = new ByteArrayOutputStream();
+            segments.add(current);
+        }
+        return current;
+    }
+}
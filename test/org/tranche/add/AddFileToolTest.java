@@ -1999,7 +1999,7 @@ public class AddFileToolTest extends TrancheTestCase {
                 config.setValue(ConfigKeys.SERVER_MODE_FLAG_ADMIN, String.valueOf(ServerModeFlag.CAN_READ));
                 testNetwork.getFlatFileTrancheServer(HOST1).setConfiguration(config);
                 testNetwork.getFlatFileTrancheServer(HOST1).saveConfiguration();
-                row.update(config);
+                NetworkUtil.getStatus().updateRow(row.getHost(), config);
                 Set<StatusTableRow> rows = new HashSet<StatusTableRow>();
                 rows.add(row);
                 NetworkUtil.updateRows(rows);
@@ -2043,7 +2043,7 @@ public class AddFileToolTest extends TrancheTestCase {
                 Configuration config = testNetwork.getFlatFileTrancheServer(HOST1).getConfiguration();
                 config.addUser(DevUtil.getDevUser());
                 testNetwork.getFlatFileTrancheServer(HOST1).setConfiguration(config);
-                row.update(config);
+                NetworkUtil.getStatus().updateRow(row.getHost(), config);
                 Set<StatusTableRow> rows = new HashSet<StatusTableRow>();
                 rows.add(row);
                 NetworkUtil.updateRows(rows);
@@ -15,7 +15,12 @@
  */
 package org.tranche.flatfile;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.tranche.exceptions.TodoException;
+import org.tranche.hash.BigHash;
+import org.tranche.util.DevUtil;
+import org.tranche.util.TestUtil;
 import org.tranche.util.TrancheTestCase;
 
 /**
@@ -27,4 +32,52 @@ public class DataBlockCacheTest extends TrancheTestCase {
     public void testTodo() throws Exception {
         throw new TodoException();
     }
+
+    public void testHitsMissesAndEvictions() throws Exception {
+        TestUtil.printTitle("DataBlockCacheTest:testHitsMissesAndEvictions()");
+
+        DataBlockCache cache = new DataBlockCache(160);
+        List<BigHash> hashes = new ArrayList<BigHash>();
+        for (int i = 0; i < 1000; i++) {
+            BigHash hash = DevUtil.getRandomBigHash(32);
+            hashes.add(hash);
+            cache.add(DataBlockCacheEntry.create(hash, null, i, 1), false);
+        }
+        assertTrue("Should not hold more than capacity.", cache.size() <= cache.getCapacity());
+        assertEquals("Every entry is either in the cache or evicted.", hashes.size(), cache.size() + cache.getEvictionCount());
+
+        // the last entry added is never evicted
+        BigHash last = hashes.get(hashes.size() - 1);
+        assertNotNull("Should have last entry.", cache.get(last, false));
+        assertNull("Data and meta data are cached separately.", cache.get(last, true));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.remove(last, false);
+        assertNull("Should be removed.", cache.get(last, false));
+
+        // shrinking evicts immediately
+        cache.setCapacity(16);
+        assertTrue("Should not hold more than capacity.", cache.size() <= 16);
+        assertEquals("Every entry is either in the cache, evicted or removed.", hashes.size() - 1, cache.size() + cache.getEvictionCount());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        TestUtil.printTitle("DataBlockCacheTest:testLeastRecentlyUsedIsEvicted()");
+
+        // room for a few entries per segment
+        DataBlockCache cache = new DataBlockCache(64);
+        BigHash hash = DevUtil.getRandomBigHash(32);
+        cache.add(DataBlockCacheEntry.create(hash, null, 0, 1), true);
+
+        // keep using the first entry while adding many others, so it is never the least recently used
+        for (int i = 0; i < 1000; i++) {
+            assertNotNull("Recently used entry should not be evicted.", cache.get(hash, true));
+            cache.add(DataBlockCacheEntry.create(DevUtil.getRandomBigHash(32), null, 0, 1), true);
+        }
+        assertTrue("Should have evicted others.", cache.getEvictionCount() > 0);
+    }
 }
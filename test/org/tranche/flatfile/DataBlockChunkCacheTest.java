@@ -0,0 +1,97 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.util.Arrays;
+import org.tranche.hash.BigHash;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+public class DataBlockChunkCacheTest extends TrancheTestCase {
+
+    public void testAdmittedByFrequency() throws Exception {
+        TestUtil.printTitle("DataBlockChunkCacheTest:testAdmittedByFrequency()");
+
+        DataBlockChunkCache cache = new DataBlockChunkCache(1024 * 1024);
+        byte[] bytes = Utils.makeRandomData(1000);
+        BigHash hash = new BigHash(bytes);
+
+        // requested once, so not admitted
+        assertNull(cache.get(hash));
+        assertFalse("Should not admit a chunk requested once.", cache.offer(hash, bytes, cache.getRemovalCount()));
+
+        // requested again
+        assertNull(cache.get(hash));
+        assertTrue("Should admit a chunk requested twice.", cache.offer(hash, bytes, cache.getRemovalCount()));
+        assertEquals(bytes.length, cache.getSizeInBytes());
+
+        byte[] cached = cache.get(hash);
+        assertTrue("Should get same bytes.", Arrays.equals(bytes, cached));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        cache.remove(hash);
+        assertNull("Should be removed.", cache.get(hash));
+        assertEquals(0, cache.getSizeInBytes());
+    }
+
+    public void testNotCachedIfRemovedWhileReading() throws Exception {
+        TestUtil.printTitle("DataBlockChunkCacheTest:testNotCachedIfRemovedWhileReading()");
+
+        DataBlockChunkCache cache = new DataBlockChunkCache(1024 * 1024);
+        byte[] bytes = Utils.makeRandomData(1000);
+        BigHash hash = new BigHash(bytes);
+        cache.get(hash);
+        cache.get(hash);
+
+        long removalCount = cache.getRemovalCount();
+        // deleted after it was read from disk
+        cache.remove(hash);
+        assertFalse("Should not cache a chunk removed after it was read.", cache.offer(hash, bytes, removalCount));
+        assertNull(cache.get(hash));
+    }
+
+    public void testBoundedByBytes() throws Exception {
+        TestUtil.printTitle("DataBlockChunkCacheTest:testBoundedByBytes()");
+
+        DataBlockChunkCache cache = new DataBlockChunkCache(10000);
+        for (int i = 0; i < 50; i++) {
+            byte[] bytes = Utils.makeRandomData(1000);
+            BigHash hash = new BigHash(bytes);
+            // each chunk is requested more often than the last, so it is admitted over older ones
+            for (int j = 0; j < i + 2; j++) {
+                cache.get(hash);
+            }
+            assertTrue("Should admit more popular chunk.", cache.offer(hash, bytes, cache.getRemovalCount()));
+            assertTrue("Should not go over capacity.", cache.getSizeInBytes() <= cache.getCapacityInBytes());
+        }
+        assertEquals(10, cache.size());
+        assertEquals(40, cache.getEvictionCount());
+
+        // a chunk requested less often than what it would push out is not admitted
+        byte[] bytes = Utils.makeRandomData(1000);
+        BigHash hash = new BigHash(bytes);
+        cache.get(hash);
+        cache.get(hash);
+        assertFalse("Should not push out more popular chunks.", cache.offer(hash, bytes, cache.getRemovalCount()));
+
+        // shrinking evicts immediately
+        cache.setCapacityInBytes(5000);
+        assertEquals(5, cache.size());
+        assertEquals(5000, cache.getSizeInBytes());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.tranche.hash.BigHash;
+import org.tranche.util.IOUtil;
+import org.tranche.util.TempFileUtil;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+/**
+ */
+public class DataBlockHeaderIndexTest extends TrancheTestCase {
+
+    public void testIndexMatchesHeaderScan() throws Exception {
+        TestUtil.printTitle("DataBlockHeaderIndexTest:testIndexMatchesHeaderScan()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        try {
+            DataBlockUtil dbu = new DataBlockUtil();
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+            assertTrue("Header index should be on by default.", dbu.isUseHeaderIndex());
+
+            List<byte[]> chunks = new ArrayList<byte[]>();
+            for (int i = 0; i < 50; i++) {
+                byte[] chunk = Utils.makeRandomData((int) (Math.random() * 10 * 1024));
+                chunks.add(chunk);
+                dbu.addData(new BigHash(chunk), chunk);
+            }
+
+            // delete every other chunk
+            for (int i = 0; i < chunks.size(); i += 2) {
+                dbu.deleteData(new BigHash(chunks.get(i)), "DataBlockHeaderIndexTest");
+            }
+
+            // indexed and non-indexed reads should agree
+            for (int pass = 0; pass < 2; pass++) {
+                dbu.setUseHeaderIndex(pass == 0);
+                for (int i = 0; i < chunks.size(); i++) {
+                    BigHash hash = new BigHash(chunks.get(i));
+                    boolean shouldHave = i % 2 != 0;
+                    assertEquals("Checking chunk #" + i + " <using index: " + dbu.isUseHeaderIndex() + ">", shouldHave, dbu.hasData(hash));
+                    if (shouldHave) {
+                        assertEquals(hash, new BigHash(dbu.getData(hash)));
+                    }
+                    assertFalse("Should not be meta data.", dbu.hasMetaData(hash));
+                }
+            }
+        } finally {
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    public void testCacheIsBounded() throws Exception {
+        TestUtil.printTitle("DataBlockHeaderIndexTest:testCacheIsBounded()");
+        DataBlockHeaderIndexCache cache = new DataBlockHeaderIndexCache();
+        cache.setCapacity(3);
+        File dir = TempFileUtil.createTemporaryDirectory();
+        try {
+            for (int i = 0; i < 10; i++) {
+                File f = new File(dir, String.valueOf(i));
+                cache.put(f, DataBlockHeaderIndex.create(new byte[DataBlock.getBytesToRead()], f.length()));
+            }
+            assertEquals(3, cache.size());
+            assertNull("Eldest should have been dropped.", cache.get(new File(dir, "0")));
+            assertNotNull(cache.get(new File(dir, "9")));
+        } finally {
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import org.tranche.hash.BigHash;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+public class DataBlockHeaderTest extends TrancheTestCase {
+
+    public void testEntries() throws Exception {
+        TestUtil.printTitle("DataBlockHeaderTest:testEntries()");
+        BigHash[] hashes = new BigHash[DataBlock.getHeadersPerFile()];
+        byte[] buf = makeHeader(hashes);
+        DataBlockHeader header = new DataBlockHeader(buf);
+
+        for (int i = 0; i < hashes.length; i++) {
+            int offset = i * DataBlock.bytesPerEntry;
+            assertEquals(hashes[i], header.getHash(i));
+            assertTrue(header.hashEquals(i, DataBlockHeader.toWords(hashes[i])));
+            assertFalse(header.hashEquals(i, DataBlockHeader.toWords(hashes[(i + 1) % hashes.length])));
+            assertEquals(buf[offset + BigHash.HASH_LENGTH], header.getType(i));
+            assertEquals(buf[offset + BigHash.HASH_LENGTH + 1], header.getStatus(i));
+            assertEquals(buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff), header.getOffset(i));
+            assertEquals(buf[BigHash.HASH_LENGTH + offset + 6] << 24 | (buf[BigHash.HASH_LENGTH + offset + 6 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 6 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 6 + 3] & 0xff), header.getSize(i));
+        }
+
+        // differing only in the last bytes
+        byte[] hashBytes = hashes[0].toByteArray().clone();
+        hashBytes[BigHash.HASH_LENGTH - 1]++;
+        assertFalse(header.hashEquals(0, DataBlockHeader.toWords(BigHash.createFromBytes(hashBytes))));
+
+        // copies don't share the buffer, and status changes show through
+        BigHash copy = header.getHash(0);
+        buf[0]++;
+        assertEquals(hashes[0], copy);
+        header.setStatus(0, DataBlock.STATUS_DELETED);
+        assertEquals(DataBlock.STATUS_DELETED, buf[BigHash.HASH_LENGTH + 1]);
+    }
+
+    /**
+     * <p>Times looking for a chunk that isn't in a full header, the most common scan, against parsing each entry as was done before.</p>
+     */
+    public void testScanTime() throws Exception {
+        TestUtil.printTitle("DataBlockHeaderTest:testScanTime()");
+        byte[] buf = makeHeader(new BigHash[DataBlock.getHeadersPerFile()]);
+        BigHash missing = new BigHash(Utils.makeRandomData(100));
+        final int scans = 20000;
+
+        // warm up, then time
+        long parsedTime = 0, viewTime = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int n = 0; n < scans; n++) {
+                assertEquals(-1, findParsed(buf, missing));
+            }
+            parsedTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int n = 0; n < scans; n++) {
+                assertEquals(-1, findView(buf, missing));
+            }
+            viewTime = System.nanoTime() - start;
+        }
+        System.out.println("Parsing each entry: " + (parsedTime / scans) + " ns per scan of " + DataBlock.getHeadersPerFile() + " entries.");
+        System.out.println("DataBlockHeader: " + (viewTime / scans) + " ns per scan of " + DataBlock.getHeadersPerFile() + " entries.");
+    }
+
+    /**
+     * <p>Fills a header with random hashes and entries.</p>
+     */
+    private static byte[] makeHeader(BigHash[] hashes) throws Exception {
+        byte[] buf = new byte[DataBlock.getBytesToRead()];
+        int o = DataBlock.getFirstChunkOffset(true);
+        for (int i = 0; i < hashes.length; i++) {
+            byte[] chunk = Utils.makeRandomData(i % 100 + 1);
+            hashes[i] = new BigHash(chunk);
+            int offset = i * DataBlock.bytesPerEntry;
+            System.arraycopy(hashes[i].toByteArray(), 0, buf, offset, BigHash.HASH_LENGTH);
+            buf[offset + BigHash.HASH_LENGTH] = i % 3 == 0 ? DataBlock.META_DATA : DataBlock.DATA;
+            buf[offset + BigHash.HASH_LENGTH + 1] = i % 4 == 0 ? DataBlock.STATUS_DELETED : DataBlock.STATUS_OK;
+            putInt(buf, offset + BigHash.HASH_LENGTH + 2, o);
+            putInt(buf, offset + BigHash.HASH_LENGTH + 6, chunk.length);
+            o += chunk.length;
+        }
+        return buf;
+    }
+
+    private static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >> 24);
+        buf[offset + 1] = (byte) (value >> 16);
+        buf[offset + 2] = (byte) (value >> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    private static int findParsed(byte[] buf, BigHash hash) {
+        for (int i = 0; i < DataBlock.getHeadersPerFile(); i++) {
+            int offset = i * DataBlock.bytesPerEntry;
+            BigHash h = BigHash.createFromBytes(buf, offset);
+            byte type = buf[offset + BigHash.HASH_LENGTH];
+            byte status = buf[offset + BigHash.HASH_LENGTH + 1];
+            int o = buf[BigHash.HASH_LENGTH + offset + 2] << 24 | (buf[BigHash.HASH_LENGTH + offset + 2 + 1] & 0xff) << 16 | (buf[BigHash.HASH_LENGTH + offset + 2 + 2] & 0xff) << 8 | (buf[BigHash.HASH_LENGTH + offset + 2 + 3] & 0xff);
+            if (o == 0) {
+                break;
+            }
+            if (status == DataBlock.STATUS_OK && type == DataBlock.DATA && h.equals(hash)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int findView(byte[] buf, BigHash hash) {
+        DataBlockHeader header = new DataBlockHeader(buf);
+        long[] words = DataBlockHeader.toWords(hash);
+        for (int i = 0; i < DataBlock.getHeadersPerFile(); i++) {
+            if (header.getOffset(i) == 0) {
+                break;
+            }
+            if (header.getStatus(i) == DataBlock.STATUS_OK && header.getType(i) == DataBlock.DATA && header.hashEquals(i, words)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
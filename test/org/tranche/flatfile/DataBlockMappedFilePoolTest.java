@@ -0,0 +1,104 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.tranche.hash.BigHash;
+import org.tranche.util.IOUtil;
+import org.tranche.util.TempFileUtil;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+/**
+ */
+public class DataBlockMappedFilePoolTest extends TrancheTestCase {
+
+    public void testMappedReadsMatchRegularReads() throws Exception {
+        TestUtil.printTitle("DataBlockMappedFilePoolTest:testMappedReadsMatchRegularReads()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        try {
+            DataBlockUtil dbu = new DataBlockUtil();
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+            assertFalse("Memory-mapped reads should be off by default.", dbu.isUseMemoryMappedReads());
+            dbu.setUseMemoryMappedReads(true);
+
+            List<byte[]> chunks = new ArrayList<byte[]>();
+            for (int round = 0; round < 2; round++) {
+                // second round appends to files that are already mapped
+                for (int i = 0; i < 50; i++) {
+                    byte[] chunk = Utils.makeRandomData((int) (Math.random() * 10 * 1024));
+                    chunks.add(chunk);
+                    dbu.addData(new BigHash(chunk), chunk);
+                }
+                for (byte[] chunk : chunks) {
+                    BigHash hash = new BigHash(chunk);
+                    ByteBuffer buffer = dbu.getDataByteBuffer(hash);
+                    assertTrue("Should be read-only.", buffer.isReadOnly());
+                    byte[] mapped = new byte[buffer.remaining()];
+                    buffer.get(mapped);
+                    assertTrue("Mapped chunk should match.", Arrays.equals(chunk, mapped));
+                    assertTrue("Mapped chunk should match regular read.", Arrays.equals(dbu.getData(hash), mapped));
+                }
+            }
+            assertTrue("Should have mapped at least one file.", dbu.getMappedFilePool().size() > 0);
+
+            // deleted chunks should not be found
+            BigHash deleted = new BigHash(chunks.get(0));
+            dbu.deleteData(deleted, "DataBlockMappedFilePoolTest");
+            try {
+                dbu.getDataByteBuffer(deleted);
+                fail("Deleted chunk should not be found.");
+            } catch (FileNotFoundException e) {
+                // expected
+            }
+
+            // turning off drops the mappings
+            dbu.setUseMemoryMappedReads(false);
+            assertEquals(0, dbu.getMappedFilePool().size());
+            assertTrue(Arrays.equals(chunks.get(1), dbu.getData(new BigHash(chunks.get(1)))));
+        } finally {
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    public void testPoolIsBounded() throws Exception {
+        TestUtil.printTitle("DataBlockMappedFilePoolTest:testPoolIsBounded()");
+        DataBlockMappedFilePool pool = new DataBlockMappedFilePool();
+        pool.setCapacity(3);
+        File dir = TempFileUtil.createTemporaryDirectory();
+        try {
+            for (int i = 0; i < 10; i++) {
+                File f = new File(dir, String.valueOf(i));
+                byte[] bytes = Utils.makeRandomData(100);
+                IOUtil.setBytes(bytes, f);
+                ByteBuffer slice = pool.getSlice(f, 10, 20);
+                assertEquals(20, slice.remaining());
+                assertEquals(bytes[10], slice.get(0));
+                assertEquals(bytes[29], slice.get(19));
+            }
+            assertEquals(3, pool.size());
+            assertEquals(10, pool.getMapCount());
+        } finally {
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.util.Arrays;
+import org.tranche.util.IOUtil;
+import org.tranche.util.TempFileUtil;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+public class DataBlockMoverTest extends TrancheTestCase {
+
+    public void testCopyIsCapped() throws Exception {
+        TestUtil.printTitle("DataBlockMoverTest:testCopyIsCapped()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        try {
+            byte[] bytes = Utils.makeRandomData(512 * 1024);
+            File src = new File(dir, "src");
+            File dest = new File(dir, "dest");
+            IOUtil.setBytes(bytes, src);
+
+            final DataBlockMover mover = new DataBlockMover();
+            assertNull(mover.getProgress());
+
+            // progress is reported while copying
+            final String[] progress = new String[1];
+            Thread watcher = new Thread() {
+
+                @Override()
+                public void run() {
+                    while (progress[0] == null) {
+                        progress[0] = mover.getProgress();
+                        Thread.yield();
+                    }
+                }
+            };
+            watcher.setDaemon(true);
+            watcher.start();
+
+            long start = System.currentTimeMillis();
+            mover.copy(src, dest, 1024 * 1024);
+            long time = System.currentTimeMillis() - start;
+            assertTrue("Should take about half a second, but took " + time + " ms.", time >= 400);
+            assertTrue(Arrays.equals(bytes, IOUtil.getBytes(dest)));
+
+            watcher.join(1000);
+            assertNotNull(progress[0]);
+            assertTrue(progress[0], progress[0].endsWith(src.getAbsolutePath()));
+            assertNull(mover.getProgress());
+        } finally {
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    public void testUncappedCopy() throws Exception {
+        TestUtil.printTitle("DataBlockMoverTest:testUncappedCopy()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        try {
+            byte[] bytes = Utils.makeRandomData(1024 * 1024);
+            File src = new File(dir, "src");
+            File dest = new File(dir, "dest");
+            IOUtil.setBytes(bytes, src);
+
+            DataBlockMover mover = new DataBlockMover();
+            mover.copy(src, dest, 0);
+            assertTrue(Arrays.equals(bytes, IOUtil.getBytes(dest)));
+
+            mover.moved(bytes.length);
+            mover.aborted();
+            assertEquals(1, mover.getMovedCount());
+            assertEquals(bytes.length, mover.getMovedBytes());
+            assertEquals(1, mover.getAbortedCount());
+        } finally {
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.tranche.hash.BigHash;
+import org.tranche.util.IOUtil;
+import org.tranche.util.TempFileUtil;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+public class DataBlockScrubberTest extends TrancheTestCase {
+
+    public void testCorruptedChunkIsRepairedOnItsOwn() throws Exception {
+        TestUtil.printTitle("DataBlockScrubberTest:testCorruptedChunkIsRepairedOnItsOwn()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        DataBlockUtil dbu = new DataBlockUtil();
+        try {
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+            List<BigHash> hashes = new ArrayList<BigHash>();
+            List<byte[]> chunks = new ArrayList<byte[]>();
+            addChunks(dbu, hashes, chunks, 10);
+            DataBlock block = dbu.getDataBlockToAddChunk(hashes.get(0));
+
+            // nothing wrong yet
+            assertEquals(0, dbu.getScrubber().scrubAll());
+            assertEquals(10, dbu.getScrubber().getScrubbedCount());
+
+            corrupt(block, chunks.get(3));
+            assertEquals(1, dbu.getScrubber().scrubAll());
+            assertEquals(1, dbu.getScrubber().getCorruptedCount());
+
+            // only the bad chunk is gone
+            for (int i = 0; i < hashes.size(); i++) {
+                if (i == 3) {
+                    assertFalse("Should have deleted corrupted chunk.", dbu.hasData(hashes.get(i)));
+                } else {
+                    assertTrue("Should have data.", dbu.hasData(hashes.get(i)));
+                    assertTrue("Should get same data.", Arrays.equals(chunks.get(i), dbu.getData(hashes.get(i))));
+                }
+            }
+            assertEquals(0, dbu.getScrubber().scrubAll());
+        } finally {
+            dbu.close();
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    public void testCompactionAddsChecksums() throws Exception {
+        TestUtil.printTitle("DataBlockScrubberTest:testCompactionAddsChecksums()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        DataBlockUtil dbu = new DataBlockUtil();
+        try {
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+
+            // as written before checksums were kept
+            dbu.setUseChecksums(false);
+            List<BigHash> hashes = new ArrayList<BigHash>();
+            List<byte[]> chunks = new ArrayList<byte[]>();
+            addChunks(dbu, hashes, chunks, 10);
+            DataBlock block = dbu.getDataBlockToAddChunk(hashes.get(0));
+            assertEquals(0, dbu.getScrubber().scrubAll());
+            assertEquals("Should skip blocks without checksums.", 0, dbu.getScrubber().getScrubbedCount());
+
+            // compacting adds them
+            dbu.setUseChecksums(true);
+            dbu.deleteData(hashes.remove(0), "testCompactionAddsChecksums");
+            chunks.remove(0);
+            assertEquals("Checksums take more space than the deleted chunk.", 0, block.compact(dbu.getCompactionThread()));
+            assertEquals(0, dbu.getScrubber().scrubAll());
+            assertEquals(9, dbu.getScrubber().getScrubbedCount());
+
+            // and keeps them when compacting again
+            addChunks(dbu, hashes, chunks, 2);
+            dbu.deleteData(hashes.remove(0), "testCompactionAddsChecksums");
+            chunks.remove(0);
+            assertTrue(block.compact(dbu.getCompactionThread()) > 0);
+            corrupt(block, chunks.get(9));
+            assertEquals(1, dbu.getScrubber().scrubAll());
+            assertFalse("Should have deleted corrupted chunk.", dbu.hasData(hashes.get(9)));
+            for (int i = 0; i < 9; i++) {
+                assertTrue("Should get same data.", Arrays.equals(chunks.get(i), dbu.getData(hashes.get(i))));
+            }
+        } finally {
+            dbu.close();
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    /**
+     * <p>Adds chunks that all go in the same block.</p>
+     */
+    private static void addChunks(DataBlockUtil dbu, List<BigHash> hashes, List<byte[]> chunks, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            byte[] data = Utils.makeRandomData(1000);
+            byte[] hashBytes = new BigHash(data).toByteArray();
+            hashBytes[0] = 0;
+            hashBytes[1] = 1;
+            BigHash hash = BigHash.createFromBytes(hashBytes);
+            dbu.addData(hash, data);
+            hashes.add(hash);
+            chunks.add(data);
+        }
+    }
+
+    /**
+     * <p>Flips a byte in the middle of a chunk in the block's file.</p>
+     */
+    private static void corrupt(DataBlock block, byte[] chunk) throws Exception {
+        byte[] bytes = IOUtil.getBytes(new File(block.getAbsolutePath()));
+        for (int o = 0; o <= bytes.length - chunk.length; o++) {
+            int matched = 0;
+            while (matched < chunk.length && bytes[o + matched] == chunk[matched]) {
+                matched++;
+            }
+            if (matched == chunk.length) {
+                RandomAccessFile ras = new RandomAccessFile(block.getAbsolutePath(), "rw");
+                try {
+                    ras.seek(o + chunk.length / 2);
+                    ras.write(~bytes[o + chunk.length / 2]);
+                } finally {
+                    ras.close();
+                }
+                return;
+            }
+        }
+        fail("Chunk not found in block.");
+    }
+}
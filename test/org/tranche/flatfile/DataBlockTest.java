@@ -24,11 +24,13 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.tranche.annotations.Todo;
 import org.tranche.configuration.ConfigKeys;
 import org.tranche.configuration.Configuration;
@@ -1815,6 +1817,182 @@ public class DataBlockTest extends TrancheTestCase {
         }
     }
 
+    /**
+     * <p>Readers and writers work on the same DataBlock concurrently, including while it splits.</p>
+     */
+    public void testConcurrentReadsAndWritesDuringSplit() throws Exception {
+        TestUtil.printTitle("DataBlockTest:testConcurrentReadsAndWritesDuringSplit()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        final int originalMaxBlockSize = DataBlock.getMaxBlockSize();
+        try {
+            // small blocks so that they split while the threads are working
+            DataBlock.setMaxBlockSize(256 * 1024);
+            final DataBlockUtil dbu = new DataBlockUtil();
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+
+            final List<BigHash> added = new CopyOnWriteArrayList<BigHash>();
+            final List<Exception> exceptions = new CopyOnWriteArrayList<Exception>();
+            final int chunksPerWriter = 60;
+
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int w = 0; w < 3; w++) {
+                threads.add(new Thread("Writer #" + w) {
+
+                    @Override()
+                    public void run() {
+                        try {
+                            for (int i = 0; i < chunksPerWriter; i++) {
+                                byte[] chunk = Utils.makeRandomData(1024 + RandomUtil.getInt(10 * 1024));
+                                // all in the same block
+                                byte[] hashBytes = new BigHash(chunk).toByteArray();
+                                hashBytes[0] = 0;
+                                hashBytes[1] = 1;
+                                BigHash hash = BigHash.createFromBytes(hashBytes);
+                                dbu.addData(hash, chunk);
+                                added.add(hash);
+                            }
+                        } catch (Exception e) {
+                            exceptions.add(e);
+                        }
+                    }
+                });
+            }
+            for (int r = 0; r < 3; r++) {
+                threads.add(new Thread("Reader #" + r) {
+
+                    @Override()
+                    public void run() {
+                        try {
+                            for (int i = 0; i < chunksPerWriter * 2; i++) {
+                                if (added.isEmpty()) {
+                                    Thread.yield();
+                                    continue;
+                                }
+                                BigHash hash = added.get(RandomUtil.getInt(added.size()));
+                                if (!dbu.hasData(hash)) {
+                                    throw new Exception("Should have chunk: " + hash);
+                                }
+                                if (dbu.getData(hash).length != hash.getLength()) {
+                                    throw new Exception("Wrong length for chunk: " + hash);
+                                }
+                            }
+                        } catch (Exception e) {
+                            exceptions.add(e);
+                        }
+                    }
+                });
+            }
+
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            if (!exceptions.isEmpty()) {
+                throw exceptions.get(0);
+            }
+            assertEquals(chunksPerWriter * 3, added.size());
+            for (BigHash hash : added) {
+                assertTrue("Should have chunk: " + hash, dbu.hasData(hash));
+                assertEquals(hash.getLength(), dbu.getData(hash).length);
+            }
+        } finally {
+            DataBlock.setMaxBlockSize(originalMaxBlockSize);
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    /**
+     * <p>Chunks are served from the old DataBlock until its merge finishes, and none are lost when they are added to the new blocks in batches.</p>
+     */
+    public void testMergeAddsChunksInBatches() throws Exception {
+        TestUtil.printTitle("DataBlockTest:testMergeAddsChunksInBatches()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        try {
+            DataBlockUtil dbu = new DataBlockUtil();
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+
+            // fill one block, spread over four sub-blocks. The last chunk splits the block
+            List<BigHash> added = new ArrayList<BigHash>();
+            List<Boolean> addedIsMetaData = new ArrayList<Boolean>();
+            for (int i = 0; i < DataBlock.getHeadersPerFile(); i++) {
+                byte[] chunk = Utils.makeRandomData(512 + RandomUtil.getInt(1024));
+                byte[] hashBytes = new BigHash(chunk).toByteArray();
+                hashBytes[0] = 0;
+                hashBytes[1] = (byte) (i % 4);
+                BigHash hash = BigHash.createFromBytes(hashBytes);
+                boolean isMetaData = i % 10 == 0;
+                if (isMetaData) {
+                    dbu.addMetaData(hash, chunk);
+                } else {
+                    dbu.addData(hash, chunk);
+                }
+                added.add(hash);
+                addedIsMetaData.add(isMetaData);
+            }
+
+            assertEquals("Block should be waiting to merge.", 1, dbu.mergeQueue.size());
+            DataBlockToMerge dbtm = dbu.mergeQueue.poll();
+            assertTrue("Merge file should exist.", dbtm.fileToMerge.exists());
+
+            // still served from the old block while waiting to merge
+            for (int i = 0; i < added.size(); i++) {
+                if (addedIsMetaData.get(i)) {
+                    assertTrue("Should have meta data chunk: " + added.get(i), dbu.hasMetaData(added.get(i)));
+                } else {
+                    assertTrue("Should have data chunk: " + added.get(i), dbu.hasData(added.get(i)));
+                }
+            }
+
+            dbu.mergeOldDataBlock(dbtm.fileToMerge);
+            assertFalse("Merge file should be gone.", dbtm.fileToMerge.exists());
+
+            // one file per sub-block
+            for (int i = 0; i < 4; i++) {
+                File subBlock = new File(dir, "00" + File.separator + "0" + i);
+                assertTrue("Sub-block should be a file: " + subBlock, subBlock.isFile());
+            }
+
+            for (int i = 0; i < added.size(); i++) {
+                BigHash hash = added.get(i);
+                byte[] chunk = addedIsMetaData.get(i) ? dbu.getMetaData(hash) : dbu.getData(hash);
+                assertEquals(hash.getLength(), chunk.length);
+            }
+        } finally {
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    public void testNewDataBlocksAvoidBusyDirectories() throws Exception {
+        TestUtil.printTitle("DataBlockTest:testNewDataBlocksAvoidBusyDirectories()");
+        File busyDir = TempFileUtil.createTemporaryDirectory();
+        File quietDir = TempFileUtil.createTemporaryDirectory();
+        DataBlockUtil dbu = new DataBlockUtil();
+        try {
+            // a little more space in the busy directory, which would get new blocks if only space counted
+            long limit = 10L * 1024 * 1024 * 1024;
+            DataDirectoryConfiguration busy = new DataDirectoryConfiguration(busyDir.getAbsolutePath(), limit + 200 * 1024 * 1024);
+            DataDirectoryConfiguration quiet = new DataDirectoryConfiguration(quietDir.getAbsolutePath(), limit);
+            dbu.add(busy);
+            dbu.add(quiet);
+            busy.adjustUsedSpace(100 * 1024 * 1024);
+            Thread.sleep(1100);
+            assertTrue(busy.getRecentWriteRate() > 0);
+            assertEquals(0.0, quiet.getRecentWriteRate());
+            assertEquals(quiet, dbu.getDataDirectoryForNewDataBlock());
+
+            // but not once the quiet directory has no room for a full block
+            quiet.adjustUsedSpace(limit - DataBlock.getMaxBlockSize() / 2);
+            assertEquals(busy, dbu.getDataDirectoryForNewDataBlock());
+        } finally {
+            dbu.close();
+            IOUtil.recursiveDelete(busyDir);
+            IOUtil.recursiveDelete(quietDir);
+        }
+    }
+
     /**
      * <p>Demonstrates DataBlock.moveToDataDirectoryConfiguration works.</p>
      */
@@ -1856,7 +2034,7 @@ public class DataBlockTest extends TrancheTestCase {
             assertTrue("Should have meta hash.", dbu.hasMetaData(metaHash));
 
             assertEquals("Expecting one data block in data directory.", 1, ddc1.getDirectoryFile().list().length);
-            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * DataBlock.bytesPerEntry, ddc1.getActualSize());
+            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * (DataBlock.bytesPerEntry + DataBlock.bytesPerChecksum), ddc1.getActualSize());
 
             dbu.add(ddc2);
 
@@ -1874,7 +2052,7 @@ public class DataBlockTest extends TrancheTestCase {
             assertEquals("Expecting data directory to be empty.", 0, ddc1.getDirectoryFile().list().length);
             assertEquals("Expecting one data block in data directory.", 1, ddc2.getDirectoryFile().list().length);
             assertEquals("Expecting accurate bytes.", 0, ddc1.getActualSize());
-            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * DataBlock.bytesPerEntry, ddc2.getActualSize());
+            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * (DataBlock.bytesPerEntry + DataBlock.bytesPerChecksum), ddc2.getActualSize());
 
         } finally {
             IOUtil.recursiveDeleteWithWarning(dataDir1);
@@ -1924,7 +2102,7 @@ public class DataBlockTest extends TrancheTestCase {
             assertTrue("Should have meta hash.", dbu.hasMetaData(metaHash));
 
             assertEquals("Expecting one data block in data directory.", 1, ddc1.getDirectoryFile().list().length);
-            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * DataBlock.bytesPerEntry, ddc1.getActualSize());
+            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * (DataBlock.bytesPerEntry + DataBlock.bytesPerChecksum), ddc1.getActualSize());
 
             // Simulate full. This is what project finding thread does.
             ddc2.adjustUsedSpace(1024 * 1024 * 2);
@@ -1944,7 +2122,7 @@ public class DataBlockTest extends TrancheTestCase {
             assertEquals("Data block should know it is still in DDC #1.", ddc1, db.ddc);
             assertEquals("Expecting data directory to be empty.", 0, ddc2.getDirectoryFile().list().length);
             assertEquals("Expecting one data block in data directory.", 1, ddc1.getDirectoryFile().list().length);
-            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * DataBlock.bytesPerEntry, ddc1.getActualSize());
+            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * (DataBlock.bytesPerEntry + DataBlock.bytesPerChecksum), ddc1.getActualSize());
         } finally {
             IOUtil.recursiveDeleteWithWarning(dataDir1);
             IOUtil.recursiveDeleteWithWarning(dataDir2);
@@ -1996,7 +2174,7 @@ public class DataBlockTest extends TrancheTestCase {
             assertTrue("Should have meta hash.", dbu.hasMetaData(metaHash));
 
             assertEquals("Expecting one data block in data directory.", 1, ddc1.getDirectoryFile().list().length);
-            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * DataBlock.bytesPerEntry, ddc1.getActualSize());
+            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * (DataBlock.bytesPerEntry + DataBlock.bytesPerChecksum), ddc1.getActualSize());
 
             // Add the second data directory. It does not exist.
             dbu.add(ddc2);
@@ -2014,7 +2192,7 @@ public class DataBlockTest extends TrancheTestCase {
             assertEquals("Expecting data directory to be empty.", 0, ddc1.getDirectoryFile().list().length);
             assertEquals("Expecting one data block in data directory.", 1, ddc2.getDirectoryFile().list().length);
             assertEquals("Expecting accurate bytes.", 0, ddc1.getActualSize());
-            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * DataBlock.bytesPerEntry, ddc2.getActualSize());
+            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * (DataBlock.bytesPerEntry + DataBlock.bytesPerChecksum), ddc2.getActualSize());
 
         } finally {
             IOUtil.recursiveDeleteWithWarning(dataDir1);
@@ -2063,7 +2241,7 @@ public class DataBlockTest extends TrancheTestCase {
             assertTrue("Should have meta hash.", dbu.hasMetaData(metaHash));
 
             assertEquals("Expecting one data block in data directory.", 1, ddc1.getDirectoryFile().list().length);
-            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * DataBlock.bytesPerEntry, ddc1.getActualSize());
+            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * (DataBlock.bytesPerEntry + DataBlock.bytesPerChecksum), ddc1.getActualSize());
 
             // Add the second data directory.
             dbu.add(ddc2);
@@ -2089,7 +2267,7 @@ public class DataBlockTest extends TrancheTestCase {
 
             assertEquals("Data block should know it is in DDC #1 still.", ddc1, db.ddc);
             assertEquals("Expecting one data block in data directory.", 1, ddc1.getDirectoryFile().list().length);
-            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * DataBlock.bytesPerEntry, ddc1.getActualSize());
+            assertEquals("Expecting accurate bytes.", dataChunk.length + metaChunk.length + DataBlock.getHeadersPerFile() * (DataBlock.bytesPerEntry + DataBlock.bytesPerChecksum), ddc1.getActualSize());
             assertEquals("Expecting accurate bytes.", 0, ddc2.getActualSize());
         } finally {
             IOUtil.recursiveDeleteWithWarning(dataDir1);
@@ -2741,4 +2919,280 @@ public class DataBlockTest extends TrancheTestCase {
             TestUtil.setTestingHashSpanFixingThread(wasTestingHashSpanFixingThread);
         }
     }
+
+    /**
+     * <p>Checks that the chunk filters only answer negatively once every chunk on disk has been loaded, and never for chunks the server has.</p>
+     * @throws java.lang.Exception
+     */
+    public void testChunkFilter() throws Exception {
+        TestUtil.printTitle("DataBlockTest:testChunkFilter()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        try {
+            DataDirectoryConfiguration ddc = new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE);
+            DataBlockUtil dbu = new DataBlockUtil();
+            dbu.add(ddc);
+
+            List<BigHash> dataHashes = new ArrayList<BigHash>();
+            for (int i = 0; i < 20; i++) {
+                byte[] data = Utils.makeRandomData(RandomUtil.getInt(10000) + 1);
+                BigHash hash = new BigHash(data);
+                dbu.addData(hash, data);
+                dataHashes.add(hash);
+            }
+            byte[] metaData = Utils.makeRandomData(2000);
+            BigHash metaDataHash = new BigHash(metaData);
+            dbu.addMetaData(metaDataHash, metaData);
+
+            // a fresh instance -- i.e., rebooted server
+            DataBlockUtil dbu2 = new DataBlockUtil();
+            dbu2.add(ddc);
+
+            // not loaded, so must go to disk
+            assertFalse("Filter should not be complete before loading.", dbu2.getDataHashFilter().isComplete());
+            assertFalse("Should not have random chunk.", dbu2.hasData(DevUtil.getRandomBigHash()));
+            assertEquals("Filter should not have answered.", 0, dbu2.getDataHashFilter().getNegativeCount());
+            for (BigHash hash : dataHashes) {
+                assertTrue("Should have data.", dbu2.hasData(hash));
+            }
+
+            ProjectFindingThread.loadDataBlocks(dbu2);
+            assertTrue("Filter should be complete after loading.", dbu2.getDataHashFilter().isComplete());
+            assertTrue("Filter should be complete after loading.", dbu2.getMetaDataHashFilter().isComplete());
+
+            for (BigHash hash : dataHashes) {
+                assertTrue("Should have data.", dbu2.hasData(hash));
+            }
+            assertTrue("Should have meta data.", dbu2.hasMetaData(metaDataHash));
+
+            // chunks the server doesn't have
+            for (int i = 0; i < 100; i++) {
+                assertFalse("Should not have random chunk.", dbu2.hasData(DevUtil.getRandomBigHash()));
+                assertFalse("Should not have random chunk.", dbu2.hasMetaData(DevUtil.getRandomBigHash()));
+            }
+            assertTrue("Filter should have answered.", dbu2.getDataHashFilter().getNegativeCount() > 0);
+            assertTrue("Filter should have answered.", dbu2.getMetaDataHashFilter().getNegativeCount() > 0);
+
+            // new chunks are found right away
+            byte[] data = Utils.makeRandomData(1000);
+            BigHash hash = new BigHash(data);
+            dbu2.addData(hash, data);
+            dataHashes.add(hash);
+            assertTrue("Should have data.", dbu2.hasData(hash));
+
+            // deleted chunks stay in the filter, so must go to disk
+            BigHash deleted = dataHashes.remove(0);
+            dbu2.deleteData(deleted, "testChunkFilter");
+            long falsePositiveCount = dbu2.getDataHashFilter().getFalsePositiveCount();
+            assertFalse("Should not have deleted chunk.", dbu2.hasData(deleted));
+            assertEquals("Expecting a false positive.", falsePositiveCount + 1, dbu2.getDataHashFilter().getFalsePositiveCount());
+
+            // a rebuilt filter still has every chunk
+            dbu2.getDataHashFilter().rebuild(10);
+            assertEquals("Expecting a rebuild.", 1, dbu2.getDataHashFilter().getRebuildCount());
+            for (BigHash h : dataHashes) {
+                assertFalse("Rebuilt filter must have every chunk.", dbu2.getDataHashFilter().isDefinitelyAbsent(h));
+                assertTrue("Should have data.", dbu2.hasData(h));
+            }
+
+            // turned off, goes to disk
+            dbu2.setUseChunkFilter(false);
+            long negativeCount = dbu2.getDataHashFilter().getNegativeCount();
+            assertFalse("Should not have random chunk.", dbu2.hasData(DevUtil.getRandomBigHash()));
+            assertEquals("Filter should not have answered.", negativeCount, dbu2.getDataHashFilter().getNegativeCount());
+        } finally {
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    public void testChunkCache() throws Exception {
+        TestUtil.printTitle("DataBlockTest:testChunkCache()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        try {
+            DataDirectoryConfiguration ddc = new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE);
+            DataBlockUtil dbu = new DataBlockUtil();
+            dbu.add(ddc);
+            dbu.setUseChunkCache(true);
+
+            byte[] data = Utils.makeRandomData(10000);
+            BigHash hash = new BigHash(data);
+            dbu.addData(hash, data);
+            byte[] metaData = Utils.makeRandomData(2000);
+            BigHash metaDataHash = new BigHash(metaData);
+            dbu.addMetaData(metaDataHash, metaData);
+
+            // popular chunks end up in memory
+            for (int i = 0; i < 5; i++) {
+                assertTrue("Should get same data.", Arrays.equals(data, dbu.getData(hash)));
+                assertTrue("Should get same meta data.", Arrays.equals(metaData, dbu.getMetaData(metaDataHash)));
+            }
+            assertEquals("Data should be cached.", data.length, dbu.getChunkCache(false).getSizeInBytes());
+            assertEquals("Meta data should be cached separately.", metaData.length, dbu.getChunkCache(true).getSizeInBytes());
+            assertTrue("Should be some hits.", dbu.getChunkCache(false).getHitCount() > 0);
+            assertTrue("Should be some hits.", dbu.getChunkCache(true).getHitCount() > 0);
+
+            // replaced meta data is not served from memory
+            byte[] newMetaData = Utils.makeRandomData(3000);
+            dbu.addMetaData(metaDataHash, newMetaData);
+            assertTrue("Should get new meta data.", Arrays.equals(newMetaData, dbu.getMetaData(metaDataHash)));
+
+            // deleted chunks are not served from memory
+            dbu.deleteData(hash, "testChunkCache");
+            assertEquals("Should not be cached.", 0, dbu.getChunkCache(false).getSizeInBytes());
+            try {
+                dbu.getData(hash);
+                fail("Should not get deleted data.");
+            } catch (FileNotFoundException e) {
+                // expected
+            }
+
+            // turned off, clears memory
+            dbu.setUseChunkCache(false);
+            assertEquals(0, dbu.getChunkCache(true).size());
+        } finally {
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    public void testBackgroundCompaction() throws Exception {
+        TestUtil.printTitle("DataBlockTest:testBackgroundCompaction()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        try {
+            DataDirectoryConfiguration ddc = new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE);
+            DataBlockUtil dbu = new DataBlockUtil();
+            dbu.add(ddc);
+            dbu.setUseBackgroundCompaction(true);
+
+            // all in the same block. The last one is big, so only deleting it makes the block fragmented enough to compact
+            List<BigHash> hashes = new ArrayList<BigHash>();
+            List<byte[]> chunks = new ArrayList<byte[]>();
+            for (int i = 0; i < 21; i++) {
+                byte[] data = Utils.makeRandomData(i < 10 ? 1000 : (i < 20 ? 10000 : 50000));
+                byte[] hashBytes = new BigHash(data).toByteArray();
+                hashBytes[0] = 0;
+                hashBytes[1] = 1;
+                BigHash hash = BigHash.createFromBytes(hashBytes);
+                dbu.addData(hash, data);
+                hashes.add(hash);
+                chunks.add(data);
+            }
+            DataBlock block = dbu.getDataBlockToAddChunk(hashes.get(0));
+            long lengthBefore = block.length();
+
+            for (int i = 0; i < 10; i++) {
+                dbu.deleteData(hashes.get(i), "testBackgroundCompaction");
+            }
+            assertEquals("Should have a candidate.", 1, dbu.getCompactionThread().getCandidateCount());
+            Thread.sleep(100);
+            assertEquals("Should not compact a block with little wasted space.", 0, dbu.getCompactionThread().getCompactedCount());
+            dbu.deleteData(hashes.get(20), "testBackgroundCompaction");
+
+            long start = System.currentTimeMillis();
+            while (dbu.getCompactionThread().getCompactedCount() == 0 && System.currentTimeMillis() - start < 30000) {
+                Thread.sleep(50);
+            }
+            assertEquals("Should have compacted the block.", 1, dbu.getCompactionThread().getCompactedCount());
+            assertEquals("Should reclaim deleted chunks.", 10 * 1000 + 50000, dbu.getCompactionThread().getBytesReclaimed());
+            assertEquals("Should reclaim deleted chunks.", lengthBefore - (10 * 1000 + 50000), block.length());
+            assertFalse("Side file should be gone.", new File(block.getAbsolutePath() + ".compact").exists());
+
+            for (int i = 0; i < 21; i++) {
+                if (i < 10 || i == 20) {
+                    assertFalse("Should not have deleted data.", dbu.hasData(hashes.get(i)));
+                } else {
+                    assertTrue("Should have data.", dbu.hasData(hashes.get(i)));
+                    assertTrue("Should get same data.", Arrays.equals(chunks.get(i), dbu.getData(hashes.get(i))));
+                }
+            }
+
+            // still writable
+            byte[] data = Utils.makeRandomData(10000);
+            byte[] hashBytes = new BigHash(data).toByteArray();
+            hashBytes[0] = 0;
+            hashBytes[1] = 1;
+            BigHash hash = BigHash.createFromBytes(hashBytes);
+            dbu.addData(hash, data);
+            assertTrue("Should get same data.", Arrays.equals(data, dbu.getData(hash)));
+            assertTrue("Should get same data.", Arrays.equals(chunks.get(19), dbu.getData(hashes.get(19))));
+        } finally {
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    public void testReadChunksInFileOrder() throws Exception {
+        TestUtil.printTitle("DataBlockTest:testReadChunksInFileOrder()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        DataBlockUtil dbu = new DataBlockUtil();
+        try {
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+
+            // half in the same block, half anywhere. Every third one is meta data
+            final List<BigHash> hashes = new ArrayList<BigHash>();
+            final List<byte[]> chunks = new ArrayList<byte[]>();
+            for (int i = 0; i < 40; i++) {
+                byte[] data = Utils.makeRandomData(RandomUtil.getInt(5000) + 1);
+                byte[] hashBytes = new BigHash(data).toByteArray();
+                if (i < 20) {
+                    hashBytes[0] = 0;
+                    hashBytes[1] = 1;
+                } else {
+                    hashBytes[1] = 2;
+                }
+                BigHash hash = BigHash.createFromBytes(hashBytes);
+                if (i % 3 == 0) {
+                    dbu.addMetaData(hash, data);
+                } else {
+                    dbu.addData(hash, data);
+                }
+                hashes.add(hash);
+                chunks.add(data);
+            }
+            DataBlock block = dbu.getDataBlockToAddChunk(hashes.get(0));
+
+            // deleted chunks are skipped
+            for (int i = 0; i < 40; i += 4) {
+                if (i % 3 == 0) {
+                    dbu.deleteMetaData(hashes.get(i), "testReadChunksInFileOrder");
+                } else {
+                    dbu.deleteData(hashes.get(i), "testReadChunksInFileOrder");
+                }
+            }
+
+            List<DataBlockEntry> entries = block.getEntries();
+            assertEquals(15, entries.size());
+            for (int i = 1; i < entries.size(); i++) {
+                assertTrue("Should be in file order.", entries.get(i - 1).getOffset() < entries.get(i).getOffset());
+            }
+
+            final List<DataBlockEntry> read = new ArrayList<DataBlockEntry>();
+            DataBlockChunkHandler handler = new DataBlockChunkHandler() {
+
+                public void handleChunk(DataBlockEntry entry, byte[] bytes) throws Exception {
+                    int i = hashes.indexOf(entry.getHash());
+                    assertTrue("Should be a chunk that was added.", i >= 0);
+                    assertTrue("Should not be deleted.", i % 4 != 0);
+                    assertEquals(i % 3 == 0, entry.isMetaData());
+                    assertEquals(chunks.get(i).length, entry.getSize());
+                    assertTrue("Should get same data.", Arrays.equals(chunks.get(i), bytes));
+                    read.add(entry);
+                }
+            };
+            assertEquals(15, block.readChunks(handler));
+            for (int i = 0; i < entries.size(); i++) {
+                assertEquals(entries.get(i).getHash(), read.get(i).getHash());
+                assertEquals(entries.get(i).getOffset(), read.get(i).getOffset());
+            }
+
+            // every chunk on the server
+            read.clear();
+            assertEquals(30, dbu.readChunks(handler));
+            Set<BigHash> readHashes = new HashSet<BigHash>();
+            for (DataBlockEntry entry : read) {
+                readHashes.add(entry.getHash());
+            }
+            assertEquals(30, readHashes.size());
+        } finally {
+            dbu.close();
+            IOUtil.recursiveDelete(dir);
+        }
+    }
 }
@@ -0,0 +1,219 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.tranche.hash.BigHash;
+import org.tranche.util.IOUtil;
+import org.tranche.util.TempFileUtil;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+public class DataBlockWriteAheadLogTest extends TrancheTestCase {
+
+    public void testChunksArePlacedAndLogDeleted() throws Exception {
+        TestUtil.printTitle("DataBlockWriteAheadLogTest:testChunksArePlacedAndLogDeleted()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        File logDir = TempFileUtil.createTemporaryDirectory();
+        DataBlockUtil dbu = new DataBlockUtil();
+        DataBlockWriteAheadLog log = new DataBlockWriteAheadLog(dbu, logDir);
+        try {
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+            log.start();
+
+            List<BigHash> hashes = new ArrayList<BigHash>();
+            List<byte[]> chunks = new ArrayList<byte[]>();
+            for (int i = 0; i < 50; i++) {
+                byte[] chunk = Utils.makeRandomData(1000 + i);
+                BigHash hash = new BigHash(chunk);
+                log.append(false, hash, chunk);
+                hashes.add(hash);
+                chunks.add(chunk);
+            }
+
+            // placed in the background
+            long start = System.currentTimeMillis();
+            while (log.getPendingCount() > 0 && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, log.getPendingCount());
+            assertEquals(0, log.getPendingBytes());
+            assertEquals(50, log.getPlacedCount());
+            for (int i = 0; i < hashes.size(); i++) {
+                assertNull(log.getPending(false, hashes.get(i)));
+                assertTrue("Should have chunk.", dbu.hasData(hashes.get(i)));
+                assertTrue("Should have same bytes.", Arrays.equals(chunks.get(i), dbu.getData(hashes.get(i))));
+            }
+
+            // log file is deleted once idle
+            start = System.currentTimeMillis();
+            while (getLogFileCount(logDir) > 0 && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, getLogFileCount(logDir));
+        } finally {
+            log.setStop(true);
+            dbu.close();
+            IOUtil.recursiveDelete(dir);
+            IOUtil.recursiveDelete(logDir);
+        }
+    }
+
+    public void testReplayed() throws Exception {
+        TestUtil.printTitle("DataBlockWriteAheadLogTest:testReplayed()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        File logDir = TempFileUtil.createTemporaryDirectory();
+        DataBlockUtil dbu = new DataBlockUtil();
+        try {
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+
+            // never started, so nothing is placed
+            DataBlockWriteAheadLog log = new DataBlockWriteAheadLog(dbu, logDir);
+            List<BigHash> dataHashes = new ArrayList<BigHash>(), metaDataHashes = new ArrayList<BigHash>();
+            for (int i = 0; i < 20; i++) {
+                byte[] chunk = Utils.makeRandomData(1000);
+                BigHash hash = new BigHash(chunk);
+                log.append(false, hash, chunk);
+                dataHashes.add(hash);
+            }
+            for (int i = 0; i < 5; i++) {
+                byte[] chunk = Utils.makeRandomData(500);
+                BigHash hash = new BigHash(chunk);
+                log.append(true, hash, chunk);
+                metaDataHashes.add(hash);
+            }
+            BigHash superseded = dataHashes.remove(0);
+            log.supersede(false, superseded);
+            assertNull(log.getPending(false, superseded));
+            assertEquals(24, log.getPendingCount());
+            log.setStop(true);
+
+            assertEquals(1, getLogFileCount(logDir));
+            for (BigHash hash : dataHashes) {
+                assertFalse("Should not be placed yet.", dbu.hasData(hash));
+            }
+
+            // as at the next start up
+            DataBlockWriteAheadLog replayLog = new DataBlockWriteAheadLog(dbu, logDir);
+            replayLog.recover();
+            for (BigHash hash : dataHashes) {
+                assertTrue("Should have data chunk.", dbu.hasData(hash));
+                assertEquals(hash, new BigHash(dbu.getData(hash)));
+            }
+            for (BigHash hash : metaDataHashes) {
+                assertTrue("Should have meta data chunk.", dbu.hasMetaData(hash));
+            }
+            assertFalse("Superseded chunk should not be placed.", dbu.hasData(superseded));
+            assertEquals(0, getLogFileCount(logDir));
+            replayLog.setStop(true);
+        } finally {
+            dbu.close();
+            IOUtil.recursiveDelete(dir);
+            IOUtil.recursiveDelete(logDir);
+        }
+    }
+
+    public void testTooLargeChunkIsRejected() throws Exception {
+        TestUtil.printTitle("DataBlockWriteAheadLogTest:testTooLargeChunkIsRejected()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        File logDir = TempFileUtil.createTemporaryDirectory();
+        DataBlockUtil dbu = new DataBlockUtil();
+        DataBlockWriteAheadLog log = new DataBlockWriteAheadLog(dbu, logDir);
+        try {
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+
+            // couldn't be replayed, so isn't logged
+            byte[] tooLarge = new byte[(int) DataBlockWriteAheadLog.MAX_FILE_SIZE + 1];
+            try {
+                log.append(false, new BigHash(tooLarge), tooLarge);
+                fail("Should not log a chunk longer than a log file.");
+            } catch (Exception e) {
+                // expected
+            }
+            assertEquals(0, log.getPendingCount());
+            assertEquals(0, getLogFileCount(logDir));
+        } finally {
+            log.setStop(true);
+            dbu.close();
+            IOUtil.recursiveDelete(dir);
+            IOUtil.recursiveDelete(logDir);
+        }
+    }
+
+    public void testWritersShareSyncs() throws Exception {
+        TestUtil.printTitle("DataBlockWriteAheadLogTest:testWritersShareSyncs()");
+        File dir = TempFileUtil.createTemporaryDirectory();
+        File logDir = TempFileUtil.createTemporaryDirectory();
+        DataBlockUtil dbu = new DataBlockUtil();
+        final DataBlockWriteAheadLog log = new DataBlockWriteAheadLog(dbu, logDir);
+        try {
+            dbu.add(new DataDirectoryConfiguration(dir.getAbsolutePath(), Long.MAX_VALUE));
+            log.start();
+
+            final int writers = 8, chunksPerWriter = 20;
+            final List<Exception> exceptions = new CopyOnWriteArrayList<Exception>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int w = 0; w < writers; w++) {
+                threads.add(new Thread("Writer #" + w) {
+
+                    @Override()
+                    public void run() {
+                        try {
+                            for (int i = 0; i < chunksPerWriter; i++) {
+                                byte[] chunk = Utils.makeRandomData(1000);
+                                log.append(false, new BigHash(chunk), chunk);
+                            }
+                        } catch (Exception e) {
+                            exceptions.add(e);
+                        }
+                    }
+                });
+            }
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            if (!exceptions.isEmpty()) {
+                throw exceptions.get(0);
+            }
+
+            assertTrue("Should be at least one sync.", log.getSyncCount() > 0);
+            assertTrue("Writers should share syncs, but " + log.getSyncCount() + " syncs.", log.getSyncCount() < writers * chunksPerWriter);
+        } finally {
+            log.setStop(true);
+            dbu.close();
+            IOUtil.recursiveDelete(dir);
+            IOUtil.recursiveDelete(logDir);
+        }
+    }
+
+    private static int getLogFileCount(File logDir) {
+        int count = 0;
+        for (String name : logDir.list()) {
+            if (name.endsWith(".log")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.flatfile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.tranche.hash.BigHash;
+import org.tranche.time.TimeUtil;
+import org.tranche.util.IOUtil;
+import org.tranche.util.TempFileUtil;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+public class DataDirectoryIOQueueTest extends TrancheTestCase {
+
+    public void testShedsLoadWhenQueueIsFull() throws Exception {
+        TestUtil.printTitle("DataDirectoryIOQueueTest:testShedsLoadWhenQueueIsFull()");
+        final DataDirectoryIOQueue queue = new DataDirectoryIOQueue("test");
+        long start = queue.begin(1, 1);
+
+        // waits for a turn
+        final long[] waitedStart = new long[1];
+        Thread waiter = new Thread() {
+
+            @Override()
+            public void run() {
+                try {
+                    waitedStart[0] = queue.begin(1, 1);
+                    queue.end(waitedStart[0], null, Long.MAX_VALUE);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        waiter.start();
+        long time = System.currentTimeMillis();
+        while (queue.getQueueDepth() < 2 && System.currentTimeMillis() - time < 5000) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, queue.getQueueDepth());
+
+        // queue is full, so turned away
+        try {
+            queue.begin(1, 1);
+            fail("Should be turned away.");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, queue.getRejectedCount());
+
+        queue.end(start, null, Long.MAX_VALUE);
+        waiter.join(5000);
+        assertTrue("Waiter should have had a turn.", waitedStart[0] > 0);
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    public void testReadOnlyAfterFailures() throws Exception {
+        TestUtil.printTitle("DataDirectoryIOQueueTest:testReadOnlyAfterFailures()");
+        DataDirectoryIOQueue queue = new DataDirectoryIOQueue("test");
+
+        // missing chunks aren't failures of the disk
+        for (int i = 0; i < DataDirectoryIOQueue.MAX_CONSECUTIVE_FAILURES * 2; i++) {
+            queue.end(queue.begin(1, 1), new FileNotFoundException(), Long.MAX_VALUE);
+        }
+        assertFalse(queue.isReadOnly());
+        assertEquals(0, queue.getFailureCount());
+
+        for (int i = 0; i < DataDirectoryIOQueue.MAX_CONSECUTIVE_FAILURES - 1; i++) {
+            queue.end(queue.begin(1, 1), new IOException(), Long.MAX_VALUE);
+        }
+        assertFalse(queue.isReadOnly());
+        queue.end(queue.begin(1, 1), new IOException(), Long.MAX_VALUE);
+        assertTrue(queue.isReadOnly());
+    }
+
+    public void testReadOnlyWhenSlow() throws Exception {
+        TestUtil.printTitle("DataDirectoryIOQueueTest:testReadOnlyWhenSlow()");
+        DataDirectoryIOQueue queue = new DataDirectoryIOQueue("test");
+        queue.begin(1, 1);
+        queue.end(TimeUtil.getTrancheTimestamp() - 1000, null, 5000);
+        assertFalse(queue.isReadOnly());
+        assertEquals(1000, queue.getAverageLatency(), 100);
+
+        queue.begin(1, 1);
+        queue.end(TimeUtil.getTrancheTimestamp() - 100000, null, 5000);
+        assertTrue(queue.isReadOnly());
+    }
+
+    public void testLockWaitIsNotLatency() throws Exception {
+        TestUtil.printTitle("DataDirectoryIOQueueTest:testLockWaitIsNotLatency()");
+        DataDirectoryIOQueue queue = new DataDirectoryIOQueue("test");
+        final ReentrantReadWriteLock blockLock = new ReentrantReadWriteLock();
+
+        // another writer holds the block for a while
+        blockLock.writeLock().lock();
+        Thread writer = new Thread() {
+
+            @Override()
+            public void run() {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                } finally {
+                    blockLock.writeLock().unlock();
+                }
+            }
+        };
+        writer.start();
+
+        long start = queue.begin(1, 1);
+        DataDirectoryIOQueue.lock(blockLock.readLock());
+        blockLock.readLock().unlock();
+        queue.end(start, null, 500);
+        writer.join();
+        assertFalse("Waiting for the block isn't a slow disk.", queue.isReadOnly());
+        assertTrue(queue.getAverageLatency() < 500);
+    }
+
+    public void testNewDataBlocksAvoidReadOnlyDirectory() throws Exception {
+        TestUtil.printTitle("DataDirectoryIOQueueTest:testNewDataBlocksAvoidReadOnlyDirectory()");
+        File degradedDir = TempFileUtil.createTemporaryDirectory();
+        File healthyDir = TempFileUtil.createTemporaryDirectory();
+        DataBlockUtil dbu = new DataBlockUtil();
+        try {
+            // more space in the degraded directory, which would otherwise get the blocks
+            DataDirectoryConfiguration degraded = new DataDirectoryConfiguration(degradedDir.getAbsolutePath(), Long.MAX_VALUE);
+            DataDirectoryConfiguration healthy = new DataDirectoryConfiguration(healthyDir.getAbsolutePath(), Long.MAX_VALUE / 2);
+            dbu.add(degraded);
+            dbu.add(healthy);
+            degraded.getIOQueue().setReadOnly();
+
+            for (int i = 0; i < 20; i++) {
+                byte[] chunk = Utils.makeRandomData(1000);
+                BigHash hash = new BigHash(chunk);
+                dbu.addData(hash, chunk);
+                assertTrue(Arrays.equals(chunk, dbu.getData(hash)));
+            }
+            assertEquals(0, degradedDir.list().length);
+            assertTrue(healthyDir.list().length > 0);
+            assertEquals(0, healthy.getIOQueue().getQueueDepth());
+        } finally {
+            dbu.close();
+            IOUtil.recursiveDelete(degradedDir);
+            IOUtil.recursiveDelete(healthyDir);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package org.tranche.flatfile;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
@@ -27,6 +28,7 @@ import org.tranche.TrancheServer;
 import org.tranche.TrancheServerTest;
 import org.tranche.add.AddFileTool;
 import org.tranche.add.CommandLineAddFileToolListener;
+import org.tranche.configuration.ConfigKeys;
 import org.tranche.configuration.Configuration;
 import org.tranche.commons.DebugUtil;
 import org.tranche.exceptions.NoHostProvidedException;
@@ -96,6 +98,187 @@ public class FlatFileTrancheServerTest extends TrancheServerTest {
         }
     }
 
+    public void testSetDataSkipsExistingChunk() throws Exception {
+        TestUtil.printTitle("FlatFileTrancheServerTest:testSetDataSkipsExistingChunk()");
+
+        FlatFileTrancheServer ffts = null;
+        try {
+            ffts = new FlatFileTrancheServer(TempFileUtil.createTemporaryDirectory());
+            ffts.getConfiguration().addUser(DevUtil.getDevUser());
+            ffts.saveConfiguration();
+
+            byte[] data = Utils.makeRandomData(1024 * 10);
+            BigHash hash = new BigHash(data);
+
+            for (int i = 0; i < 3; i++) {
+                PropagationReturnWrapper wrapper = IOUtil.setData(ffts, DevUtil.getDevAuthority(), DevUtil.getDevPrivateKey(), hash, data);
+                assertFalse("Should not have any errors.", wrapper.isAnyErrors());
+            }
+            assertTrue(ffts.getDataBlockUtil().hasData(hash));
+
+            // first write adds the chunk, the others are skipped
+            Configuration config = ffts.getConfiguration(false);
+            assertEquals("3", config.getValue(ConfigKeys.REQUESTS_COUNT_SET_DATA));
+            assertEquals("2", config.getValue(ConfigKeys.REQUESTS_COUNT_SET_DATA_SKIPPED));
+        } finally {
+            IOUtil.safeClose(ffts);
+        }
+    }
+
+    /**
+     * <p>Restarting a server should load the chunk hashes from the snapshot and journal, and fall back on reading every data block if the snapshot is corrupted.</p>
+     * @throws java.lang.Exception
+     */
+    public void testIndexSnapshot() throws Exception {
+        TestUtil.printTitle("FlatFileTrancheServerTest:testIndexSnapshot()");
+
+        File dir = TempFileUtil.createTemporaryDirectory();
+        FlatFileTrancheServer ffts = null;
+        try {
+            ffts = new FlatFileTrancheServer(dir);
+            ffts.waitToLoadExistingDataBlocks();
+            waitForIndexSnapshot(ffts);
+
+            List<BigHash> hashes = new ArrayList<BigHash>();
+            for (int i = 0; i < 10; i++) {
+                byte[] data = Utils.makeRandomData(RandomUtil.getInt(10000) + 1);
+                BigHash hash = new BigHash(data);
+                ffts.getDataBlockUtil().addData(hash, data);
+                hashes.add(hash);
+            }
+            byte[] metaData = Utils.makeRandomData(2000);
+            BigHash metaDataHash = new BigHash(metaData);
+            ffts.getDataBlockUtil().addMetaData(metaDataHash, metaData);
+
+            // writes the snapshot
+            ffts.close();
+
+            ffts = new FlatFileTrancheServer(dir);
+            ffts.waitToLoadExistingDataBlocks();
+            assertTrue("Should be loaded from snapshot.", ffts.getDataBlockUtil().getIndexSnapshot().isLoadedFromSnapshot());
+            for (BigHash hash : hashes) {
+                assertTrue("Should be in snapshot.", ffts.getDataBlockUtil().dataHashes.contains(hash));
+            }
+            assertTrue("Should be in snapshot.", ffts.getDataBlockUtil().metaDataHashes.contains(metaDataHash));
+            assertEquals("Expecting same number of data chunks.", hashes.size(), ffts.getDataBlockUtil().dataHashes.size());
+
+            // changes only go in the journal: without a snapshot at shut down, as if the server stopped unexpectedly
+            byte[] data = Utils.makeRandomData(1000);
+            BigHash added = new BigHash(data);
+            ffts.getDataBlockUtil().addData(added, data);
+            BigHash deleted = hashes.remove(0);
+            ffts.getDataBlockUtil().deleteData(deleted, "testIndexSnapshot");
+            hashes.add(added);
+            ffts.getDataBlockUtil().setUseIndexSnapshot(false);
+            ffts.close();
+
+            ffts = new FlatFileTrancheServer(dir);
+            ffts.waitToLoadExistingDataBlocks();
+            assertTrue("Should be loaded from snapshot.", ffts.getDataBlockUtil().getIndexSnapshot().isLoadedFromSnapshot());
+            for (BigHash hash : hashes) {
+                assertTrue("Should be in journal.", ffts.getDataBlockUtil().dataHashes.contains(hash));
+            }
+            assertFalse("Should be deleted in journal.", ffts.getDataBlockUtil().dataHashes.contains(deleted));
+            assertEquals("Expecting same number of data chunks.", hashes.size(), ffts.getDataBlockUtil().dataHashes.size());
+            ffts.close();
+
+            // corrupt the snapshot
+            RandomAccessFile ras = new RandomAccessFile(new File(dir, "chunk-index.snapshot"), "rw");
+            try {
+                ras.seek(ras.length() / 2);
+                byte b = ras.readByte();
+                ras.seek(ras.length() / 2);
+                ras.writeByte(b ^ 0xff);
+            } finally {
+                ras.close();
+            }
+
+            ffts = new FlatFileTrancheServer(dir);
+            ffts.waitToLoadExistingDataBlocks();
+            assertFalse("Should not be loaded from a corrupted snapshot.", ffts.getDataBlockUtil().getIndexSnapshot().isLoadedFromSnapshot());
+            for (BigHash hash : hashes) {
+                assertTrue("Should have found chunk.", ffts.getDataBlockUtil().dataHashes.contains(hash));
+                assertTrue("Should have data.", ffts.getDataBlockUtil().hasData(hash));
+            }
+            assertEquals("Expecting same number of data chunks.", hashes.size(), ffts.getDataBlockUtil().dataHashes.size());
+            assertTrue("Should have meta data.", ffts.getDataBlockUtil().metaDataHashes.contains(metaDataHash));
+        } finally {
+            IOUtil.safeClose(ffts);
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    /**
+     * <p>Data blocks in several data directories should all be loaded when the project-finding thread reads them using several threads.</p>
+     * @throws java.lang.Exception
+     */
+    public void testParallelDataBlockScan() throws Exception {
+        TestUtil.printTitle("FlatFileTrancheServerTest:testParallelDataBlockScan()");
+
+        File dir = TempFileUtil.createTemporaryDirectory();
+        FlatFileTrancheServer ffts = null;
+        try {
+            ffts = new FlatFileTrancheServer(dir);
+            ffts.waitToLoadExistingDataBlocks();
+            for (int i = 0; i < 3; i++) {
+                File dataDir = new File(dir, "data" + i);
+                dataDir.mkdirs();
+                DataDirectoryConfiguration ddc = new DataDirectoryConfiguration(dataDir.getAbsolutePath(), Long.MAX_VALUE);
+                ffts.getConfiguration().addDataDirectory(ddc);
+                ffts.getDataBlockUtil().add(ddc);
+            }
+            ffts.getConfiguration().setValue(ConfigKeys.PROJECT_FINDING_THREAD_SCAN_THREADS, "2");
+            // read every data block at start up
+            ffts.getConfiguration().setValue(ConfigKeys.DATABLOCK_USE_INDEX_SNAPSHOT, String.valueOf(false));
+            ffts.getDataBlockUtil().setUseIndexSnapshot(false);
+            ffts.saveConfiguration();
+
+            List<BigHash> hashes = new ArrayList<BigHash>();
+            for (int i = 0; i < 200; i++) {
+                byte[] data = Utils.makeRandomData(RandomUtil.getInt(10000) + 1);
+                BigHash hash = new BigHash(data);
+                ffts.getDataBlockUtil().addData(hash, data);
+                hashes.add(hash);
+            }
+            List<BigHash> metaDataHashes = new ArrayList<BigHash>();
+            for (int i = 0; i < 20; i++) {
+                byte[] metaData = Utils.makeRandomData(RandomUtil.getInt(2000) + 1);
+                BigHash metaDataHash = new BigHash(metaData);
+                ffts.getDataBlockUtil().addMetaData(metaDataHash, metaData);
+                metaDataHashes.add(metaDataHash);
+            }
+            ffts.close();
+
+            ffts = new FlatFileTrancheServer(dir);
+            ffts.waitToLoadExistingDataBlocks();
+            assertFalse("Should not be loaded from snapshot.", ffts.getDataBlockUtil().getIndexSnapshot().isLoadedFromSnapshot());
+            for (BigHash hash : hashes) {
+                assertTrue("Should have found chunk.", ffts.getDataBlockUtil().dataHashes.contains(hash));
+            }
+            for (BigHash hash : metaDataHashes) {
+                assertTrue("Should have found meta data chunk.", ffts.getDataBlockUtil().metaDataHashes.contains(hash));
+            }
+            assertEquals("Expecting same number of data chunks.", hashes.size(), ffts.getDataBlockUtil().dataHashes.size());
+            assertEquals("Expecting same number of meta data chunks.", metaDataHashes.size(), ffts.getDataBlockUtil().metaDataHashes.size());
+            assertTrue("Chunk filters should be complete.", ffts.getDataBlockUtil().getDataHashFilter().isComplete());
+            assertTrue("Should have loaded data blocks.", Long.parseLong(ffts.getConfiguration().getValue(ConfigKeys.PROJECT_FINDING_THREAD_DATA_BLOCKS_LOADED)) > 0);
+            assertTrue("Should be finished.", ffts.getConfiguration().getValue(ConfigKeys.PROJECT_FINDING_THREAD_STATUS).startsWith("Finished"));
+        } finally {
+            IOUtil.safeClose(ffts);
+            IOUtil.recursiveDelete(dir);
+        }
+    }
+
+    /**
+     * <p>The snapshot is written after the project-finding thread finishes loading.</p>
+     */
+    private void waitForIndexSnapshot(FlatFileTrancheServer ffts) throws Exception {
+        for (int i = 0; i < 100 && !ffts.getDataBlockUtil().getIndexSnapshot().isLoaded(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue("Index snapshot should be written.", ffts.getDataBlockUtil().getIndexSnapshot().isLoaded());
+    }
+
     public void testSetMetaData() throws Exception {
         TestUtil.printTitle("FlatFileTrancheServerTest:testSetMetaData()");
 
@@ -0,0 +1,90 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.tranche.util.DevUtil;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+
+public class BigHashBloomFilterTest extends TrancheTestCase {
+
+    /**
+     * <p>Every added hash must be found, and hashes that weren't added should rarely be.</p>
+     * @throws java.lang.Exception
+     */
+    public void testNoFalseNegatives() throws Exception {
+        TestUtil.printTitle("BigHashBloomFilterTest:testNoFalseNegatives()");
+        final int capacity = 10000;
+        BigHashBloomFilter filter = new BigHashBloomFilter(capacity, BigHashBloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+
+        List<BigHash> added = new ArrayList<BigHash>();
+        for (int i = 0; i < capacity; i++) {
+            BigHash h = DevUtil.getRandomBigHash(32);
+            filter.add(h);
+            added.add(h);
+        }
+        assertEquals("Expecting insertion count.", capacity, filter.getInsertionCount());
+
+        for (BigHash h : added) {
+            assertTrue("Added hash must be found.", filter.mightContain(h));
+        }
+
+        // allow some room over the target
+        int falsePositives = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (filter.mightContain(DevUtil.getRandomBigHash(32))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < capacity * BigHashBloomFilter.DEFAULT_FALSE_POSITIVE_RATE * 3);
+        assertTrue("Expected false positive rate should be near the target: " + filter.getExpectedFalsePositiveRate(), filter.getExpectedFalsePositiveRate() < BigHashBloomFilter.DEFAULT_FALSE_POSITIVE_RATE * 1.5);
+    }
+
+    /**
+     * <p>A filter read back in should answer the same.</p>
+     * @throws java.lang.Exception
+     */
+    public void testWriteAndRead() throws Exception {
+        TestUtil.printTitle("BigHashBloomFilterTest:testWriteAndRead()");
+        BigHashBloomFilter filter = new BigHashBloomFilter(1000, BigHashBloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+        List<BigHash> added = new ArrayList<BigHash>();
+        for (int i = 0; i < 500; i++) {
+            BigHash h = DevUtil.getRandomBigHash(32);
+            filter.add(h);
+            added.add(h);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.write(out);
+        BigHashBloomFilter read = BigHashBloomFilter.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals("Expecting same capacity.", filter.getCapacity(), read.getCapacity());
+        assertEquals("Expecting same insertion count.", filter.getInsertionCount(), read.getInsertionCount());
+        assertEquals("Expecting same size.", filter.getSizeInBytes(), read.getSizeInBytes());
+        assertEquals("Expecting same number of hash functions.", filter.getHashFunctionCount(), read.getHashFunctionCount());
+        for (BigHash h : added) {
+            assertTrue("Added hash must be found.", read.mightContain(h));
+        }
+        for (int i = 0; i < 500; i++) {
+            BigHash h = DevUtil.getRandomBigHash(32);
+            assertEquals("Expecting same answer.", filter.mightContain(h), read.mightContain(h));
+        }
+    }
+}
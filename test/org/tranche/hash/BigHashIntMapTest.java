@@ -0,0 +1,54 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+public class BigHashIntMapTest extends TrancheTestCase {
+
+    public void testMatchesHashMap() throws Exception {
+        TestUtil.printTitle("BigHashIntMapTest:testMatchesHashMap()");
+        BigHashIntMap map = new BigHashIntMap();
+        Map<BigHash, Integer> expected = new HashMap<BigHash, Integer>();
+        BigHash[] hashes = new BigHash[1000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = new BigHash(Utils.makeRandomData(i + 1));
+        }
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < hashes.length; i++) {
+                Integer previous = expected.put(hashes[i], i * round);
+                assertEquals(previous == null ? BigHashIntMap.NO_VALUE : previous, map.put(hashes[i], i * round));
+            }
+            for (int i = round; i < hashes.length; i += 4) {
+                Integer removed = expected.remove(hashes[i]);
+                assertEquals(removed == null ? BigHashIntMap.NO_VALUE : removed, map.remove(hashes[i]));
+            }
+            assertEquals(expected.size(), map.size());
+            for (BigHash hash : hashes) {
+                Integer value = expected.get(hash);
+                assertEquals(value == null ? BigHashIntMap.NO_VALUE : value, map.get(hash));
+                assertEquals(value == null ? BigHashIntMap.NO_VALUE : value, map.get(hash.toByteArray(), 0));
+                assertEquals(value != null, map.containsKey(hash));
+            }
+        }
+        assertEquals(expected.size(), map.toArray().length);
+    }
+}
@@ -15,8 +15,12 @@
  */
 package org.tranche.hash;
 
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
 import org.tranche.exceptions.TodoException;
+import org.tranche.util.TestUtil;
 import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
 
 /**
  *
@@ -27,4 +31,93 @@ public class BigHashMakerTest extends TrancheTestCase {
     public void testTodo() throws Exception {
         throw new TodoException();
     }
+
+    public void testParallelMakesSameBytes() throws Exception {
+        TestUtil.printTitle("BigHashMakerTest:testParallelMakesSameBytes()");
+        int[] sizes = {0, 1, BigHashMaker.MIN_PARALLEL_UPDATE - 1, BigHashMaker.MIN_PARALLEL_UPDATE, BigHashMaker.MIN_PARALLEL_UPDATE + 1, 1024 * 1024 + 3, 3 * 1024 * 1024};
+        byte[] padding = Utils.makeRandomData(17);
+        for (int size : sizes) {
+            byte[] data = Utils.makeRandomData(size);
+            byte[] expected = serial(data, new byte[0]);
+
+            // parallel, in updates big and small
+            BigHashMaker parallel = new BigHashMaker(true);
+            int updated = 0;
+            for (int step = 1; updated < data.length; step *= 7) {
+                int length = Math.min(step, data.length - updated);
+                parallel.update(data, updated, length);
+                updated += length;
+            }
+            assertTrue("Should make same bytes for " + size + " bytes.", Arrays.equals(expected, parallel.finish()));
+
+            // the BigHash constructors
+            assertTrue(Arrays.equals(expected, new BigHash(data).toByteArray()));
+            assertTrue(Arrays.equals(expected, new BigHash(new ByteArrayInputStream(data), data.length).toByteArray()));
+            byte[] expectedPadded = serial(data, padding);
+            assertTrue(Arrays.equals(expectedPadded, new BigHash(data, padding).toByteArray()));
+            assertTrue(Arrays.equals(expectedPadded, new BigHash(new ByteArrayInputStream(data), data.length, padding).toByteArray()));
+        }
+    }
+
+    public void testConcurrentParallelMakers() throws Exception {
+        TestUtil.printTitle("BigHashMakerTest:testConcurrentParallelMakers()");
+        final byte[][] data = new byte[16][];
+        final byte[][] made = new byte[data.length][];
+        Thread[] threads = new Thread[data.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = Utils.makeRandomData(512 * 1024 + i);
+            final int index = i;
+            threads[i] = new Thread() {
+
+                @Override()
+                public void run() {
+                    made[index] = new BigHash(data[index]).toByteArray();
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < data.length; i++) {
+            threads[i].join();
+            assertTrue(Arrays.equals(serial(data[i], new byte[0]), made[i]));
+        }
+    }
+
+    /**
+     * <p>Times hashing 1MB chunks, the most a chunk holds, one at a time on the calling thread and in parallel.</p>
+     */
+    public void testParallelTime() throws Exception {
+        TestUtil.printTitle("BigHashMakerTest:testParallelTime()");
+        byte[] data = Utils.makeRandomData(1024 * 1024);
+        final int hashes = 20;
+
+        // warm up, then time
+        long serialTime = 0, parallelTime = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int n = 0; n < hashes; n++) {
+                serial(data, new byte[0]);
+            }
+            serialTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int n = 0; n < hashes; n++) {
+                new BigHash(data);
+            }
+            parallelTime = System.nanoTime() - start;
+        }
+        System.out.println("Serial: " + (serialTime / hashes / 1000) + " us per 1MB.");
+        System.out.println("Parallel: " + (parallelTime / hashes / 1000) + " us per 1MB.");
+    }
+
+    /**
+     * <p>Hash the way BigHash did before digesting in parallel: one hash function after the other, 10,000 bytes at a time.</p>
+     */
+    private static byte[] serial(byte[] data, byte[] padding) {
+        BigHashMaker bhm = new BigHashMaker();
+        for (int offset = 0; offset < data.length; offset += 10000) {
+            bhm.update(data, offset, Math.min(10000, data.length - offset));
+        }
+        bhm.update(padding, 0, padding.length);
+        return bhm.finish();
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+public class BigHashSetTest extends TrancheTestCase {
+
+    public void testMatchesHashSet() throws Exception {
+        TestUtil.printTitle("BigHashSetTest:testMatchesHashSet()");
+        BigHashSet set = new BigHashSet();
+        Set<BigHash> expected = new HashSet<BigHash>();
+        BigHash[] hashes = new BigHash[2000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = new BigHash(Utils.makeRandomData(i + 1));
+        }
+
+        // adds and removes, enough to grow and to move entries in to removed ones
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < hashes.length; i++) {
+                assertEquals(expected.add(hashes[i]), set.add(hashes[i]));
+            }
+            for (int i = round; i < hashes.length; i += 3) {
+                assertEquals(expected.remove(hashes[i]), set.remove(hashes[i]));
+            }
+            assertEquals(expected.size(), set.size());
+            for (BigHash hash : hashes) {
+                assertEquals(expected.contains(hash), set.contains(hash));
+            }
+        }
+        assertEquals(expected, new HashSet<BigHash>(Arrays.asList(set.toArray())));
+
+        // looked up in place, e.g., in a buffer holding other bytes
+        byte[] buf = new byte[BigHash.HASH_LENGTH + 10];
+        System.arraycopy(hashes[1].toByteArray(), 0, buf, 10, BigHash.HASH_LENGTH);
+        assertTrue(set.contains(buf, 10));
+        assertTrue(set.contains(BigHash.createFromBytes(buf, 10)));
+        buf[buf.length - 1]++;
+        assertFalse(set.contains(buf, 10));
+
+        set.clear();
+        assertEquals(0, set.size());
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(hashes[1]));
+        assertEquals(0, set.toArray().length);
+    }
+
+    /**
+     * <p>Roughly compares the heap used by a HashSet of BigHashes to a BigHashSet.</p>
+     */
+    public void testHeapUsed() throws Exception {
+        TestUtil.printTitle("BigHashSetTest:testHeapUsed()");
+        final int count = 100000;
+        byte[] hashBytes = new byte[BigHash.HASH_LENGTH];
+
+        long before = usedHeap();
+        Set<BigHash> hashSet = new HashSet<BigHash>();
+        for (int i = 0; i < count; i++) {
+            RandomUtilHolder.random.nextBytes(hashBytes);
+            hashSet.add(BigHash.createFromBytes(hashBytes.clone()));
+        }
+        long hashSetBytes = usedHeap() - before;
+        assertEquals(count, hashSet.size());
+        hashSet = null;
+
+        before = usedHeap();
+        BigHashSet set = new BigHashSet();
+        for (int i = 0; i < count; i++) {
+            RandomUtilHolder.random.nextBytes(hashBytes);
+            set.add(BigHash.createFromBytes(hashBytes));
+        }
+        long setBytes = usedHeap() - before;
+        assertEquals(count, set.size());
+
+        System.out.println("HashSet: about " + (hashSetBytes / count) + " bytes per hash.");
+        System.out.println("BigHashSet: about " + (setBytes / count) + " bytes per hash.");
+    }
+
+    private static long usedHeap() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    private static class RandomUtilHolder {
+
+        private static final java.util.Random random = new java.util.Random();
+    }
+}
@@ -15,14 +15,18 @@
  */
 package org.tranche.hash;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 import org.tranche.time.TimeUtil;
 import org.tranche.util.DevUtil;
+import org.tranche.util.IOUtil;
 import org.tranche.commons.RandomUtil;
 import org.tranche.commons.TextUtil;
+import org.tranche.util.TempFileUtil;
 import org.tranche.util.TestUtil;
 import org.tranche.util.TrancheTestCase;
 
@@ -574,4 +578,181 @@ public class DiskBackedBigHashSetTest extends TrancheTestCase {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * <p>Adds and deletes across many segments, checking the set against a HashSet before and after the segments are merged, and after re-opening the file.</p>
+     * @throws java.lang.Exception
+     */
+    public void testSegmentsMatchHashSet() throws Exception {
+        TestUtil.printTitle("DiskBackedBigHashSetTest:testSegmentsMatchHashSet()");
+        File file = TempFileUtil.createTemporaryFile(".sdbbhs");
+        DiskBackedBigHashSet dset = null;
+        try {
+            dset = new DiskBackedBigHashSet(file);
+            dset.setAutoWriteBeforeCriticalOperation(false);
+            dset.setTestBufferSize(7);
+
+            Set<BigHash> expected = new HashSet<BigHash>();
+            List<BigHash> everAdded = new ArrayList<BigHash>();
+            for (int i = 0; i < 1000; i++) {
+                // mostly adds, some deletes and re-adds
+                if (!everAdded.isEmpty() && RandomUtil.getInt(4) == 0) {
+                    BigHash h = everAdded.get(RandomUtil.getInt(everAdded.size()));
+                    if (RandomUtil.getBoolean()) {
+                        dset.delete(h);
+                        expected.remove(h);
+                    } else {
+                        dset.add(h);
+                        expected.add(h);
+                    }
+                } else {
+                    BigHash h = DevUtil.getRandomBigHash();
+                    dset.add(h);
+                    expected.add(h);
+                    everAdded.add(h);
+                }
+            }
+
+            // before merging
+            for (BigHash h : everAdded) {
+                assertEquals("Checking contains.", expected.contains(h), dset.contains(h));
+            }
+            assertFalse(dset.contains(DevUtil.getRandomBigHash()));
+            assertEquals("Expecting correct size.", expected.size(), dset.size(false));
+
+            // in order, with the segments merged in
+            List<BigHash> all = dset.get(0, expected.size() + 1);
+            assertEquals("Expecting correct size.", expected.size(), all.size());
+            assertTrue("Expecting same hashes.", expected.containsAll(all));
+            for (int i = 1; i < all.size(); i++) {
+                assertTrue("Expecting sorted.", all.get(i - 1).compareTo(all.get(i)) < 0);
+            }
+
+            // paging seeks to the offset
+            assertEquals(all.subList(100, 110), dset.get(100, 10));
+
+            // re-open
+            dset.close();
+            dset = new DiskBackedBigHashSet(file);
+            assertEquals("Expecting correct size.", expected.size(), dset.size());
+            for (BigHash h : everAdded) {
+                assertEquals("Checking contains.", expected.contains(h), dset.contains(h));
+            }
+        } finally {
+            if (dset != null) {
+                dset.close();
+            }
+            IOUtil.safeDelete(file);
+        }
+    }
+
+    /**
+     * <p>Pages through a set with segments that change its sorted file, checking every page against a TreeSet and that the sorted file isn't rewritten.</p>
+     * @throws java.lang.Exception
+     */
+    public void testPagingDoesNotMergeSegments() throws Exception {
+        TestUtil.printTitle("DiskBackedBigHashSetTest:testPagingDoesNotMergeSegments()");
+        File file = TempFileUtil.createTemporaryFile(".sdbbhs");
+        DiskBackedBigHashSet dset = null;
+        try {
+            // a sorted file with no segments
+            TreeSet<BigHash> expected = new TreeSet<BigHash>();
+            dset = new DiskBackedBigHashSet(file);
+            for (int i = 0; i < 500; i++) {
+                BigHash h = DevUtil.getRandomBigHash();
+                dset.add(h);
+                expected.add(h);
+            }
+            dset.close();
+            dset = new DiskBackedBigHashSet(file);
+            dset.setTestBufferSize(20);
+
+            // segments that add hashes and delete hashes in the sorted file, including the first and last
+            List<BigHash> inFile = new ArrayList<BigHash>(expected);
+            dset.delete(inFile.get(0));
+            dset.delete(inFile.get(inFile.size() - 1));
+            for (int i = 0; i < 40; i++) {
+                BigHash h = inFile.get(RandomUtil.getInt(inFile.size()));
+                dset.delete(h);
+                expected.remove(h);
+            }
+            expected.remove(inFile.get(0));
+            expected.remove(inFile.get(inFile.size() - 1));
+            for (int i = 0; i < 60; i++) {
+                BigHash h = DevUtil.getRandomBigHash();
+                dset.add(h);
+                expected.add(h);
+            }
+            final long fileLength = file.length();
+            final long fileModified = file.lastModified();
+
+            // every offset
+            List<BigHash> all = new ArrayList<BigHash>(expected);
+            for (int offset = 0; offset <= all.size(); offset += 7) {
+                assertEquals("Page at " + offset, all.subList(offset, Math.min(offset + 10, all.size())), dset.get(offset, 10));
+            }
+            assertEquals(0, dset.get(all.size() + 5, 10).size());
+
+            // paging by hash
+            List<BigHash> paged = new ArrayList<BigHash>();
+            BigHash last = null;
+            while (true) {
+                List<BigHash> page = dset.getAfter(last, 13);
+                if (page.isEmpty()) {
+                    break;
+                }
+                paged.addAll(page);
+                last = page.get(page.size() - 1);
+            }
+            assertEquals(all, paged);
+
+            assertEquals("Sorted file shouldn't be rewritten.", fileLength, file.length());
+            assertEquals("Sorted file shouldn't be rewritten.", fileModified, file.lastModified());
+        } finally {
+            if (dset != null) {
+                dset.close();
+            }
+            IOUtil.safeDelete(file);
+        }
+    }
+
+    /**
+     * <p>Paging without writing out the buffers only returns what is on disk, and never writes a segment.</p>
+     * @throws java.lang.Exception
+     */
+    public void testGetAfterWithoutWritingBuffers() throws Exception {
+        TestUtil.printTitle("DiskBackedBigHashSetTest:testGetAfterWithoutWritingBuffers()");
+        DiskBackedBigHashSet dset = new DiskBackedBigHashSet();
+        try {
+            TreeSet<BigHash> onDisk = new TreeSet<BigHash>();
+            for (int i = 0; i < 100; i++) {
+                BigHash h = DevUtil.getRandomBigHash();
+                dset.add(h);
+                onDisk.add(h);
+            }
+            dset.flush();
+
+            // buffered, so not on disk
+            for (int i = 0; i < 10; i++) {
+                dset.add(DevUtil.getRandomBigHash());
+            }
+
+            List<BigHash> paged = new ArrayList<BigHash>();
+            BigHash last = null;
+            while (true) {
+                List<BigHash> page = dset.getAfter(last, 9, false);
+                if (page.isEmpty()) {
+                    break;
+                }
+                paged.addAll(page);
+                last = page.get(page.size() - 1);
+            }
+            assertEquals(new ArrayList<BigHash>(onDisk), paged);
+
+            // writing out the buffers finds the rest
+            assertEquals(110, dset.getAfter(null, 200).size());
+        } finally {
+            dset.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash;
+
+import java.util.Arrays;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+public class SortedBigHashArrayTest extends TrancheTestCase {
+
+    public void testSameOrderAsCompareTo() throws Exception {
+        TestUtil.printTitle("SortedBigHashArrayTest:testSameOrderAsCompareTo()");
+        for (int size : new int[]{0, 1, 2, 7, 8, 9, 1000}) {
+            BigHashSet set = new BigHashSet();
+            BigHash[] expected = new BigHash[size];
+            for (int i = 0; i < size; i++) {
+                byte[] hashBytes = Utils.makeRandomData(BigHash.HASH_LENGTH);
+                // differing only in later bytes, including bytes with the sign bit set
+                if (i % 2 == 0) {
+                    Arrays.fill(hashBytes, 0, 70, (byte) (i % 3 == 0 ? 0x80 : 0x7f));
+                }
+                expected[i] = BigHash.createFromBytes(hashBytes);
+                set.add(expected[i]);
+            }
+            Arrays.sort(expected);
+
+            SortedBigHashArray sorted = new SortedBigHashArray(set);
+            assertEquals(size, sorted.size());
+            for (int i = 0; i < size; i++) {
+                assertEquals(expected[i], sorted.get(i));
+                assertEquals(i, sorted.indexOf(expected[i]));
+                if (i > 0) {
+                    assertTrue(sorted.compare(i - 1, sorted, i) < 0);
+                }
+            }
+            assertFalse(sorted.contains(new BigHash(Utils.makeRandomData(10))));
+        }
+    }
+}
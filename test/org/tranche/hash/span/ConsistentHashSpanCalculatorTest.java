@@ -0,0 +1,131 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash.span;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.tranche.hash.BigHash;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
+
+public class ConsistentHashSpanCalculatorTest extends TrancheTestCase {
+
+    private static final long GB = 1024L * 1024 * 1024;
+
+    public void testEveryHashCoveredByReplications() throws Exception {
+        TestUtil.printTitle("ConsistentHashSpanCalculatorTest:testEveryHashCoveredByReplications()");
+        for (int replications = 1; replications <= 3; replications++) {
+            ConsistentHashSpanCalculator calc = new ConsistentHashSpanCalculator(replications);
+            for (int i = 0; i < 7; i++) {
+                calc.addServer("tranche://server" + i + ".com:443", (i + 1) * 100 * GB);
+            }
+            Map<String, Set<HashSpan>> spans = calc.calculateSpans();
+            assertEquals(7, spans.size());
+
+            // random hashes, and the hashes at and around every end of every hash span
+            List<BigHash> hashes = new ArrayList<BigHash>();
+            for (int i = 0; i < 200; i++) {
+                hashes.add(new BigHash(Utils.makeRandomData(100)));
+            }
+            for (Set<HashSpan> serverSpans : spans.values()) {
+                for (HashSpan hs : serverSpans) {
+                    hashes.add(hs.getFirst());
+                    hashes.add(hs.getLast());
+                    if (!hs.getFirst().equals(HashSpan.FIRST)) {
+                        hashes.add(hs.getFirst().getPrevious());
+                    }
+                    if (!hs.getLast().equals(HashSpan.LAST)) {
+                        hashes.add(hs.getLast().getNext());
+                    }
+                }
+            }
+            for (BigHash hash : hashes) {
+                int covering = 0;
+                for (Set<HashSpan> serverSpans : spans.values()) {
+                    for (HashSpan hs : serverSpans) {
+                        if (hs.contains(hash)) {
+                            covering++;
+                        }
+                    }
+                }
+                assertEquals(replications, covering);
+            }
+
+            double total = 0;
+            for (String url : spans.keySet()) {
+                total += calc.getServerPercentage(url);
+            }
+            assertEquals(replications, total, 0.000001);
+        }
+    }
+
+    public void testFullHashSpansWhenFewServers() throws Exception {
+        TestUtil.printTitle("ConsistentHashSpanCalculatorTest:testFullHashSpansWhenFewServers()");
+        ConsistentHashSpanCalculator calc = new ConsistentHashSpanCalculator(3);
+        calc.addServer("tranche://server1.com:443", 100 * GB);
+        calc.addServer("tranche://server2.com:443", 200 * GB);
+        for (Set<HashSpan> spans : calc.calculateSpans().values()) {
+            assertEquals(HashSpan.FULL_SET, spans);
+        }
+        assertEquals(1.0, calc.getServerPercentage("tranche://server1.com:443"));
+    }
+
+    public void testSharesFollowWeights() throws Exception {
+        TestUtil.printTitle("ConsistentHashSpanCalculatorTest:testSharesFollowWeights()");
+        ConsistentHashSpanCalculator calc = new ConsistentHashSpanCalculator(1);
+        calc.setBytesPerVirtualNode(GB);
+        long[] weights = {500 * GB, 500 * GB, 1000 * GB, 2000 * GB};
+        for (int i = 0; i < weights.length; i++) {
+            calc.addServer("tranche://server" + i + ".com:443", weights[i]);
+        }
+        calc.calculateSpans();
+        for (int i = 0; i < weights.length; i++) {
+            double expected = (double) weights[i] / (4000 * GB);
+            double share = calc.getServerPercentage("tranche://server" + i + ".com:443");
+            System.out.println("Weight share " + expected + ", hash share " + share);
+            assertEquals(expected, share, expected * 0.2);
+        }
+    }
+
+    public void testAddingServerMovesItsShare() throws Exception {
+        TestUtil.printTitle("ConsistentHashSpanCalculatorTest:testAddingServerMovesItsShare()");
+        final int replications = 2;
+        ConsistentHashSpanCalculator calc = new ConsistentHashSpanCalculator(replications);
+        for (int i = 0; i < 10; i++) {
+            calc.addServer("tranche://server" + i + ".com:443", 1000 * GB);
+        }
+        Map<String, Set<HashSpan>> before = calc.calculateSpans();
+
+        String added = "tranche://server10.com:443";
+        calc.addServer(added, 1000 * GB);
+        HashSpanMovementPlan plan = calc.getMovementPlan(before);
+        System.out.println(plan);
+
+        // only the new server gets copies, about its share of every replication
+        for (String url : before.keySet()) {
+            assertEquals(0.0, plan.getFractionToCopy(url));
+            assertTrue(plan.getHashSpansToCopy(url).isEmpty());
+        }
+        assertEquals(plan.getFractionToCopy(added), plan.getTotalFractionToCopy());
+        assertEquals(calc.getServerPercentage(added), plan.getFractionToCopy(added), 0.000001);
+        double ideal = replications / 11.0;
+        assertEquals(ideal, plan.getTotalFractionToCopy(), ideal * 0.3);
+        assertEquals(plan.getTotalFractionToCopy(), plan.getTotalFractionToDelete(), 0.000001);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.hash.span;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.tranche.hash.BigHash;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+
+public class HashSpanMovementPlanTest extends TrancheTestCase {
+
+    public void testSplitAndRemove() throws Exception {
+        TestUtil.printTitle("HashSpanMovementPlanTest:testSplitAndRemove()");
+        BigHash middle = HashSpanRanges.toHash(HashSpanRanges.HASH_COUNT.shiftRight(1));
+        HashSpan firstHalf = new HashSpan(HashSpan.FIRST, middle.getPrevious());
+        HashSpan secondHalf = new HashSpan(middle, HashSpan.LAST);
+
+        Map<String, Set<HashSpan>> current = new HashMap<String, Set<HashSpan>>();
+        current.put("a", HashSpan.FULL_SET);
+        current.put("c", HashSpan.FULL_SET);
+        Map<String, Set<HashSpan>> updated = new HashMap<String, Set<HashSpan>>();
+        updated.put("a", set(firstHalf));
+        updated.put("b", set(secondHalf));
+
+        HashSpanMovementPlan plan = new HashSpanMovementPlan(current, updated);
+        assertEquals(3, plan.getServers().size());
+
+        assertEquals(0.0, plan.getFractionToCopy("a"));
+        assertEquals(0.5, plan.getFractionToDelete("a"), 0.000001);
+        assertEquals(set(secondHalf), plan.getHashSpansToDelete("a"));
+
+        assertEquals(0.5, plan.getFractionToCopy("b"), 0.000001);
+        assertEquals(set(secondHalf), plan.getHashSpansToCopy("b"));
+        assertTrue(plan.getHashSpansToDelete("b").isEmpty());
+
+        // removed
+        assertEquals(1.0, plan.getFractionToDelete("c"), 0.000001);
+        assertEquals(HashSpan.FULL_SET, plan.getHashSpansToDelete("c"));
+
+        assertEquals(0.5, plan.getTotalFractionToCopy(), 0.000001);
+        assertEquals(1.5, plan.getTotalFractionToDelete(), 0.000001);
+        System.out.println(plan);
+        assertTrue(plan.toString().contains("copies 50.00%"));
+    }
+
+    public void testOverlappingSpans() throws Exception {
+        TestUtil.printTitle("HashSpanMovementPlanTest:testOverlappingSpans()");
+        BigHash quarter = HashSpanRanges.toHash(HashSpanRanges.HASH_COUNT.shiftRight(2));
+        BigHash middle = HashSpanRanges.toHash(HashSpanRanges.HASH_COUNT.shiftRight(1));
+
+        // [0, 1/2) and [1/4, 1/2) overlap, so the server has half
+        Map<String, Set<HashSpan>> current = new HashMap<String, Set<HashSpan>>();
+        Set<HashSpan> spans = set(new HashSpan(HashSpan.FIRST, middle.getPrevious()));
+        spans.add(new HashSpan(quarter, middle.getPrevious()));
+        current.put("a", spans);
+        Map<String, Set<HashSpan>> updated = new HashMap<String, Set<HashSpan>>();
+        updated.put("a", set(new HashSpan(quarter, HashSpan.LAST)));
+
+        HashSpanMovementPlan plan = new HashSpanMovementPlan(current, updated);
+        assertEquals(0.5, plan.getFractionToCopy("a"), 0.000001);
+        assertEquals(0.25, plan.getFractionToDelete("a"), 0.000001);
+        assertEquals(set(new HashSpan(middle, HashSpan.LAST)), plan.getHashSpansToCopy("a"));
+        assertEquals(set(new HashSpan(HashSpan.FIRST, quarter.getPrevious())), plan.getHashSpansToDelete("a"));
+    }
+
+    private static Set<HashSpan> set(HashSpan hs) {
+        Set<HashSpan> set = new HashSet<HashSpan>();
+        set.add(hs);
+        return set;
+    }
+}
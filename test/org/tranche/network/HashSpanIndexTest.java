@@ -0,0 +1,172 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.tranche.hash.BigHash;
+import org.tranche.hash.span.HashSpan;
+import org.tranche.util.DevUtil;
+import org.tranche.util.TestUtil;
+import org.tranche.util.Utils;
+
+public class HashSpanIndexTest extends NetworkPackageTestCase {
+
+    public void testSameHostsAsHashSpanContains() throws Exception {
+        TestUtil.printTitle("HashSpanIndexTest:testSameHostsAsHashSpanContains()");
+        List<StatusTableRow> rows = new ArrayList<StatusTableRow>();
+        for (int i = 0; i < 20; i++) {
+            StatusTableRow row = new StatusTableRow("server" + i + ".com");
+            row.setHashSpans(DevUtil.createRandomHashSpanSet(5));
+            row.setTargetHashSpans(DevUtil.createRandomHashSpanSet(5));
+            rows.add(row);
+        }
+        // one host with the full hash span, one with none
+        rows.get(0).setHashSpans(HashSpan.FULL_SET);
+        rows.get(1).setHashSpans(new HashSet<HashSpan>());
+
+        for (boolean isTarget : new boolean[]{false, true}) {
+            HashSpanIndex index = new HashSpanIndex(rows, isTarget);
+
+            // random hashes, and the hashes at and around every boundary
+            List<BigHash> hashes = new ArrayList<BigHash>();
+            for (int i = 0; i < 200; i++) {
+                hashes.add(new BigHash(Utils.makeRandomData(100)));
+            }
+            hashes.add(HashSpan.FIRST);
+            hashes.add(HashSpan.LAST);
+            for (StatusTableRow row : rows) {
+                for (HashSpan hs : isTarget ? row.getTargetHashSpans() : row.getHashSpans()) {
+                    for (BigHash boundary : new BigHash[]{hs.getFirst(), hs.getLast()}) {
+                        hashes.add(boundary);
+                        if (!boundary.equals(HashSpan.FIRST)) {
+                            hashes.add(boundary.getPrevious());
+                        }
+                        if (!boundary.equals(HashSpan.LAST)) {
+                            hashes.add(boundary.getNext());
+                        }
+                    }
+                }
+            }
+
+            for (BigHash hash : hashes) {
+                List<String> expected = new ArrayList<String>();
+                for (StatusTableRow row : rows) {
+                    for (HashSpan hs : isTarget ? row.getTargetHashSpans() : row.getHashSpans()) {
+                        if (hs.contains(hash)) {
+                            expected.add(row.getHost());
+                            break;
+                        }
+                    }
+                }
+                Collections.sort(expected);
+                assertEquals(expected, index.getHosts(hash));
+                for (StatusTableRow row : rows) {
+                    assertEquals(expected.contains(row.getHost()), index.contains(row.getHost(), hash));
+                }
+            }
+        }
+
+        // no rows
+        assertTrue(new HashSpanIndex(new ArrayList<StatusTableRow>(), false).getHosts(HashSpan.FIRST).isEmpty());
+    }
+
+    public void testRebuiltWhenRowsChange() throws Exception {
+        TestUtil.printTitle("HashSpanIndexTest:testRebuiltWhenRowsChange()");
+        BigHash hash = new BigHash(Utils.makeRandomData(100));
+        StatusTable table = new StatusTable();
+        StatusTableRow row = new StatusTableRow("server1.com");
+        row.setHashSpans(HashSpan.FULL_SET);
+        row.setTargetHashSpans(new HashSet<HashSpan>());
+        table.setRow(row);
+
+        HashSpanIndex index = table.getHashSpanIndex();
+        assertSame("Should not rebuild unless rows change.", index, table.getHashSpanIndex());
+        assertEquals(1, index.getHosts(hash).size());
+        assertTrue(table.getTargetHashSpanIndex().getHosts(hash).isEmpty());
+
+        // added
+        StatusTableRow row2 = new StatusTableRow("server2.com");
+        row2.setHashSpans(HashSpan.FULL_SET);
+        row2.setTargetHashSpans(HashSpan.FULL_SET);
+        table.setRow(row2);
+        assertEquals(2, table.getHashSpanIndex().getHosts(hash).size());
+        assertEquals(1, table.getTargetHashSpanIndex().getHosts(hash).size());
+
+        // updated
+        StatusTableRow updated = row2.clone();
+        updated.setHashSpans(new HashSet<HashSpan>());
+        updated.setUpdateTimestamp(row2.getUpdateTimestamp() + 1);
+        table.setRow(updated);
+        assertEquals(1, table.getHashSpanIndex().getHosts(hash).size());
+        assertTrue(table.getHashSpanIndex().contains("server1.com", hash));
+
+        // removed
+        table.removeRow("server1.com");
+        assertTrue(table.getHashSpanIndex().getHosts(hash).isEmpty());
+        assertEquals(1, table.getTargetHashSpanIndex().getHosts(hash).size());
+    }
+
+    /**
+     * <p>Prints the time to find the hosts for a hash against checking every hash span of every row.</p>
+     */
+    public void testLookupTime() throws Exception {
+        TestUtil.printTitle("HashSpanIndexTest:testLookupTime()");
+        List<StatusTableRow> rows = new ArrayList<StatusTableRow>();
+        for (int i = 0; i < 200; i++) {
+            StatusTableRow row = new StatusTableRow("server" + i + ".com");
+            Set<HashSpan> hashSpans = new HashSet<HashSpan>();
+            for (int j = 0; j < 3; j++) {
+                hashSpans.add(DevUtil.makeRandomHashSpan());
+            }
+            row.setHashSpans(hashSpans);
+            rows.add(row);
+        }
+        HashSpanIndex index = new HashSpanIndex(rows, false);
+        BigHash[] hashes = new BigHash[200];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = new BigHash(Utils.makeRandomData(100));
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int found = 0;
+            for (BigHash hash : hashes) {
+                for (StatusTableRow row : rows) {
+                    for (HashSpan hs : row.getHashSpans()) {
+                        if (hs.contains(hash)) {
+                            found++;
+                            break;
+                        }
+                    }
+                }
+            }
+            long scanTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int indexed = 0;
+            for (BigHash hash : hashes) {
+                indexed += index.getHosts(hash).size();
+            }
+            long indexTime = System.nanoTime() - start;
+            assertEquals(found, indexed);
+            System.out.println("Checking every hash span: " + (scanTime / hashes.length) + " ns per hash. Index: " + (indexTime / hashes.length) + " ns per hash.");
+        }
+    }
+}
@@ -15,8 +15,15 @@
  */
 package org.tranche.remote;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import org.tranche.exceptions.TodoException;
+import org.tranche.exceptions.UnexpectedEndOfStreamException;
+import org.tranche.flatfile.DataBlockUtil;
+import org.tranche.util.TestUtil;
 import org.tranche.util.TrancheTestCase;
+import org.tranche.util.Utils;
 
 /**
  *
@@ -27,4 +34,39 @@ public class RemoteUtilTest extends TrancheTestCase {
     public void testTodo() throws Exception {
         throw new TodoException();
     }
-}
\ No newline at end of file
+
+    public void testReadDataBytes() throws Exception {
+        TestUtil.printTitle("RemoteUtilTest:testReadDataBytes()");
+        byte[][] datas = {null, new byte[0], Utils.makeRandomData(1000), Utils.makeRandomData(DataBlockUtil.getMaxChunkSize() * 3 + 1)};
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (byte[] data : datas) {
+            RemoteUtil.writeData(data, baos);
+        }
+        ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
+        for (byte[] data : datas) {
+            byte[] read = RemoteUtil.readDataBytes(bais);
+            if (data == null) {
+                assertNull(read);
+            } else {
+                assertTrue(Arrays.equals(data, read));
+            }
+        }
+        assertEquals(-1, bais.read());
+    }
+
+    public void testReadDataBytesSizeTooLarge() throws Exception {
+        TestUtil.printTitle("RemoteUtilTest:testReadDataBytesSizeTooLarge()");
+        // says there is more than there is
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(Token.DATA);
+        baos.write(Integer.toString(Integer.MAX_VALUE).getBytes());
+        baos.write(Token.EOL);
+        baos.write(Utils.makeRandomData(1000));
+        try {
+            RemoteUtil.readDataBytes(new ByteArrayInputStream(baos.toByteArray()));
+            fail("Should have run out of bytes.");
+        } catch (UnexpectedEndOfStreamException e) {
+            // expected
+        }
+    }
+}
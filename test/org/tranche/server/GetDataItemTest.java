@@ -24,6 +24,7 @@ import org.tranche.hash.BigHash;
 import org.tranche.hash.span.HashSpan;
 import org.tranche.remote.RemoteUtil;
 import org.tranche.remote.Token;
+import org.tranche.streams.BufferListOutputStream;
 import org.tranche.util.DevUtil;
 import org.tranche.util.IOUtil;
 import org.tranche.commons.RandomUtil;
@@ -54,7 +55,15 @@ public class GetDataItemTest extends TrancheTestCase {
 
     public void testDoAction() throws Exception {
         TestUtil.printTitle("GetDataItemTest:testDoAction()");
+        runDoAction(false);
+    }
+
+    public void testDoActionMemoryMapped() throws Exception {
+        TestUtil.printTitle("GetDataItemTest:testDoActionMemoryMapped()");
+        runDoAction(true);
+    }
 
+    private void runDoAction(boolean useMemoryMappedReads) throws Exception {
         String HOST1 = "server1.com";
         TestNetwork testNetwork = new TestNetwork();
         testNetwork.addTestServerConfiguration(TestServerConfiguration.generateForDataServer(443, HOST1, 1500, "127.0.0.1", true, true, false, HashSpan.FULL_SET, DevUtil.DEV_USER_SET));
@@ -62,6 +71,7 @@ public class GetDataItemTest extends TrancheTestCase {
             testNetwork.start();
             Server s = testNetwork.getServer(HOST1);
             FlatFileTrancheServer ffts = testNetwork.getFlatFileTrancheServer(HOST1);
+            ffts.getDataBlockUtil().setUseMemoryMappedReads(useMemoryMappedReads);
 
             // create some fake data chunks
             int numHashes = RandomUtil.getInt(10) + 1;
@@ -84,9 +94,12 @@ public class GetDataItemTest extends TrancheTestCase {
             ByteArrayOutputStream request = new ByteArrayOutputStream();
             GetDataItem.writeRequest(false, hashes, false, request);
 
-            // execute
+            // execute -- same output stream as used by ServerWorkerThread
+            BufferListOutputStream output = new BufferListOutputStream();
+            item.doAction(new ByteArrayInputStream(request.toByteArray()), output, "localhost");
             ByteArrayOutputStream response = new ByteArrayOutputStream();
-            item.doAction(new ByteArrayInputStream(request.toByteArray()), response, "localhost");
+            output.writeTo(response);
+            assertEquals(output.size(), response.size());
 
             // verify
             ByteArrayInputStream in = new ByteArrayInputStream(response.toByteArray());
@@ -0,0 +1,276 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import org.tranche.configuration.ConfigKeys;
+import org.tranche.configuration.Configuration;
+import org.tranche.exceptions.PropagationFailedException;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+
+public class PropagationExecutorTest extends TrancheTestCase {
+
+    public void testErrorsAreCollected() throws Exception {
+        TestUtil.printTitle("PropagationExecutorTest:testErrorsAreCollected()");
+        PropagationExecutor executor = new PropagationExecutor(4, 100, 2, 10000);
+        try {
+            PropagationExecutor.Batch batch = executor.newBatch(1);
+            for (int i = 0; i < 10; i++) {
+                final String host = "host" + i;
+                batch.submit(host, Arrays.asList(host, host + "a"), new Callable<Collection<PropagationExceptionWrapper>>() {
+
+                    public Collection<PropagationExceptionWrapper> call() throws Exception {
+                        if (host.equals("host3")) {
+                            throw new Exception("Failed.");
+                        }
+                        return Collections.singleton(new PropagationExceptionWrapper(new Exception(), host + "a"));
+                    }
+                });
+            }
+            Set<PropagationExceptionWrapper> exceptions = batch.await();
+            assertEquals(11, exceptions.size());
+            Set<String> hosts = new HashSet<String>();
+            for (PropagationExceptionWrapper pew : exceptions) {
+                hosts.add(pew.host);
+                if (pew.host.equals("host3a")) {
+                    assertTrue(pew.exception instanceof PropagationFailedException);
+                }
+            }
+            assertTrue(hosts.contains("host3"));
+            assertEquals(10, executor.getCompletedCount());
+            assertEquals(0, executor.getQueueDepth());
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void testHostLimit() throws Exception {
+        TestUtil.printTitle("PropagationExecutorTest:testHostLimit()");
+        PropagationExecutor executor = new PropagationExecutor(8, 100, 2, 10000);
+        try {
+            final int[] executing = new int[2];
+            PropagationExecutor.Batch batch = executor.newBatch(1);
+            for (int i = 0; i < 20; i++) {
+                final int host = i % 2;
+                batch.submit("host" + host, Collections.singleton("host" + host), new Callable<Collection<PropagationExceptionWrapper>>() {
+
+                    public Collection<PropagationExceptionWrapper> call() throws Exception {
+                        synchronized (executing) {
+                            executing[host]++;
+                            if (executing[host] > 2) {
+                                throw new Exception("Too many executing: " + executing[host]);
+                            }
+                        }
+                        Thread.sleep(20);
+                        synchronized (executing) {
+                            executing[host]--;
+                        }
+                        return Collections.emptySet();
+                    }
+                });
+            }
+            assertEquals(Collections.emptySet(), batch.await());
+            assertEquals(20, executor.getCompletedCount());
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void testTooManyQueuedAreRejected() throws Exception {
+        TestUtil.printTitle("PropagationExecutorTest:testTooManyQueuedAreRejected()");
+        PropagationExecutor executor = new PropagationExecutor(1, 3, 1, 10000);
+        try {
+            final Object lock = new Object();
+            PropagationExecutor.Batch batch = executor.newBatch(1);
+            Callable<Collection<PropagationExceptionWrapper>> blocked = new Callable<Collection<PropagationExceptionWrapper>>() {
+
+                public Collection<PropagationExceptionWrapper> call() throws Exception {
+                    synchronized (lock) {
+                        return Collections.emptySet();
+                    }
+                }
+            };
+            synchronized (lock) {
+                // wait for the first to start executing
+                batch.submit("host", Collections.singleton("host"), blocked);
+                while (executor.getQueueDepth() > 0) {
+                    Thread.sleep(10);
+                }
+                for (int i = 0; i < 5; i++) {
+                    batch.submit("host", Collections.singleton("host"), blocked);
+                }
+                assertEquals(3, executor.getQueueDepth());
+                assertEquals(2, executor.getRejectedCount());
+            }
+            Set<PropagationExceptionWrapper> exceptions = batch.await();
+            assertEquals(2, exceptions.size());
+            for (PropagationExceptionWrapper pew : exceptions) {
+                assertTrue(pew.exception instanceof RejectedExecutionException);
+            }
+            assertEquals(4, executor.getCompletedCount());
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void testTimeout() throws Exception {
+        TestUtil.printTitle("PropagationExecutorTest:testTimeout()");
+        PropagationExecutor executor = new PropagationExecutor(4, 100, 1, 400);
+        try {
+            final Object lock = new Object();
+            PropagationExecutor.Batch batch = executor.newBatch(1);
+            synchronized (lock) {
+                batch.submit("slow", Arrays.asList("slow", "behind"), new Callable<Collection<PropagationExceptionWrapper>>() {
+
+                    public Collection<PropagationExceptionWrapper> call() throws Exception {
+                        synchronized (lock) {
+                            return Collections.emptySet();
+                        }
+                    }
+                });
+                batch.submit("fast", Collections.singleton("fast"), new Callable<Collection<PropagationExceptionWrapper>>() {
+
+                    public Collection<PropagationExceptionWrapper> call() throws Exception {
+                        return Collections.emptySet();
+                    }
+                });
+                long start = System.currentTimeMillis();
+                Set<PropagationExceptionWrapper> exceptions = batch.await();
+                assertTrue(System.currentTimeMillis() - start < 5000);
+                assertEquals(2, exceptions.size());
+                for (PropagationExceptionWrapper pew : exceptions) {
+                    if (pew.host.equals("slow")) {
+                        assertTrue(pew.exception instanceof TimeoutException);
+                    } else {
+                        assertEquals("behind", pew.host);
+                        assertTrue(pew.exception instanceof PropagationFailedException);
+                    }
+                }
+                assertEquals(1, executor.getTimedOutCount());
+            }
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void testDeeperBatchesWaitLonger() throws Exception {
+        TestUtil.printTitle("PropagationExecutorTest:testDeeperBatchesWaitLonger()");
+        PropagationExecutor executor = new PropagationExecutor(4, 100, 1, 1200);
+        try {
+            final Object lock = new Object();
+            Callable<Collection<PropagationExceptionWrapper>> blocked = new Callable<Collection<PropagationExceptionWrapper>>() {
+
+                public Collection<PropagationExceptionWrapper> call() throws Exception {
+                    synchronized (lock) {
+                        return Collections.emptySet();
+                    }
+                }
+            };
+            synchronized (lock) {
+                // a server one level down
+                PropagationExecutor.Batch shallow = executor.newBatch(1);
+                shallow.submit("a", Collections.singleton("a"), blocked);
+                long start = System.currentTimeMillis();
+                shallow.await();
+                long shallowTime = System.currentTimeMillis() - start;
+
+                // the server that propagated to it
+                PropagationExecutor.Batch deep = executor.newBatch(2);
+                deep.submit("b", Collections.singleton("b"), blocked);
+                start = System.currentTimeMillis();
+                deep.await();
+                long deepTime = System.currentTimeMillis() - start;
+
+                assertTrue("Waited " + shallowTime + " ms.", shallowTime >= 550 && shallowTime < 750);
+                assertTrue("Waited " + deepTime + " ms.", deepTime >= 750 && deepTime < 1200);
+            }
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void testCloseFailsWaitingRequests() throws Exception {
+        TestUtil.printTitle("PropagationExecutorTest:testCloseFailsWaitingRequests()");
+        PropagationExecutor executor = new PropagationExecutor(1, 100, 1, 60000);
+        final Object lock = new Object();
+        Callable<Collection<PropagationExceptionWrapper>> blocked = new Callable<Collection<PropagationExceptionWrapper>>() {
+
+            public Collection<PropagationExceptionWrapper> call() throws Exception {
+                synchronized (lock) {
+                    return Collections.emptySet();
+                }
+            }
+        };
+        PropagationExecutor.Batch batch = executor.newBatch(1);
+        synchronized (lock) {
+            // one executing, one waiting for a thread, one waiting for its host
+            batch.submit("a", Collections.singleton("a"), blocked);
+            batch.submit("b", Collections.singleton("b"), blocked);
+            batch.submit("a", Collections.singleton("a"), blocked);
+            executor.close();
+            assertEquals(0, executor.getQueueDepth());
+        }
+        long start = System.currentTimeMillis();
+        Set<PropagationExceptionWrapper> exceptions = batch.await();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        int rejected = 0;
+        for (PropagationExceptionWrapper pew : exceptions) {
+            if (pew.exception instanceof RejectedExecutionException) {
+                rejected++;
+            }
+        }
+        assertTrue("Found " + rejected + " rejected.", rejected >= 2);
+
+        // turned away once closed
+        batch = executor.newBatch(1);
+        batch.submit("a", Collections.singleton("a"), blocked);
+        exceptions = batch.await();
+        assertEquals(1, exceptions.size());
+        assertTrue(exceptions.iterator().next().exception instanceof RejectedExecutionException);
+    }
+
+    public void testConfigurationValues() throws Exception {
+        TestUtil.printTitle("PropagationExecutorTest:testConfigurationValues()");
+        PropagationExecutor executor = new PropagationExecutor(1, 0, 1, 10000);
+        try {
+            PropagationExecutor.Batch batch = executor.newBatch(1);
+            batch.submit("a", Collections.singleton("a"), new Callable<Collection<PropagationExceptionWrapper>>() {
+
+                public Collection<PropagationExceptionWrapper> call() throws Exception {
+                    return Collections.emptySet();
+                }
+            });
+            batch.await();
+            Configuration config = new Configuration();
+            executor.setConfigurationValues(config);
+            assertEquals("0", config.getValue(ConfigKeys.PROPAGATE_QUEUE_DEPTH));
+            assertEquals("0", config.getValue(ConfigKeys.PROPAGATE_COMPLETED_COUNT));
+            assertEquals("1", config.getValue(ConfigKeys.PROPAGATE_REJECTED_COUNT));
+            assertEquals("0", config.getValue(ConfigKeys.PROPAGATE_TIMED_OUT_COUNT));
+            assertNotNull(config.getValue(ConfigKeys.PROPAGATE_ACTIVE_COUNT));
+        } finally {
+            executor.close();
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.tranche.server;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import org.tranche.exceptions.ServerIsNotWritableException;
@@ -506,4 +508,45 @@ public class PropagationReturnWrapperTest extends TrancheTestCase {
             }
         }
     }
+
+    /**
+     * <p>ByteBuffer[] is only used on the server side, and should be read back as byte[][].</p>
+     * @throws java.lang.Exception
+     */
+    public void testByteBufferArray() throws Exception {
+        TestUtil.printTitle("PropagationReturnWrapperTest.testByteBufferArray");
+
+        byte[][] val2D = new byte[RandomUtil.getInt(10) + 2][RandomUtil.getInt(10) + 1];
+        val2D[0] = null;
+        ByteBuffer[] buffers = new ByteBuffer[val2D.length];
+        for (int i = 1; i < val2D.length; i++) {
+            RandomUtil.getBytes(val2D[i]);
+            // direct and read-only, like a slice of a memory-mapped file
+            ByteBuffer direct = ByteBuffer.allocateDirect(val2D[i].length + 2);
+            direct.put((byte) 1);
+            direct.put(val2D[i]);
+            direct.position(1);
+            direct.limit(1 + val2D[i].length);
+            buffers[i] = direct.slice().asReadOnlyBuffer();
+        }
+
+        PropagationReturnWrapper w = new PropagationReturnWrapper(new HashSet<PropagationExceptionWrapper>(), buffers);
+        assertTrue(w.isByteBufferArray());
+        assertFalse(w.isByteArrayDoubleDimension());
+
+        // should serialize exactly the same as the byte arrays
+        byte[] expected = new PropagationReturnWrapper(w.getErrors(), val2D).toByteArray();
+        byte[] wBytes = w.toByteArray();
+        assertTrue("Should serialize same as byte[][].", Arrays.equals(expected, wBytes));
+
+        PropagationReturnWrapper wVerify = PropagationReturnWrapper.createFromBytes(wBytes);
+        assertEquals("Expecting certain number of exceptions.", 0, wVerify.getErrors().size());
+        assertTrue(wVerify.isByteArrayDoubleDimension());
+        byte[][] val2DVerify = (byte[][]) wVerify.getReturnValueObject();
+        assertNull(val2DVerify[0]);
+        for (int i = 1; i < val2D.length; i++) {
+            assertTrue("Should be equal bytes.", Arrays.equals(val2D[i], val2DVerify[i]));
+            assertEquals("Buffer should not have been consumed.", val2D[i].length, buffers[i].remaining());
+        }
+    }
 }
@@ -0,0 +1,197 @@
+/*
+ *    Copyright 2005 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tranche.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import org.tranche.ConfigureTranche;
+import org.tranche.TrancheServer;
+import org.tranche.exceptions.RejectedRequestException;
+import org.tranche.flatfile.DataBlockUtil;
+import org.tranche.flatfile.FlatFileTrancheServer;
+import org.tranche.hash.BigHash;
+import org.tranche.hash.span.HashSpan;
+import org.tranche.network.ConnectionUtil;
+import org.tranche.remote.RemoteTrancheServer;
+import org.tranche.remote.Token;
+import org.tranche.util.DevUtil;
+import org.tranche.util.IOUtil;
+import org.tranche.util.TestNetwork;
+import org.tranche.util.TestServerConfiguration;
+import org.tranche.util.TestUtil;
+import org.tranche.util.TrancheTestCase;
+
+public class ServerSelectorTest extends TrancheTestCase {
+
+    private static final String HOST1 = "server1.com";
+
+    @Override()
+    protected void setUp() throws Exception {
+        super.setUp();
+        ConfigureTranche.set(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_NIO, "true");
+    }
+
+    @Override()
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        ConfigureTranche.set(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_NIO, ConfigureTranche.getDefault(ConfigureTranche.CATEGORY_SERVER, ConfigureTranche.PROP_SERVER_NIO));
+    }
+
+    public void testRemoteTrancheServer() throws Exception {
+        TestUtil.printTitle("ServerSelectorTest:testRemoteTrancheServer()");
+        TestNetwork testNetwork = new TestNetwork();
+        testNetwork.addTestServerConfiguration(TestServerConfiguration.generateForDataServer(443, HOST1, 1500, "127.0.0.1", true, true, false, HashSpan.FULL_SET, DevUtil.DEV_USER_SET));
+        try {
+            testNetwork.start();
+            Server s = testNetwork.getServer(HOST1);
+            assertNotNull(s.getServerSelector());
+            FlatFileTrancheServer ffts = testNetwork.getFlatFileTrancheServer(HOST1);
+
+            // some chunks, and some hashes that aren't on the server
+            BigHash[] hashes = new BigHash[10];
+            for (int i = 0; i < 5; i++) {
+                byte[] bytes = DevUtil.createRandomDataChunk(DataBlockUtil.getMaxChunkSize());
+                hashes[i] = new BigHash(bytes);
+                IOUtil.setData(ffts, DevUtil.getDevAuthority(), DevUtil.getDevPrivateKey(), hashes[i], bytes);
+            }
+            for (int i = 5; i < hashes.length; i++) {
+                hashes[i] = DevUtil.getRandomBigHash();
+            }
+
+            TrancheServer ts = null;
+            try {
+                ts = ConnectionUtil.connectURL(s.getURL(), false);
+                ts.ping();
+                PropagationReturnWrapper responseObject = ts.getData(hashes, false);
+                assertEquals(5, responseObject.getErrors().size());
+                byte[][] responseByte2DArray = (byte[][]) responseObject.getReturnValueObject();
+                assertEquals(hashes.length, responseByte2DArray.length);
+                for (int i = 0; i < 5; i++) {
+                    assertEquals(hashes[i], new BigHash(responseByte2DArray[i]));
+                }
+                for (int i = 5; i < hashes.length; i++) {
+                    assertNull(responseByte2DArray[i]);
+                }
+                assertEquals(1, s.getConnectedClients());
+            } finally {
+                IOUtil.safeClose(ts);
+            }
+        } finally {
+            testNetwork.stop();
+        }
+    }
+
+    public void testTooLargeRequestIsRejected() throws Exception {
+        TestUtil.printTitle("ServerSelectorTest:testTooLargeRequestIsRejected()");
+        TestNetwork testNetwork = new TestNetwork();
+        testNetwork.addTestServerConfiguration(TestServerConfiguration.generateForDataServer(443, HOST1, 1500, "127.0.0.1", true, true, false, HashSpan.FULL_SET, DevUtil.DEV_USER_SET));
+        try {
+            testNetwork.start();
+            Server s = testNetwork.getServer(HOST1);
+            s.setMaxRequestSize(100);
+            Socket socket = new Socket("127.0.0.1", 1500);
+            try {
+                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                DataInputStream dis = new DataInputStream(socket.getInputStream());
+
+                writeRequest(dos, 1, new byte[1000]);
+                String response = new String(readResponse(dis, 1));
+                assertTrue(response, response.contains(RejectedRequestException.MESSAGE));
+
+                // still reading requests in step
+                writeRequest(dos, 2, Token.PING);
+                assertTrue(readResponse(dis, 2).length > 0);
+            } finally {
+                socket.close();
+            }
+        } finally {
+            testNetwork.stop();
+        }
+    }
+
+    public void testManyClients() throws Exception {
+        TestUtil.printTitle("ServerSelectorTest:testManyClients()");
+        TestNetwork testNetwork = new TestNetwork();
+        testNetwork.addTestServerConfiguration(TestServerConfiguration.generateForDataServer(443, HOST1, 1500, "127.0.0.1", true, true, false, HashSpan.FULL_SET, DevUtil.DEV_USER_SET));
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            testNetwork.start();
+            Server s = testNetwork.getServer(HOST1);
+            int threadsBefore = Thread.activeCount();
+
+            for (int i = 0; i < 100; i++) {
+                sockets.add(new Socket("127.0.0.1", 1500));
+            }
+            for (int i = 0; i < sockets.size(); i++) {
+                writeRequest(new DataOutputStream(sockets.get(i).getOutputStream()), i, Token.PING);
+            }
+            for (int i = 0; i < sockets.size(); i++) {
+                assertTrue(readResponse(new DataInputStream(sockets.get(i).getInputStream()), i).length > 0);
+            }
+            // the server might also have connected to itself
+            int connected = s.getConnectedClients();
+            assertTrue(connected >= sockets.size());
+
+            // a worker thread for each client would have made hundreds of threads
+            int threadsAfter = Thread.activeCount();
+            assertTrue("Started " + (threadsAfter - threadsBefore) + " threads.", threadsAfter - threadsBefore < 10);
+
+            // closed clients are let go
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            long start = System.currentTimeMillis();
+            while (s.getConnectedClients() > connected - sockets.size() && System.currentTimeMillis() - start < 5000) {
+                Thread.sleep(10);
+            }
+            assertEquals(connected - sockets.size(), s.getConnectedClients());
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            testNetwork.stop();
+        }
+    }
+
+    /**
+     * <p>Writes a request the same way as RemoteTrancheServerUploadThread.</p>
+     */
+    private static void writeRequest(DataOutputStream dos, long id, byte[] bytes) throws Exception {
+        dos.write(RemoteTrancheServer.OK_BYTE);
+        dos.writeLong(id);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+        dos.flush();
+    }
+
+    /**
+     * <p>Reads a response the same way as RemoteTrancheServerDownloadThread, skipping keep-alive signals.</p>
+     */
+    private static byte[] readResponse(DataInputStream dis, long id) throws Exception {
+        while (true) {
+            assertEquals(RemoteTrancheServer.OK_BYTE, dis.readByte());
+            assertEquals(id, dis.readLong());
+            byte[] bytes = new byte[dis.readInt()];
+            dis.readFully(bytes);
+            if (bytes.length != Token.KEEP_ALIVE.length || !new String(bytes).equals(new String(Token.KEEP_ALIVE))) {
+                return bytes;
+            }
+        }
+    }
+}
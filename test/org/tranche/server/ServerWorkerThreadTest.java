@@ -15,6 +15,11 @@
  */
 package org.tranche.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
 import org.tranche.TrancheServer;
 import org.tranche.commons.DebugUtil;
 import org.tranche.flatfile.DataBlockUtil;
@@ -22,7 +27,13 @@ import org.tranche.flatfile.FlatFileTrancheServer;
 import org.tranche.hash.BigHash;
 import org.tranche.hash.span.HashSpan;
 import org.tranche.network.ConnectionUtil;
+import org.tranche.exceptions.TrancheProtocolException;
 import org.tranche.remote.RemoteCallback;
+import org.tranche.remote.RemoteTrancheServer;
+import org.tranche.remote.RemoteUtil;
+import org.tranche.remote.Token;
+import org.tranche.security.SecurityUtil;
+import org.tranche.security.Signature;
 import org.tranche.util.DevUtil;
 import org.tranche.util.IOUtil;
 import org.tranche.commons.RandomUtil;
@@ -107,4 +118,92 @@ public class ServerWorkerThreadTest extends TrancheTestCase {
             ServerWorkerThread.setTestingKeepAlive(false);
         }
     }
+
+    public void testStreamedRequests() throws Exception {
+        TestUtil.printTitle("ServerWorkerThreadTest:testStreamedRequests()");
+
+        String HOST1 = "server1.com";
+        TestNetwork testNetwork = new TestNetwork();
+        testNetwork.addTestServerConfiguration(TestServerConfiguration.generateForDataServer(443, HOST1, 1500, "127.0.0.1", true, true, false, HashSpan.FULL_SET, DevUtil.DEV_USER_SET));
+        try {
+            testNetwork.start();
+            Server s = testNetwork.getServer(HOST1);
+            FlatFileTrancheServer ffts = testNetwork.getFlatFileTrancheServer(HOST1);
+
+            // sign hash + data
+            byte[] data = DevUtil.createRandomDataChunk1MB();
+            BigHash hash = new BigHash(data);
+            byte[] bytes = new byte[BigHash.HASH_LENGTH + data.length];
+            System.arraycopy(hash.toByteArray(), 0, bytes, 0, BigHash.HASH_LENGTH);
+            System.arraycopy(data, 0, bytes, BigHash.HASH_LENGTH, data.length);
+            String algorithm = SecurityUtil.getSignatureAlgorithm(DevUtil.getDevPrivateKey());
+            Signature signature = new Signature(SecurityUtil.sign(new ByteArrayInputStream(bytes), DevUtil.getDevPrivateKey(), algorithm), algorithm, DevUtil.getDevAuthority());
+
+            Socket socket = new Socket("127.0.0.1", 1500);
+            try {
+                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                DataInputStream dis = new DataInputStream(socket.getInputStream());
+
+                // set the chunk
+                ByteArrayOutputStream request = new ByteArrayOutputStream();
+                SetDataItem.writeRequest(true, hash, new String[]{s.getHostName()}, data, signature, request);
+                writeRequest(dos, 1, request.toByteArray());
+                ByteArrayInputStream response = new ByteArrayInputStream(readResponse(dis, 1));
+                assertEquals(Token.OK_STRING, RemoteUtil.readLine(response));
+                assertEquals(0, PropagationReturnWrapper.createFromBytes(RemoteUtil.readDataBytes(response)).getErrors().size());
+                assertTrue(IOUtil.hasData(ffts, hash));
+
+                // a request with bytes left over is still read in step
+                request = new ByteArrayOutputStream();
+                GetDataItem.writeRequest(true, new BigHash[]{hash}, false, request);
+                request.write(new byte[100]);
+                writeRequest(dos, 2, request.toByteArray());
+                response = new ByteArrayInputStream(readResponse(dis, 2));
+                assertEquals(Token.OK_STRING, RemoteUtil.readLine(response));
+                byte[][] chunks = (byte[][]) PropagationReturnWrapper.createFromBytes(RemoteUtil.readDataBytes(response)).getReturnValueObject();
+                assertEquals(hash, new BigHash(chunks[0]));
+
+                // so is a request that ends early
+                request = new ByteArrayOutputStream();
+                request.write(Token.SET_DATA);
+                request.write(hash.toByteArray(), 0, 10);
+                writeRequest(dos, 3, request.toByteArray());
+                String error = new String(readResponse(dis, 3));
+                assertTrue(error, error.contains(TrancheProtocolException.MESSAGE));
+
+                writeRequest(dos, 4, Token.PING);
+                assertTrue(readResponse(dis, 4).length > 0);
+            } finally {
+                socket.close();
+            }
+        } finally {
+            testNetwork.stop();
+        }
+    }
+
+    /**
+     * <p>Writes a request the same way as RemoteTrancheServerUploadThread.</p>
+     */
+    private static void writeRequest(DataOutputStream dos, long id, byte[] bytes) throws Exception {
+        dos.write(RemoteTrancheServer.OK_BYTE);
+        dos.writeLong(id);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+        dos.flush();
+    }
+
+    /**
+     * <p>Reads a response the same way as RemoteTrancheServerDownloadThread, skipping keep-alive signals.</p>
+     */
+    private static byte[] readResponse(DataInputStream dis, long id) throws Exception {
+        while (true) {
+            assertEquals(RemoteTrancheServer.OK_BYTE, dis.readByte());
+            assertEquals(id, dis.readLong());
+            byte[] bytes = new byte[dis.readInt()];
+            dis.readFully(bytes);
+            if (bytes.length != Token.KEEP_ALIVE.length || !new String(bytes).equals(new String(Token.KEEP_ALIVE))) {
+                return bytes;
+            }
+        }
+    }
 }
@@ -335,7 +335,7 @@ public class TestNetwork {
                 config = this.getRoutingTrancheServer(row.getHost()).getConfiguration();
             }
 
-            row.update(config);
+            table.updateRow(row.getHost(), config);
         }
     }
     private Map<String, SuspendedHost> suspendedHosts = new HashMap();